@@ -0,0 +1,80 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-reading cost of {@link LowPassFilter} and {@link HighPassFilter} for readings with {@code channels} values,
+ * through the allocating {@code apply(float...)} and the buffer based {@code apply(in, inOff, out, outOff, channels)}.
+ * The readings cycle through a small set of precomputed inputs so the filters do not settle on a constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBenchmark {
+
+    private static final int NUM_INPUTS = 64;
+
+    @Param({"1", "3", "16", "64"})
+    public int channels;
+
+    private float[][] inputs;
+    private int next;
+
+    private LowPassFilter lowPass;
+    private HighPassFilter highPass;
+    private float[] out;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        inputs = new float[NUM_INPUTS][channels];
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            for (int c = 0; c < channels; c++) {
+                inputs[i][c] = (float) Math.sin(i * 0.3 + c);
+            }
+        }
+        out = new float[channels];
+        lowPass = new LowPassFilter();
+        lowPass.init(0.2f, channels);
+        lowPass.apply(inputs[0]);
+        highPass = new HighPassFilter();
+        highPass.init(0.8f, channels);
+        highPass.apply(inputs[0]);
+    }
+
+    private float[] nextInput() {
+        next = (next + 1) & (NUM_INPUTS - 1);
+        return inputs[next];
+    }
+
+    @Benchmark
+    public float[] lowPass() {
+        return lowPass.apply(nextInput());
+    }
+
+    @Benchmark
+    public float[] highPass() {
+        return highPass.apply(nextInput());
+    }
+
+    @Benchmark
+    public float[] lowPassInto() {
+        lowPass.apply(nextInput(), 0, out, 0, channels);
+        return out;
+    }
+
+    @Benchmark
+    public float[] highPassInto() {
+        highPass.apply(nextInput(), 0, out, 0, channels);
+        return out;
+    }
+}
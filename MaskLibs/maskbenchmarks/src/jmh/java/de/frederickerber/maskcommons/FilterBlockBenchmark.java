@@ -0,0 +1,113 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-reading cost of filtering a batch of {@value #FRAMES} interleaved readings: with {@code applyBlock},
+ * with {@code apply} into a buffer for every reading and with the allocating {@code apply(float...)}.
+ * {@code bandPassBlock} runs a fourth-order Butterworth band-pass, a cascade of four biquads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBlockBenchmark {
+
+    private static final int FRAMES = 128;
+
+    @Param({"1", "3", "6"})
+    public int channels;
+
+    private float[] in;
+    private float[] out;
+    private float[] frame;
+    private LowPassFilter lowPass;
+    private HighPassFilter highPass;
+    private BiquadFilter bandPass;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        in = new float[FRAMES * channels];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (float) Math.sin(i * 0.1);
+        }
+        out = new float[in.length];
+        frame = new float[channels];
+        lowPass = new LowPassFilter();
+        lowPass.init(0.2f, channels);
+        highPass = new HighPassFilter();
+        highPass.init(0.8f, channels);
+        bandPass = Butterworth.bandPass(4, 250, 0.5, 40);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] lowPassBlock() {
+        lowPass.applyBlock(in, 0, out, 0, channels, FRAMES);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] lowPassPerFrame() {
+        for (int f = 0; f < FRAMES; f++) {
+            lowPass.apply(in, f * channels, out, f * channels, channels);
+        }
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] lowPassVarargs() {
+        float[] res = null;
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(in, f * channels, frame, 0, channels);
+            res = lowPass.apply(frame);
+        }
+        return res;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] highPassBlock() {
+        highPass.applyBlock(in, 0, out, 0, channels, FRAMES);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] highPassPerFrame() {
+        for (int f = 0; f < FRAMES; f++) {
+            highPass.apply(in, f * channels, out, f * channels, channels);
+        }
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] highPassVarargs() {
+        float[] res = null;
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(in, f * channels, frame, 0, channels);
+            res = highPass.apply(frame);
+        }
+        return res;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] bandPassBlock() {
+        bandPass.applyBlock(in, 0, out, 0, channels, FRAMES);
+        return out;
+    }
+}
@@ -0,0 +1,69 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of filtering a block of 3-channel readings with an FIR kernel, convolved directly, with the FFT and with the
+ * path {@link FirFilter} picks. Divide by {@code frames} for the cost per reading.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FirFilterBenchmark {
+
+    private static final int CHANNELS = 3;
+
+    @Param({"31", "127", "255", "511"})
+    public int taps;
+
+    @Param({"64", "256", "1024"})
+    public int frames;
+
+    private float[] in;
+    private float[] out;
+    private FirFilter direct;
+    private FirFilter fft;
+    private FirFilter auto;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        in = new float[frames * CHANNELS];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (float) Math.sin(i * 0.1);
+        }
+        out = new float[in.length];
+        direct = WindowedSinc.lowPass(taps, 500, 40);
+        direct.setPath(FirFilter.PATH_DIRECT);
+        fft = WindowedSinc.lowPass(taps, 500, 40);
+        fft.setPath(FirFilter.PATH_FFT);
+        auto = WindowedSinc.lowPass(taps, 500, 40);
+    }
+
+    @Benchmark
+    public float[] direct() {
+        direct.applyBlock(in, 0, out, 0, CHANNELS, frames);
+        return out;
+    }
+
+    @Benchmark
+    public float[] fft() {
+        fft.applyBlock(in, 0, out, 0, CHANNELS, frames);
+        return out;
+    }
+
+    @Benchmark
+    public float[] auto() {
+        auto.applyBlock(in, 0, out, 0, CHANNELS, frames);
+        return out;
+    }
+}
@@ -0,0 +1,127 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-reading cost of encoding and decoding a full sample payload: the {@link SensorSample} wire format,
+ * a {@link GorillaEncoder} block of {@value #BLOCK_SIZE} readings and a round trip through a {@link SharedRingBuffer}.
+ * The readings are a slowly changing signal with {@code channels} values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SamplePayloadBenchmark {
+
+    private static final int BLOCK_SIZE = 128;
+    //50 Hz
+    private static final long SAMPLE_INTERVAL = 20000000L;
+
+    @Param({"1", "3", "16"})
+    public int channels;
+
+    private float[][] readings;
+    private long[] timestamps;
+
+    private byte[] encoded;
+    private byte[] scratch;
+    private SensorSample sample;
+
+    private GorillaEncoder encoder;
+    private GorillaDecoder decoder;
+    private byte[] block;
+    private float[] decoded;
+
+    private SharedRingBuffer writer;
+    private SharedRingBuffer reader;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        readings = new float[BLOCK_SIZE][channels];
+        timestamps = new long[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            timestamps[i] = 1000000000L + i * SAMPLE_INTERVAL;
+            for (int c = 0; c < channels; c++) {
+                readings[i][c] = Math.round(1000 * Math.sin(i / 50.0 + c)) / 100f;
+            }
+        }
+        encoded = SensorSample.encode(SensorType.ACCELEROMETER, 0, timestamps[0], readings[0]);
+        scratch = new byte[encoded.length];
+        sample = new SensorSample(SensorType.ACCELEROMETER, 0, timestamps[0], readings[0]);
+
+        encoder = new GorillaEncoder();
+        encoder.reset(SensorType.ACCELEROMETER, 0, channels);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            encoder.add(timestamps[i], readings[i]);
+        }
+        block = encoder.toByteArray();
+        decoder = new GorillaDecoder();
+        decoded = new float[channels];
+
+        ByteBuffer shared = ByteBuffer.allocateDirect(SharedRingBuffer.requiredCapacity(BLOCK_SIZE, channels));
+        writer = SharedRingBuffer.create(shared, BLOCK_SIZE, channels);
+        reader = SharedRingBuffer.attach(shared.duplicate());
+    }
+
+    @Benchmark
+    public byte[] sampleEncode() {
+        return SensorSample.encode(SensorType.ACCELEROMETER, 0, timestamps[0], readings[0]);
+    }
+
+    @Benchmark
+    public byte[] sampleWriteTo() {
+        sample.writeTo(scratch, 0);
+        return scratch;
+    }
+
+    @Benchmark
+    public SensorSample sampleReadFrom() {
+        sample.readFrom(encoded);
+        return sample;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public int gorillaEncode() {
+        encoder.reset(SensorType.ACCELEROMETER, 0, channels);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            encoder.add(timestamps[i], readings[i]);
+        }
+        return encoder.finish();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public long gorillaDecode() {
+        decoder.reset(block);
+        long sum = 0;
+        while (decoder.next(decoded)) {
+            sum += decoder.getTimestamp();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public long sharedRingRoundTrip() {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            writer.write(SensorType.ACCELEROMETER, 0, timestamps[i], readings[i]);
+        }
+        long sum = 0;
+        while (reader.read(sample)) {
+            sum += sample.getTimestamp();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,67 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the legacy byte codecs in {@link SensorType}, as used by the Android Wear plugin.
+ * {@code channels} is the number of values of a reading, or the number of sensor types of a sensor list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorTypeCodecBenchmark {
+
+    @Param({"1", "3", "16"})
+    public int channels;
+
+    private float[] values;
+    private byte[] sensorData;
+    private List<Integer> sensorTypes;
+    private byte[] sensorTypeData;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = new float[channels];
+        sensorTypes = new ArrayList<>();
+        for (int i = 0; i < channels; i++) {
+            values[i] = 9.81f / (i + 1);
+            sensorTypes.add(i);
+        }
+        timestamp = 1234567890123L;
+        sensorData = SensorType.toByteArray(SensorType.ACCELEROMETER, timestamp, values);
+        sensorTypeData = SensorType.toByteArray(sensorTypes);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return SensorType.toByteArray(SensorType.ACCELEROMETER, timestamp++, values);
+    }
+
+    @Benchmark
+    public float[] fromSensorData() {
+        return SensorType.fromSensorData(sensorData);
+    }
+
+    @Benchmark
+    public byte[] listToByteArray() {
+        return SensorType.toByteArray(sensorTypes);
+    }
+
+    @Benchmark
+    public List<Integer> listFromByteArray() {
+        return SensorType.listFromByteArray(sensorTypeData);
+    }
+}
@@ -0,0 +1,59 @@
+package de.frederickerber.maskcommons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding one 3-channel reading to {@link WindowAggregate}, for windows of {@code readings} readings. Sliding
+ * windows emit every tenth of a window. Should not grow with the window length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WindowAggregateBenchmark {
+
+    private static final int CHANNELS = 3;
+
+    @Param({"100", "10000", "1000000"})
+    public int readings;
+
+    private final float[] frame = new float[CHANNELS];
+    private WindowAggregate tumbling;
+    private WindowAggregate sliding;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tumbling = new WindowAggregate(readings, readings);
+        sliding = new WindowAggregate(readings, Math.max(1, readings / 10));
+        //fill the sliding window, so the benchmark measures steady state
+        for (timestamp = 0; timestamp < 2L * readings; timestamp++) {
+            sliding.offer(timestamp, frame, 0, CHANNELS);
+        }
+    }
+
+    @Benchmark
+    public boolean tumbling() {
+        long t = timestamp++;
+        frame[0] = (float) (t % 1000);
+        return tumbling.offer(t, frame, 0, CHANNELS);
+    }
+
+    @Benchmark
+    public boolean sliding() {
+        long t = timestamp++;
+        //the falling ramp on channel 1 keeps its max deque full, the worst case for memory
+        frame[0] = (float) (t % 1000);
+        frame[1] = -frame[0];
+        return sliding.offer(t, frame, 0, CHANNELS);
+    }
+}
@@ -0,0 +1,320 @@
+package de.frederickerber.maskconnection;
+
+import de.frederickerber.maskcommons.SensorSample;
+import de.frederickerber.maskcommons.SensorType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of decoding a {@link SensorSample} and passing it to the callback of its sensor, with the
+ * {@link SensorListenerTable} of {@code MaskConnection} and with the switch over all sensor types it replaced.
+ * The samples cycle through every built-in sensor type, three values for vector sensors and one for the others.
+ * {@code MaskConnection} itself needs Android, so the switch is reproduced here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ListenerDispatchBenchmark {
+
+    private static final int SAMPLES = 4 * SensorType.NUM_SENSORS;
+
+    private byte[][] encoded;
+    private SensorSample sample;
+    private SensorListenerTable table;
+    private Blackhole bh;
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole bh) {
+        this.bh = bh;
+        encoded = new byte[SAMPLES][];
+        for (int i = 0; i < SAMPLES; i++) {
+            int type = i % SensorType.NUM_SENSORS;
+            float[] values = isVector(type) ? new float[]{i, -i, 9.81f} : type == SensorType.STEP_DETECTOR ? null : new float[]{i};
+            encoded[i] = SensorSample.encode(type, 0, 1000000L * i, values);
+        }
+        sample = new SensorSample();
+        table = new SensorListenerTable();
+        VectorSensorListener vector = new VectorSensorListener() {
+            @Override
+            public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                onVector(timestamp, serviceName, deviceIndex, values);
+            }
+        };
+        ScalarSensorListener scalar = new ScalarSensorListener() {
+            @Override
+            public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                onScalar(timestamp, serviceName, deviceIndex, value);
+            }
+        };
+        for (int type = 0; type < SensorType.NUM_SENSORS; type++) {
+            if (isVector(type)) {
+                table.set(type, vector);
+            } else {
+                table.setScalar(type, scalar);
+            }
+        }
+    }
+
+    private static boolean isVector(int type) {
+        return type == SensorType.ACCELEROMETER || type == SensorType.GYROSCOPE || type == SensorType.GRAVITY
+                || type == SensorType.LINEAR_ACCELERATION || type == SensorType.MAGNETIC_FIELD
+                || type == SensorType.ROTATION_VECTOR || type == SensorType.ECG;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void decodeOnly() {
+        for (byte[] e : encoded) {
+            sample.readFrom(e);
+            bh.consume(sample.getValueCount() > 0 ? sample.copyValues() : null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void decodeAndSwitch() {
+        for (byte[] e : encoded) {
+            SensorSample s = sample;
+            s.readFrom(e);
+            int n = s.getValueCount();
+            float[] readings = n > 0 ? s.copyValues() : null;
+            switchDispatch(s.getSensorType(), "bench", s.getDeviceIndex(), s.getTimestamp(), readings, n > 0, n > 0 ? readings[0] : -1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void decodeAndTable() {
+        for (byte[] e : encoded) {
+            SensorSample s = sample;
+            s.readFrom(e);
+            int n = s.getValueCount();
+            float[] readings = n > 0 ? s.copyValues() : null;
+            table.dispatch(s.getSensorType(), "bench", s.getDeviceIndex(), s.getTimestamp(), readings, n > 0, n > 0 ? readings[0] : -1);
+        }
+    }
+
+    private void onVector(long timestamp, String serviceName, int deviceIndex, float[] values) {
+        bh.consume(values);
+    }
+
+    private void onScalar(long timestamp, String serviceName, int deviceIndex, float value) {
+        bh.consume(value);
+    }
+
+    /**
+     * The dispatch of {@code MaskConnection} before the listener table, minus logging and the fallback bundle.
+     */
+    private void switchDispatch(int sensorType, String serviceName, int deviceIndex, long ts, float[] readings, boolean hasReading, float reading) {
+        switch (sensorType) {
+            case SensorType.ACCELEROMETER:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.GYROSCOPE:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.LIGHT:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.GRAVITY:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.HEART_RATE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.HEART_RATE_VARIABILITY:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.LINEAR_ACCELERATION:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.MAGNETIC_FIELD:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.PRESSURE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.PROXIMITY:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.RELATIVE_HUMIDITY:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.ROTATION_VECTOR:
+                if (readings == null) {
+                    break;
+                }
+                onVector(ts, serviceName, deviceIndex, readings);
+                break;
+            case SensorType.STEP_COUNTER:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.STEP_DETECTOR:
+                onScalar(ts, serviceName, deviceIndex, Float.NaN);
+                break;
+            case SensorType.TEMPERATURE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.SKIN_TEMPERATURE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.UV_INDEX_LEVEL:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.SKIN_RESISTANCE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.CALORIES:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.FLOORS_ASCENDED:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.FLOORS_DESCENDED:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.ASCENT_RATE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.ELEVATION_GAIN:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.ELEVATION_LOSS:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.STEPS_ASCENDED:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.STEPS_DESCENDED:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.STEPPING_ELEVATION_GAIN:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.STEPPING_ELEVATION_LOSS:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.PACE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.SPEED:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.DISTANCE:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.COMPASS:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            case SensorType.ECG:
+                if (!hasReading) {
+                    break;
+                }
+                onScalar(ts, serviceName, deviceIndex, reading);
+                break;
+            default:
+                bh.consume(sensorType);
+        }
+    }
+}
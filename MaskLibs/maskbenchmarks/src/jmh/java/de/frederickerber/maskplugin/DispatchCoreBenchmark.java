@@ -0,0 +1,100 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SensorType;
+import de.frederickerber.maskcommons.ValueEncoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one dispatch thread: readings queued and fanned out by {@link DispatchCore} to {@code clients}
+ * subscribers of one sensor, half of them rate limited to 50 Hz. The sink only consumes the readings, so the
+ * score is the cost of the plugin's own work per reading.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchCoreBenchmark {
+
+    private static final int READINGS_PER_PASS = 128;
+    //200 Hz source
+    private static final long SAMPLE_INTERVAL = 5000000L;
+
+    @Param({"1", "10", "100", "500"})
+    public int clients;
+
+    private DispatchCore<Object, Object> core;
+    private final float[] values = new float[]{0.1f, 9.81f, -0.3f};
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole bh) {
+        core = new DispatchCore<>(SensorType.NUM_SENSORS, new DispatchSink<Object, Object>() {
+            @Override
+            public long now() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public boolean sendSample(Object client, long reading, int sensorType, int deviceIndex, long timestamp, float[] values,
+                                      ValueEncoding encoding) {
+                bh.consume(values);
+                return true;
+            }
+
+            @Override
+            public boolean sendData(Object client, int sensorType, int deviceIndex, Object data) {
+                bh.consume(data);
+                return true;
+            }
+
+            @Override
+            public boolean sendBatch(Object client, SampleBatch batch) {
+                bh.consume(batch);
+                return true;
+            }
+
+            @Override
+            public void clientUnreachable(Object client) {
+            }
+
+            @Override
+            public void allSubscriptionsEnded(int deviceIndex, int sensorType) {
+            }
+
+            @Override
+            public void scheduleDrain() {
+            }
+
+            @Override
+            public void scheduleFlush(long deadline) {
+            }
+        });
+        int channel = core.getSubscriptions().channel(0, SensorType.ACCELEROMETER);
+        for (int c = 0; c < clients; c++) {
+            core.subscribe(new Object(), channel, c % 2 == 0 ? 0 : 50, RateMode.NEAREST, 1, 0, null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS_PER_PASS)
+    public void offerAndDrain() {
+        for (int i = 0; i < READINGS_PER_PASS; i++) {
+            timestamp += SAMPLE_INTERVAL;
+            core.offer(0, SensorType.ACCELEROMETER, timestamp, values);
+        }
+        core.drain();
+    }
+}
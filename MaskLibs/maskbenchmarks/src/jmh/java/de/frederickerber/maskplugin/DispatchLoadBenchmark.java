@@ -0,0 +1,133 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SensorType;
+import de.frederickerber.maskcommons.ValueEncoding;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one dispatch thread under a mixed load: four devices with three sensors each at 200 Hz, fanned out
+ * by {@link DispatchCore} to {@code clients} subscribers spread over all of them. Half of the clients take every
+ * reading, the others ask for 10 to 100 Hz, some of them averaged. The score counts readings, the
+ * {@code deliveries} counter the readings the sink was handed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchLoadBenchmark {
+
+    private static final int DEVICES = 4;
+    private static final int[] SENSORS = {SensorType.ACCELEROMETER, SensorType.GYROSCOPE, SensorType.HEART_RATE};
+    private static final int READINGS_PER_DEVICE = 64;
+    //200 Hz per sensor
+    private static final long SAMPLE_INTERVAL = 5000000L;
+
+    @Param({"60", "500"})
+    public int clients;
+
+    private DispatchCore<Object, Object> core;
+    private final float[] vector = new float[]{0.1f, 9.81f, -0.3f};
+    private final float[] scalar = new float[]{72f};
+    private long timestamp;
+    private long delivered;
+
+    /**
+     * The readings handed to the sink, per iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Deliveries {
+
+        public long deliveries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deliveries = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole bh) {
+        core = new DispatchCore<>(SensorType.NUM_SENSORS, new DispatchSink<Object, Object>() {
+            @Override
+            public long now() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public boolean sendSample(Object client, long reading, int sensorType, int deviceIndex, long timestamp, float[] values,
+                                      ValueEncoding encoding) {
+                bh.consume(values);
+                delivered++;
+                return true;
+            }
+
+            @Override
+            public boolean sendData(Object client, int sensorType, int deviceIndex, Object data) {
+                bh.consume(data);
+                delivered++;
+                return true;
+            }
+
+            @Override
+            public boolean sendBatch(Object client, SampleBatch batch) {
+                bh.consume(batch);
+                delivered += batch.size();
+                return true;
+            }
+
+            @Override
+            public void clientUnreachable(Object client) {
+            }
+
+            @Override
+            public void allSubscriptionsEnded(int deviceIndex, int sensorType) {
+            }
+
+            @Override
+            public void scheduleDrain() {
+            }
+
+            @Override
+            public void scheduleFlush(long deadline) {
+            }
+        });
+        SubscriptionTable<Object> table = core.getSubscriptions();
+        for (int c = 0; c < clients; c++) {
+            int frequency = c % 2 == 0 ? 0 : 10 * (1 + c % 10);
+            core.subscribe(new Object(), table.channel(c % DEVICES, SENSORS[c % SENSORS.length]), frequency,
+                    c % 4 == 1 ? RateMode.AVERAGE : RateMode.NEAREST, 1, 0, null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEVICES * READINGS_PER_DEVICE)
+    public void offerAndDrain(Deliveries counters) {
+        long before = delivered;
+        for (int i = 0; i < READINGS_PER_DEVICE; i++) {
+            int sensor = SENSORS[i % SENSORS.length];
+            if (i % SENSORS.length == 0) {
+                timestamp += SAMPLE_INTERVAL;
+            }
+            for (int d = 0; d < DEVICES; d++) {
+                core.offer(d, sensor, timestamp, sensor == SensorType.HEART_RATE ? scalar : vector);
+            }
+        }
+        core.drain();
+        counters.deliveries += delivered - before;
+    }
+}
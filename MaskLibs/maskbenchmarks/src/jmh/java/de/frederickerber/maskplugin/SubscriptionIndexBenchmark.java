@@ -0,0 +1,140 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.RateMode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of deciding which subscribers receive a reading.
+ * <p>
+ * {@code nestedMaps} replays the lookups {@code SensorService.sendDataToSubscribers} did on the
+ * {@code Map<Messenger, Map<String, long[]>>} structures, {@code subscriptionTable} does the same work
+ * on {@link SubscriptionTable}. The sending itself is not part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SubscriptionIndexBenchmark {
+
+    private static final String DEVICE = "device-0";
+    private static final int SENSOR = 0;
+    private static final int NUM_SENSORS = 33;
+    //200 Hz source
+    private static final long SAMPLE_INTERVAL = 5000000L;
+
+    @Param({"1", "10", "100"})
+    public int clients;
+
+    private long timestamp;
+
+    private Map<String, Map<Integer, List<Object>>> mSubscribers;
+    private Map<Object, Map<String, int[]>> mFrequencies;
+    private Map<Object, Map<String, long[]>> mLastReadingSent;
+    private Map<Object, Map<String, long[]>> mDelay;
+
+    private SubscriptionTable<Object> table;
+    private int channel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSubscribers = new HashMap<>();
+        mFrequencies = new HashMap<>();
+        mLastReadingSent = new HashMap<>();
+        mDelay = new HashMap<>();
+        mSubscribers.put(DEVICE, new HashMap<Integer, List<Object>>());
+        List<Object> subscribers = new ArrayList<>();
+        mSubscribers.get(DEVICE).put(SENSOR, subscribers);
+
+        table = new SubscriptionTable<>(NUM_SENSORS);
+        channel = table.channel(0, SENSOR);
+
+        for (int i = 0; i < clients; i++) {
+            Object client = new Object();
+            //every client asks for a different rate between 10 and 200 Hz
+            int frequency = 10 + (i * 19) % 191;
+
+            subscribers.add(client);
+            int[] frequencies = new int[NUM_SENSORS];
+            frequencies[SENSOR] = frequency;
+            mFrequencies.put(client, new HashMap<String, int[]>());
+            mFrequencies.get(client).put(DEVICE, frequencies);
+            long[] delays = new long[NUM_SENSORS];
+            delays[SENSOR] = 1000000000L / frequency;
+            mDelay.put(client, new HashMap<String, long[]>());
+            mDelay.get(client).put(DEVICE, delays);
+            mLastReadingSent.put(client, new HashMap<String, long[]>());
+            mLastReadingSent.get(client).put(DEVICE, new long[NUM_SENSORS]);
+
+            int sub = table.subscribe(client, channel);
+            table.setFrequency(sub, frequency, RateMode.NEAREST);
+        }
+        timestamp = SAMPLE_INTERVAL;
+    }
+
+    @Benchmark
+    public int nestedMaps() {
+        timestamp += SAMPLE_INTERVAL;
+        int sent = 0;
+        List<Object> subscribers = mSubscribers.get(DEVICE).get(SENSOR);
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Object c = subscribers.get(i);
+            boolean send = true;
+            if (mFrequencies.get(c) != null && mFrequencies.get(c).get(DEVICE) != null && mFrequencies.get(c).get(DEVICE)[SENSOR] > 0) {
+                if (mLastReadingSent.get(c) != null && mLastReadingSent.get(c).get(DEVICE) != null && mLastReadingSent.get(c).get(DEVICE)[SENSOR] > 0) {
+                    long desiredDelay = mDelay.get(c).get(DEVICE)[SENSOR] / 1000000;
+                    long lastSent = mLastReadingSent.get(c).get(DEVICE)[SENSOR];
+                    long delay = (timestamp - lastSent) / 1000000;
+                    boolean multiple = false;
+                    if (delay != 0) {
+                        multiple = desiredDelay % delay == 0;
+                    }
+                    if (multiple && delay < desiredDelay) {
+                        send = false;
+                    }
+                }
+            }
+            if (send) {
+                sent++;
+                if (mLastReadingSent.get(c) == null) {
+                    mLastReadingSent.put(c, new HashMap<String, long[]>());
+                }
+                if (mLastReadingSent.get(c).get(DEVICE) != null) {
+                    mLastReadingSent.get(c).get(DEVICE)[SENSOR] = timestamp;
+                } else {
+                    mLastReadingSent.get(c).put(DEVICE, new long[NUM_SENSORS]);
+                    mLastReadingSent.get(c).get(DEVICE)[SENSOR] = timestamp;
+                }
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public int subscriptionTable() {
+        timestamp += SAMPLE_INTERVAL;
+        int sent = 0;
+        int count = table.subscriberCount(channel);
+        int[] subscribers = table.subscribers(channel);
+        for (int i = count - 1; i >= 0; i--) {
+            int sub = subscribers[i];
+            if (table.shouldSend(sub, timestamp, null)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+}
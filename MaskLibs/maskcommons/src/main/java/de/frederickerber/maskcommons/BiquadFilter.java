@@ -0,0 +1,188 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * A cascade of second-order IIR sections (biquads) for n-dimensional data, e.g. designed with {@link Butterworth}.
+ * <p>
+ * Each section has the transfer function {@code (b0 + b1 z^-1 + b2 z^-2) / (1 + a1 z^-1 + a2 z^-2)} and is run in
+ * transposed direct form II with coefficients and state in double precision. Every channel is filtered on its own.
+ * The state is allocated once the number of channels is known, filtering does not allocate.
+ * <p>
+ * The state starts out as if the first reading had been applied forever, so a filter with a DC gain of 1 passes
+ * the first reading through unchanged instead of ringing from zero.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Digital_biquad_filter">Wikipedia article</a>
+ */
+public class BiquadFilter extends Filter {
+
+    /**
+     * The number of coefficients per section: b0, b1, b2, a1 and a2.
+     */
+    public static final int COEFFICIENTS_PER_SECTION = 5;
+
+    private double[] coefficients;
+    private int sections;
+    //two delay values per section and channel
+    private double[] state;
+    private int channels = -1;
+    private boolean primed;
+
+    public BiquadFilter() {
+    }
+
+    /**
+     * @param coefficients The coefficients b0, b1, b2, a1 and a2 of each section, with a0 normalized to 1.
+     */
+    public BiquadFilter(double... coefficients) {
+        setCoefficients(coefficients);
+    }
+
+    /**
+     * @param initParams The coefficients b0, b1, b2, a1 and a2 of each section, with a0 normalized to 1.
+     * @see #setCoefficients(double...)
+     */
+    @Override
+    public void init(float... initParams) {
+        if (initParams == null) {
+            throw new IllegalArgumentException("provide coefficients");
+        }
+        double[] c = new double[initParams.length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = initParams[i];
+        }
+        setCoefficients(c);
+    }
+
+    /**
+     * Replace the coefficients. The state is discarded.
+     *
+     * @param coefficients The coefficients b0, b1, b2, a1 and a2 of each section, with a0 normalized to 1.
+     */
+    public void setCoefficients(double... coefficients) {
+        if (coefficients == null || coefficients.length == 0 || coefficients.length % COEFFICIENTS_PER_SECTION != 0) {
+            throw new IllegalArgumentException("provide " + COEFFICIENTS_PER_SECTION + " coefficients per section");
+        }
+        this.coefficients = coefficients.clone();
+        sections = coefficients.length / COEFFICIENTS_PER_SECTION;
+        state = null;
+        channels = -1;
+        primed = false;
+    }
+
+    /**
+     * @return A copy of the coefficients b0, b1, b2, a1 and a2 of each section.
+     */
+    public double[] getCoefficients() {
+        return coefficients.clone();
+    }
+
+    public int getSectionCount() {
+        return sections;
+    }
+
+    /**
+     * Forget all previous readings. The next reading is treated like the first one.
+     */
+    public void reset() {
+        primed = false;
+    }
+
+    /**
+     * Evaluate the magnitude of the frequency response.
+     *
+     * @param frequency  The frequency in Hertz.
+     * @param sampleRate The sample rate in Hertz.
+     * @return The gain at the frequency, 1 meaning unchanged.
+     */
+    public double getMagnitude(double frequency, double sampleRate) {
+        if (coefficients == null) {
+            throw new IllegalStateException("initialize the filter first");
+        }
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double gain = 1;
+        for (int k = 0; k < coefficients.length; k += COEFFICIENTS_PER_SECTION) {
+            gain *= sectionMagnitude(coefficients[k], coefficients[k + 1], coefficients[k + 2],
+                    coefficients[k + 3], coefficients[k + 4], w);
+        }
+        return gain;
+    }
+
+    /**
+     * @param w The angular frequency in radians per sample.
+     * @return The gain of a single section at the frequency.
+     */
+    static double sectionMagnitude(double b0, double b1, double b2, double a1, double a2, double w) {
+        double c1 = Math.cos(w);
+        double s1 = Math.sin(w);
+        double c2 = Math.cos(2 * w);
+        double s2 = Math.sin(2 * w);
+        //evaluate at z = e^(jw), z^-n = cos(nw) - j sin(nw)
+        double numRe = b0 + b1 * c1 + b2 * c2;
+        double numIm = -b1 * s1 - b2 * s2;
+        double denRe = 1 + a1 * c1 + a2 * c2;
+        double denIm = -a1 * s1 - a2 * s2;
+        return Math.sqrt((numRe * numRe + numIm * numIm) / (denRe * denRe + denIm * denIm));
+    }
+
+    @Override
+    public void apply(float[] in, int inOff, float[] out, int outOff, int channels) {
+        applyBlock(in, inOff, out, outOff, channels, 1);
+    }
+
+    @Override
+    public void applyBlock(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        if (coefficients == null) {
+            throw new IllegalStateException("initialize the filter first");
+        }
+        checkBounds(in, inOff, out, outOff, channels, frames);
+        if (state == null) {
+            state = new double[2 * sections * channels];
+            this.channels = channels;
+        } else if (this.channels != channels) {
+            throw new IllegalArgumentException("data dimension may not change");
+        }
+        if (frames == 0) {
+            return;
+        }
+        if (!primed) {
+            prime(in, inOff, channels);
+            primed = true;
+        }
+        double[] coef = coefficients;
+        double[] z = state;
+        int n = sections;
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + f * channels;
+            int o = outOff + f * channels;
+            for (int c = 0; c < channels; c++) {
+                double x = in[i + c];
+                for (int s = 0, k = 0, d = 2 * c; s < n; s++, k += COEFFICIENTS_PER_SECTION, d += 2 * channels) {
+                    double y = coef[k] * x + z[d];
+                    z[d] = coef[k + 1] * x - coef[k + 3] * y + z[d + 1];
+                    z[d + 1] = coef[k + 2] * x - coef[k + 4] * y;
+                    x = y;
+                }
+                out[o + c] = (float) x;
+            }
+        }
+    }
+
+    /**
+     * Set the state to the steady state for a constant input equal to the given reading.
+     */
+    private void prime(float[] in, int inOff, int channels) {
+        for (int c = 0; c < channels; c++) {
+            double x = in[inOff + c];
+            for (int s = 0, k = 0, d = 2 * c; s < sections; s++, k += COEFFICIENTS_PER_SECTION, d += 2 * channels) {
+                double b0 = coefficients[k];
+                double b1 = coefficients[k + 1];
+                double b2 = coefficients[k + 2];
+                double a1 = coefficients[k + 3];
+                double a2 = coefficients[k + 4];
+                double y = x * (b0 + b1 + b2) / (1 + a1 + a2);
+                state[d + 1] = b2 * x - a2 * y;
+                state[d] = b1 * x - a1 * y + state[d + 1];
+                x = y;
+            }
+        }
+    }
+}
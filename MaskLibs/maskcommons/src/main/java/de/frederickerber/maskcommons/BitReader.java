@@ -0,0 +1,84 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Reads a stream of bits written by a {@link BitWriter}.
+ * Reading past the end yields zero bits and sets {@link #isOverrun()} instead of throwing, so callers can
+ * check once after decoding a whole record. This class is not thread-safe.
+ */
+public final class BitReader {
+
+    private byte[] data;
+    private int position;
+    private int end;
+    private long acc;
+    private int accBits;
+    private boolean overrun;
+
+    public BitReader() {
+        reset(new byte[0], 0, 0);
+    }
+
+    /**
+     * Start reading a new stream. The array is not copied.
+     *
+     * @param data   The array holding the stream.
+     * @param offset The index of the first byte of the stream.
+     * @param length The length of the stream in bytes.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array " + data.length);
+        }
+        this.data = data;
+        position = offset;
+        end = offset + length;
+        acc = 0;
+        accBits = 0;
+        overrun = false;
+    }
+
+    public boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param n The number of bits, between 0 and 64.
+     * @return The next {@code n} bits in the lowest bits of the result.
+     */
+    public long readBits(int n) {
+        if (n > 32) {
+            long high = readBits(n - 32);
+            return (high << 32) | readBits(32);
+        }
+        if (n <= 0) {
+            return 0;
+        }
+        while (accBits < n) {
+            int b;
+            if (position < end) {
+                b = data[position++] & 0xFF;
+            } else {
+                b = 0;
+                overrun = true;
+            }
+            acc = (acc << 8) | b;
+            accBits += 8;
+        }
+        accBits -= n;
+        return (acc >>> accBits) & (-1L >>> (64 - n));
+    }
+
+    /**
+     * @return {@code true} if more bits were read than the stream holds.
+     */
+    public boolean isOverrun() {
+        return overrun;
+    }
+
+    /**
+     * @return The number of bits left in the stream, including padding.
+     */
+    public long remaining() {
+        return 8L * (end - position) + accBits;
+    }
+}
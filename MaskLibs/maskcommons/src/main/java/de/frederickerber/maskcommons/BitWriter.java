@@ -0,0 +1,106 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Arrays;
+
+/**
+ * Writes a stream of bits, most significant bit first, into a growing byte array.
+ * The array is kept across {@link #reset()}, so a writer that is reused stops allocating once it has seen
+ * its largest stream. This class is not thread-safe.
+ */
+public final class BitWriter {
+
+    private byte[] buffer;
+    private int length;
+    //bits not yet written to the buffer, in the lowest accBits bits of acc
+    private long acc;
+    private int accBits;
+
+    public BitWriter() {
+        this(64);
+    }
+
+    /**
+     * @param initialCapacity The initial size of the buffer in bytes.
+     */
+    public BitWriter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 8)];
+    }
+
+    /**
+     * Discard everything written so far. The buffer is kept.
+     */
+    public void reset() {
+        length = 0;
+        acc = 0;
+        accBits = 0;
+    }
+
+    public void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Write the lowest {@code n} bits of a value.
+     *
+     * @param value The bits to write.
+     * @param n     The number of bits, between 0 and 64.
+     */
+    public void writeBits(long value, int n) {
+        if (n > 32) {
+            writeBits(value >>> 32, n - 32);
+            n = 32;
+        }
+        if (n <= 0) {
+            return;
+        }
+        acc = (acc << n) | (value & (-1L >>> (64 - n)));
+        accBits += n;
+        if (accBits >= 8) {
+            ensureCapacity(length + 5);
+            do {
+                accBits -= 8;
+                buffer[length++] = (byte) (acc >>> accBits);
+            } while (accBits >= 8);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(n, buffer.length * 2));
+        }
+    }
+
+    /**
+     * @return The number of bits written so far.
+     */
+    public long getBitLength() {
+        return 8L * length + accBits;
+    }
+
+    /**
+     * Pad the stream with zero bits to the next full byte.
+     *
+     * @return The length of the stream in bytes.
+     */
+    public int flush() {
+        if (accBits > 0) {
+            writeBits(0, 8 - accBits);
+        }
+        return length;
+    }
+
+    /**
+     * @return The backing array. Only the first {@link #flush()} bytes belong to the stream and
+     * the array may be replaced by later writes.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return A copy of the stream, padded to a full byte.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, flush());
+    }
+}
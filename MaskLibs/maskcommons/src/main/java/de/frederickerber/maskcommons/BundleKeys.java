@@ -10,4 +10,19 @@ public final class BundleKeys {
     public static final String SENSOR_READINGS_FLOAT_ARRAY = "SENSOR_READINGS_FA";
     public static final String SERVICE_NAME = "SERVICE_NAME";
     public static final String DEVICE_INDEX = "DEVICE_ID";
+    public static final String TIMESTAMPS_NANO = "TIMESTAMPS_NANO";
+    public static final String SENSOR_READINGS_BATCH = "SENSOR_READINGS_B";
+    public static final String VALUES_PER_SAMPLE = "VALUES_PER_SAMPLE";
+    public static final String MAX_BATCH_SIZE = "MAX_BATCH_SIZE";
+    public static final String MAX_BATCH_LATENCY_MS = "MAX_BATCH_LATENCY_MS";
+    public static final String RATE_MODE = "RATE_MODE";
+    public static final String SENSOR_SAMPLE = "SAMPLE";
+    public static final String SHARED_MEMORY = "SHARED_MEMORY";
+    public static final String SHARED_MEMORY_SIZE = "SHARED_MEMORY_SIZE";
+    public static final String STATS = "STATS";
+    public static final String FILTER_CHAIN = "FILTER_CHAIN";
+    public static final String VALUE_ENCODING = "VALUE_ENCODING";
+    public static final String SENSOR_READINGS_BATCH_QUANTIZED = "SENSOR_READINGS_BQ";
+    public static final String SUBSCRIPTIONS = "SUBSCRIPTIONS";
+    public static final String SUBSCRIPTION_SPECS = "SUBSCRIPTION_SPECS";
 }
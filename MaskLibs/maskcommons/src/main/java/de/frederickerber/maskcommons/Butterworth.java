@@ -0,0 +1,228 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Designs digital Butterworth filters as {@link BiquadFilter} cascades.
+ * <p>
+ * The analog prototype is mapped with the bilinear transform, prewarped so that the cutoff frequencies of the
+ * digital filter are exact. The low-pass and high-pass gain is -3 dB at the cutoff, the band-pass and notch gain
+ * is -3 dB at both band edges. A filter of order {@code n} has {@code ceil(n / 2)} sections for low-pass and
+ * high-pass and {@code n} sections for band-pass and notch.
+ */
+public final class Butterworth {
+
+    private Butterworth() {
+    }
+
+    /**
+     * @param order      The order of the filter, the roll-off is {@code 6 * order} dB per octave.
+     * @param sampleRate The sample rate in Hertz.
+     * @param cutoff     The cutoff frequency in Hertz, below half the sample rate.
+     * @return A filter passing frequencies below the cutoff.
+     */
+    public static BiquadFilter lowPass(int order, double sampleRate, double cutoff) {
+        return new BiquadFilter(passCoefficients(order, sampleRate, cutoff, false));
+    }
+
+    /**
+     * @param order      The order of the filter, the roll-off is {@code 6 * order} dB per octave.
+     * @param sampleRate The sample rate in Hertz.
+     * @param cutoff     The cutoff frequency in Hertz, below half the sample rate.
+     * @return A filter passing frequencies above the cutoff.
+     */
+    public static BiquadFilter highPass(int order, double sampleRate, double cutoff) {
+        return new BiquadFilter(passCoefficients(order, sampleRate, cutoff, true));
+    }
+
+    /**
+     * @param order      The order of the low-pass prototype, the roll-off on each side is {@code 6 * order} dB per octave.
+     * @param sampleRate The sample rate in Hertz.
+     * @param low        The lower band edge in Hertz.
+     * @param high       The upper band edge in Hertz, below half the sample rate.
+     * @return A filter passing frequencies between the band edges.
+     */
+    public static BiquadFilter bandPass(int order, double sampleRate, double low, double high) {
+        checkBand(sampleRate, low, high);
+        double w1 = prewarp(sampleRate, low);
+        double w2 = prewarp(sampleRate, high);
+        return new BiquadFilter(bandCoefficients(order, sampleRate, Math.sqrt(w1 * w2), w2 - w1, false));
+    }
+
+    /**
+     * A band-stop filter between two band edges.
+     *
+     * @param order      The order of the low-pass prototype.
+     * @param sampleRate The sample rate in Hertz.
+     * @param low        The lower band edge in Hertz.
+     * @param high       The upper band edge in Hertz, below half the sample rate.
+     * @return A filter blocking frequencies between the band edges.
+     */
+    public static BiquadFilter bandStop(int order, double sampleRate, double low, double high) {
+        checkBand(sampleRate, low, high);
+        double w1 = prewarp(sampleRate, low);
+        double w2 = prewarp(sampleRate, high);
+        return new BiquadFilter(bandCoefficients(order, sampleRate, Math.sqrt(w1 * w2), w2 - w1, true));
+    }
+
+    /**
+     * A band-stop filter centered exactly on a frequency, e.g. to remove 50 Hz mains noise.
+     *
+     * @param order      The order of the low-pass prototype, 1 gives a single section.
+     * @param sampleRate The sample rate in Hertz.
+     * @param frequency  The blocked frequency in Hertz, below half the sample rate.
+     * @param bandwidth  The width of the blocked band in Hertz, between the -3 dB points.
+     * @return A filter with zero gain at the frequency.
+     */
+    public static BiquadFilter notch(int order, double sampleRate, double frequency, double bandwidth) {
+        checkFrequency(sampleRate, frequency);
+        if (!(bandwidth > 0) || bandwidth >= 2 * frequency) {
+            throw new IllegalArgumentException("bandwidth out of range: " + bandwidth);
+        }
+        //the center is exact, the edges only approximately so, as they are not symmetric after prewarping
+        double w0 = prewarp(sampleRate, frequency);
+        double b = prewarp(sampleRate, Math.min(frequency + bandwidth / 2, sampleRate * 0.4999))
+                - prewarp(sampleRate, frequency - bandwidth / 2);
+        return new BiquadFilter(bandCoefficients(order, sampleRate, w0, b, true));
+    }
+
+    private static double[] passCoefficients(int order, double sampleRate, double cutoff, boolean highPass) {
+        checkOrder(order);
+        checkFrequency(sampleRate, cutoff);
+        double[] c = new double[BiquadFilter.COEFFICIENTS_PER_SECTION * ((order + 1) / 2)];
+        double k = Math.tan(Math.PI * cutoff / sampleRate);
+        int i = 0;
+        //second-order sections for the conjugate pole pairs, each with the Q of its pole
+        for (int p = 0; p < order / 2; p++) {
+            double q = 1 / (2 * Math.sin(Math.PI * (2 * p + 1) / (2 * order)));
+            double norm = 1 / (1 + k / q + k * k);
+            if (highPass) {
+                c[i] = norm;
+                c[i + 1] = -2 * norm;
+                c[i + 2] = norm;
+            } else {
+                c[i] = k * k * norm;
+                c[i + 1] = 2 * k * k * norm;
+                c[i + 2] = k * k * norm;
+            }
+            c[i + 3] = 2 * (k * k - 1) * norm;
+            c[i + 4] = (1 - k / q + k * k) * norm;
+            i += BiquadFilter.COEFFICIENTS_PER_SECTION;
+        }
+        //a first-order section for the real pole of odd orders
+        if (order % 2 == 1) {
+            double norm = 1 / (1 + k);
+            c[i] = highPass ? norm : k * norm;
+            c[i + 1] = highPass ? -norm : k * norm;
+            c[i + 3] = (k - 1) * norm;
+        }
+        return c;
+    }
+
+    /**
+     * Transform the low-pass prototype into a band filter around the analog center frequency {@code w0} with the
+     * analog bandwidth {@code b}, both prewarped, then map each pair of poles to a section.
+     */
+    private static double[] bandCoefficients(int order, double sampleRate, double w0, double b, boolean stop) {
+        checkOrder(order);
+        double fs2 = 2 * sampleRate;
+        //the digital center frequency, where the band-stop zeros lie and the band-pass gain is normalized
+        double center = 2 * Math.atan(w0 / fs2);
+        double[] c = new double[BiquadFilter.COEFFICIENTS_PER_SECTION * order];
+        int i = 0;
+        for (int p = 0; p < (order + 1) / 2; p++) {
+            //prototype pole in the upper half plane, or -1 for the real pole of odd orders
+            double theta = Math.PI * (2 * p + order + 1) / (2 * order);
+            double pRe = Math.cos(theta);
+            double pIm = Math.sin(theta);
+            if (Math.abs(pIm) < 1e-12) {
+                pIm = 0;
+            }
+            //band poles s = (p b +- sqrt((p b)^2 - 4 w0^2)) / 2, the prototype poles lie on the unit circle,
+            //so the band-stop poles (with 1 / p) are the conjugates of these and give the same sections
+            double aRe = pRe * b;
+            double aIm = pIm * b;
+            double dRe = aRe * aRe - aIm * aIm - 4 * w0 * w0;
+            double dIm = 2 * aRe * aIm;
+            double mod = Math.hypot(dRe, dIm);
+            double rRe = Math.sqrt(Math.max(0, (mod + dRe) / 2));
+            double rIm = Math.copySign(Math.sqrt(Math.max(0, (mod - dRe) / 2)), dIm);
+            if (pIm == 0) {
+                //both band poles are real or conjugates of each other, they form one section
+                double[] z1 = bilinear(fs2, (aRe + rRe) / 2, (aIm + rIm) / 2);
+                double[] z2 = bilinear(fs2, (aRe - rRe) / 2, (aIm - rIm) / 2);
+                double a1 = -(z1[0] + z2[0]);
+                double a2 = z1[0] * z2[0] - z1[1] * z2[1];
+                section(c, i, a1, a2, center, stop);
+                i += BiquadFilter.COEFFICIENTS_PER_SECTION;
+            } else {
+                //each band pole forms a section with its conjugate, which comes from the conjugate prototype pole
+                for (int sign = 1; sign >= -1; sign -= 2) {
+                    double[] z = bilinear(fs2, (aRe + sign * rRe) / 2, (aIm + sign * rIm) / 2);
+                    section(c, i, -2 * z[0], z[0] * z[0] + z[1] * z[1], center, stop);
+                    i += BiquadFilter.COEFFICIENTS_PER_SECTION;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Fill in a band section with the given poles, one zero at DC and one at Nyquist for band-pass, a pair of zeros
+     * at the center for band-stop. The gain is 1 at the center for band-pass and at DC for band-stop.
+     */
+    private static void section(double[] c, int i, double a1, double a2, double center, boolean stop) {
+        double b0;
+        double b1;
+        double b2;
+        double gain;
+        if (stop) {
+            b0 = 1;
+            b1 = -2 * Math.cos(center);
+            b2 = 1;
+            gain = (1 + a1 + a2) / (b0 + b1 + b2);
+        } else {
+            b0 = 1;
+            b1 = 0;
+            b2 = -1;
+            gain = 1 / BiquadFilter.sectionMagnitude(b0, b1, b2, a1, a2, center);
+        }
+        c[i] = b0 * gain;
+        c[i + 1] = b1 * gain;
+        c[i + 2] = b2 * gain;
+        c[i + 3] = a1;
+        c[i + 4] = a2;
+    }
+
+    /**
+     * @return The z-plane point {@code (fs2 + s) / (fs2 - s)} as real and imaginary part.
+     */
+    private static double[] bilinear(double fs2, double re, double im) {
+        double nRe = fs2 + re;
+        double dRe = fs2 - re;
+        double d = dRe * dRe + im * im;
+        return new double[]{(nRe * dRe - im * im) / d, (nRe * im + im * dRe) / d};
+    }
+
+    private static double prewarp(double sampleRate, double frequency) {
+        return 2 * sampleRate * Math.tan(Math.PI * frequency / sampleRate);
+    }
+
+    private static void checkOrder(int order) {
+        if (order < 1) {
+            throw new IllegalArgumentException("order must be positive: " + order);
+        }
+    }
+
+    private static void checkFrequency(double sampleRate, double frequency) {
+        if (!(sampleRate > 0) || !(frequency > 0) || frequency >= sampleRate / 2) {
+            throw new IllegalArgumentException("frequency " + frequency + " out of range for sample rate " + sampleRate);
+        }
+    }
+
+    private static void checkBand(double sampleRate, double low, double high) {
+        checkFrequency(sampleRate, low);
+        checkFrequency(sampleRate, high);
+        if (low >= high) {
+            throw new IllegalArgumentException("band edges out of order: " + low + ", " + high);
+        }
+    }
+}
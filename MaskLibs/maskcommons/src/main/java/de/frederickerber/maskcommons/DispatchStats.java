@@ -0,0 +1,219 @@
+package de.frederickerber.maskcommons;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A snapshot of a plugin's dispatch counters, sent in reply to {@link ServiceMsg#GET_STATS}.
+ * <p>
+ * There are counters per sensor of a device (a channel), per client and per device queue.
+ * A reading is counted as produced once per channel. For every subscriber, it is then either rate limited,
+ * delivered (handed to a message, batch or shared memory) or failed because the subscriber could not be reached.
+ * Client counters only cover the client's current subscriptions. The latency histogram covers the time from
+ * the plugin handing over a reading to the completion of sending it.
+ */
+public final class DispatchStats implements Parcelable {
+
+    private final long time;
+
+    private final int[] channelDevice;
+    private final int[] channelSensor;
+    private final long[] channelProduced;
+    private final long[] channelRateLimited;
+    private final long[] channelDelivered;
+    private final long[] channelFailed;
+
+    private final int[] clientIds;
+    private final long[] clientDelivered;
+    private final long[] clientRateLimited;
+    private final long[] clientFailed;
+    private int ownClientId = -1;
+
+    private final long[] queueDropped;
+    private LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Create an empty snapshot to be filled with the setters.
+     *
+     * @param time        The time of the snapshot in nanoseconds, see {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+     * @param numChannels The number of channels with counters.
+     * @param numClients  The number of clients with counters.
+     * @param numDevices  The number of devices with a queue.
+     */
+    public DispatchStats(long time, int numChannels, int numClients, int numDevices) {
+        this.time = time;
+        channelDevice = new int[numChannels];
+        channelSensor = new int[numChannels];
+        channelProduced = new long[numChannels];
+        channelRateLimited = new long[numChannels];
+        channelDelivered = new long[numChannels];
+        channelFailed = new long[numChannels];
+        clientIds = new int[numClients];
+        clientDelivered = new long[numClients];
+        clientRateLimited = new long[numClients];
+        clientFailed = new long[numClients];
+        queueDropped = new long[numDevices];
+    }
+
+    public void setChannel(int i, int deviceIndex, int sensorType, long produced, long rateLimited, long delivered, long failed) {
+        channelDevice[i] = deviceIndex;
+        channelSensor[i] = sensorType;
+        channelProduced[i] = produced;
+        channelRateLimited[i] = rateLimited;
+        channelDelivered[i] = delivered;
+        channelFailed[i] = failed;
+    }
+
+    public void setClient(int i, int clientId, long delivered, long rateLimited, long failed) {
+        clientIds[i] = clientId;
+        clientDelivered[i] = delivered;
+        clientRateLimited[i] = rateLimited;
+        clientFailed[i] = failed;
+    }
+
+    public void setOwnClientId(int clientId) {
+        ownClientId = clientId;
+    }
+
+    public void setQueueDropped(int deviceIndex, long dropped) {
+        queueDropped[deviceIndex] = dropped;
+    }
+
+    public void setLatency(LatencyHistogram latency) {
+        this.latency = new LatencyHistogram(latency.getCounts());
+    }
+
+    /**
+     * @return The time of the snapshot in nanoseconds, see {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public int getChannelCount() {
+        return channelDevice.length;
+    }
+
+    public int getDeviceIndex(int channel) {
+        return channelDevice[channel];
+    }
+
+    public int getSensorType(int channel) {
+        return channelSensor[channel];
+    }
+
+    public long getProduced(int channel) {
+        return channelProduced[channel];
+    }
+
+    public long getRateLimited(int channel) {
+        return channelRateLimited[channel];
+    }
+
+    public long getDelivered(int channel) {
+        return channelDelivered[channel];
+    }
+
+    public long getFailed(int channel) {
+        return channelFailed[channel];
+    }
+
+    public int getClientCount() {
+        return clientIds.length;
+    }
+
+    /**
+     * @return An id of the client, stable while the client has subscriptions.
+     */
+    public int getClientId(int client) {
+        return clientIds[client];
+    }
+
+    public long getClientDelivered(int client) {
+        return clientDelivered[client];
+    }
+
+    public long getClientRateLimited(int client) {
+        return clientRateLimited[client];
+    }
+
+    public long getClientFailed(int client) {
+        return clientFailed[client];
+    }
+
+    /**
+     * @return The id of the client that requested the snapshot, -1 if it has no subscriptions.
+     */
+    public int getOwnClientId() {
+        return ownClientId;
+    }
+
+    public int getDeviceCount() {
+        return queueDropped.length;
+    }
+
+    /**
+     * @return The number of readings of the device dropped because the plugin's dispatch queue was full.
+     */
+    public long getQueueDropped(int deviceIndex) {
+        return queueDropped[deviceIndex];
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(time);
+        dest.writeInt(channelDevice.length);
+        dest.writeInt(clientIds.length);
+        dest.writeInt(queueDropped.length);
+        dest.writeIntArray(channelDevice);
+        dest.writeIntArray(channelSensor);
+        dest.writeLongArray(channelProduced);
+        dest.writeLongArray(channelRateLimited);
+        dest.writeLongArray(channelDelivered);
+        dest.writeLongArray(channelFailed);
+        dest.writeIntArray(clientIds);
+        dest.writeLongArray(clientDelivered);
+        dest.writeLongArray(clientRateLimited);
+        dest.writeLongArray(clientFailed);
+        dest.writeInt(ownClientId);
+        dest.writeLongArray(queueDropped);
+        dest.writeLongArray(latency.getCounts());
+    }
+
+    public static final Creator<DispatchStats> CREATOR = new Creator<DispatchStats>() {
+        @Override
+        public DispatchStats createFromParcel(Parcel in) {
+            DispatchStats s = new DispatchStats(in.readLong(), in.readInt(), in.readInt(), in.readInt());
+            in.readIntArray(s.channelDevice);
+            in.readIntArray(s.channelSensor);
+            in.readLongArray(s.channelProduced);
+            in.readLongArray(s.channelRateLimited);
+            in.readLongArray(s.channelDelivered);
+            in.readLongArray(s.channelFailed);
+            in.readIntArray(s.clientIds);
+            in.readLongArray(s.clientDelivered);
+            in.readLongArray(s.clientRateLimited);
+            in.readLongArray(s.clientFailed);
+            s.ownClientId = in.readInt();
+            in.readLongArray(s.queueDropped);
+            long[] counts = new long[LatencyHistogram.NUM_BUCKETS];
+            in.readLongArray(counts);
+            s.latency = new LatencyHistogram(counts);
+            return s;
+        }
+
+        @Override
+        public DispatchStats[] newArray(int size) {
+            return new DispatchStats[size];
+        }
+    };
+}
@@ -10,4 +10,8 @@ public final class ErrorCode {
     public static int SERVICE_NOT_READY = 4;
     public static int CLIENT_NOT_REGISTERED = 5;
     public static int DEVICE_ERROR = 6;
+    public static int INVALID_FILTER_CHAIN = 7;
+    public static int INVALID_VALUE_ENCODING = 8;
+    public static int INVALID_SUBSCRIPTION_SET = 9;
+    public static int INVALID_RATE_MODE = 10;
 }
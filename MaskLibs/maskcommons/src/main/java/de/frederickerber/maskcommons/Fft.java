@@ -0,0 +1,79 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * An in-place radix-2 complex FFT of a fixed size with precomputed twiddle factors and bit reversal.
+ * Transforming does not allocate.
+ */
+final class Fft {
+
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * @param size The number of points, a power of two.
+     */
+    Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        this.size = size;
+        reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Transform in place. The inverse transform is not scaled, divide by {@link #size()} to undo a forward transform.
+     *
+     * @param re      The real parts.
+     * @param im      The imaginary parts.
+     * @param inverse {@code true} for the inverse transform.
+     */
+    void transform(double[] re, double[] im, boolean inverse) {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1;
+            int step = n / len;
+            for (int start = 0; start < n; start += len) {
+                for (int k = 0, t = 0; k < half; k++, t += step) {
+                    double wr = cos[t];
+                    double wi = sign * sin[t];
+                    int a = start + k;
+                    int b = a + half;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,75 @@
 package de.frederickerber.maskcommons;
 
+/**
+ * A filter for n-dimensional sensor readings.
+ * <p>
+ * Filters keep their own state. They never hold on to the arrays passed to them, so callers may reuse their
+ * buffers, e.g. {@code SensorEvent.values}, for every reading.
+ */
 public abstract class Filter {
 
     public abstract void init(float... initParams);
 
-    public abstract float[] apply(float... data);
+    /**
+     * Filter one reading into a new array. Prefer {@link #apply(float[], int, float[], int, int)},
+     * which does not allocate.
+     *
+     * @param data A n-dimensional sensor reading.
+     * @return A new float array of length n with the filtered reading.
+     */
+    public float[] apply(float... data) {
+        if (data == null) {
+            throw new IllegalArgumentException("argument may not be null");
+        }
+        float[] out = new float[data.length];
+        apply(data, 0, out, 0, data.length);
+        return out;
+    }
 
+    /**
+     * Filter one reading. {@code in} and {@code out} may be the same array, also with the same offset.
+     * Implementations do not allocate once the number of channels is known.
+     *
+     * @param in       The array holding the reading.
+     * @param inOff    The index of the first value of the reading in {@code in}.
+     * @param out      The array for the filtered reading.
+     * @param outOff   The index of the first filtered value in {@code out}.
+     * @param channels The number of values of the reading. It may not change after the first call.
+     */
+    public abstract void apply(float[] in, int inOff, float[] out, int outOff, int channels);
+
+    /**
+     * Filter a block of readings, e.g. a batch, stored as consecutive frames of {@code channels} interleaved values.
+     * The result is the same as filtering the frames one by one with {@link #apply(float[], int, float[], int, int)}.
+     * {@code in} and {@code out} may be the same array with the same offset, but may not overlap otherwise.
+     * <p>
+     * This implementation calls {@code apply} for every frame. Subclasses override it with a loop over the whole block.
+     *
+     * @param in       The array holding the readings.
+     * @param inOff    The index of the first value of the first reading in {@code in}.
+     * @param out      The array for the filtered readings.
+     * @param outOff   The index of the first filtered value in {@code out}.
+     * @param channels The number of values of each reading. It may not change after the first call.
+     * @param frames   The number of readings.
+     */
+    public void applyBlock(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        checkBounds(in, inOff, out, outOff, channels, frames);
+        for (int f = 0; f < frames; f++) {
+            apply(in, inOff + f * channels, out, outOff + f * channels, channels);
+        }
+    }
+
+    /**
+     * Check the arguments of {@link #applyBlock(float[], int, float[], int, int, int)}.
+     */
+    static void checkBounds(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        if (in == null || out == null) {
+            throw new IllegalArgumentException("argument may not be null");
+        }
+        long n = (long) channels * frames;
+        if (channels < 0 || frames < 0 || inOff < 0 || outOff < 0 || inOff > in.length - n || outOff > out.length - n) {
+            throw new IndexOutOfBoundsException(frames + " frames of " + channels + " channels at " + inOff + " -> " + outOff
+                    + " do not fit arrays of " + in.length + " -> " + out.length);
+        }
+    }
 }
@@ -0,0 +1,348 @@
+package de.frederickerber.maskcommons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A declarative description of filters a plugin applies to a subscription before sending readings,
+ * e.g. {@code new FilterChain().lowPass(0.2f).decimate(25)}.
+ * <p>
+ * A chain is sent to the plugin as its spec, see {@link #toString()} and {@link #parse(String)}. Chains with the same
+ * spec are equal, so a plugin runs every distinct chain only once per sensor and sends its output to all subscribers
+ * that asked for it.
+ */
+public final class FilterChain {
+
+    /**
+     * {@link LowPassFilter} with parameter alpha.
+     */
+    public static final int LOW_PASS = 0;
+    /**
+     * {@link HighPassFilter} with parameter alpha.
+     */
+    public static final int HIGH_PASS = 1;
+    /**
+     * {@link Butterworth#lowPass(int, double, double)} with parameters order, sample rate and cutoff.
+     */
+    public static final int BUTTERWORTH_LOW_PASS = 2;
+    /**
+     * {@link Butterworth#highPass(int, double, double)} with parameters order, sample rate and cutoff.
+     */
+    public static final int BUTTERWORTH_HIGH_PASS = 3;
+    /**
+     * {@link Butterworth#notch(int, double, double, double)} with parameters order, sample rate, frequency and bandwidth.
+     */
+    public static final int NOTCH = 4;
+    /**
+     * Keep the readings closest to a grid with the given frequency in Hertz, see {@link RateMode#NEAREST}.
+     */
+    public static final int DECIMATE = 5;
+    /**
+     * {@link SlidingDft} with parameters size, hop, first bin and last bin. Derives a new stream.
+     */
+    public static final int SLIDING_DFT = 6;
+    /**
+     * {@link Goertzel} with parameters sample rate, block size and one or more frequencies. Derives a new stream.
+     */
+    public static final int GOERTZEL = 7;
+    /**
+     * {@link WindowAggregate} with parameters window length and optionally hop in milliseconds. Without a hop the
+     * windows are tumbling. Derives a new stream.
+     */
+    public static final int WINDOW = 8;
+
+    private static final String[] NAMES = {"lowpass", "highpass", "butterlow", "butterhigh", "notch", "decimate", "sdft", "goertzel", "window"};
+    private static final int[] MIN_ARITY = {1, 1, 3, 3, 4, 1, 4, 3, 1};
+    //goertzel takes up to 64 frequencies
+    private static final int[] MAX_ARITY = {1, 1, 3, 3, 4, 1, 4, 66, 2};
+
+    private final List<Integer> types = new ArrayList<>();
+    private final List<float[]> params = new ArrayList<>();
+
+    public FilterChain lowPass(float alpha) {
+        return add(LOW_PASS, alpha);
+    }
+
+    public FilterChain highPass(float alpha) {
+        return add(HIGH_PASS, alpha);
+    }
+
+    public FilterChain butterworthLowPass(int order, float sampleRate, float cutoff) {
+        return add(BUTTERWORTH_LOW_PASS, order, sampleRate, cutoff);
+    }
+
+    public FilterChain butterworthHighPass(int order, float sampleRate, float cutoff) {
+        return add(BUTTERWORTH_HIGH_PASS, order, sampleRate, cutoff);
+    }
+
+    public FilterChain notch(int order, float sampleRate, float frequency, float bandwidth) {
+        return add(NOTCH, order, sampleRate, frequency, bandwidth);
+    }
+
+    /**
+     * @param frequency The frequency in Hertz readings are reduced to.
+     */
+    public FilterChain decimate(int frequency) {
+        return add(DECIMATE, frequency);
+    }
+
+    /**
+     * @see SlidingDft#SlidingDft(int, int, int, int)
+     */
+    public FilterChain slidingDft(int size, int hop, int firstBin, int lastBin) {
+        return add(SLIDING_DFT, size, hop, firstBin, lastBin);
+    }
+
+    /**
+     * @see Goertzel#Goertzel(double, int, double...)
+     */
+    public FilterChain goertzel(float sampleRate, int size, float... frequencies) {
+        float[] p = new float[frequencies.length + 2];
+        p[0] = sampleRate;
+        p[1] = size;
+        System.arraycopy(frequencies, 0, p, 2, frequencies.length);
+        return add(GOERTZEL, p);
+    }
+
+    /**
+     * Tumbling windows, see {@link WindowAggregate}.
+     *
+     * @param windowMillis The length of a window in milliseconds.
+     */
+    public FilterChain window(float windowMillis) {
+        return add(WINDOW, windowMillis);
+    }
+
+    /**
+     * Sliding windows, see {@link WindowAggregate}.
+     *
+     * @param windowMillis The length of a window in milliseconds.
+     * @param hopMillis    The time between derived readings in milliseconds.
+     */
+    public FilterChain window(float windowMillis, float hopMillis) {
+        return add(WINDOW, windowMillis, hopMillis);
+    }
+
+    /**
+     * Append a stage.
+     *
+     * @param type   One of the stage constants, e.g. {@link #LOW_PASS}.
+     * @param params The parameters of the stage.
+     * @return This chain.
+     * @throws IllegalArgumentException If the type is unknown or the parameters are invalid.
+     */
+    public FilterChain add(int type, float... params) {
+        if (type < 0 || type >= NAMES.length) {
+            throw new IllegalArgumentException("unknown filter type: " + type);
+        }
+        if (params == null || params.length < MIN_ARITY[type] || params.length > MAX_ARITY[type]) {
+            throw new IllegalArgumentException(NAMES[type] + " takes " + MIN_ARITY[type]
+                    + (MAX_ARITY[type] > MIN_ARITY[type] ? " to " + MAX_ARITY[type] : "") + " parameters");
+        }
+        float[] p = params.clone();
+        if (type == DECIMATE) {
+            if (!(p[0] >= 1) || p[0] != (int) p[0]) {
+                throw new IllegalArgumentException("decimate takes a positive whole frequency: " + p[0]);
+            }
+        } else if (isOperator(type)) {
+            //fails for invalid parameters
+            createOperator(type, p);
+        } else {
+            createFilter(type, p);
+        }
+        types.add(type);
+        this.params.add(p);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return types.isEmpty();
+    }
+
+    public int getStageCount() {
+        return types.size();
+    }
+
+    public int getStageType(int stage) {
+        return types.get(stage);
+    }
+
+    /**
+     * @return A copy of the parameters of the stage.
+     */
+    public float[] getStageParams(int stage) {
+        return params.get(stage).clone();
+    }
+
+    /**
+     * @return {@code true} if the chain derives a new stream, e.g. spectra, instead of filtering the readings.
+     * Its readings may have a different number of values than the sensor's.
+     */
+    public boolean isDerived() {
+        for (int type : types) {
+            if (isOperator(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOperator(int type) {
+        return type == SLIDING_DFT || type == GOERTZEL || type == WINDOW;
+    }
+
+    /**
+     * @return A new operator for the stage, {@code null} if the stage is a filter or {@link #DECIMATE}.
+     */
+    public StreamOperator createOperator(int stage) {
+        return createOperator(types.get(stage), params.get(stage));
+    }
+
+    private static StreamOperator createOperator(int type, float[] p) {
+        switch (type) {
+            case SLIDING_DFT:
+                return new SlidingDft(whole(p[0]), whole(p[1]), whole(p[2]), whole(p[3]));
+            case GOERTZEL:
+                double[] frequencies = new double[p.length - 2];
+                for (int i = 0; i < frequencies.length; i++) {
+                    frequencies[i] = p[i + 2];
+                }
+                return new Goertzel(p[0], whole(p[1]), frequencies);
+            case WINDOW:
+                long window = millisToNanos(p[0]);
+                return new WindowAggregate(window, p.length > 1 ? millisToNanos(p[1]) : window);
+            default:
+                return null;
+        }
+    }
+
+    private static long millisToNanos(float millis) {
+        if (!(millis > 0)) {
+            throw new IllegalArgumentException("expected a positive duration: " + millis);
+        }
+        return Math.round(millis * 1e6);
+    }
+
+    private static int whole(float value) {
+        if (value != (int) value) {
+            throw new IllegalArgumentException("expected a whole number: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return A new filter for the stage, {@code null} for {@link #DECIMATE} and operators.
+     */
+    public Filter createFilter(int stage) {
+        return createFilter(types.get(stage), params.get(stage));
+    }
+
+    private static Filter createFilter(int type, float[] p) {
+        switch (type) {
+            case LOW_PASS:
+            case HIGH_PASS:
+                if (!(p[0] >= 0 && p[0] <= 1)) {
+                    throw new IllegalArgumentException("alpha must be between 0 and 1: " + p[0]);
+                }
+                Filter f = type == LOW_PASS ? new LowPassFilter() : new HighPassFilter();
+                f.init(p[0]);
+                return f;
+            case BUTTERWORTH_LOW_PASS:
+                return Butterworth.lowPass(order(p[0]), p[1], p[2]);
+            case BUTTERWORTH_HIGH_PASS:
+                return Butterworth.highPass(order(p[0]), p[1], p[2]);
+            case NOTCH:
+                return Butterworth.notch(order(p[0]), p[1], p[2], p[3]);
+            default:
+                return null;
+        }
+    }
+
+    private static int order(float order) {
+        //orders above 16 are numerically useless in single sections anyway
+        if (order != (int) order || order < 1 || order > 16) {
+            throw new IllegalArgumentException("order must be a whole number between 1 and 16: " + order);
+        }
+        return (int) order;
+    }
+
+    /**
+     * Read a chain from its spec.
+     *
+     * @param spec A spec as returned by {@link #toString()}, e.g. {@code lowpass(0.2);decimate(25)}. May be empty.
+     * @return The chain.
+     * @throws IllegalArgumentException If the spec is malformed or a stage is invalid.
+     */
+    public static FilterChain parse(String spec) {
+        if (spec == null) {
+            throw new IllegalArgumentException("spec may not be null");
+        }
+        FilterChain chain = new FilterChain();
+        for (String stage : spec.split(";")) {
+            stage = stage.trim();
+            if (stage.isEmpty()) {
+                continue;
+            }
+            int open = stage.indexOf('(');
+            if (open < 0 || !stage.endsWith(")")) {
+                throw new IllegalArgumentException("malformed stage: " + stage);
+            }
+            String name = stage.substring(0, open).trim().toLowerCase(Locale.ROOT);
+            int type = -1;
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(name)) {
+                    type = i;
+                }
+            }
+            if (type < 0) {
+                throw new IllegalArgumentException("unknown filter: " + name);
+            }
+            String args = stage.substring(open + 1, stage.length() - 1).trim();
+            String[] parts = args.isEmpty() ? new String[0] : args.split(",");
+            float[] p = new float[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                try {
+                    p[i] = Float.parseFloat(parts[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("malformed parameter in stage: " + stage);
+                }
+            }
+            chain.add(type, p);
+        }
+        return chain;
+    }
+
+    /**
+     * @return The canonical spec of the chain, e.g. {@code lowpass(0.2);decimate(25.0)}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < types.size(); i++) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            sb.append(NAMES[types.get(i)]).append('(');
+            float[] p = params.get(i);
+            for (int j = 0; j < p.length; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(p[j]);
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterChain && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
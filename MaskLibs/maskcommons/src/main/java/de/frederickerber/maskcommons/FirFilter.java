@@ -0,0 +1,284 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Arrays;
+
+/**
+ * A finite impulse response filter for n-dimensional data, e.g. designed with {@link WindowedSinc}.
+ * <p>
+ * Every channel keeps its last readings in a ring buffer that is stored twice in a row, so the convolution with
+ * the kernel always runs over one contiguous range. Blocks of readings that are long compared with the kernel are
+ * convolved with an FFT instead (overlap-save), which costs {@code O(log n)} instead of {@code O(n)} per reading
+ * for a kernel of {@code n} taps. {@link #applyBlock(float[], int, float[], int, int, int)} picks the cheaper path
+ * for every block, both paths share the ring buffer, so they can be mixed freely and give the same results up to
+ * rounding. Buffers are allocated once, filtering does not allocate.
+ * <p>
+ * Like the other filters, the first reading is treated as if it had been applied forever, so a filter with a DC gain
+ * of 1 passes it through unchanged.
+ */
+public class FirFilter extends Filter {
+
+    /**
+     * Let {@link #applyBlock(float[], int, float[], int, int, int)} choose the path.
+     */
+    static final int PATH_AUTO = 0;
+    static final int PATH_DIRECT = 1;
+    static final int PATH_FFT = 2;
+
+    /**
+     * Kernels shorter than this are always convolved directly.
+     */
+    static final int MIN_FFT_TAPS = 32;
+    //cost of an FFT butterfly relative to a multiply-add of the direct convolution, measured with FirFilterBenchmark
+    private static final double BUTTERFLY_COST = 7;
+
+    private float[] taps;
+    //the kernel in reverse order, so the convolution runs forward over the ring buffer
+    private float[] reversed;
+    private int n;
+    private int path = PATH_AUTO;
+
+    //2 * n values per channel, the ring buffer followed by a copy of itself
+    private float[] history;
+    //the slot of the newest reading
+    private int pos;
+    private int channels = -1;
+    private boolean primed;
+
+    private Fft fft;
+    private double[] kernelRe;
+    private double[] kernelIm;
+    private double[] re;
+    private double[] im;
+    //the last n readings of a block, saved before the block is overwritten
+    private float[] tail;
+
+    public FirFilter() {
+    }
+
+    /**
+     * @param taps The kernel, {@code taps[0]} weighs the newest reading.
+     */
+    public FirFilter(float... taps) {
+        init(taps);
+    }
+
+    /**
+     * Replace the kernel. The state is discarded.
+     *
+     * @param initParams The kernel, {@code taps[0]} weighs the newest reading.
+     */
+    @Override
+    public void init(float... initParams) {
+        if (initParams == null || initParams.length == 0) {
+            throw new IllegalArgumentException("provide at least one tap");
+        }
+        taps = initParams.clone();
+        n = taps.length;
+        reversed = new float[n];
+        for (int i = 0; i < n; i++) {
+            reversed[i] = taps[n - 1 - i];
+        }
+        history = null;
+        channels = -1;
+        primed = false;
+        fft = null;
+    }
+
+    /**
+     * @return A copy of the kernel.
+     */
+    public float[] getTaps() {
+        return taps.clone();
+    }
+
+    /**
+     * Forget all previous readings. The next reading is treated like the first one.
+     */
+    public void reset() {
+        primed = false;
+    }
+
+    /**
+     * Force a path for tests and benchmarks.
+     *
+     * @param path {@link #PATH_AUTO}, {@link #PATH_DIRECT} or {@link #PATH_FFT}.
+     */
+    void setPath(int path) {
+        this.path = path;
+    }
+
+    /**
+     * @param frames   The number of readings of a block.
+     * @param channels The number of values per reading.
+     * @return {@code true} if {@link #applyBlock(float[], int, float[], int, int, int)} convolves a block of this
+     * size with the FFT.
+     */
+    boolean usesFft(int frames, int channels) {
+        if (path != PATH_AUTO || n < MIN_FFT_TAPS || frames < n) {
+            return path == PATH_FFT && frames >= n;
+        }
+        int size = fftSize(n);
+        int step = size - n + 1;
+        int chunks = (frames + step - 1) / step;
+        //forward and inverse transform plus the spectrum product, each shared by two channels
+        double fftCost = (double) chunks * ((channels + 1) / 2)
+                * size * (Integer.numberOfTrailingZeros(size) * BUTTERFLY_COST + 2);
+        return fftCost < (double) frames * n * channels;
+    }
+
+    /**
+     * @return The FFT size for a kernel, four to eight times its length, so most of each transform yields output.
+     */
+    static int fftSize(int taps) {
+        return Integer.highestOneBit(taps) << 3;
+    }
+
+    @Override
+    public void apply(float[] in, int inOff, float[] out, int outOff, int channels) {
+        applyBlock(in, inOff, out, outOff, channels, 1);
+    }
+
+    @Override
+    public void applyBlock(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        if (taps == null) {
+            throw new IllegalStateException("initialize the filter first");
+        }
+        checkBounds(in, inOff, out, outOff, channels, frames);
+        if (history == null) {
+            history = new float[2 * n * channels];
+            this.channels = channels;
+        } else if (this.channels != channels) {
+            throw new IllegalArgumentException("data dimension may not change");
+        }
+        if (frames == 0) {
+            return;
+        }
+        if (!primed) {
+            prime(in, inOff, channels);
+            primed = true;
+        }
+        if (usesFft(frames, channels)) {
+            convolveFft(in, inOff, out, outOff, channels, frames);
+        } else {
+            convolveDirect(in, inOff, out, outOff, channels, frames);
+        }
+    }
+
+    private void prime(float[] in, int inOff, int channels) {
+        for (int c = 0; c < channels; c++) {
+            Arrays.fill(history, 2 * n * c, 2 * n * (c + 1), in[inOff + c]);
+        }
+        pos = n - 1;
+    }
+
+    private void convolveDirect(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        float[] h = history;
+        float[] r = reversed;
+        int len = n;
+        int p = pos;
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + f * channels;
+            int o = outOff + f * channels;
+            p = p + 1 == len ? 0 : p + 1;
+            for (int c = 0, base = 0; c < channels; c++, base += 2 * len) {
+                float x = in[i + c];
+                h[base + p] = x;
+                h[base + p + len] = x;
+                //the oldest reading is in the slot after the newest one
+                int start = base + p + 1;
+                float acc = 0;
+                for (int j = 0; j < len; j++) {
+                    acc += r[j] * h[start + j];
+                }
+                out[o + c] = acc;
+            }
+        }
+        pos = p;
+    }
+
+    /**
+     * Overlap-save: every transform covers {@code n - 1} earlier readings followed by {@code step} new ones and yields
+     * {@code step} outputs. Two channels share a transform as its real and imaginary part, which works because the
+     * kernel is real. Chunks run from the last to the first, so in-place filtering never overwrites a reading that
+     * is still needed. Requires at least {@code n} frames.
+     */
+    private void convolveFft(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        int len = n;
+        if (fft == null) {
+            fft = new Fft(fftSize(len));
+            int size = fft.size();
+            kernelRe = new double[size];
+            kernelIm = new double[size];
+            for (int i = 0; i < len; i++) {
+                kernelRe[i] = taps[i];
+            }
+            fft.transform(kernelRe, kernelIm, false);
+            re = new double[size];
+            im = new double[size];
+        }
+        if (tail == null || tail.length < len * channels) {
+            tail = new float[len * channels];
+        }
+        System.arraycopy(in, inOff + (frames - len) * channels, tail, 0, len * channels);
+
+        int size = fft.size();
+        int step = size - len + 1;
+        double scale = 1.0 / size;
+        float[] h = history;
+        for (int c = 0; c < channels; c += 2) {
+            boolean pair = c + 1 < channels;
+            int base = 2 * len * c;
+            for (int s = (frames - 1) / step * step; s >= 0; s -= step) {
+                for (int j = 0; j < size; j++) {
+                    int t = s - (len - 1) + j;
+                    double a;
+                    double b = 0;
+                    if (t < 0) {
+                        //the readings before the block, x[-1] is in the newest slot
+                        int k = pos + 1 + t + len;
+                        a = h[base + k];
+                        if (pair) {
+                            b = h[base + 2 * len + k];
+                        }
+                    } else if (t < frames) {
+                        int k = inOff + t * channels + c;
+                        a = in[k];
+                        if (pair) {
+                            b = in[k + 1];
+                        }
+                    } else {
+                        a = 0;
+                    }
+                    re[j] = a;
+                    im[j] = b;
+                }
+                fft.transform(re, im, false);
+                for (int j = 0; j < size; j++) {
+                    double xr = re[j];
+                    double xi = im[j];
+                    re[j] = xr * kernelRe[j] - xi * kernelIm[j];
+                    im[j] = xr * kernelIm[j] + xi * kernelRe[j];
+                }
+                fft.transform(re, im, true);
+                int count = Math.min(step, frames - s);
+                for (int i = 0; i < count; i++) {
+                    int k = outOff + (s + i) * channels + c;
+                    out[k] = (float) (re[len - 1 + i] * scale);
+                    if (pair) {
+                        out[k + 1] = (float) (im[len - 1 + i] * scale);
+                    }
+                }
+            }
+        }
+
+        //the block's last n readings become the ring buffer, the newest in the last slot
+        for (int c = 0, base = 0; c < channels; c++, base += 2 * len) {
+            for (int i = 0; i < len; i++) {
+                float x = tail[i * channels + c];
+                h[base + i] = x;
+                h[base + i + len] = x;
+            }
+        }
+        pos = len - 1;
+    }
+}
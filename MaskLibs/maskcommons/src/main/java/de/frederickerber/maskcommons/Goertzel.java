@@ -0,0 +1,102 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Goertzel detectors for a few chosen frequencies, run over consecutive blocks of {@code size} readings of every
+ * channel. Each reading costs {@code O(1)} per frequency, so a handful of frequencies is much cheaper than a full
+ * spectrum. The frequencies do not need to fall on DFT bins.
+ * <p>
+ * At the end of every block a derived reading with the amplitudes of all frequencies is emitted, ordered by channel,
+ * then frequency: {@code out[c * frequencies + f]}. A sine of amplitude {@code a} at one of the frequencies gives
+ * about {@code a}, if the block holds a whole number of its periods.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Goertzel_algorithm">Wikipedia article</a>
+ */
+public class Goertzel extends StreamOperator {
+
+    private final int size;
+    private final int numFrequencies;
+    //2 cos(2 pi f / sampleRate) per frequency
+    private final double[] coefficients;
+
+    private int channels = -1;
+    private int count;
+    private double[] s1;
+    private double[] s2;
+    private float[] output;
+    private long outputTimestamp;
+
+    /**
+     * @param sampleRate  The sample rate of the readings in Hertz.
+     * @param size        The number of readings per block.
+     * @param frequencies The frequencies to detect in Hertz, above 0 and below half the sample rate.
+     */
+    public Goertzel(double sampleRate, int size, double... frequencies) {
+        if (size < 2 || frequencies == null || frequencies.length == 0) {
+            throw new IllegalArgumentException("provide a block size of at least 2 and at least one frequency");
+        }
+        this.size = size;
+        numFrequencies = frequencies.length;
+        coefficients = new double[numFrequencies];
+        for (int i = 0; i < numFrequencies; i++) {
+            if (!(sampleRate > 0) || !(frequencies[i] > 0) || frequencies[i] >= sampleRate / 2) {
+                throw new IllegalArgumentException("frequency " + frequencies[i] + " out of range for sample rate " + sampleRate);
+            }
+            coefficients[i] = 2 * Math.cos(2 * Math.PI * frequencies[i] / sampleRate);
+        }
+    }
+
+    public int getFrequencyCount() {
+        return numFrequencies;
+    }
+
+    @Override
+    public boolean offer(long timestamp, float[] in, int inOff, int channels) {
+        checkBounds(in, inOff, channels);
+        if (s1 == null) {
+            this.channels = channels;
+            s1 = new double[numFrequencies * channels];
+            s2 = new double[numFrequencies * channels];
+            output = new float[numFrequencies * channels];
+        } else if (this.channels != channels) {
+            throw new IllegalArgumentException("data dimension may not change");
+        }
+        for (int c = 0; c < channels; c++) {
+            double x = in[inOff + c];
+            for (int f = 0, k = c * numFrequencies; f < numFrequencies; f++, k++) {
+                double s = x + coefficients[f] * s1[k] - s2[k];
+                s2[k] = s1[k];
+                s1[k] = s;
+            }
+        }
+        if (++count < size) {
+            return false;
+        }
+        for (int k = 0; k < output.length; k++) {
+            double power = s1[k] * s1[k] + s2[k] * s2[k] - coefficients[k % numFrequencies] * s1[k] * s2[k];
+            output[k] = (float) (2 * Math.sqrt(Math.max(0, power)) / size);
+            s1[k] = 0;
+            s2[k] = 0;
+        }
+        count = 0;
+        outputTimestamp = timestamp;
+        return true;
+    }
+
+    @Override
+    public float[] getOutput() {
+        return output;
+    }
+
+    @Override
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    @Override
+    public void reset() {
+        s1 = null;
+        s2 = null;
+        channels = -1;
+        count = 0;
+    }
+}
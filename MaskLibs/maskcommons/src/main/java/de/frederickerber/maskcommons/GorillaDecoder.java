@@ -0,0 +1,183 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Reads the readings of a block written by a {@link GorillaEncoder}.
+ * <p>
+ * The decoder keeps its buffers across {@link #reset(byte[], int, int)}. It is not thread-safe.
+ */
+public final class GorillaDecoder {
+
+    private final BitReader in = new BitReader();
+
+    private int sensorType;
+    private int deviceIndex;
+    private int count;
+    private int channels;
+    private int read;
+    private boolean corrupt;
+
+    private long timestamp;
+    private long prevDelta;
+    private int[] prevValues = new int[0];
+    private int[] prevLeading = new int[0];
+    private int[] prevTrailing = new int[0];
+    private float[] values = new float[0];
+
+    /**
+     * Start reading a block. The array is not copied.
+     *
+     * @param data   The array holding the block.
+     * @param offset The index of the first byte of the block.
+     * @param length The length of the block in bytes.
+     * @return {@code false} if the data is too short to be a block.
+     */
+    public boolean reset(byte[] data, int offset, int length) {
+        in.reset(data, offset, length);
+        sensorType = (int) in.readBits(32);
+        deviceIndex = (int) in.readBits(32);
+        count = (int) in.readBits(32);
+        channels = (int) in.readBits(16);
+        read = 0;
+        corrupt = false;
+        if (in.isOverrun() || count < 0) {
+            count = 0;
+            return false;
+        }
+        if (prevValues.length < channels) {
+            prevValues = new int[channels];
+            prevLeading = new int[channels];
+            prevTrailing = new int[channels];
+            values = new float[channels];
+        }
+        return true;
+    }
+
+    public boolean reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    public int getSensorType() {
+        return sensorType;
+    }
+
+    public int getDeviceIndex() {
+        return deviceIndex;
+    }
+
+    /**
+     * @return The number of readings in the block.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of values of each reading.
+     */
+    public int getChannelCount() {
+        return channels;
+    }
+
+    /**
+     * Decode the next reading. Its timestamp is available from {@link #getTimestamp()} afterwards.
+     *
+     * @param into The array for the values, with room for {@link #getChannelCount()} values.
+     * @return {@code false} if there is no reading left or the block is truncated.
+     */
+    public boolean next(float[] into) {
+        if (read >= count) {
+            return false;
+        }
+        if (read == 0) {
+            timestamp = in.readBits(64);
+            prevDelta = 0;
+            for (int c = 0; c < channels; c++) {
+                prevValues[c] = (int) in.readBits(32);
+                prevLeading[c] = -1;
+            }
+        } else {
+            prevDelta += readDeltaOfDelta();
+            timestamp += prevDelta;
+            for (int c = 0; c < channels; c++) {
+                readValue(c);
+            }
+        }
+        if (corrupt || in.isOverrun()) {
+            count = read;
+            return false;
+        }
+        for (int c = 0; c < channels; c++) {
+            into[c] = Float.intBitsToFloat(prevValues[c]);
+        }
+        read++;
+        return true;
+    }
+
+    /**
+     * Decode the next reading into a sample, together with the block's sensor type and device index.
+     *
+     * @param into The sample to overwrite.
+     * @return {@code false} if there is no reading left or the block is truncated.
+     */
+    public boolean next(SensorSample into) {
+        if (!next(values)) {
+            return false;
+        }
+        into.set(sensorType, deviceIndex, timestamp, values, channels);
+        return true;
+    }
+
+    /**
+     * @return The timestamp of the reading last returned by {@code next}, in nanoseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private long readDeltaOfDelta() {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(14), 14);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(24), 24);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(36), 36);
+        }
+        return in.readBits(64);
+    }
+
+    private static long signExtend(long v, int bits) {
+        return (v << (64 - bits)) >> (64 - bits);
+    }
+
+    private void readValue(int c) {
+        if (!in.readBit()) {
+            return;
+        }
+        int xor;
+        if (!in.readBit()) {
+            if (prevLeading[c] < 0) {
+                //there is no window to reuse
+                corrupt = true;
+                return;
+            }
+            xor = (int) in.readBits(32 - prevLeading[c] - prevTrailing[c]) << prevTrailing[c];
+        } else {
+            int leading = (int) in.readBits(5);
+            int significant = (int) in.readBits(5) + 1;
+            int trailing = 32 - leading - significant;
+            if (trailing < 0) {
+                corrupt = true;
+                return;
+            }
+            xor = (int) in.readBits(significant) << trailing;
+            prevLeading[c] = leading;
+            prevTrailing[c] = trailing;
+        }
+        prevValues[c] ^= xor;
+    }
+}
@@ -0,0 +1,203 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Compresses a block of readings of one sensor in the style of Facebook's Gorilla time series database.
+ * <p>
+ * Timestamps are stored as the difference between consecutive deltas (delta-of-delta), which is 0 for a sensor
+ * with a steady rate and small for one with jitter. Each channel stores the XOR of a value with the previous value
+ * of the same channel, so repeated values take a single bit and slowly changing values only store the bits that
+ * changed. The layout of a block is:
+ * <ul>
+ * <li>header: sensor type (32 bits), device index (32 bits), number of readings (32 bits), number of channels (16 bits)</li>
+ * <li>first reading: timestamp (64 bits), values (32 bits each)</li>
+ * <li>every other reading: delta-of-delta of the timestamp, then the XOR of each value with the channel's previous value</li>
+ * </ul>
+ * A delta-of-delta is stored as {@code 0} if it is 0, otherwise as a prefix of {@code 10}, {@code 110}, {@code 1110}
+ * or {@code 1111} followed by the value in 14, 24, 36 or 64 bits. The ranges are wider than Gorilla's since
+ * timestamps are in nanoseconds. A value XOR is stored as {@code 0} if it is 0, as {@code 10} followed by the
+ * changed bits if they fit the previous value's window of changed bits, or as {@code 11} followed by the number of
+ * leading zeros (5 bits), the number of changed bits minus one (5 bits) and the changed bits.
+ * <p>
+ * The encoder keeps its buffers across {@link #reset(int, int, int)}. It is not thread-safe.
+ *
+ * @see GorillaDecoder
+ */
+public final class GorillaEncoder {
+
+    static final int HEADER_BITS = 32 + 32 + 32 + 16;
+    static final int COUNT_BYTE_OFFSET = 8;
+    static final int MAX_CHANNELS = 0xFFFF;
+
+    private final BitWriter out = new BitWriter(256);
+
+    private int channels;
+    private int count;
+    private long prevTimestamp;
+    private long prevDelta;
+    private int[] prevValues = new int[0];
+    //window of meaningful bits of the previous XOR per channel, -1 if there is none yet
+    private int[] prevLeading = new int[0];
+    private int[] prevTrailing = new int[0];
+
+    /**
+     * Start a new block. Everything added before is discarded.
+     *
+     * @param sensorType  The {@link SensorType} of the readings.
+     * @param deviceIndex The index of the device.
+     * @param channels    The number of values of each reading.
+     */
+    public void reset(int sensorType, int deviceIndex, int channels) {
+        if (channels < 0 || channels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("invalid number of channels: " + channels);
+        }
+        this.channels = channels;
+        if (prevValues.length < channels) {
+            prevValues = new int[channels];
+            prevLeading = new int[channels];
+            prevTrailing = new int[channels];
+        }
+        count = 0;
+        out.reset();
+        out.writeBits(sensorType, 32);
+        out.writeBits(deviceIndex, 32);
+        out.writeBits(0, 32);
+        out.writeBits(channels, 16);
+    }
+
+    /**
+     * @return The number of readings in the block.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The size of the block so far in bits.
+     */
+    public long getBitLength() {
+        return out.getBitLength();
+    }
+
+    /**
+     * Append a reading.
+     *
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param values    The values of the reading, as many as the block has channels.
+     */
+    public void add(long timestamp, float[] values) {
+        add(timestamp, values, values == null ? 0 : values.length);
+    }
+
+    /**
+     * Append a reading. The sensor type and device index of the sample are not checked against the block.
+     *
+     * @param sample The reading, with as many values as the block has channels.
+     */
+    public void add(SensorSample sample) {
+        add(sample.getTimestamp(), sample.values(), sample.getValueCount());
+    }
+
+    private void add(long timestamp, float[] values, int n) {
+        if (n != channels) {
+            throw new IllegalArgumentException("expected " + channels + " values, got " + n);
+        }
+        if (count == 0) {
+            out.writeBits(timestamp, 64);
+            prevDelta = 0;
+            for (int c = 0; c < n; c++) {
+                int bits = Float.floatToRawIntBits(values[c]);
+                out.writeBits(bits, 32);
+                prevValues[c] = bits;
+                prevLeading[c] = -1;
+            }
+        } else {
+            long delta = timestamp - prevTimestamp;
+            writeDeltaOfDelta(delta - prevDelta);
+            prevDelta = delta;
+            for (int c = 0; c < n; c++) {
+                writeValue(c, Float.floatToRawIntBits(values[c]));
+            }
+        }
+        prevTimestamp = timestamp;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            out.writeBits(0, 1);
+        } else if (fits(dod, 14)) {
+            out.writeBits(0b10, 2);
+            out.writeBits(dod, 14);
+        } else if (fits(dod, 24)) {
+            out.writeBits(0b110, 3);
+            out.writeBits(dod, 24);
+        } else if (fits(dod, 36)) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(dod, 36);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(dod, 64);
+        }
+    }
+
+    private static boolean fits(long v, int bits) {
+        long limit = 1L << (bits - 1);
+        return v >= -limit && v < limit;
+    }
+
+    private void writeValue(int c, int bits) {
+        int xor = bits ^ prevValues[c];
+        prevValues[c] = bits;
+        if (xor == 0) {
+            out.writeBits(0, 1);
+            return;
+        }
+        int leading = Integer.numberOfLeadingZeros(xor);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (prevLeading[c] >= 0 && leading >= prevLeading[c] && trailing >= prevTrailing[c]) {
+            out.writeBits(0b10, 2);
+            out.writeBits(xor >>> prevTrailing[c], 32 - prevLeading[c] - prevTrailing[c]);
+        } else {
+            int significant = 32 - leading - trailing;
+            out.writeBits(0b11, 2);
+            out.writeBits(leading, 5);
+            out.writeBits(significant - 1, 5);
+            out.writeBits(xor >>> trailing, significant);
+            prevLeading[c] = leading;
+            prevTrailing[c] = trailing;
+        }
+    }
+
+    /**
+     * Finish the block. More readings may still be added afterwards.
+     *
+     * @return The length of the block in bytes, see {@link #getBuffer()}.
+     */
+    public int finish() {
+        int length = out.flush();
+        byte[] buffer = out.getBuffer();
+        buffer[COUNT_BYTE_OFFSET] = (byte) (count >>> 24);
+        buffer[COUNT_BYTE_OFFSET + 1] = (byte) (count >>> 16);
+        buffer[COUNT_BYTE_OFFSET + 2] = (byte) (count >>> 8);
+        buffer[COUNT_BYTE_OFFSET + 3] = (byte) count;
+        return length;
+    }
+
+    /**
+     * @return The backing array of the block, valid up to the length returned by {@link #finish()}
+     * until the next call to {@link #add(long, float[])} or {@link #reset(int, int, int)}.
+     */
+    public byte[] getBuffer() {
+        return out.getBuffer();
+    }
+
+    /**
+     * @return A copy of the finished block.
+     */
+    public byte[] toByteArray() {
+        int length = finish();
+        byte[] res = new byte[length];
+        System.arraycopy(out.getBuffer(), 0, res, 0, length);
+        return res;
+    }
+}
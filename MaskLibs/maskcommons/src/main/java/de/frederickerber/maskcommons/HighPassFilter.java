@@ -9,15 +9,18 @@ package de.frederickerber.maskcommons;
 public class HighPassFilter extends Filter {
 
     private float alpha;
+    //previous input and output per channel, allocated once the number of channels is known
     private float[] prevReading;
     private float[] prevReadingFiltered;
+    private boolean primed;
     private boolean init;
 
     /**
      * Set alpha to adjust the impact of prior output and current change in input. 0 <= alpha <= 1.
-     * Refer to the wikipedia article for a detailed explanation.
+     * Refer to the wikipedia article for a detailed explanation. Any previous state is discarded.
      *
      * @param initParams A float array with alpha at index 0
+     *                   and optionally the number of channels at index 1, so the state is allocated right away.
      * @see <a href="https://en.wikipedia.org/wiki/High-pass_filter#Algorithmic_implementation">Wikipedia article</a>
      */
     @Override
@@ -26,36 +29,114 @@ public class HighPassFilter extends Filter {
             throw new IllegalArgumentException("provide alpha");
         }
         alpha = initParams[0];
+        if (initParams.length > 1) {
+            allocate((int) initParams[1]);
+        } else {
+            prevReading = null;
+            prevReadingFiltered = null;
+        }
+        primed = false;
         init = true;
     }
 
+    private void allocate(int channels) {
+        prevReading = new float[channels];
+        prevReadingFiltered = new float[channels];
+    }
+
     /**
-     * Apply the filter on a new sensor reading. The filter has to be initialized first.
-     *
-     * @param data A n-dimensional sensor reading.
-     * @return A float array of length n representing the n-dimensional filtered input.
-     * @see <a href="https://developer.android.com/reference/android/hardware/SensorEvent.html#values">Android documentation</a>
+     * {@inheritDoc}
+     * The first reading is passed through unchanged.
+     */
+    @Override
+    public void apply(float[] in, int inOff, float[] out, int outOff, int channels) {
+        applyBlock(in, inOff, out, outOff, channels, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The first reading is passed through unchanged.
      */
     @Override
-    public float[] apply(float... data) {
+    public void applyBlock(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
         if (!init) {
             throw new IllegalStateException("initialize the filter first");
         }
-        if (data == null) {
-            throw new IllegalArgumentException("argument may not be null");
-        }
-        if (prevReading != null && prevReading.length != data.length) {
+        checkBounds(in, inOff, out, outOff, channels, frames);
+        if (prevReading == null) {
+            allocate(channels);
+        } else if (prevReading.length != channels) {
             throw new IllegalArgumentException("data dimension may not change");
         }
-        if (prevReading == null || prevReadingFiltered == null) {
-            prevReading = data;
-            prevReadingFiltered = data;
-            return data;
+        if (frames == 0) {
+            return;
         }
-        for (int i = 0; i < data.length; i++) {
-            prevReadingFiltered[i] = alpha * (prevReadingFiltered[i] + data[i] - prevReading[i]);
+        if (!primed) {
+            System.arraycopy(in, inOff, prevReading, 0, channels);
+            System.arraycopy(in, inOff, prevReadingFiltered, 0, channels);
+            System.arraycopy(in, inOff, out, outOff, channels);
+            primed = true;
+            inOff += channels;
+            outOff += channels;
+            frames--;
+        }
+        if (channels == 3) {
+            filter3(in, inOff, out, outOff, frames);
+        } else {
+            filter(in, inOff, out, outOff, channels, frames);
+        }
+    }
+
+    private void filter(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        float a = alpha;
+        float[] x = prevReading;
+        float[] y = prevReadingFiltered;
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + f * channels;
+            int o = outOff + f * channels;
+            for (int c = 0; c < channels; c++) {
+                float v = in[i + c];
+                float filtered = a * (y[c] + v - x[c]);
+                x[c] = v;
+                y[c] = filtered;
+                out[o + c] = filtered;
+            }
+        }
+    }
+
+    /**
+     * {@link #filter(float[], int, float[], int, int, int)} for the common case of three axes.
+     * The state stays in registers and the channels form three independent dependency chains.
+     */
+    private void filter3(float[] in, int inOff, float[] out, int outOff, int frames) {
+        float a = alpha;
+        float x0 = prevReading[0];
+        float x1 = prevReading[1];
+        float x2 = prevReading[2];
+        float y0 = prevReadingFiltered[0];
+        float y1 = prevReadingFiltered[1];
+        float y2 = prevReadingFiltered[2];
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + 3 * f;
+            int o = outOff + 3 * f;
+            float v0 = in[i];
+            float v1 = in[i + 1];
+            float v2 = in[i + 2];
+            y0 = a * (y0 + v0 - x0);
+            y1 = a * (y1 + v1 - x1);
+            y2 = a * (y2 + v2 - x2);
+            x0 = v0;
+            x1 = v1;
+            x2 = v2;
+            out[o] = y0;
+            out[o + 1] = y1;
+            out[o + 2] = y2;
         }
-        prevReading = data;
-        return prevReadingFiltered;
+        prevReading[0] = x0;
+        prevReading[1] = x1;
+        prevReading[2] = x2;
+        prevReadingFiltered[0] = y0;
+        prevReadingFiltered[1] = y1;
+        prevReadingFiltered[2] = y2;
     }
 }
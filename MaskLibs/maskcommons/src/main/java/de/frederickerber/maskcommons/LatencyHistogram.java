@@ -0,0 +1,109 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies in nanoseconds with one bucket per power of two.
+ * Bucket {@code i} counts latencies {@code l} with {@code 2^(i-1) <= l < 2^i}, bucket 0 counts latencies of 0 or less.
+ * <p>
+ * Recording only increments an array entry, so it is cheap enough for every reading. This class is not thread-safe.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets.
+     */
+    public static final int NUM_BUCKETS = 64;
+
+    private final long[] counts;
+    private long total;
+
+    public LatencyHistogram() {
+        counts = new long[NUM_BUCKETS];
+    }
+
+    /**
+     * @param counts The bucket counts, e.g. from {@link #getCounts()}. The array is copied.
+     */
+    public LatencyHistogram(long[] counts) {
+        if (counts.length != NUM_BUCKETS) {
+            throw new IllegalArgumentException("expected " + NUM_BUCKETS + " buckets, got " + counts.length);
+        }
+        this.counts = counts.clone();
+        for (long c : counts) {
+            total += c;
+        }
+    }
+
+    /**
+     * @param nanos A latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        counts[bucketOf(nanos)]++;
+        total++;
+    }
+
+    /**
+     * @param nanos A latency in nanoseconds.
+     * @return The bucket the latency falls into.
+     */
+    public static int bucketOf(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /**
+     * @param bucket The index of the bucket.
+     * @return The smallest latency in nanoseconds that does not fall into the bucket anymore.
+     */
+    public static long upperBound(int bucket) {
+        return bucket >= NUM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @return A copy of all bucket counts.
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * An estimate of a percentile. The result is the upper bound of the bucket the percentile falls into,
+     * so it is at most twice the exact value.
+     *
+     * @param fraction The percentile as a fraction between 0 and 1, e.g. 0.99.
+     * @return The estimated latency in nanoseconds, 0 if nothing was recorded.
+     */
+    public long percentile(double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.max(0, Math.min(1, fraction)) * total);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Remove all recorded latencies.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        total = 0;
+    }
+}
@@ -10,14 +10,17 @@ package de.frederickerber.maskcommons;
 public class LowPassFilter extends Filter {
 
     private float alpha;
-    private float[] prevReading;
+    //previous output per channel, allocated once the number of channels is known
+    private float[] state;
+    private boolean primed;
     private boolean init = false;
 
     /**
      * Initialize this filter with the desired smoothing factor, alpha. 0 <= alpha <= 1
-     * For choosing alpha, refer to the wikipedia article.
+     * For choosing alpha, refer to the wikipedia article. Any previous state is discarded.
      *
-     * @param initParams A float array containing the smoothing factor at index 0;
+     * @param initParams A float array containing the smoothing factor at index 0
+     *                   and optionally the number of channels at index 1, so the state is allocated right away.
      * @see <a href="https://en.wikipedia.org/wiki/Low-pass_filter#Algorithmic_implementation">Wikipedia article</a>
      */
     @Override
@@ -26,32 +29,88 @@ public class LowPassFilter extends Filter {
             throw new IllegalArgumentException("provide alpha");
         }
         alpha = initParams[0];
+        state = initParams.length > 1 ? new float[(int) initParams[1]] : null;
+        primed = false;
         init = true;
     }
 
     /**
-     * @param data A new n-dimensional sensor reading. You may not change dimensionality after the first call.
-     * @return A float array of length n representing the n-dimensional filtered input.
-     * @see <a href="https://developer.android.com/reference/android/hardware/SensorEvent.html#values">Android documentation</a>
+     * {@inheritDoc}
+     * The first reading is passed through unchanged.
      */
     @Override
-    public float[] apply(float... data) {
+    public void apply(float[] in, int inOff, float[] out, int outOff, int channels) {
+        applyBlock(in, inOff, out, outOff, channels, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The first reading is passed through unchanged.
+     */
+    @Override
+    public void applyBlock(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
         if (!init) {
             throw new IllegalStateException("initialize the filter first");
         }
-        if (data == null) {
-            throw new IllegalArgumentException("argument may not be null");
-        }
-        if (prevReading != null && prevReading.length != data.length) {
+        checkBounds(in, inOff, out, outOff, channels, frames);
+        if (state == null) {
+            state = new float[channels];
+        } else if (state.length != channels) {
             throw new IllegalArgumentException("data dimension may not change");
         }
-        if (prevReading == null) {
-            prevReading = data;
-            return prevReading;
+        if (frames == 0) {
+            return;
+        }
+        if (!primed) {
+            System.arraycopy(in, inOff, state, 0, channels);
+            System.arraycopy(in, inOff, out, outOff, channels);
+            primed = true;
+            inOff += channels;
+            outOff += channels;
+            frames--;
+        }
+        if (channels == 3) {
+            filter3(in, inOff, out, outOff, frames);
+        } else {
+            filter(in, inOff, out, outOff, channels, frames);
         }
-        for (int i = 0; i < data.length; i++) {
-            prevReading[i] = prevReading[i] + alpha * (data[i] - prevReading[i]);
+    }
+
+    private void filter(float[] in, int inOff, float[] out, int outOff, int channels, int frames) {
+        float a = alpha;
+        float[] s = state;
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + f * channels;
+            int o = outOff + f * channels;
+            for (int c = 0; c < channels; c++) {
+                float v = s[c] + a * (in[i + c] - s[c]);
+                s[c] = v;
+                out[o + c] = v;
+            }
+        }
+    }
+
+    /**
+     * {@link #filter(float[], int, float[], int, int, int)} for the common case of three axes.
+     * The state stays in registers and the channels form three independent dependency chains.
+     */
+    private void filter3(float[] in, int inOff, float[] out, int outOff, int frames) {
+        float a = alpha;
+        float s0 = state[0];
+        float s1 = state[1];
+        float s2 = state[2];
+        for (int f = 0; f < frames; f++) {
+            int i = inOff + 3 * f;
+            int o = outOff + 3 * f;
+            s0 += a * (in[i] - s0);
+            s1 += a * (in[i + 1] - s1);
+            s2 += a * (in[i + 2] - s2);
+            out[o] = s0;
+            out[o + 1] = s1;
+            out[o + 2] = s2;
         }
-        return prevReading;
+        state[0] = s0;
+        state[1] = s1;
+        state[2] = s2;
     }
 }
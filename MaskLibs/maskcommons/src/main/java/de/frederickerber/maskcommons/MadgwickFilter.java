@@ -0,0 +1,317 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Orientation from gyroscope, accelerometer and optionally magnetic field readings, using Madgwick's gradient descent
+ * filter (S. Madgwick, "An efficient orientation filter for inertial and inertial/magnetic sensor arrays", 2010).
+ * <p>
+ * Each input reading is a frame of the gyroscope in rad/s, the accelerometer and, with 9 channels, the magnetic field,
+ * e.g. from a {@link StreamJoin} with the gyroscope as reference. Without the magnetic field, the heading drifts.
+ * The orientation starts from the first frame's accelerometer and magnetic field, and again after a gap of more than
+ * {@link #MAX_GAP_NANOS}.
+ * <p>
+ * Every input reading produces a derived reading like the values of {@link SensorType#ROTATION_VECTOR}:
+ * {@code x, y, z, w} of the unit quaternion rotating the device frame into the world frame, with x pointing east,
+ * y north and z up. {@code w} is never negative. Does not allocate after construction.
+ */
+public class MadgwickFilter extends StreamOperator {
+
+    /**
+     * The gain suggested by Madgwick for typical MEMS gyroscopes.
+     */
+    public static final float DEFAULT_BETA = 0.1f;
+    public static final long MAX_GAP_NANOS = 500000000L;
+    private static final double HALF_SQRT2 = Math.sqrt(0.5);
+
+    private final double beta;
+    //the orientation in Madgwick's frame, x north, y west and z up
+    private double q0 = 1;
+    private double q1;
+    private double q2;
+    private double q3;
+    private boolean started;
+    private long lastTimestamp;
+
+    private final float[] output = new float[4];
+    private long outputTimestamp;
+
+    public MadgwickFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * @param beta The gain of the correction from accelerometer and magnetic field. Larger values follow them faster
+     *             but let more of their noise through.
+     */
+    public MadgwickFilter(float beta) {
+        if (!(beta >= 0)) {
+            throw new IllegalArgumentException("beta must not be negative: " + beta);
+        }
+        this.beta = beta;
+    }
+
+    /**
+     * @param channels 6 for gyroscope and accelerometer, 9 with the magnetic field.
+     */
+    @Override
+    public boolean offer(long timestamp, float[] in, int inOff, int channels) {
+        checkBounds(in, inOff, channels);
+        if (channels != 6 && channels != 9) {
+            throw new IllegalArgumentException("expected 6 or 9 channels, got " + channels);
+        }
+        double ax = in[inOff + 3];
+        double ay = in[inOff + 4];
+        double az = in[inOff + 5];
+        double mx = 0;
+        double my = 0;
+        double mz = 0;
+        if (channels == 9) {
+            mx = in[inOff + 6];
+            my = in[inOff + 7];
+            mz = in[inOff + 8];
+        }
+        long dt = timestamp - lastTimestamp;
+        if (!started || dt <= 0 || dt > MAX_GAP_NANOS) {
+            started = initialize(ax, ay, az, mx, my, mz);
+        } else if (mx == 0 && my == 0 && mz == 0) {
+            updateImu(in[inOff], in[inOff + 1], in[inOff + 2], ax, ay, az, dt * 1e-9);
+        } else {
+            update(in[inOff], in[inOff + 1], in[inOff + 2], ax, ay, az, mx, my, mz, dt * 1e-9);
+        }
+        lastTimestamp = timestamp;
+        writeOutput();
+        outputTimestamp = timestamp;
+        return true;
+    }
+
+    /**
+     * Set the orientation from gravity and magnetic field alone.
+     *
+     * @return {@code false} if there is no gravity to go by.
+     */
+    private boolean initialize(double ax, double ay, double az, double mx, double my, double mz) {
+        double an = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (an == 0) {
+            return false;
+        }
+        ax /= an;
+        ay /= an;
+        az /= an;
+        //east is the magnetic field crossed with up, see SensorManager.getRotationMatrix()
+        double ex = my * az - mz * ay;
+        double ey = mz * ax - mx * az;
+        double ez = mx * ay - my * ax;
+        double en = Math.sqrt(ex * ex + ey * ey + ez * ez);
+        if (en < 1e-6) {
+            //no usable magnetic field, take the more horizontal of the device's x and y axes as east
+            if (Math.abs(ax) <= Math.abs(ay)) {
+                ex = 1 - ax * ax;
+                ey = -ax * ay;
+                ez = -ax * az;
+            } else {
+                ex = -ay * ax;
+                ey = 1 - ay * ay;
+                ez = -ay * az;
+            }
+            en = Math.sqrt(ex * ex + ey * ey + ez * ez);
+        }
+        ex /= en;
+        ey /= en;
+        ez /= en;
+        //north = up x east, west = -east
+        double nx = ay * ez - az * ey;
+        double ny = az * ex - ax * ez;
+        double nz = ax * ey - ay * ex;
+        //rows of the rotation from the device into Madgwick's frame: north, west, up
+        setFromMatrix(nx, ny, nz, -ex, -ey, -ez, ax, ay, az);
+        return true;
+    }
+
+    private void setFromMatrix(double r00, double r01, double r02, double r10, double r11, double r12,
+                               double r20, double r21, double r22) {
+        double trace = r00 + r11 + r22;
+        if (trace > 0) {
+            double s = 0.5 / Math.sqrt(trace + 1);
+            q0 = 0.25 / s;
+            q1 = (r21 - r12) * s;
+            q2 = (r02 - r20) * s;
+            q3 = (r10 - r01) * s;
+        } else if (r00 > r11 && r00 > r22) {
+            double s = 2 * Math.sqrt(1 + r00 - r11 - r22);
+            q0 = (r21 - r12) / s;
+            q1 = 0.25 * s;
+            q2 = (r01 + r10) / s;
+            q3 = (r02 + r20) / s;
+        } else if (r11 > r22) {
+            double s = 2 * Math.sqrt(1 + r11 - r00 - r22);
+            q0 = (r02 - r20) / s;
+            q1 = (r01 + r10) / s;
+            q2 = 0.25 * s;
+            q3 = (r12 + r21) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + r22 - r00 - r11);
+            q0 = (r10 - r01) / s;
+            q1 = (r02 + r20) / s;
+            q2 = (r12 + r21) / s;
+            q3 = 0.25 * s;
+        }
+        normalize();
+    }
+
+    private void update(double gx, double gy, double gz, double ax, double ay, double az,
+                        double mx, double my, double mz, double dt) {
+        double qDot1 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot2 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot3 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot4 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+        double an = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (an > 0) {
+            ax /= an;
+            ay /= an;
+            az /= an;
+            double mn = Math.sqrt(mx * mx + my * my + mz * mz);
+            mx /= mn;
+            my /= mn;
+            mz /= mn;
+            double _2q0mx = 2 * q0 * mx;
+            double _2q0my = 2 * q0 * my;
+            double _2q0mz = 2 * q0 * mz;
+            double _2q1mx = 2 * q1 * mx;
+            double _2q0 = 2 * q0;
+            double _2q1 = 2 * q1;
+            double _2q2 = 2 * q2;
+            double _2q3 = 2 * q3;
+            double _2q0q2 = 2 * q0 * q2;
+            double _2q2q3 = 2 * q2 * q3;
+            double q0q0 = q0 * q0;
+            double q0q1 = q0 * q1;
+            double q0q2 = q0 * q2;
+            double q0q3 = q0 * q3;
+            double q1q1 = q1 * q1;
+            double q1q2 = q1 * q2;
+            double q1q3 = q1 * q3;
+            double q2q2 = q2 * q2;
+            double q2q3 = q2 * q3;
+            double q3q3 = q3 * q3;
+            //the direction of the magnetic field in the earth frame, with its horizontal part along north
+            double hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+            double hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+            double _2bx = Math.sqrt(hx * hx + hy * hy);
+            double _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+            double _4bx = 2 * _2bx;
+            double _4bz = 2 * _2bz;
+            //the errors of the predicted gravity and magnetic field
+            double fgx = 2 * q1q3 - _2q0q2 - ax;
+            double fgy = 2 * q0q1 + _2q2q3 - ay;
+            double fgz = 1 - 2 * q1q1 - 2 * q2q2 - az;
+            double fmx = _2bx * (0.5 - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+            double fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+            double fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5 - q1q1 - q2q2) - mz;
+            double s0 = -_2q2 * fgx + _2q1 * fgy - _2bz * q2 * fmx + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+            double s1 = _2q3 * fgx + _2q0 * fgy - 2 * _2q1 * fgz + _2bz * q3 * fmx + (_2bx * q2 + _2bz * q0) * fmy
+                    + (_2bx * q3 - _4bz * q1) * fmz;
+            double s2 = -_2q0 * fgx + _2q3 * fgy - 2 * _2q2 * fgz + (-_4bx * q2 - _2bz * q0) * fmx
+                    + (_2bx * q1 + _2bz * q3) * fmy + (_2bx * q0 - _4bz * q2) * fmz;
+            double s3 = _2q1 * fgx + _2q2 * fgy + (-_4bx * q3 + _2bz * q1) * fmx + (-_2bx * q0 + _2bz * q2) * fmy
+                    + _2bx * q1 * fmz;
+            double sn = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if (sn > 0) {
+                qDot1 -= beta * s0 / sn;
+                qDot2 -= beta * s1 / sn;
+                qDot3 -= beta * s2 / sn;
+                qDot4 -= beta * s3 / sn;
+            }
+        }
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    private void updateImu(double gx, double gy, double gz, double ax, double ay, double az, double dt) {
+        double qDot1 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot2 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot3 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot4 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+        double an = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (an > 0) {
+            ax /= an;
+            ay /= an;
+            az /= an;
+            double _2q0 = 2 * q0;
+            double _2q1 = 2 * q1;
+            double _2q2 = 2 * q2;
+            double _2q3 = 2 * q3;
+            double _4q0 = 4 * q0;
+            double _4q1 = 4 * q1;
+            double _4q2 = 4 * q2;
+            double _8q1 = 8 * q1;
+            double _8q2 = 8 * q2;
+            double q0q0 = q0 * q0;
+            double q1q1 = q1 * q1;
+            double q2q2 = q2 * q2;
+            double q3q3 = q3 * q3;
+            double s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            double s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+            double s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+            double s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+            double sn = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if (sn > 0) {
+                qDot1 -= beta * s0 / sn;
+                qDot2 -= beta * s1 / sn;
+                qDot3 -= beta * s2 / sn;
+                qDot4 -= beta * s3 / sn;
+            }
+        }
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    private void integrate(double qDot1, double qDot2, double qDot3, double qDot4, double dt) {
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+        normalize();
+    }
+
+    private void normalize() {
+        double n = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 /= n;
+        q1 /= n;
+        q2 /= n;
+        q3 /= n;
+    }
+
+    /**
+     * Turn Madgwick's frame into Android's by a quarter turn about z, so north moves from x to y.
+     */
+    private void writeOutput() {
+        double w = HALF_SQRT2 * (q0 - q3);
+        double x = HALF_SQRT2 * (q1 - q2);
+        double y = HALF_SQRT2 * (q2 + q1);
+        double z = HALF_SQRT2 * (q3 + q0);
+        double sign = w < 0 ? -1 : 1;
+        output[0] = (float) (sign * x);
+        output[1] = (float) (sign * y);
+        output[2] = (float) (sign * z);
+        output[3] = (float) (sign * w);
+    }
+
+    /**
+     * @return The orientation as described for the class. Reused for the next reading.
+     */
+    @Override
+    public float[] getOutput() {
+        return output;
+    }
+
+    @Override
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    @Override
+    public void reset() {
+        started = false;
+        q0 = 1;
+        q1 = 0;
+        q2 = 0;
+        q3 = 0;
+    }
+}
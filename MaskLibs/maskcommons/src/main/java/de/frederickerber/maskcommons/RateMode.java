@@ -0,0 +1,15 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * These integers select how a sensor service reduces a sensor's rate to the frequency a client asked for.
+ */
+public final class RateMode {
+    /**
+     * Send the reading closest to each point of the requested time grid.
+     */
+    public static final int NEAREST = 0;
+    /**
+     * Send the average of all readings within each interval of the requested time grid.
+     */
+    public static final int AVERAGE = 1;
+}
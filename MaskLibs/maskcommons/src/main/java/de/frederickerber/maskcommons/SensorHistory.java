@@ -0,0 +1,337 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * The recent readings of one sensor of one device, e.g. to look at "the last five seconds of the accelerometer".
+ * <p>
+ * Readings are kept in a ring of {@code capacity} slots: their timestamps in a {@code long[]} and their values
+ * interleaved in a {@code float[]}, {@code channels} per reading. Both are allocated up front, so the memory of a
+ * history is fixed (see {@link #getMemoryBytes()}) and adding a reading never allocates. Once the ring is full, every
+ * reading replaces the oldest one.
+ * <p>
+ * Windows of readings are found by binary search on the timestamps, which therefore must not decrease. Readings older
+ * than the latest one are dropped. A window can be copied into the caller's arrays with
+ * {@link #copyWindow(long, long, long[], float[], int)} or looked at in place through a {@link Window}.
+ * <p>
+ * Not thread safe.
+ */
+public class SensorHistory {
+
+    private final int capacity;
+    private final int channels;
+    private final long[] timestamps;
+    private final float[] values;
+    //slot of the oldest reading
+    private int head;
+    private int size;
+    private long dropped;
+
+    /**
+     * A view of the readings of a window, backed by the arrays of a {@link SensorHistory}. It is only valid until the
+     * next reading is added to the history. Reuse it for the next query to avoid allocations.
+     * <p>
+     * The readings may wrap around the end of the ring, so they lie in up to two segments of the backing arrays:
+     * {@link #getFirstLength()} readings from slot {@link #getFirstOffset()}, then the rest from slot 0.
+     */
+    public static class Window {
+        private long[] timestamps;
+        private float[] values;
+        private int channels;
+        private int capacity;
+        private int offset;
+        private int size;
+
+        void set(SensorHistory h, int offset, int size) {
+            timestamps = h.timestamps;
+            values = h.values;
+            channels = h.channels;
+            capacity = h.capacity;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return The number of readings in the window.
+         */
+        public int size() {
+            return size;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @param i The index of the reading in the window, 0 for the oldest.
+         * @return The timestamp of the reading in nanoseconds.
+         */
+        public long getTimestamp(int i) {
+            return timestamps[slot(i)];
+        }
+
+        /**
+         * @param i       The index of the reading in the window, 0 for the oldest.
+         * @param channel The index of the value.
+         * @return The value of the reading.
+         */
+        public float getValue(int i, int channel) {
+            return values[slot(i) * channels + channel];
+        }
+
+        private int slot(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("reading " + i + " of a window of " + size);
+            }
+            int s = offset + i;
+            return s < capacity ? s : s - capacity;
+        }
+
+        /**
+         * @return The timestamps of the history, see the class description. Do not modify.
+         */
+        public long[] getTimestamps() {
+            return timestamps;
+        }
+
+        /**
+         * @return The interleaved values of the history, {@link #getChannels()} per slot. Do not modify.
+         */
+        public float[] getValues() {
+            return values;
+        }
+
+        /**
+         * @return The slot of the oldest reading of the window.
+         */
+        public int getFirstOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The number of readings from {@link #getFirstOffset()} up to the end of the ring or the window.
+         * The remaining readings start at slot 0.
+         */
+        public int getFirstLength() {
+            return Math.min(size, capacity - offset);
+        }
+    }
+
+    /**
+     * @param capacity The number of readings kept, at least 1.
+     * @param channels The number of values kept per reading, at least 1. Readings with more values are truncated,
+     *                 missing values are stored as {@code NaN}.
+     */
+    public SensorHistory(int capacity, int channels) {
+        if (capacity < 1 || channels < 1) {
+            throw new IllegalArgumentException("a history needs a capacity and at least one channel");
+        }
+        if ((long) capacity * channels > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("history too large: " + capacity + " readings of " + channels + " values");
+        }
+        this.capacity = capacity;
+        this.channels = channels;
+        timestamps = new long[capacity];
+        values = new float[capacity * channels];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return The number of readings in the history.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of readings dropped because they were older than the latest reading.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The bytes held by the arrays of the history, excluding object headers. Fixed for its lifetime.
+     */
+    public long getMemoryBytes() {
+        return 8L * capacity + 4L * values.length;
+    }
+
+    /**
+     * Add a reading, replacing the oldest one if the history is full.
+     *
+     * @param timestamp The timestamp of the reading in nanoseconds, not older than the latest reading.
+     * @param in        The array holding the values, may be {@code null} for readings without values.
+     * @param inOff     The index of the first value.
+     * @param count     The number of values.
+     * @return {@code false} if the reading was dropped because it is out of order.
+     */
+    public boolean add(long timestamp, float[] in, int inOff, int count) {
+        int s = append(timestamp);
+        if (s < 0) {
+            return false;
+        }
+        int n = Math.min(count, channels);
+        int off = s * channels;
+        if (n > 0) {
+            System.arraycopy(in, inOff, values, off, n);
+        }
+        for (int c = Math.max(n, 0); c < channels; c++) {
+            values[off + c] = Float.NaN;
+        }
+        return true;
+    }
+
+    /**
+     * Add a reading with a single value.
+     *
+     * @see #add(long, float[], int, int)
+     */
+    public boolean add(long timestamp, float value) {
+        int s = append(timestamp);
+        if (s < 0) {
+            return false;
+        }
+        int off = s * channels;
+        values[off] = value;
+        for (int c = 1; c < channels; c++) {
+            values[off + c] = Float.NaN;
+        }
+        return true;
+    }
+
+    /**
+     * Take the slot of a new reading and store its timestamp.
+     *
+     * @return The slot, -1 if the reading is out of order.
+     */
+    private int append(long timestamp) {
+        if (size > 0 && timestamp < timestamps[slot(size - 1)]) {
+            dropped++;
+            return -1;
+        }
+        int s;
+        if (size == capacity) {
+            s = head;
+            head = head + 1 == capacity ? 0 : head + 1;
+        } else {
+            s = slot(size++);
+        }
+        timestamps[s] = timestamp;
+        return s;
+    }
+
+    /**
+     * @return The slot of the i-th oldest reading.
+     */
+    private int slot(int i) {
+        int s = head + i;
+        return s < capacity ? s : s - capacity;
+    }
+
+    /**
+     * @return The timestamp of the oldest reading. Check {@link #size()} first.
+     */
+    public long getOldestTimestamp() {
+        return timestamps[head];
+    }
+
+    /**
+     * @return The timestamp of the latest reading. Check {@link #size()} first.
+     */
+    public long getLatestTimestamp() {
+        return timestamps[slot(size - 1)];
+    }
+
+    /**
+     * @return The index of the oldest reading with a timestamp of at least {@code t}, 0 for the oldest reading of the
+     * history, {@link #size()} if there is none.
+     */
+    private int lowerBound(long t) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[slot(mid)] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param from The start of the window in nanoseconds, inclusive.
+     * @param to   The end of the window in nanoseconds, exclusive.
+     * @return The number of readings in the window.
+     */
+    public int count(long from, long to) {
+        if (to <= from) {
+            return 0;
+        }
+        return lowerBound(to) - lowerBound(from);
+    }
+
+    /**
+     * Look at the readings with timestamps from {@code from} up to, but excluding, {@code to} without copying them.
+     *
+     * @param window The view to fill. It is only valid until the next reading is added.
+     * @return The number of readings in the window.
+     */
+    public int window(long from, long to, Window window) {
+        int first = lowerBound(from);
+        int end = to <= from ? first : lowerBound(to);
+        window.set(this, slot(first), end - first);
+        return end - first;
+    }
+
+    /**
+     * Copy the readings with timestamps from {@code from} up to, but excluding, {@code to}. If the arrays are too small,
+     * the latest readings of the window are copied.
+     *
+     * @param from          The start of the window in nanoseconds, inclusive.
+     * @param to            The end of the window in nanoseconds, exclusive.
+     * @param timestampsOut The destination of the timestamps, may be {@code null}.
+     * @param valuesOut     The destination of the values, {@link #getChannels()} per reading, may be {@code null}.
+     * @param maxReadings   The maximum number of readings to copy, at most the room in the arrays.
+     * @return The number of readings copied, oldest first.
+     */
+    public int copyWindow(long from, long to, long[] timestampsOut, float[] valuesOut, int maxReadings) {
+        if ((timestampsOut != null && maxReadings > timestampsOut.length)
+                || (valuesOut != null && (long) maxReadings * channels > valuesOut.length)) {
+            throw new IndexOutOfBoundsException("no room for " + maxReadings + " readings");
+        }
+        int end = lowerBound(to);
+        int first = to <= from ? end : lowerBound(from);
+        first = Math.max(first, end - Math.max(maxReadings, 0));
+        int n = end - first;
+        int copied = 0;
+        //at most two segments, the second one starting at slot 0
+        while (copied < n) {
+            int s = slot(first + copied);
+            int len = Math.min(n - copied, capacity - s);
+            if (timestampsOut != null) {
+                System.arraycopy(timestamps, s, timestampsOut, copied, len);
+            }
+            if (valuesOut != null) {
+                System.arraycopy(values, s * channels, valuesOut, copied * channels, len * channels);
+            }
+            copied += len;
+        }
+        return n;
+    }
+
+    /**
+     * Drop all readings. The arrays are kept.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,403 @@
+package de.frederickerber.maskcommons;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single sensor reading with a fixed binary layout.
+ * <p>
+ * The encoded form starts with a header of {@link #HEADER_SIZE} bytes: the {@link SensorType} (int), the device index (int),
+ * the timestamp in nanoseconds (long) and the number of values (int). The values follow as raw floats.
+ * All numbers are big-endian, like the other byte array conversions in {@link SensorType}.
+ * <p>
+ * Samples of subscriptions with a quantized {@link ValueEncoding} carry 16 bits per value instead. The mode of the
+ * encoding is stored in the top byte of the number of values. Scale and offset are not sent, the receiver knows them
+ * from its subscription.
+ * <p>
+ * A sample can be reused for many readings. Its value buffer only grows, so decoding readings of the same
+ * sensor into one instance does not allocate.
+ */
+public final class SensorSample implements Parcelable {
+
+    /**
+     * The size of the header of an encoded sample in bytes.
+     */
+    public static final int HEADER_SIZE = 20;
+
+    private static final float[] NO_VALUES = new float[0];
+
+    private int sensorType;
+    private int deviceIndex;
+    private long timestamp;
+    private float[] values = NO_VALUES;
+    private int valueCount;
+
+    public SensorSample() {
+    }
+
+    /**
+     * @param sensorType  The {@link SensorType} of the reading.
+     * @param deviceIndex The index of the device.
+     * @param timestamp   The time the reading was taken, in nanoseconds.
+     * @param values      The measured values, may be {@code null} for readings without values.
+     */
+    public SensorSample(int sensorType, int deviceIndex, long timestamp, float[] values) {
+        set(sensorType, deviceIndex, timestamp, values);
+    }
+
+    /**
+     * Overwrite this sample with a new reading. The values are copied.
+     *
+     * @param sensorType  The {@link SensorType} of the reading.
+     * @param deviceIndex The index of the device.
+     * @param timestamp   The time the reading was taken, in nanoseconds.
+     * @param values      The measured values, may be {@code null} for readings without values.
+     */
+    public void set(int sensorType, int deviceIndex, long timestamp, float[] values) {
+        set(sensorType, deviceIndex, timestamp, values, values == null ? 0 : values.length);
+    }
+
+    void set(int sensorType, int deviceIndex, long timestamp, float[] values, int n) {
+        this.sensorType = sensorType;
+        this.deviceIndex = deviceIndex;
+        this.timestamp = timestamp;
+        ensureCapacity(n);
+        if (n > 0) {
+            System.arraycopy(values, 0, this.values, 0, n);
+        }
+        valueCount = n;
+    }
+
+    public int getSensorType() {
+        return sensorType;
+    }
+
+    public int getDeviceIndex() {
+        return deviceIndex;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @param i The index of the value, less than {@link #getValueCount()}.
+     * @return The value at index {@code i}.
+     */
+    public float getValue(int i) {
+        if (i < 0 || i >= valueCount) {
+            throw new IndexOutOfBoundsException("index " + i + " with " + valueCount + " values");
+        }
+        return values[i];
+    }
+
+    /**
+     * @return The internal value buffer, only the first {@link #getValueCount()} entries are valid.
+     */
+    float[] values() {
+        return values;
+    }
+
+    /**
+     * @return A new array with the values of this sample.
+     */
+    public float[] copyValues() {
+        float[] res = new float[valueCount];
+        System.arraycopy(values, 0, res, 0, valueCount);
+        return res;
+    }
+
+    /**
+     * @param valueCount The number of values of a sample.
+     * @return The size of an encoded sample with that many values, in bytes.
+     */
+    public static int encodedSize(int valueCount) {
+        return HEADER_SIZE + 4 * valueCount;
+    }
+
+    /**
+     * Encode a reading without creating a sample first.
+     *
+     * @param sensorType  The {@link SensorType} of the reading.
+     * @param deviceIndex The index of the device.
+     * @param timestamp   The time the reading was taken, in nanoseconds.
+     * @param values      The measured values, may be {@code null} for readings without values.
+     * @return The encoded reading.
+     */
+    public static byte[] encode(int sensorType, int deviceIndex, long timestamp, float[] values) {
+        int n = values == null ? 0 : values.length;
+        byte[] res = new byte[encodedSize(n)];
+        int off = writeHeader(res, 0, sensorType, deviceIndex, timestamp, n);
+        for (int i = 0; i < n; i++) {
+            off = writeInt(res, off, Float.floatToRawIntBits(values[i]));
+        }
+        return res;
+    }
+
+    /**
+     * @param valueCount The number of values of a sample.
+     * @param encoding   The encoding of the values, {@code null} for floats.
+     * @return The size of an encoded sample with that many values, in bytes.
+     */
+    public static int encodedSize(int valueCount, ValueEncoding encoding) {
+        return HEADER_SIZE + (encoding == null ? 4 : encoding.getBytesPerValue()) * valueCount;
+    }
+
+    /**
+     * Encode a reading with quantized values.
+     *
+     * @param encoding The encoding of the values, {@code null} for floats.
+     * @see #encode(int, int, long, float[])
+     */
+    public static byte[] encode(int sensorType, int deviceIndex, long timestamp, float[] values, ValueEncoding encoding) {
+        if (encoding == null || !encoding.isQuantized()) {
+            return encode(sensorType, deviceIndex, timestamp, values);
+        }
+        int n = values == null ? 0 : values.length;
+        byte[] res = new byte[encodedSize(n, encoding)];
+        int off = writeHeader(res, 0, sensorType, deviceIndex, timestamp, n | (encoding.getMode() << 24));
+        for (int i = 0; i < n; i++) {
+            short q = encoding.encode(values[i]);
+            res[off++] = (byte) (q >>> 8);
+            res[off++] = (byte) q;
+        }
+        return res;
+    }
+
+    /**
+     * Read the sensor type of an encoded sample without decoding it, e.g. to find the encoding of its values.
+     *
+     * @return The sensor type, or -1 if the data is too short.
+     */
+    public static int peekSensorType(byte[] src) {
+        return src == null || src.length < HEADER_SIZE ? -1 : readInt(src, 0);
+    }
+
+    /**
+     * @return The device index of an encoded sample, or -1 if the data is too short.
+     * @see #peekSensorType(byte[])
+     */
+    public static int peekDeviceIndex(byte[] src) {
+        return src == null || src.length < HEADER_SIZE ? -1 : readInt(src, 4);
+    }
+
+    /**
+     * @return This sample in its binary form.
+     */
+    public byte[] toByteArray() {
+        byte[] res = new byte[encodedSize(valueCount)];
+        writeTo(res, 0);
+        return res;
+    }
+
+    /**
+     * Write this sample to a buffer.
+     *
+     * @param dst    The buffer, with at least {@link #encodedSize(int)} bytes after {@code offset}.
+     * @param offset The position of the first byte.
+     * @return The position after the last byte written.
+     */
+    public int writeTo(byte[] dst, int offset) {
+        int off = writeHeader(dst, offset, sensorType, deviceIndex, timestamp, valueCount);
+        for (int i = 0; i < valueCount; i++) {
+            off = writeInt(dst, off, Float.floatToRawIntBits(values[i]));
+        }
+        return off;
+    }
+
+    /**
+     * Overwrite this sample with an encoded reading.
+     *
+     * @param src    The buffer holding the encoded reading.
+     * @param offset The position of the first byte.
+     * @param length The number of bytes available.
+     * @return {@code true} if the reading was decoded, {@code false} if the data is malformed. The sample is unchanged in that case.
+     */
+    public boolean readFrom(byte[] src, int offset, int length) {
+        return readFrom(src, offset, length, null);
+    }
+
+    /**
+     * Overwrite this sample with an encoded reading whose values may be quantized.
+     *
+     * @param encoding The encoding the values were sent with. May be {@code null} for floats and half-precision floats.
+     * @return {@code true} if the reading was decoded, {@code false} if the data is malformed or the encoding does not
+     * match. The sample is unchanged in that case.
+     * @see #readFrom(byte[], int, int)
+     */
+    public boolean readFrom(byte[] src, int offset, int length, ValueEncoding encoding) {
+        if (src == null || offset < 0 || length < HEADER_SIZE || offset + length > src.length) {
+            return false;
+        }
+        int n = readInt(src, offset + 16);
+        int mode = n >>> 24;
+        n &= 0xffffff;
+        if (mode != ValueEncoding.FLOAT32) {
+            if (mode == ValueEncoding.FLOAT16 && encoding == null) {
+                encoding = ValueEncoding.HALF;
+            }
+            if (encoding == null || encoding.getMode() != mode || n > (length - HEADER_SIZE) / 2) {
+                return false;
+            }
+            readHeader(src, offset);
+            ensureCapacity(n);
+            int off = offset + HEADER_SIZE;
+            for (int i = 0; i < n; i++, off += 2) {
+                values[i] = encoding.decode((short) ((src[off] << 8) | (src[off + 1] & 0xFF)));
+            }
+            valueCount = n;
+            return true;
+        }
+        if (n > (length - HEADER_SIZE) / 4) {
+            return false;
+        }
+        readHeader(src, offset);
+        ensureCapacity(n);
+        int off = offset + HEADER_SIZE;
+        for (int i = 0; i < n; i++, off += 4) {
+            values[i] = Float.intBitsToFloat(readInt(src, off));
+        }
+        valueCount = n;
+        return true;
+    }
+
+    /**
+     * Write this sample to a buffer at an absolute position, without changing the buffer's position.
+     * The buffer should use big-endian byte order to match {@link #toByteArray()}.
+     *
+     * @param dst    The buffer, with at least {@link #encodedSize(int)} bytes after {@code offset}.
+     * @param offset The position of the first byte.
+     * @return The position after the last byte written.
+     */
+    public int writeTo(ByteBuffer dst, int offset) {
+        return write(dst, offset, sensorType, deviceIndex, timestamp, values, valueCount);
+    }
+
+    /**
+     * Write a reading to a buffer without creating a sample first.
+     *
+     * @see #writeTo(ByteBuffer, int)
+     */
+    public static int write(ByteBuffer dst, int offset, int sensorType, int deviceIndex, long timestamp, float[] values, int valueCount) {
+        dst.putInt(offset, sensorType);
+        dst.putInt(offset + 4, deviceIndex);
+        dst.putLong(offset + 8, timestamp);
+        dst.putInt(offset + 16, valueCount);
+        int off = offset + HEADER_SIZE;
+        for (int i = 0; i < valueCount; i++, off += 4) {
+            dst.putFloat(off, values[i]);
+        }
+        return off;
+    }
+
+    /**
+     * Overwrite this sample with an encoded reading read from absolute positions of a buffer.
+     *
+     * @param src    The buffer holding the encoded reading.
+     * @param offset The position of the first byte.
+     * @param length The number of bytes available.
+     * @return {@code true} if the reading was decoded, {@code false} if the data is malformed. The sample is unchanged in that case.
+     */
+    public boolean readFrom(ByteBuffer src, int offset, int length) {
+        if (src == null || offset < 0 || length < HEADER_SIZE || offset + length > src.limit()) {
+            return false;
+        }
+        int n = src.getInt(offset + 16);
+        if (n < 0 || n > (length - HEADER_SIZE) / 4) {
+            return false;
+        }
+        sensorType = src.getInt(offset);
+        deviceIndex = src.getInt(offset + 4);
+        timestamp = src.getLong(offset + 8);
+        ensureCapacity(n);
+        int off = offset + HEADER_SIZE;
+        for (int i = 0; i < n; i++, off += 4) {
+            values[i] = src.getFloat(off);
+        }
+        valueCount = n;
+        return true;
+    }
+
+    /**
+     * @see #readFrom(byte[], int, int)
+     */
+    public boolean readFrom(byte[] src) {
+        return src != null && readFrom(src, 0, src.length);
+    }
+
+    private void readHeader(byte[] src, int offset) {
+        sensorType = readInt(src, offset);
+        deviceIndex = readInt(src, offset + 4);
+        timestamp = ((long) readInt(src, offset + 8) << 32) | (readInt(src, offset + 12) & 0xFFFFFFFFL);
+    }
+
+    private void ensureCapacity(int n) {
+        if (values.length < n) {
+            values = new float[n];
+        }
+    }
+
+    private static int writeHeader(byte[] dst, int off, int sensorType, int deviceIndex, long timestamp, int valueCount) {
+        off = writeInt(dst, off, sensorType);
+        off = writeInt(dst, off, deviceIndex);
+        off = writeInt(dst, off, (int) (timestamp >>> 32));
+        off = writeInt(dst, off, (int) timestamp);
+        return writeInt(dst, off, valueCount);
+    }
+
+    private static int writeInt(byte[] dst, int off, int v) {
+        dst[off] = (byte) (v >>> 24);
+        dst[off + 1] = (byte) (v >>> 16);
+        dst[off + 2] = (byte) (v >>> 8);
+        dst[off + 3] = (byte) v;
+        return off + 4;
+    }
+
+    private static int readInt(byte[] src, int off) {
+        return (src[off] << 24) | ((src[off + 1] & 0xFF) << 16) | ((src[off + 2] & 0xFF) << 8) | (src[off + 3] & 0xFF);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(sensorType);
+        dest.writeInt(deviceIndex);
+        dest.writeLong(timestamp);
+        dest.writeInt(valueCount);
+        for (int i = 0; i < valueCount; i++) {
+            dest.writeFloat(values[i]);
+        }
+    }
+
+    public static final Creator<SensorSample> CREATOR = new Creator<SensorSample>() {
+        @Override
+        public SensorSample createFromParcel(Parcel in) {
+            SensorSample s = new SensorSample();
+            s.sensorType = in.readInt();
+            s.deviceIndex = in.readInt();
+            s.timestamp = in.readLong();
+            int n = in.readInt();
+            s.ensureCapacity(n);
+            for (int i = 0; i < n; i++) {
+                s.values[i] = in.readFloat();
+            }
+            s.valueCount = n;
+            return s;
+        }
+
+        @Override
+        public SensorSample[] newArray(int size) {
+            return new SensorSample[size];
+        }
+    };
+}
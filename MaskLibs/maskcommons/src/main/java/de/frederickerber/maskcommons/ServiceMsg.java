@@ -16,4 +16,12 @@ public final class ServiceMsg {
     public static final int ERROR = 10;
     public static final int ATTEMPT_AUTOMATIC_RECONNECT = 11;
     public static final int DISCONNECT_SERVICE = 12;
+    public static final int SENSOR_DATA_BATCH = 13;
+    public static final int SENSOR_SAMPLE = 14;
+    public static final int OPEN_SHARED_TRANSPORT = 15;
+    public static final int SHARED_TRANSPORT_OPENED = 16;
+    public static final int CLOSE_SHARED_TRANSPORT = 17;
+    public static final int GET_STATS = 18;
+    public static final int STATS = 19;
+    public static final int SET_SUBSCRIPTIONS = 20;
 }
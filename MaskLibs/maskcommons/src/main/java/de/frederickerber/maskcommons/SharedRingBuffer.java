@@ -0,0 +1,273 @@
+package de.frederickerber.maskcommons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A ring buffer of {@link SensorSample}s in a {@link ByteBuffer}, meant for memory shared between a plugin
+ * that writes and a client that reads, e.g. a memory-mapped file.
+ * <p>
+ * The buffer starts with a header of {@link #HEADER_SIZE} bytes: a magic number, the format version, the number
+ * of slots, the size of a slot and the number of samples written so far. Each slot holds a sequence number,
+ * the length of the sample and the sample in the layout of {@link SensorSample}.
+ * <p>
+ * The writer never waits for readers. It marks a slot as being written by setting its sequence number to
+ * {@code 2 * n + 1} for sample {@code n} and to {@code 2 * n + 2} once the sample is complete. A reader copies
+ * the sample and checks the sequence number before and after, so it detects both torn reads and being overrun
+ * by the writer. Samples that were overwritten before they could be read are counted, see {@link #getLostSamples()}.
+ * <p>
+ * There is exactly one writer per buffer. Each reader needs its own instance created with {@link #attach(ByteBuffer)}.
+ * Memory ordering relies on the fences the runtime emits around volatile accesses, since a {@link ByteBuffer}
+ * offers no ordered accesses of its own.
+ */
+public final class SharedRingBuffer {
+
+    /**
+     * The size of the buffer header in bytes.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC = 0x4D41534B; //MASK
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int WRITE_SEQUENCE_OFFSET = 16;
+
+    //sequence number (long) and sample length (int) in front of each sample
+    private static final int SLOT_HEADER_SIZE = 12;
+
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+    private final int slotSize;
+    private final boolean writer;
+
+    //next sample to write or read
+    private long sequence;
+    private long lostSamples;
+
+    //only used for its memory fences
+    private volatile int fence;
+
+    private SharedRingBuffer(ByteBuffer buffer, int slotCount, int slotSize, boolean writer) {
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.writer = writer;
+    }
+
+    /**
+     * @param slotCount The number of samples the buffer can hold.
+     * @param maxValues The maximum number of values per sample.
+     * @return The number of bytes a buffer needs for these dimensions.
+     */
+    public static int requiredCapacity(int slotCount, int maxValues) {
+        return HEADER_SIZE + slotCount * slotSize(maxValues);
+    }
+
+    private static int slotSize(int maxValues) {
+        //keep slots 8 byte aligned for the sequence number
+        return (SLOT_HEADER_SIZE + SensorSample.encodedSize(maxValues) + 7) & ~7;
+    }
+
+    /**
+     * Format a buffer and return the writer for it. Any previous content is discarded.
+     *
+     * @param buffer    The buffer, with at least {@link #requiredCapacity(int, int)} bytes.
+     * @param slotCount The number of samples the buffer can hold, at least 1.
+     * @param maxValues The maximum number of values per sample.
+     * @return The writer of the buffer.
+     */
+    public static SharedRingBuffer create(ByteBuffer buffer, int slotCount, int maxValues) {
+        if (slotCount < 1 || maxValues < 0) {
+            throw new IllegalArgumentException("invalid dimensions: " + slotCount + " slots, " + maxValues + " values");
+        }
+        if (buffer.capacity() < requiredCapacity(slotCount, maxValues)) {
+            throw new IllegalArgumentException("buffer too small: " + buffer.capacity() + " bytes");
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int slotSize = slotSize(maxValues);
+        for (int i = 0; i < slotCount; i++) {
+            buffer.putLong(HEADER_SIZE + i * slotSize, 0L);
+        }
+        buffer.putLong(WRITE_SEQUENCE_OFFSET, 0L);
+        buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+        buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        SharedRingBuffer res = new SharedRingBuffer(buffer, slotCount, slotSize, true);
+        res.fence = 0;
+        //readers check the magic number last
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        res.fence = 0;
+        return res;
+    }
+
+    /**
+     * Attach a reader to a buffer formatted by {@link #create(ByteBuffer, int, int)}.
+     * The reader starts with the oldest sample still in the buffer.
+     *
+     * @param buffer The buffer, may be read-only.
+     * @return The reader.
+     * @throws IllegalArgumentException If the buffer is not formatted.
+     */
+    public static SharedRingBuffer attach(ByteBuffer buffer) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IllegalArgumentException("not a sample ring buffer");
+        }
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IllegalArgumentException("unsupported version " + buffer.getInt(VERSION_OFFSET));
+        }
+        int slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+        int slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+        if (slotCount < 1 || slotSize < SLOT_HEADER_SIZE + SensorSample.HEADER_SIZE
+                || (long) slotCount * slotSize + HEADER_SIZE > buffer.capacity()) {
+            throw new IllegalArgumentException("corrupt header");
+        }
+        SharedRingBuffer res = new SharedRingBuffer(buffer, slotCount, slotSize, false);
+        long written = res.writeSequence();
+        res.sequence = Math.max(0, written - slotCount);
+        return res;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @return The maximum number of values of a sample in this buffer.
+     */
+    public int getMaxValues() {
+        return (slotSize - SLOT_HEADER_SIZE - SensorSample.HEADER_SIZE) / 4;
+    }
+
+    private long writeSequence() {
+        long w = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+        //acquire
+        int f = fence;
+        return w;
+    }
+
+    private int slotOffset(long seq) {
+        return HEADER_SIZE + (int) (seq % slotCount) * slotSize;
+    }
+
+    /**
+     * Append a sample, overwriting the oldest one if the buffer is full. Writer only.
+     *
+     * @param sensorType  The {@link SensorType} of the reading.
+     * @param deviceIndex The index of the device.
+     * @param timestamp   The timestamp of the reading in nanoseconds.
+     * @param values      The values of the reading, may be {@code null}.
+     * @return {@code false} if the sample has more than {@link #getMaxValues()} values and was not written.
+     */
+    public boolean write(int sensorType, int deviceIndex, long timestamp, float[] values) {
+        return write(sensorType, deviceIndex, timestamp, values, values == null ? 0 : values.length);
+    }
+
+    /**
+     * Append a sample. Writer only.
+     *
+     * @see #write(int, int, long, float[])
+     */
+    public boolean write(SensorSample sample) {
+        return write(sample.getSensorType(), sample.getDeviceIndex(), sample.getTimestamp(), sample.values(), sample.getValueCount());
+    }
+
+    private boolean write(int sensorType, int deviceIndex, long timestamp, float[] values, int n) {
+        if (!writer) {
+            throw new IllegalStateException("not the writer of this buffer");
+        }
+        if (n > getMaxValues()) {
+            return false;
+        }
+        long seq = sequence;
+        int off = slotOffset(seq);
+        buffer.putLong(off, 2 * seq + 1);
+        fence = 0;
+        buffer.putInt(off + 8, SensorSample.encodedSize(n));
+        SensorSample.write(buffer, off + SLOT_HEADER_SIZE, sensorType, deviceIndex, timestamp, values, n);
+        fence = 0;
+        buffer.putLong(off, 2 * seq + 2);
+        fence = 0;
+        sequence = seq + 1;
+        buffer.putLong(WRITE_SEQUENCE_OFFSET, sequence);
+        fence = 0;
+        return true;
+    }
+
+    /**
+     * @return The number of samples that can be read right now. Reader only.
+     */
+    public long available() {
+        return Math.min(writeSequence() - sequence, slotCount);
+    }
+
+    /**
+     * Read the next sample. Reader only.
+     * If the writer overwrote samples this reader did not read yet, the reader skips ahead to the oldest sample
+     * still available and adds the skipped samples to {@link #getLostSamples()}.
+     *
+     * @param into The sample to overwrite. Its content is undefined if no sample was read.
+     * @return {@code true} if a sample was read, {@code false} if there is none.
+     */
+    public boolean read(SensorSample into) {
+        if (writer) {
+            throw new IllegalStateException("the writer cannot read");
+        }
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long written = writeSequence();
+            if (sequence >= written) {
+                return false;
+            }
+            if (written - sequence > slotCount) {
+                skipTo(written - slotCount);
+            }
+            int off = slotOffset(sequence);
+            long expected = 2 * sequence + 2;
+            long before = buffer.getLong(off);
+            int f = fence;
+            if (before == expected) {
+                int length = buffer.getInt(off + 8);
+                boolean ok = length <= slotSize - SLOT_HEADER_SIZE && into.readFrom(buffer, off + SLOT_HEADER_SIZE, length);
+                f = fence;
+                long after = buffer.getLong(off);
+                if (ok && after == before) {
+                    sequence++;
+                    return true;
+                }
+            } else if (before < expected - 1) {
+                //the sample is not published yet, cannot happen with a consistent write sequence
+                return false;
+            }
+            //the writer reused the slot while we were reading, skip what it overwrote
+            skipTo(writeSequence() - slotCount + 1);
+        }
+        return false;
+    }
+
+    private void skipTo(long seq) {
+        if (seq > sequence) {
+            lostSamples += seq - sequence;
+            sequence = seq;
+        }
+    }
+
+    /**
+     * @return The number of samples a reader missed because the writer overwrote them, or 0 for the writer.
+     */
+    public long getLostSamples() {
+        return lostSamples;
+    }
+
+    /**
+     * @return The number of samples written so far, for the writer, or read or skipped so far, for a reader.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
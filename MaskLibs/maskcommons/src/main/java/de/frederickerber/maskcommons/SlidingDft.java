@@ -0,0 +1,156 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * A sliding discrete Fourier transform over the last {@code size} readings of every channel, restricted to a range of
+ * bins. Each reading updates every bin in {@code O(1)}, by removing the oldest reading and rotating the bin by one
+ * step. Rounding errors would slowly accumulate, so the bins are recomputed from the window once every {@code size}
+ * readings, which keeps the amortized cost at {@code O(bins)} per reading.
+ * <p>
+ * Once the window is full, a derived reading with the amplitudes of all bins is emitted every {@code hop} readings.
+ * Its values are ordered by channel, then bin: {@code out[c * bins + b]}. A sine of amplitude {@code a} in the
+ * center of bin {@code k} gives {@code a} at bin {@code k}, bin {@code k} covers the frequency
+ * {@code k * sampleRate / size}.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Sliding_DFT">Wikipedia article</a>
+ */
+public class SlidingDft extends StreamOperator {
+
+    private final int size;
+    private final int hop;
+    private final int firstBin;
+    private final int bins;
+    //rotation of each bin per reading, e^(j 2 pi k / size)
+    private final double[] rotRe;
+    private final double[] rotIm;
+    //e^(-j 2 pi i / size), for recomputing the bins
+    private final double[] twiddleRe;
+    private final double[] twiddleIm;
+
+    private int channels = -1;
+    //the last size readings per channel, pos is the slot of the oldest
+    private float[] window;
+    private int pos;
+    private long count;
+    private double[] binRe;
+    private double[] binIm;
+    private float[] output;
+    private long outputTimestamp;
+
+    /**
+     * @param size     The number of readings in the window.
+     * @param hop      The number of readings between derived readings.
+     * @param firstBin The first bin to compute, 0 for DC.
+     * @param lastBin  The last bin to compute, at most {@code size / 2}.
+     */
+    public SlidingDft(int size, int hop, int firstBin, int lastBin) {
+        if (size < 2 || hop < 1 || firstBin < 0 || lastBin < firstBin || lastBin > size / 2) {
+            throw new IllegalArgumentException("invalid size " + size + ", hop " + hop + " or bins " + firstBin + " to " + lastBin);
+        }
+        this.size = size;
+        this.hop = hop;
+        this.firstBin = firstBin;
+        bins = lastBin - firstBin + 1;
+        rotRe = new double[bins];
+        rotIm = new double[bins];
+        for (int b = 0; b < bins; b++) {
+            double w = 2 * Math.PI * (firstBin + b) / size;
+            rotRe[b] = Math.cos(w);
+            rotIm[b] = Math.sin(w);
+        }
+        twiddleRe = new double[size];
+        twiddleIm = new double[size];
+        for (int i = 0; i < size; i++) {
+            twiddleRe[i] = Math.cos(2 * Math.PI * i / size);
+            twiddleIm[i] = -Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    public int getBinCount() {
+        return bins;
+    }
+
+    @Override
+    public boolean offer(long timestamp, float[] in, int inOff, int channels) {
+        checkBounds(in, inOff, channels);
+        if (window == null) {
+            this.channels = channels;
+            window = new float[size * channels];
+            binRe = new double[bins * channels];
+            binIm = new double[bins * channels];
+            output = new float[bins * channels];
+        } else if (this.channels != channels) {
+            throw new IllegalArgumentException("data dimension may not change");
+        }
+        for (int c = 0; c < channels; c++) {
+            float x = in[inOff + c];
+            int slot = c * size + pos;
+            double delta = x - window[slot];
+            window[slot] = x;
+            for (int b = 0, k = c * bins; b < bins; b++, k++) {
+                double re = binRe[k] + delta;
+                double im = binIm[k];
+                binRe[k] = re * rotRe[b] - im * rotIm[b];
+                binIm[k] = re * rotIm[b] + im * rotRe[b];
+            }
+        }
+        pos = pos + 1 == size ? 0 : pos + 1;
+        count++;
+        if (pos == 0) {
+            recompute();
+        }
+        if (count < size || (count - size) % hop != 0) {
+            return false;
+        }
+        for (int c = 0; c < channels; c++) {
+            for (int b = 0, k = c * bins; b < bins; b++, k++) {
+                int bin = firstBin + b;
+                double scale = bin == 0 || 2 * bin == size ? 1.0 / size : 2.0 / size;
+                output[k] = (float) (Math.hypot(binRe[k], binIm[k]) * scale);
+            }
+        }
+        outputTimestamp = timestamp;
+        return true;
+    }
+
+    /**
+     * Compute all bins from the window, the oldest reading in the slot at {@link #pos}.
+     */
+    private void recompute() {
+        for (int c = 0; c < channels; c++) {
+            for (int b = 0, k = c * bins; b < bins; b++, k++) {
+                int bin = firstBin + b;
+                double re = 0;
+                double im = 0;
+                for (int m = 0, t = 0; m < size; m++, t += bin) {
+                    if (t >= size) {
+                        t -= size;
+                    }
+                    int slot = pos + m < size ? pos + m : pos + m - size;
+                    float x = window[c * size + slot];
+                    re += x * twiddleRe[t];
+                    im += x * twiddleIm[t];
+                }
+                binRe[k] = re;
+                binIm[k] = im;
+            }
+        }
+    }
+
+    @Override
+    public float[] getOutput() {
+        return output;
+    }
+
+    @Override
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    @Override
+    public void reset() {
+        window = null;
+        channels = -1;
+        pos = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,251 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Aligns the readings of several streams, e.g. accelerometer, gyroscope and magnetic field, on a common timeline.
+ * <p>
+ * Input 0 is the reference: every reading of it becomes a fused frame with its timestamp, holding its own values
+ * followed by the values of every other input at that time, in input order. The other inputs are matched with
+ * {@link #NEAREST} or {@link #INTERPOLATE}. A frame is complete once every other input delivered a reading at or after
+ * its timestamp. Frames wait for that at most {@code maxDelayNanos}, measured on the reference's timestamps, or until
+ * the reference buffer is full. Then the latest readings of the late inputs are used as they are.
+ * Frames are dropped if an input has not delivered a single reading yet.
+ * <p>
+ * Every input is buffered in a ring of {@code capacity} readings, allocated up front, so the memory of a join is fixed
+ * and reported by {@link #getMemoryBytes()}. If an input other than the reference runs ahead by more than that,
+ * its oldest readings are overwritten. Readings older than the previous reading of the same input are dropped.
+ * <p>
+ * Readings are added with {@link #offer(int, long, float[], int)}, completed frames are taken with {@link #poll()}.
+ * Not thread safe.
+ */
+public class StreamJoin {
+
+    /**
+     * Use the reading closest in time.
+     */
+    public static final int NEAREST = 0;
+    /**
+     * Interpolate linearly between the readings before and after.
+     */
+    public static final int INTERPOLATE = 1;
+
+    private final int mode;
+    private final long maxDelay;
+    private final int capacity;
+    private final int[] channels;
+    //where the values of each input start in a frame
+    private final int[] offsets;
+
+    private final long[][] timestamps;
+    private final float[][] values;
+    private final int[] head;
+    private final int[] size;
+    //timestamp of the latest reading per input, also of readings that were overwritten since
+    private final long[] latest;
+
+    private final float[] output;
+    private long outputTimestamp;
+    private long dropped;
+
+    /**
+     * @param mode          {@link #NEAREST} or {@link #INTERPOLATE}.
+     * @param maxDelayNanos How long a frame may wait for late inputs, in nanoseconds of the reference's timestamps.
+     * @param capacity      The number of readings buffered per input.
+     * @param channels      The number of values per reading of each input, the reference first. At least two inputs.
+     */
+    public StreamJoin(int mode, long maxDelayNanos, int capacity, int... channels) {
+        if (mode != NEAREST && mode != INTERPOLATE) {
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+        if (maxDelayNanos < 0 || capacity < 2 || channels == null || channels.length < 2) {
+            throw new IllegalArgumentException("a join needs a capacity of 2 or more and at least two inputs");
+        }
+        this.mode = mode;
+        this.maxDelay = maxDelayNanos;
+        this.capacity = capacity;
+        this.channels = channels.clone();
+        offsets = new int[channels.length];
+        timestamps = new long[channels.length][capacity];
+        values = new float[channels.length][];
+        int total = 0;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] <= 0) {
+                throw new IllegalArgumentException("input " + i + " needs at least one channel");
+            }
+            offsets[i] = total;
+            total += channels[i];
+            values[i] = new float[capacity * channels[i]];
+        }
+        head = new int[channels.length];
+        size = new int[channels.length];
+        latest = new long[channels.length];
+        output = new float[total];
+    }
+
+    public int getInputCount() {
+        return channels.length;
+    }
+
+    /**
+     * @return The number of values of a fused frame.
+     */
+    public int getOutputChannels() {
+        return output.length;
+    }
+
+    /**
+     * @return The number of values of each reading of an input.
+     */
+    public int getChannels(int input) {
+        return channels[input];
+    }
+
+    /**
+     * Add a reading.
+     *
+     * @param input     The index of the input, 0 for the reference.
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param in        The array holding the values.
+     * @param inOff     The index of the first value, followed by {@link #getChannels(int)} values.
+     */
+    public void offer(int input, long timestamp, float[] in, int inOff) {
+        int n = channels[input];
+        if (inOff < 0 || inOff + n > in.length) {
+            throw new IndexOutOfBoundsException("input " + input + " takes " + n + " values from " + inOff + ", array has " + in.length);
+        }
+        if (size[input] > 0 && timestamp < latest[input]) {
+            dropped++;
+            return;
+        }
+        if (size[input] == capacity) {
+            if (input == 0) {
+                //poll() releases the oldest frame of a full buffer, so this only happens without polling
+                dropped++;
+                return;
+            }
+            head[input] = (head[input] + 1) % capacity;
+            size[input]--;
+        }
+        int slot = (head[input] + size[input]) % capacity;
+        timestamps[input][slot] = timestamp;
+        System.arraycopy(in, inOff, values[input], slot * n, n);
+        size[input]++;
+        latest[input] = timestamp;
+    }
+
+    /**
+     * Complete the oldest frame if possible. Call repeatedly after each {@link #offer(int, long, float[], int)}, as
+     * one reading may complete several frames.
+     *
+     * @return {@code true} if a frame is available from {@link #getOutput()}.
+     */
+    public boolean poll() {
+        while (size[0] > 0) {
+            long t = timestamps[0][head[0]];
+            boolean forced = size[0] == capacity || latest[0] - t >= maxDelay;
+            boolean complete = true;
+            boolean missing = false;
+            for (int i = 1; i < channels.length; i++) {
+                if (size[i] == 0) {
+                    missing = true;
+                } else if (latest[i] < t) {
+                    complete = false;
+                }
+            }
+            if (!forced && (missing || !complete)) {
+                return false;
+            }
+            if (missing) {
+                removeReference();
+                dropped++;
+                continue;
+            }
+            System.arraycopy(values[0], head[0] * channels[0], output, 0, channels[0]);
+            for (int i = 1; i < channels.length; i++) {
+                match(i, t);
+            }
+            outputTimestamp = t;
+            removeReference();
+            return true;
+        }
+        return false;
+    }
+
+    private void removeReference() {
+        head[0] = (head[0] + 1) % capacity;
+        size[0]--;
+    }
+
+    /**
+     * Write the values of an input at a time to the output and drop the readings no later frame needs.
+     */
+    private void match(int input, long t) {
+        long[] ts = timestamps[input];
+        int n = channels[input];
+        //the readings before t are no longer needed except for the last one
+        while (size[input] > 1 && ts[(head[input] + 1) % capacity] <= t) {
+            head[input] = (head[input] + 1) % capacity;
+            size[input]--;
+        }
+        int before = head[input];
+        int after = size[input] > 1 ? (before + 1) % capacity : before;
+        long tb = ts[before];
+        long ta = ts[after];
+        int from;
+        if (tb >= t || ta == tb) {
+            from = before;
+        } else if (ta <= t) {
+            from = after;
+        } else if (mode == NEAREST) {
+            from = t - tb <= ta - t ? before : after;
+        } else {
+            double w = (double) (t - tb) / (ta - tb);
+            float[] v = values[input];
+            for (int c = 0; c < n; c++) {
+                float a = v[before * n + c];
+                output[offsets[input] + c] = (float) (a + (v[after * n + c] - a) * w);
+            }
+            return;
+        }
+        System.arraycopy(values[input], from * n, output, offsets[input], n);
+    }
+
+    /**
+     * @return The values of the last frame, see the class description. Reused for the next frame.
+     */
+    public float[] getOutput() {
+        return output;
+    }
+
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    /**
+     * @return The number of readings and frames dropped because they were out of order, the reference buffer was full
+     * or an input had no readings yet.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The bytes held by the buffers of the join, excluding object headers. Fixed for the lifetime of the join.
+     */
+    public long getMemoryBytes() {
+        long bytes = 4L * output.length;
+        for (int i = 0; i < channels.length; i++) {
+            bytes += 8L * capacity + 4L * capacity * channels[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop all buffered readings, e.g. when the inputs restart.
+     */
+    public void reset() {
+        for (int i = 0; i < channels.length; i++) {
+            head[i] = 0;
+            size[i] = 0;
+        }
+    }
+}
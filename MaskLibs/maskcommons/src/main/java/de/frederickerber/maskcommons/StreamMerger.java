@@ -0,0 +1,314 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Arrays;
+
+/**
+ * Merges the readings of several sources, e.g. plugins, into one stream in timestamp order.
+ * <p>
+ * Readings wait in a min-heap on their timestamps until no source can deliver an older one: every source that
+ * delivered a reading has reached their timestamp. That is a k-way merge of the sources; sources that have not
+ * delivered anything yet are not waited for. So a slow or silent source does not hold the stream back forever, the
+ * wait is bounded by the reorder window: a reading is released once a newer reading of any source is
+ * {@code reorderWindowNanos} ahead of it, or once it waited that long by the clock passed to {@link #poll(long)}.
+ * The window also absorbs readings a source delivers slightly out of order.
+ * Readings older than one already released are late; they are dropped and counted. If the heap is full, its oldest
+ * reading is released by the next {@link #poll(long)} right away.
+ * <p>
+ * The timestamps of all sources must share a time base. Slots are allocated up front, readings are added with
+ * {@code offer} and taken with {@link #poll(long)}. Arrays of values are handed over, not copied. Not thread safe.
+ */
+public class StreamMerger {
+
+    private final int sourceCount;
+    private final long reorderWindow;
+
+    //per slot
+    private final long[] timestamps;
+    private final long[] arrivals;
+    private final int[] sources;
+    private final int[] sensorTypes;
+    private final int[] deviceIndices;
+    private final float[][] vectors;
+    private final float[] scalars;
+    //min-heap of slots, ordered by timestamp, then by arrival order
+    private final int[] heap;
+    private final long[] sequence;
+    private int size;
+    private final int[] freeSlots;
+    private int numFree;
+    private long nextSequence;
+
+    //per source, the latest timestamp, Long.MIN_VALUE until the first reading
+    private final long[] latest;
+    private long newest = Long.MIN_VALUE;
+    private long released = Long.MIN_VALUE;
+    private long late;
+
+    //the reading taken by the last poll()
+    private long outTimestamp;
+    private int outSource;
+    private int outSensorType;
+    private int outDeviceIndex;
+    private float[] outValues;
+    private float outValue;
+
+    /**
+     * @param sourceCount        The number of sources, at least 1.
+     * @param reorderWindowNanos How long a reading may wait for older readings of other sources, in nanoseconds.
+     * @param capacity           The maximum number of waiting readings, at least 1.
+     */
+    public StreamMerger(int sourceCount, long reorderWindowNanos, int capacity) {
+        if (sourceCount < 1 || capacity < 1 || reorderWindowNanos < 0) {
+            throw new IllegalArgumentException("a merger needs a source, a capacity and a window that is not negative");
+        }
+        this.sourceCount = sourceCount;
+        this.reorderWindow = reorderWindowNanos;
+        timestamps = new long[capacity];
+        arrivals = new long[capacity];
+        sources = new int[capacity];
+        sensorTypes = new int[capacity];
+        deviceIndices = new int[capacity];
+        vectors = new float[capacity][];
+        scalars = new float[capacity];
+        heap = new int[capacity];
+        sequence = new long[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        numFree = capacity;
+        latest = new long[sourceCount];
+        Arrays.fill(latest, Long.MIN_VALUE);
+    }
+
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    /**
+     * @return The number of readings waiting.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of readings dropped because a newer reading had already been released.
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * Add a reading with several values.
+     *
+     * @param source    The index of the source.
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param arrival   The time the reading arrived in nanoseconds, in the time base of {@link #poll(long)}.
+     * @param values    The values, handed over.
+     * @return {@code false} if the reading was late and dropped.
+     */
+    public boolean offer(int source, long timestamp, long arrival, int sensorType, int deviceIndex, float[] values) {
+        int slot = add(source, timestamp, arrival, sensorType, deviceIndex);
+        if (slot < 0) {
+            return false;
+        }
+        vectors[slot] = values;
+        return true;
+    }
+
+    /**
+     * Add a reading with a single value.
+     *
+     * @see #offer(int, long, long, int, int, float[])
+     */
+    public boolean offer(int source, long timestamp, long arrival, int sensorType, int deviceIndex, float value) {
+        int slot = add(source, timestamp, arrival, sensorType, deviceIndex);
+        if (slot < 0) {
+            return false;
+        }
+        vectors[slot] = null;
+        scalars[slot] = value;
+        return true;
+    }
+
+    private int add(int source, long timestamp, long arrival, int sensorType, int deviceIndex) {
+        if (source < 0 || source >= sourceCount) {
+            throw new IndexOutOfBoundsException("source " + source + " of " + sourceCount);
+        }
+        if (timestamp < released) {
+            late++;
+            return -1;
+        }
+        if (timestamp > latest[source]) {
+            latest[source] = timestamp;
+        }
+        if (timestamp > newest) {
+            newest = timestamp;
+        }
+        if (numFree == 0) {
+            //poll() releases the oldest reading of a full merger, so only callers that skip it get here
+            throw new IllegalStateException("merger full, poll() before offering more readings");
+        }
+        int slot = freeSlots[--numFree];
+        timestamps[slot] = timestamp;
+        arrivals[slot] = arrival;
+        sources[slot] = source;
+        sensorTypes[slot] = sensorType;
+        deviceIndices[slot] = deviceIndex;
+        sequence[slot] = nextSequence++;
+        heap[size] = slot;
+        siftUp(size++);
+        return slot;
+    }
+
+    /**
+     * @return {@code true} if the merger is full and {@link #poll(long)} has to be called before the next offer.
+     */
+    public boolean isFull() {
+        return numFree == 0;
+    }
+
+    /**
+     * Stop waiting for a source, e.g. after it disconnected. It counts again once it delivers a reading.
+     */
+    public void removeSource(int source) {
+        latest[source] = Long.MIN_VALUE;
+    }
+
+    /**
+     * Take the oldest reading if it may be released, see the class description.
+     *
+     * @param now The current time in nanoseconds, in the time base of the arrival times.
+     * @return {@code true} if a reading is available from the getters.
+     */
+    public boolean poll(long now) {
+        if (size == 0) {
+            return false;
+        }
+        int slot = heap[0];
+        long t = timestamps[slot];
+        if (numFree > 0 && t > newest - reorderWindow && now - arrivals[slot] < reorderWindow) {
+            //wait unless every source that delivered anything has reached t
+            for (int s = 0; s < sourceCount; s++) {
+                if (latest[s] != Long.MIN_VALUE && latest[s] < t) {
+                    return false;
+                }
+            }
+        }
+        take();
+        return true;
+    }
+
+    /**
+     * Take the oldest reading regardless of the window, e.g. when the stream ends.
+     *
+     * @return {@code true} if a reading is available from the getters.
+     */
+    public boolean pollNow() {
+        if (size == 0) {
+            return false;
+        }
+        take();
+        return true;
+    }
+
+    private void take() {
+        int slot = heap[0];
+        heap[0] = heap[--size];
+        if (size > 0) {
+            siftDown(0);
+        }
+        outTimestamp = timestamps[slot];
+        outSource = sources[slot];
+        outSensorType = sensorTypes[slot];
+        outDeviceIndex = deviceIndices[slot];
+        outValues = vectors[slot];
+        outValue = scalars[slot];
+        vectors[slot] = null;
+        freeSlots[numFree++] = slot;
+        if (outTimestamp > released) {
+            released = outTimestamp;
+        }
+    }
+
+    /**
+     * @return The earliest time a waiting reading will be released by the clock, {@link Long#MAX_VALUE} if none waits.
+     * Readings may be released earlier by newer readings.
+     */
+    public long getNextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            deadline = Math.min(deadline, arrivals[heap[i]] + reorderWindow);
+        }
+        return deadline;
+    }
+
+    public long getTimestamp() {
+        return outTimestamp;
+    }
+
+    public int getSource() {
+        return outSource;
+    }
+
+    public int getSensorType() {
+        return outSensorType;
+    }
+
+    public int getDeviceIndex() {
+        return outDeviceIndex;
+    }
+
+    /**
+     * @return The values of the last reading, or {@code null} if it has a single value, see {@link #getValue()}.
+     */
+    public float[] getValues() {
+        return outValues;
+    }
+
+    /**
+     * @return The value of the last reading if it has a single value.
+     */
+    public float getValue() {
+        return outValue;
+    }
+
+    private boolean less(int a, int b) {
+        long ta = timestamps[a];
+        long tb = timestamps[b];
+        return ta < tb || (ta == tb && sequence[a] < sequence[b]);
+    }
+
+    private void siftUp(int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(slot, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private void siftDown(int i) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], slot)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = slot;
+    }
+}
@@ -0,0 +1,51 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Derives a new stream from n-dimensional sensor readings, e.g. spectra or window statistics.
+ * Unlike a {@link Filter}, an operator may change the number of values and usually emits fewer readings than it
+ * receives.
+ * <p>
+ * Operators keep their own state and never hold on to the arrays passed to them. Implementations do not allocate
+ * once the number of channels is known.
+ */
+public abstract class StreamOperator {
+
+    /**
+     * Offer a reading. The number of channels may not change after the first call.
+     *
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param in        The array holding the reading.
+     * @param inOff     The index of the first value of the reading in {@code in}.
+     * @param channels  The number of values of the reading.
+     * @return {@code true} if a derived reading is ready, see {@link #getOutput()}.
+     */
+    public abstract boolean offer(long timestamp, float[] in, int inOff, int channels);
+
+    /**
+     * @return The last derived reading. The array is reused and may be modified by the caller, its length is the
+     * number of derived values.
+     */
+    public abstract float[] getOutput();
+
+    /**
+     * @return The timestamp of the last derived reading in nanoseconds.
+     */
+    public abstract long getOutputTimestamp();
+
+    /**
+     * Forget all previous readings.
+     */
+    public abstract void reset();
+
+    /**
+     * Check the arguments of {@link #offer(long, float[], int, int)}.
+     */
+    static void checkBounds(float[] in, int inOff, int channels) {
+        if (in == null) {
+            throw new IllegalArgumentException("argument may not be null");
+        }
+        if (channels < 1 || inOff < 0 || inOff > in.length - channels) {
+            throw new IndexOutOfBoundsException(channels + " channels at " + inOff + " do not fit an array of " + in.length);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Arrays;
+
+/**
+ * The complete set of sensor subscriptions a client wants from a plugin, with the options of each. It is sent in a
+ * single {@link ServiceMsg#SET_SUBSCRIPTIONS} message, and the plugin replaces the client's subscriptions with it:
+ * subscriptions missing from the set end, new ones start and changed ones are updated. Each hardware sensor is
+ * reconfigured at most once for the whole set, instead of once per subscribe message.
+ * <p>
+ * A set holds at most one subscription per device and sensor, adding another one replaces it.
+ * On the wire, a set is a flat {@code int[]} of {@link #INTS_PER_SUBSCRIPTION} numbers per subscription and a
+ * {@code String[]} with the specs of its filter chain and value encoding, see {@link #toArray()} and {@link #getSpecs()}.
+ */
+public final class SubscriptionSet {
+
+    /**
+     * Device index, sensor type, frequency, rate mode, maximum batch size and maximum batch latency.
+     */
+    public static final int INTS_PER_SUBSCRIPTION = 6;
+
+    private int[] ints = new int[4 * INTS_PER_SUBSCRIPTION];
+    private FilterChain[] chains = new FilterChain[4];
+    private ValueEncoding[] encodings = new ValueEncoding[4];
+    private int size;
+
+    /**
+     * Add a subscription without batching, filters or quantization, see {@link #add(int, int, int, int, int, int, FilterChain, ValueEncoding)}.
+     */
+    public SubscriptionSet add(int deviceIndex, int sensorType, int frequency) {
+        return add(deviceIndex, sensorType, frequency, RateMode.NEAREST, 1, 0, null, null);
+    }
+
+    /**
+     * Add a subscription, replacing the one for the same device and sensor if there is one.
+     *
+     * @param deviceIndex           The index of the device.
+     * @param sensorType            The sensor type.
+     * @param frequency             The desired frequency in Hertz, 0 for every reading.
+     * @param rateMode              One of the {@link RateMode} constants.
+     * @param maxBatchSize          The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time a reading may be held back, in milliseconds.
+     * @param chain                 The filter chain, {@code null} or empty for raw readings.
+     * @param encoding              How the values are sent, {@code null} for floats.
+     * @return This set.
+     */
+    public SubscriptionSet add(int deviceIndex, int sensorType, int frequency, int rateMode, int maxBatchSize,
+                               int maxBatchLatencyMillis, FilterChain chain, ValueEncoding encoding) {
+        int i = indexOf(deviceIndex, sensorType);
+        if (i < 0) {
+            if (size == chains.length) {
+                ints = Arrays.copyOf(ints, 2 * ints.length);
+                chains = Arrays.copyOf(chains, 2 * chains.length);
+                encodings = Arrays.copyOf(encodings, 2 * encodings.length);
+            }
+            i = size++;
+        }
+        int off = i * INTS_PER_SUBSCRIPTION;
+        ints[off] = deviceIndex;
+        ints[off + 1] = sensorType;
+        ints[off + 2] = Math.max(frequency, 0);
+        ints[off + 3] = rateMode;
+        ints[off + 4] = maxBatchSize;
+        ints[off + 5] = maxBatchLatencyMillis;
+        chains[i] = chain == null || chain.isEmpty() ? null : chain;
+        encodings[i] = encoding == null || !encoding.isQuantized() ? null : encoding;
+        return this;
+    }
+
+    /**
+     * @return The number of subscriptions.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The index of the subscription for the device and sensor, -1 if there is none.
+     */
+    public int indexOf(int deviceIndex, int sensorType) {
+        for (int i = 0; i < size; i++) {
+            int off = i * INTS_PER_SUBSCRIPTION;
+            if (ints[off] == deviceIndex && ints[off + 1] == sensorType) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getDeviceIndex(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION];
+    }
+
+    public int getSensorType(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION + 1];
+    }
+
+    public int getFrequency(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION + 2];
+    }
+
+    public int getRateMode(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION + 3];
+    }
+
+    public int getMaxBatchSize(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION + 4];
+    }
+
+    public int getMaxBatchLatencyMillis(int i) {
+        return ints[check(i) * INTS_PER_SUBSCRIPTION + 5];
+    }
+
+    /**
+     * @return The filter chain of the subscription, {@code null} for raw readings.
+     */
+    public FilterChain getFilterChain(int i) {
+        return chains[check(i)];
+    }
+
+    /**
+     * @return The encoding of the subscription, {@code null} for floats.
+     */
+    public ValueEncoding getEncoding(int i) {
+        return encodings[check(i)];
+    }
+
+    private int check(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("subscription " + i + " of " + size);
+        }
+        return i;
+    }
+
+    /**
+     * @return The numbers of all subscriptions, {@link #INTS_PER_SUBSCRIPTION} per subscription.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(ints, size * INTS_PER_SUBSCRIPTION);
+    }
+
+    /**
+     * @return The spec of the filter chain and of the value encoding of every subscription, {@code null} for none.
+     */
+    public String[] getSpecs() {
+        String[] specs = new String[2 * size];
+        for (int i = 0; i < size; i++) {
+            specs[2 * i] = chains[i] == null ? null : chains[i].toString();
+            specs[2 * i + 1] = encodings[i] == null ? null : encodings[i].toString();
+        }
+        return specs;
+    }
+
+    /**
+     * Read a set from its wire form.
+     *
+     * @param ints  The numbers, see {@link #toArray()}.
+     * @param specs The specs, see {@link #getSpecs()}. May be {@code null} if no subscription has any.
+     * @return The set.
+     * @throws IllegalArgumentException If the arrays do not match or a spec is malformed.
+     */
+    public static SubscriptionSet fromArrays(int[] ints, String[] specs) {
+        if (ints == null || ints.length % INTS_PER_SUBSCRIPTION != 0) {
+            throw new IllegalArgumentException("malformed subscription set");
+        }
+        int n = ints.length / INTS_PER_SUBSCRIPTION;
+        if (specs != null && specs.length != 2 * n) {
+            throw new IllegalArgumentException("expected " + 2 * n + " specs, got " + specs.length);
+        }
+        SubscriptionSet set = new SubscriptionSet();
+        for (int i = 0; i < n; i++) {
+            int off = i * INTS_PER_SUBSCRIPTION;
+            FilterChain chain = null;
+            ValueEncoding encoding = null;
+            if (specs != null && specs[2 * i] != null) {
+                chain = FilterChain.parse(specs[2 * i]);
+            }
+            if (specs != null && specs[2 * i + 1] != null) {
+                encoding = ValueEncoding.parse(specs[2 * i + 1]);
+            }
+            set.add(ints[off], ints[off + 1], ints[off + 2], ints[off + 3], ints[off + 4], ints[off + 5], chain, encoding);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,301 @@
+package de.frederickerber.maskcommons;
+
+import java.util.Locale;
+
+/**
+ * How the values of a subscription travel from the plugin to the client: as 32-bit floats, or quantized to 16 bits
+ * as half-precision floats or as scaled integers {@code offset + scale * q}. Quantized values take half the bytes in
+ * messages, batches and {@link SensorSample}s. Shared memory always carries floats.
+ * <p>
+ * Every encoding declares how far a decoded value may be from the original with {@link #getMaxError(float)}.
+ * {@link #forSensor(int)} suggests an encoding for sensors whose precision fits into 16 bits.
+ * <p>
+ * An encoding is sent to the plugin as its spec, see {@link #toString()} and {@link #parse(String)}.
+ */
+public final class ValueEncoding {
+
+    public static final int FLOAT32 = 0;
+    public static final int FLOAT16 = 1;
+    public static final int SCALED_INT16 = 2;
+
+    /**
+     * Values as they are.
+     */
+    public static final ValueEncoding FLOAT = new ValueEncoding(FLOAT32, 1, 0);
+    /**
+     * IEEE 754 half-precision floats: 11 significant bits, up to {@link #HALF_MAX}.
+     */
+    public static final ValueEncoding HALF = new ValueEncoding(FLOAT16, 1, 0);
+
+    /**
+     * The largest finite half-precision float. Larger values are sent as this.
+     */
+    public static final float HALF_MAX = 65504f;
+    //the smallest normal half-precision float and the spacing of the subnormal ones
+    private static final float HALF_MIN_NORMAL = 6.1035156E-5f;
+    private static final float HALF_SUBNORMAL_STEP = 5.9604645E-8f;
+
+    private final int mode;
+    private final float scale;
+    private final float offset;
+
+    private ValueEncoding(int mode, float scale, float offset) {
+        this.mode = mode;
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    /**
+     * Values as 16-bit integers {@code q}, decoded as {@code offset + scale * q}.
+     *
+     * @param scale  The step between two representable values, positive.
+     * @param offset The value of {@code q = 0}, usually the middle of the sensor's range.
+     * @return The encoding.
+     */
+    public static ValueEncoding scaled(float scale, float offset) {
+        if (!(scale > 0) || Float.isInfinite(scale) || Float.isNaN(offset) || Float.isInfinite(offset)) {
+            throw new IllegalArgumentException("invalid scale " + scale + " or offset " + offset);
+        }
+        return new ValueEncoding(SCALED_INT16, scale, offset);
+    }
+
+    /**
+     * @param sensorType A {@link SensorType}.
+     * @return A 16-bit encoding whose error bound is below the sensor's own resolution, or {@link #FLOAT} if the sensor
+     * needs full precision. Skin and ambient temperature to 0.005 °C, humidity to 0.005 %, UV index to 0.0005,
+     * pressure to 0.025 hPa between 300 and 1100 hPa, light to 0.05 % up to {@link #HALF_MAX} lux.
+     */
+    public static ValueEncoding forSensor(int sensorType) {
+        switch (sensorType) {
+            case SensorType.SKIN_TEMPERATURE:
+            case SensorType.TEMPERATURE:
+            case SensorType.RELATIVE_HUMIDITY:
+                return scaled(0.01f, 0);
+            case SensorType.UV_INDEX_LEVEL:
+                return scaled(0.001f, 0);
+            case SensorType.PRESSURE:
+                return scaled(0.05f, 700);
+            case SensorType.LIGHT:
+                return HALF;
+            default:
+                return FLOAT;
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public float getOffset() {
+        return offset;
+    }
+
+    public boolean isQuantized() {
+        return mode != FLOAT32;
+    }
+
+    /**
+     * @return The number of bytes of an encoded value.
+     */
+    public int getBytesPerValue() {
+        return mode == FLOAT32 ? 4 : 2;
+    }
+
+    /**
+     * @return The smallest value that is not clamped.
+     */
+    public float getMin() {
+        switch (mode) {
+            case FLOAT16:
+                return -HALF_MAX;
+            case SCALED_INT16:
+                return (float) (offset + (double) scale * Short.MIN_VALUE);
+            default:
+                return -Float.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return The largest value that is not clamped.
+     */
+    public float getMax() {
+        switch (mode) {
+            case FLOAT16:
+                return HALF_MAX;
+            case SCALED_INT16:
+                return (float) (offset + (double) scale * Short.MAX_VALUE);
+            default:
+                return Float.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @param value A value between {@link #getMin()} and {@link #getMax()}.
+     * @return The largest possible distance between the value and its decoded form. Values outside the range are
+     * clamped to it first.
+     */
+    public float getMaxError(float value) {
+        switch (mode) {
+            case FLOAT16: {
+                float abs = Math.abs(value);
+                //rounding to nearest loses at most half a step: 2^-11 of the value, or half the subnormal step
+                return abs < HALF_MIN_NORMAL ? HALF_SUBNORMAL_STEP / 2 : abs * 0x1p-11f;
+            }
+            case SCALED_INT16:
+                //half a step, plus the rounding of the decoded float
+                return scale / 2 + Math.ulp(value);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return The 16 bits of a value, see {@link #decode(short)}. Not used for {@link #FLOAT32}.
+     */
+    public short encode(float value) {
+        if (mode == FLOAT16) {
+            return toHalf(value);
+        }
+        double q = Math.rint((value - (double) offset) / scale);
+        if (q != q) {
+            return 0;
+        }
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, q));
+    }
+
+    /**
+     * @return The value of 16 bits produced by {@link #encode(float)}.
+     */
+    public float decode(short bits) {
+        if (mode == FLOAT16) {
+            return fromHalf(bits);
+        }
+        return (float) (offset + (double) scale * bits);
+    }
+
+    /**
+     * Convert a float to the nearest half-precision float, ties to even. Values beyond {@link #HALF_MAX} become
+     * {@link #HALF_MAX}, infinities and NaN are kept.
+     *
+     * @return The bits of the half-precision float.
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+        if (exp == 0xff) {
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+        }
+        int e = exp - 127 + 15;
+        if (e >= 0x1f) {
+            return (short) (sign | 0x7bff);
+        }
+        int half;
+        int shift;
+        if (e <= 0) {
+            if (e < -10) {
+                return (short) sign;
+            }
+            //subnormal, the implicit bit becomes explicit
+            mant |= 0x800000;
+            shift = 14 - e;
+            half = mant >> shift;
+        } else {
+            shift = 13;
+            half = (e << 10) | (mant >> 13);
+        }
+        int rest = mant & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+            //may carry into the exponent, which is still the right result
+            half++;
+        }
+        if (half >= 0x7c00) {
+            half = 0x7bff;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * @return The float of the bits of a half-precision float.
+     */
+    public static float fromHalf(short bits) {
+        int h = bits & 0xffff;
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        if (exp == 0) {
+            float v = mant * HALF_SUBNORMAL_STEP;
+            return sign != 0 ? -v : v;
+        }
+        if (exp == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mant << 13));
+    }
+
+    /**
+     * Read an encoding from its spec.
+     *
+     * @param spec A spec as returned by {@link #toString()}: {@code f32}, {@code f16} or {@code i16(scale,offset)}.
+     * @return The encoding.
+     * @throws IllegalArgumentException If the spec is malformed.
+     */
+    public static ValueEncoding parse(String spec) {
+        if (spec == null) {
+            throw new IllegalArgumentException("spec may not be null");
+        }
+        String s = spec.trim().toLowerCase(Locale.ROOT);
+        if (s.equals("f32")) {
+            return FLOAT;
+        }
+        if (s.equals("f16")) {
+            return HALF;
+        }
+        if (s.startsWith("i16(") && s.endsWith(")")) {
+            String[] parts = s.substring(4, s.length() - 1).split(",");
+            if (parts.length == 2) {
+                try {
+                    return scaled(Float.parseFloat(parts[0].trim()), Float.parseFloat(parts[1].trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("malformed encoding: " + spec);
+                }
+            }
+        }
+        throw new IllegalArgumentException("malformed encoding: " + spec);
+    }
+
+    /**
+     * @return The spec of the encoding, e.g. {@code i16(0.01,0.0)}.
+     */
+    @Override
+    public String toString() {
+        switch (mode) {
+            case FLOAT16:
+                return "f16";
+            case SCALED_INT16:
+                return "i16(" + scale + "," + offset + ")";
+            default:
+                return "f32";
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ValueEncoding)) {
+            return false;
+        }
+        ValueEncoding e = (ValueEncoding) o;
+        return mode == e.mode && Float.compare(scale, e.scale) == 0 && Float.compare(offset, e.offset) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * mode + Float.floatToIntBits(scale)) + Float.floatToIntBits(offset);
+    }
+}
@@ -0,0 +1,309 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Statistics of every channel over a time window: mean, variance, RMS, minimum and maximum.
+ * <p>
+ * A derived reading is emitted every {@code hop} nanoseconds for the readings of the preceding {@code window}
+ * nanoseconds, {@code [end - window, end)}, with the end of the window as its timestamp. If the hop equals the window,
+ * the windows are tumbling: every reading falls into exactly one window and none is kept. Shorter hops give sliding
+ * windows, which keep the readings of one window so they can be removed again. Windows without readings are skipped,
+ * as are windows ending while the stream pauses.
+ * <p>
+ * Mean and variance are updated with Welford's method, which also removes readings from a sliding window.
+ * Minimum and maximum come from monotonic deques, which only hold readings that may still become the extreme of a
+ * later window. Every reading is added and removed once, so each costs {@code O(1)} amortized, independent of the
+ * window length. Buffers grow to the largest number of readings per window and are reused afterwards.
+ * <p>
+ * The values of a derived reading are ordered by channel, then statistic: {@code out[c * STATISTICS + MEAN]} etc.
+ * The variance is the population variance of the window.
+ */
+public class WindowAggregate extends StreamOperator {
+
+    public static final int MEAN = 0;
+    public static final int VARIANCE = 1;
+    public static final int RMS = 2;
+    public static final int MIN = 3;
+    public static final int MAX = 4;
+    /**
+     * The number of statistics per channel.
+     */
+    public static final int STATISTICS = 5;
+
+    private final long window;
+    private final long hop;
+    private final boolean sliding;
+
+    private int channels = -1;
+    private boolean started;
+    //the end of the next window to emit
+    private long nextEmit;
+
+    //Welford state per channel
+    private int count;
+    private double[] mean;
+    private double[] m2;
+    //tumbling windows only need the extremes
+    private float[] min;
+    private float[] max;
+
+    //sliding windows: the readings in the window, addressed by sequence number & mask
+    private long first;
+    private long next;
+    private int mask;
+    private long[] timestamps;
+    private float[] values;
+    //monotonic deques per channel, holding sequence numbers in a ring of the same capacity
+    private long[] minDeque;
+    private long[] maxDeque;
+    private long[] minHead;
+    private long[] minTail;
+    private long[] maxHead;
+    private long[] maxTail;
+
+    private float[] output;
+    private long outputTimestamp;
+
+    /**
+     * @param windowNanos The length of a window in nanoseconds.
+     * @param hopNanos    The time between derived readings in nanoseconds, at most the window length.
+     *                    Equal to the window length for tumbling windows.
+     */
+    public WindowAggregate(long windowNanos, long hopNanos) {
+        if (windowNanos <= 0 || hopNanos <= 0 || hopNanos > windowNanos) {
+            throw new IllegalArgumentException("invalid window " + windowNanos + " or hop " + hopNanos);
+        }
+        window = windowNanos;
+        hop = hopNanos;
+        sliding = hopNanos < windowNanos;
+    }
+
+    public boolean isSliding() {
+        return sliding;
+    }
+
+    @Override
+    public boolean offer(long timestamp, float[] in, int inOff, int channels) {
+        checkBounds(in, inOff, channels);
+        if (output == null) {
+            allocate(channels);
+        } else if (this.channels != channels) {
+            throw new IllegalArgumentException("data dimension may not change");
+        }
+        boolean emitted = false;
+        if (!started) {
+            started = true;
+            nextEmit = timestamp + window;
+        } else if (timestamp >= nextEmit) {
+            emitted = emit();
+            nextEmit += hop;
+            if (timestamp >= nextEmit) {
+                //a gap in the stream, continue with the window the reading falls into
+                nextEmit += (timestamp - nextEmit) / hop * hop + hop;
+                if (sliding) {
+                    evict(nextEmit - window);
+                } else {
+                    clear();
+                }
+            }
+        }
+        add(timestamp, in, inOff);
+        return emitted;
+    }
+
+    /**
+     * Compute the statistics of the window ending at {@link #nextEmit} and drop the readings the next window does not
+     * cover.
+     *
+     * @return {@code false} if the window had no readings.
+     */
+    private boolean emit() {
+        if (sliding) {
+            evict(nextEmit - window);
+        }
+        boolean any = count > 0;
+        if (any) {
+            for (int c = 0; c < channels; c++) {
+                int o = c * STATISTICS;
+                double var = Math.max(0, m2[c] / count);
+                output[o + MEAN] = (float) mean[c];
+                output[o + VARIANCE] = (float) var;
+                output[o + RMS] = (float) Math.sqrt(var + mean[c] * mean[c]);
+                if (sliding) {
+                    output[o + MIN] = values[(int) (minDeque[c * (mask + 1) + ((int) minHead[c] & mask)] & mask) * channels + c];
+                    output[o + MAX] = values[(int) (maxDeque[c * (mask + 1) + ((int) maxHead[c] & mask)] & mask) * channels + c];
+                } else {
+                    output[o + MIN] = min[c];
+                    output[o + MAX] = max[c];
+                }
+            }
+            outputTimestamp = nextEmit;
+        }
+        if (sliding) {
+            evict(nextEmit + hop - window);
+        } else {
+            clear();
+        }
+        return any;
+    }
+
+    private void add(long timestamp, float[] in, int inOff) {
+        count++;
+        for (int c = 0; c < channels; c++) {
+            double x = in[inOff + c];
+            double delta = x - mean[c];
+            mean[c] += delta / count;
+            m2[c] += delta * (x - mean[c]);
+        }
+        if (!sliding) {
+            for (int c = 0; c < channels; c++) {
+                float x = in[inOff + c];
+                if (count == 1 || x < min[c]) {
+                    min[c] = x;
+                }
+                if (count == 1 || x > max[c]) {
+                    max[c] = x;
+                }
+            }
+            return;
+        }
+        if (next - first > mask) {
+            grow();
+        }
+        long seq = next++;
+        int slot = (int) seq & mask;
+        timestamps[slot] = timestamp;
+        int capacity = mask + 1;
+        for (int c = 0; c < channels; c++) {
+            float x = in[inOff + c];
+            values[slot * channels + c] = x;
+            int base = c * capacity;
+            //drop readings that can no longer be the extreme of a window containing this one
+            while (minTail[c] > minHead[c] && values[((int) minDeque[base + ((int) (minTail[c] - 1) & mask)] & mask) * channels + c] >= x) {
+                minTail[c]--;
+            }
+            minDeque[base + ((int) minTail[c]++ & mask)] = seq;
+            while (maxTail[c] > maxHead[c] && values[((int) maxDeque[base + ((int) (maxTail[c] - 1) & mask)] & mask) * channels + c] <= x) {
+                maxTail[c]--;
+            }
+            maxDeque[base + ((int) maxTail[c]++ & mask)] = seq;
+        }
+    }
+
+    /**
+     * Remove the readings of a sliding window before the given time.
+     */
+    private void evict(long until) {
+        int capacity = mask + 1;
+        while (first < next && timestamps[(int) first & mask] < until) {
+            int slot = (int) first & mask;
+            if (--count == 0) {
+                for (int c = 0; c < channels; c++) {
+                    mean[c] = 0;
+                    m2[c] = 0;
+                }
+            } else {
+                for (int c = 0; c < channels; c++) {
+                    //Welford's update in reverse
+                    double x = values[slot * channels + c];
+                    double old = mean[c];
+                    mean[c] -= (x - old) / count;
+                    m2[c] -= (x - old) * (x - mean[c]);
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                int base = c * capacity;
+                if (minTail[c] > minHead[c] && minDeque[base + ((int) minHead[c] & mask)] == first) {
+                    minHead[c]++;
+                }
+                if (maxTail[c] > maxHead[c] && maxDeque[base + ((int) maxHead[c] & mask)] == first) {
+                    maxHead[c]++;
+                }
+            }
+            first++;
+        }
+    }
+
+    private void clear() {
+        count = 0;
+        for (int c = 0; c < channels; c++) {
+            mean[c] = 0;
+            m2[c] = 0;
+        }
+    }
+
+    private void allocate(int channels) {
+        this.channels = channels;
+        mean = new double[channels];
+        m2 = new double[channels];
+        output = new float[channels * STATISTICS];
+        if (sliding) {
+            resize(16);
+        } else {
+            min = new float[channels];
+            max = new float[channels];
+        }
+    }
+
+    /**
+     * Double the capacity of a sliding window, keeping its readings and deques.
+     */
+    private void grow() {
+        resize(2 * (mask + 1));
+    }
+
+    private void resize(int capacity) {
+        int newMask = capacity - 1;
+        long[] ts = new long[capacity];
+        float[] v = new float[capacity * channels];
+        long[] minD = new long[capacity * channels];
+        long[] maxD = new long[capacity * channels];
+        for (long s = first; s < next; s++) {
+            int from = (int) s & mask;
+            int to = (int) s & newMask;
+            ts[to] = timestamps[from];
+            System.arraycopy(values, from * channels, v, to * channels, channels);
+        }
+        if (minHead == null) {
+            minHead = new long[channels];
+            minTail = new long[channels];
+            maxHead = new long[channels];
+            maxTail = new long[channels];
+        }
+        int oldCapacity = mask + 1;
+        for (int c = 0; c < channels; c++) {
+            for (long i = minHead[c]; i < minTail[c]; i++) {
+                minD[c * capacity + ((int) i & newMask)] = minDeque[c * oldCapacity + ((int) i & mask)];
+            }
+            for (long i = maxHead[c]; i < maxTail[c]; i++) {
+                maxD[c * capacity + ((int) i & newMask)] = maxDeque[c * oldCapacity + ((int) i & mask)];
+            }
+        }
+        mask = newMask;
+        timestamps = ts;
+        values = v;
+        minDeque = minD;
+        maxDeque = maxD;
+    }
+
+    @Override
+    public float[] getOutput() {
+        return output;
+    }
+
+    @Override
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    @Override
+    public void reset() {
+        output = null;
+        channels = -1;
+        started = false;
+        count = 0;
+        first = 0;
+        next = 0;
+        mask = 0;
+        minHead = null;
+    }
+}
@@ -0,0 +1,91 @@
+package de.frederickerber.maskcommons;
+
+/**
+ * Designs linear-phase {@link FirFilter} kernels with the windowed-sinc method and a Hamming window.
+ * <p>
+ * The kernels are symmetric, so all frequencies are delayed by the same {@code (taps - 1) / 2} readings.
+ * The transition band is about {@code 3.3 * sampleRate / taps} wide and the stop band attenuation about 53 dB.
+ */
+public final class WindowedSinc {
+
+    private WindowedSinc() {
+    }
+
+    /**
+     * @param taps       The length of the kernel, odd.
+     * @param sampleRate The sample rate in Hertz.
+     * @param cutoff     The cutoff frequency in Hertz, where the gain is -6 dB.
+     * @return A filter passing frequencies below the cutoff.
+     */
+    public static FirFilter lowPass(int taps, double sampleRate, double cutoff) {
+        return new FirFilter(toFloat(lowPassKernel(taps, sampleRate, cutoff)));
+    }
+
+    /**
+     * @param taps       The length of the kernel, odd.
+     * @param sampleRate The sample rate in Hertz.
+     * @param cutoff     The cutoff frequency in Hertz, where the gain is -6 dB.
+     * @return A filter passing frequencies above the cutoff, e.g. removing baseline wander.
+     */
+    public static FirFilter highPass(int taps, double sampleRate, double cutoff) {
+        double[] k = lowPassKernel(taps, sampleRate, cutoff);
+        //spectral inversion
+        for (int i = 0; i < k.length; i++) {
+            k[i] = -k[i];
+        }
+        k[taps / 2] += 1;
+        return new FirFilter(toFloat(k));
+    }
+
+    /**
+     * @param taps       The length of the kernel, odd.
+     * @param sampleRate The sample rate in Hertz.
+     * @param low        The lower band edge in Hertz.
+     * @param high       The upper band edge in Hertz.
+     * @return A filter passing frequencies between the band edges.
+     */
+    public static FirFilter bandPass(int taps, double sampleRate, double low, double high) {
+        if (low >= high) {
+            throw new IllegalArgumentException("band edges out of order: " + low + ", " + high);
+        }
+        double[] k = lowPassKernel(taps, sampleRate, high);
+        double[] l = lowPassKernel(taps, sampleRate, low);
+        for (int i = 0; i < k.length; i++) {
+            k[i] -= l[i];
+        }
+        return new FirFilter(toFloat(k));
+    }
+
+    private static double[] lowPassKernel(int taps, double sampleRate, double cutoff) {
+        if (taps < 3 || taps % 2 == 0) {
+            throw new IllegalArgumentException("taps must be odd and at least 3: " + taps);
+        }
+        if (!(sampleRate > 0) || !(cutoff > 0) || cutoff >= sampleRate / 2) {
+            throw new IllegalArgumentException("frequency " + cutoff + " out of range for sample rate " + sampleRate);
+        }
+        double fc = cutoff / sampleRate;
+        int m = taps / 2;
+        double[] k = new double[taps];
+        double sum = 0;
+        for (int i = 0; i < taps; i++) {
+            int d = i - m;
+            double sinc = d == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * d) / (Math.PI * d);
+            double window = 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (taps - 1));
+            k[i] = sinc * window;
+            sum += k[i];
+        }
+        //unity gain at DC
+        for (int i = 0; i < taps; i++) {
+            k[i] /= sum;
+        }
+        return k;
+    }
+
+    private static float[] toFloat(double[] k) {
+        float[] f = new float[k.length];
+        for (int i = 0; i < k.length; i++) {
+            f[i] = (float) k[i];
+        }
+        return f;
+    }
+}
@@ -0,0 +1,171 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ButterworthTests {
+
+    private static final double FS = 250;
+
+    private static double tanRatio(double f) {
+        return Math.tan(Math.PI * f / FS);
+    }
+
+    /**
+     * @return The analog Butterworth magnitude {@code 1 / sqrt(1 + x^(2n))}, which the bilinear transform with
+     * prewarping maps exactly onto the digital filter.
+     */
+    private static double butterworth(double x, int order) {
+        return 1 / Math.sqrt(1 + Math.pow(Math.abs(x), 2 * order));
+    }
+
+    /**
+     * Run a sine through the filter and return the peak output amplitude after the transient.
+     */
+    private static double measureGain(BiquadFilter filter, double frequency) {
+        float[] buf = new float[1];
+        double peak = 0;
+        int n = (int) (FS * 20);
+        for (int i = 0; i < n; i++) {
+            buf[0] = (float) Math.sin(2 * Math.PI * frequency * i / FS);
+            filter.apply(buf, 0, buf, 0, 1);
+            if (i > n / 2) {
+                peak = Math.max(peak, Math.abs(buf[0]));
+            }
+        }
+        return peak;
+    }
+
+    @Test
+    public void lowPass_matchesAnalogResponse() {
+        for (int order = 1; order <= 6; order++) {
+            BiquadFilter f = Butterworth.lowPass(order, FS, 40);
+            assertEquals((order + 1) / 2, f.getSectionCount());
+            assertEquals(1, f.getMagnitude(0, FS), 1e-9);
+            assertEquals(Math.sqrt(0.5), f.getMagnitude(40, FS), 1e-9);
+            for (double freq = 1; freq < FS / 2; freq += 7) {
+                assertEquals(butterworth(tanRatio(freq) / tanRatio(40), order), f.getMagnitude(freq, FS), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void highPass_matchesAnalogResponse() {
+        for (int order = 1; order <= 6; order++) {
+            BiquadFilter f = Butterworth.highPass(order, FS, 0.5);
+            assertEquals(0, f.getMagnitude(0, FS), 1e-9);
+            assertEquals(Math.sqrt(0.5), f.getMagnitude(0.5, FS), 1e-9);
+            for (double freq = 0.1; freq < FS / 2; freq *= 1.7) {
+                assertEquals(butterworth(tanRatio(0.5) / tanRatio(freq), order), f.getMagnitude(freq, FS), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void bandPass_matchesAnalogResponse() {
+        for (int order = 1; order <= 4; order++) {
+            BiquadFilter f = Butterworth.bandPass(order, FS, 0.5, 40);
+            assertEquals(order, f.getSectionCount());
+            double w1 = tanRatio(0.5);
+            double w2 = tanRatio(40);
+            assertEquals(Math.sqrt(0.5), f.getMagnitude(0.5, FS), 1e-9);
+            assertEquals(Math.sqrt(0.5), f.getMagnitude(40, FS), 1e-9);
+            for (double freq = 0.1; freq < FS / 2; freq *= 1.5) {
+                double w = tanRatio(freq);
+                double x = (w * w - w1 * w2) / ((w2 - w1) * w);
+                assertEquals(butterworth(x, order), f.getMagnitude(freq, FS), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void bandStop_matchesAnalogResponse() {
+        for (int order = 1; order <= 4; order++) {
+            BiquadFilter f = Butterworth.bandStop(order, FS, 45, 55);
+            double w1 = tanRatio(45);
+            double w2 = tanRatio(55);
+            assertEquals(1, f.getMagnitude(0, FS), 1e-9);
+            for (double freq = 1; freq < FS / 2; freq += 3.3) {
+                double w = tanRatio(freq);
+                double x = (w2 - w1) * w / (w1 * w2 - w * w);
+                assertEquals(butterworth(x, order), f.getMagnitude(freq, FS), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void notch_removesMainsNoise() {
+        BiquadFilter f = Butterworth.notch(2, FS, 50, 4);
+        assertEquals(0, f.getMagnitude(50, FS), 1e-9);
+        assertEquals(Math.sqrt(0.5), f.getMagnitude(48, FS), 0.02);
+        assertTrue(measureGain(f, 50) < 0.01);
+        f.reset();
+        assertEquals(1, measureGain(f, 5), 0.01);
+    }
+
+    @Test
+    public void lowPass_rollOffPerOrder() {
+        //6 dB per octave and order, well above the cutoff
+        for (int order = 1; order <= 4; order++) {
+            BiquadFilter f = Butterworth.lowPass(order, 10000, 10);
+            double db = 20 * Math.log10(f.getMagnitude(40, 10000) / f.getMagnitude(80, 10000));
+            assertEquals(6.02 * order, db, 0.3);
+        }
+    }
+
+    @Test
+    public void filtering_matchesDesignedResponse() {
+        BiquadFilter f = Butterworth.lowPass(4, FS, 20);
+        for (double freq : new double[]{2, 20, 30, 60}) {
+            f.reset();
+            assertEquals(f.getMagnitude(freq, FS), measureGain(f, freq), 0.01);
+        }
+    }
+
+    @Test
+    public void firstReading_passesThroughLowPass() {
+        BiquadFilter f = Butterworth.lowPass(4, FS, 5);
+        float[] out = f.apply(100000f, -3f);
+        assertEquals(100000f, out[0], 0.1f);
+        assertEquals(-3f, out[1], 1e-4f);
+        out = f.apply(100000f, -3f);
+        assertEquals(100000f, out[0], 0.1f);
+        assertEquals(-3f, out[1], 1e-4f);
+    }
+
+    @Test
+    public void channels_areIndependent() {
+        BiquadFilter multi = Butterworth.bandPass(2, FS, 1, 30);
+        BiquadFilter single = Butterworth.bandPass(2, FS, 1, 30);
+        float[] frame = new float[3];
+        float[] one = new float[1];
+        for (int i = 0; i < 500; i++) {
+            frame[0] = i % 13;
+            frame[1] = (float) Math.sin(i * 0.3) * 1000;
+            frame[2] = -i;
+            one[0] = frame[1];
+            multi.apply(frame, 0, frame, 0, 3);
+            single.apply(one, 0, one, 0, 1);
+            assertEquals(one[0], frame[1], 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutoffAboveNyquist_throws() {
+        Butterworth.lowPass(2, FS, 130);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void init_wrongCoefficientCount_throws() {
+        new BiquadFilter().init(1, 0, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionChange_throws() {
+        BiquadFilter f = Butterworth.lowPass(2, FS, 10);
+        f.apply(1f, 2f);
+        f.apply(1f);
+    }
+}
@@ -0,0 +1,125 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterAllocationTests {
+
+    private static final int CHANNELS = 3;
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(Filter f, float[] buffer, float[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            buffer[0] = i;
+            buffer[1] = -i;
+            buffer[2] = i % 7;
+            f.apply(buffer, 0, out, 0, CHANNELS);
+        }
+    }
+
+    private static void assertNoAllocation(Filter f) {
+        float[] buffer = new float[CHANNELS];
+        float[] out = new float[CHANNELS];
+        //warm up, so the measurement does not include class loading or compilation
+        run(f, buffer, out, 20000);
+        long before = allocatedBytes();
+        Assume.assumeTrue(before >= 0);
+        int n = 1000000;
+        run(f, buffer, out, n);
+        long allocated = allocatedBytes() - before;
+        //the smallest object is 16 bytes, so a single allocation per reading would be at least 16 MB.
+        //allow for a little noise from the JVM itself
+        assertTrue("bytes allocated by " + f.getClass().getSimpleName() + ": " + allocated, allocated < n / 10);
+    }
+
+    @Test
+    public void lowPass_doesNotAllocate() {
+        LowPassFilter f = new LowPassFilter();
+        f.init(0.2f, CHANNELS);
+        assertNoAllocation(f);
+    }
+
+    @Test
+    public void highPass_doesNotAllocate() {
+        HighPassFilter f = new HighPassFilter();
+        f.init(0.8f, CHANNELS);
+        assertNoAllocation(f);
+    }
+
+    @Test
+    public void biquad_doesNotAllocate() {
+        assertNoAllocation(Butterworth.bandPass(4, 250, 0.5, 40));
+    }
+
+    @Test
+    public void fir_doesNotAllocate() {
+        assertNoAllocation(WindowedSinc.lowPass(101, 250, 40));
+    }
+
+    @Test
+    public void madgwick_doesNotAllocate() {
+        MadgwickFilter f = new MadgwickFilter();
+        float[] frame = new float[]{0.1f, -0.2f, 0.05f, 0.5f, 0.3f, 9.7f, 5f, 20f, -40f};
+        for (int i = 0; i < 20000; i++) {
+            f.offer(i * 5000000L, frame, 0, frame.length);
+        }
+        long before = allocatedBytes();
+        Assume.assumeTrue(before >= 0);
+        int n = 1000000;
+        for (int i = 20000; i < 20000 + n; i++) {
+            f.offer(i * 5000000L, frame, 0, frame.length);
+        }
+        long allocated = allocatedBytes() - before;
+        assertTrue("bytes allocated by MadgwickFilter: " + allocated, allocated < n / 10);
+    }
+
+    @Test
+    public void reusedInput_doesNotCorruptState() {
+        float[] buffer = new float[]{1f, 2f, 3f};
+        float[] out = new float[CHANNELS];
+        LowPassFilter reused = new LowPassFilter();
+        reused.init(0.5f);
+        LowPassFilter copied = new LowPassFilter();
+        copied.init(0.5f);
+        for (int i = 0; i < 10; i++) {
+            buffer[0] = i;
+            buffer[1] = 2 * i;
+            buffer[2] = 10 - i;
+            reused.apply(buffer, 0, out, 0, CHANNELS);
+            //in place, as with SensorEvent.values
+            assertArrayEquals(out, copied.apply(buffer.clone()), 0f);
+        }
+    }
+
+    @Test
+    public void inPlace_withOffsets() {
+        float[] frames = new float[]{9f, 1f, 2f, 9f, 3f, 4f};
+        HighPassFilter f = new HighPassFilter();
+        f.init(0.5f);
+        f.apply(frames, 1, frames, 1, 2);
+        f.apply(frames, 4, frames, 4, 2);
+        assertArrayEquals(new float[]{9f, 1f, 2f, 9f, 1.5f, 2f}, frames, 0f);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void apply_checksBounds() {
+        LowPassFilter f = new LowPassFilter();
+        f.init(0.5f);
+        f.apply(new float[3], 1, new float[3], 0, 3);
+    }
+}
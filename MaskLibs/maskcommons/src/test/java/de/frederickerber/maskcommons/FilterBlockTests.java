@@ -0,0 +1,81 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FilterBlockTests {
+
+    private static float[] frames(int channels, int frames) {
+        Random r = new Random(channels * 31 + frames);
+        float[] data = new float[channels * frames];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) r.nextGaussian() * 10;
+        }
+        return data;
+    }
+
+    /**
+     * Filter the frames in blocks of varying size and compare with filtering them one at a time.
+     */
+    private static void assertBlockMatchesSingle(Filter block, Filter single, int channels) {
+        int n = 200;
+        float[] in = frames(channels, n);
+        float[] expected = new float[in.length];
+        for (int f = 0; f < n; f++) {
+            single.apply(in, f * channels, expected, f * channels, channels);
+        }
+        float[] out = new float[in.length];
+        int[] sizes = {1, 0, 64, 7, 128};
+        int f = 0;
+        for (int size : sizes) {
+            block.applyBlock(in, f * channels, out, f * channels, channels, size);
+            f += size;
+        }
+        assertArrayEquals(expected, out, 0f);
+    }
+
+    @Test
+    public void lowPass_blockMatchesSingle() {
+        for (int channels : new int[]{1, 3, 5}) {
+            LowPassFilter block = new LowPassFilter();
+            block.init(0.3f);
+            LowPassFilter single = new LowPassFilter();
+            single.init(0.3f);
+            assertBlockMatchesSingle(block, single, channels);
+        }
+    }
+
+    @Test
+    public void highPass_blockMatchesSingle() {
+        for (int channels : new int[]{1, 3, 5}) {
+            HighPassFilter block = new HighPassFilter();
+            block.init(0.7f);
+            HighPassFilter single = new HighPassFilter();
+            single.init(0.7f);
+            assertBlockMatchesSingle(block, single, channels);
+        }
+    }
+
+    @Test
+    public void block_inPlace() {
+        float[] data = frames(3, 64);
+        float[] expected = new float[data.length];
+        LowPassFilter single = new LowPassFilter();
+        single.init(0.5f);
+        single.applyBlock(data, 0, expected, 0, 3, 64);
+        LowPassFilter inPlace = new LowPassFilter();
+        inPlace.init(0.5f);
+        inPlace.applyBlock(data, 0, data, 0, 3, 64);
+        assertArrayEquals(expected, data, 0f);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void block_checksBounds() {
+        HighPassFilter f = new HighPassFilter();
+        f.init(0.5f);
+        f.applyBlock(new float[30], 0, new float[29], 0, 3, 10);
+    }
+}
@@ -0,0 +1,69 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilterChainTests {
+
+    @Test
+    public void spec_roundTrips() {
+        FilterChain chain = new FilterChain().lowPass(0.2f).notch(2, 250, 50, 4).decimate(25);
+        assertEquals("lowpass(0.2);notch(2.0,250.0,50.0,4.0);decimate(25.0)", chain.toString());
+        FilterChain parsed = FilterChain.parse(chain.toString());
+        assertEquals(chain, parsed);
+        assertEquals(chain.hashCode(), parsed.hashCode());
+        assertEquals(3, parsed.getStageCount());
+        assertEquals(FilterChain.NOTCH, parsed.getStageType(1));
+        assertArrayEquals(new float[]{2, 250, 50, 4}, parsed.getStageParams(1), 0f);
+    }
+
+    @Test
+    public void parse_isLenient() {
+        assertEquals(new FilterChain().highPass(0.9f).decimate(10), FilterChain.parse(" HighPass( 0.9 ) ;decimate(10);"));
+        assertTrue(FilterChain.parse("").isEmpty());
+    }
+
+    @Test
+    public void differentParameters_areNotEqual() {
+        assertNotEquals(new FilterChain().lowPass(0.2f), new FilterChain().lowPass(0.3f));
+        assertNotEquals(new FilterChain().lowPass(0.2f).decimate(25), new FilterChain().decimate(25).lowPass(0.2f));
+    }
+
+    @Test
+    public void createFilter_matchesStage() {
+        FilterChain chain = new FilterChain().butterworthLowPass(4, 100, 10).decimate(5);
+        assertTrue(chain.createFilter(0) instanceof BiquadFilter);
+        assertEquals(2, ((BiquadFilter) chain.createFilter(0)).getSectionCount());
+        assertNull(chain.createFilter(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFilter_throws() {
+        FilterChain.parse("median(5)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongArity_throws() {
+        FilterChain.parse("lowpass(0.2,0.3)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidAlpha_throws() {
+        new FilterChain().lowPass(2f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutoffAboveNyquist_throws() {
+        FilterChain.parse("butterlow(2,100,60)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fractionalDecimation_throws() {
+        FilterChain.parse("decimate(2.5)");
+    }
+}
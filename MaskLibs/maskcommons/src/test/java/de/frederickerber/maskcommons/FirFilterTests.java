@@ -0,0 +1,174 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FirFilterTests {
+
+    private static float[] randomTaps(int n) {
+        Random r = new Random(n);
+        float[] taps = new float[n];
+        for (int i = 0; i < n; i++) {
+            taps[i] = (float) r.nextGaussian() / n;
+        }
+        return taps;
+    }
+
+    private static float[] frames(int channels, int frames) {
+        Random r = new Random(channels * 17 + frames);
+        float[] data = new float[channels * frames];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) r.nextGaussian() * 10 + 50;
+        }
+        return data;
+    }
+
+    /**
+     * Convolve by definition, the readings before the first one equal the first one.
+     */
+    private static float[] naive(float[] taps, float[] in, int channels) {
+        int frames = in.length / channels;
+        float[] out = new float[in.length];
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                double acc = 0;
+                for (int k = 0; k < taps.length; k++) {
+                    acc += taps[k] * in[Math.max(0, f - k) * channels + c];
+                }
+                out[f * channels + c] = (float) acc;
+            }
+        }
+        return out;
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i], 1e-3f * Math.max(1, Math.abs(expected[i])));
+        }
+    }
+
+    /**
+     * Filter in blocks of the given sizes, in place.
+     */
+    private static float[] filterInBlocks(FirFilter f, float[] in, int channels, int... sizes) {
+        float[] out = in.clone();
+        int frame = 0;
+        for (int size : sizes) {
+            f.applyBlock(out, frame * channels, out, frame * channels, channels, size);
+            frame += size;
+        }
+        assertEquals(in.length / channels, frame);
+        return out;
+    }
+
+    @Test
+    public void direct_matchesDefinition() {
+        for (int channels : new int[]{1, 3}) {
+            float[] taps = randomTaps(17);
+            float[] in = frames(channels, 300);
+            FirFilter f = new FirFilter(taps);
+            f.setPath(FirFilter.PATH_DIRECT);
+            assertClose(naive(taps, in, channels), filterInBlocks(f, in, channels, 1, 100, 0, 150, 49));
+        }
+    }
+
+    @Test
+    public void fft_matchesDefinition() {
+        for (int taps : new int[]{33, 101, 256}) {
+            for (int channels : new int[]{1, 2, 3, 5}) {
+                float[] kernel = randomTaps(taps);
+                float[] in = frames(channels, 5000);
+                FirFilter f = new FirFilter(kernel);
+                f.setPath(FirFilter.PATH_FFT);
+                //blocks shorter than the kernel fall back to the direct path
+                assertClose(naive(kernel, in, channels), filterInBlocks(f, in, channels, 7, 2000, 10, 2983));
+            }
+        }
+    }
+
+    @Test
+    public void auto_matchesDefinition() {
+        float[] kernel = randomTaps(301);
+        float[] in = frames(2, 6000);
+        FirFilter f = new FirFilter(kernel);
+        assertClose(naive(kernel, in, 2), filterInBlocks(f, in, 2, 1, 50, 4000, 300, 1, 1648));
+    }
+
+    @Test
+    public void auto_choosesPathByKernelAndBlock() {
+        FirFilter shortKernel = new FirFilter(randomTaps(15));
+        assertFalse(shortKernel.usesFft(4096, 2));
+        FirFilter longKernel = new FirFilter(randomTaps(501));
+        assertFalse(longKernel.usesFft(1, 2));
+        assertFalse(longKernel.usesFft(100, 2));
+        assertTrue(longKernel.usesFft(4096, 2));
+    }
+
+    @Test
+    public void lowPass_attenuatesStopBand() {
+        double fs = 500;
+        FirFilter f = WindowedSinc.lowPass(201, fs, 40);
+        int n = 4000;
+        float[] pass = new float[n];
+        float[] stop = new float[n];
+        for (int i = 0; i < n; i++) {
+            pass[i] = (float) Math.sin(2 * Math.PI * 5 * i / fs);
+            stop[i] = (float) Math.sin(2 * Math.PI * 60 * i / fs);
+        }
+        f.applyBlock(pass, 0, pass, 0, 1, n);
+        f.reset();
+        f.applyBlock(stop, 0, stop, 0, 1, n);
+        double passPeak = 0;
+        double stopPeak = 0;
+        for (int i = 1000; i < n; i++) {
+            passPeak = Math.max(passPeak, Math.abs(pass[i]));
+            stopPeak = Math.max(stopPeak, Math.abs(stop[i]));
+        }
+        assertEquals(1, passPeak, 0.01);
+        assertTrue("stop band gain " + stopPeak, stopPeak < 0.005);
+    }
+
+    @Test
+    public void highPass_removesBaseline() {
+        double fs = 500;
+        FirFilter f = WindowedSinc.highPass(1001, fs, 1);
+        int n = 5000;
+        float[] data = new float[n];
+        for (int i = 0; i < n; i++) {
+            //a slowly drifting baseline with a 10 Hz signal on top
+            data[i] = (float) (1000 + 50 * Math.sin(2 * Math.PI * 0.05 * i / fs) + Math.sin(2 * Math.PI * 10 * i / fs));
+        }
+        f.applyBlock(data, 0, data, 0, 1, n);
+        double peak = 0;
+        for (int i = 1000; i < n; i++) {
+            peak = Math.max(peak, Math.abs(data[i]));
+        }
+        assertEquals(1, peak, 0.05);
+    }
+
+    @Test
+    public void firstReading_passesThroughLowPass() {
+        FirFilter f = WindowedSinc.lowPass(51, 100, 10);
+        float[] out = f.apply(20000f, -5f);
+        assertEquals(20000f, out[0], 0.5f);
+        assertEquals(-5f, out[1], 1e-3f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void evenTaps_throws() {
+        WindowedSinc.lowPass(50, 100, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionChange_throws() {
+        FirFilter f = new FirFilter(0.5f, 0.5f);
+        f.apply(1f, 2f);
+        f.apply(1f);
+    }
+}
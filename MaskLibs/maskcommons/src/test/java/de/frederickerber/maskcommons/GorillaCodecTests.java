@@ -0,0 +1,117 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GorillaCodecTests {
+
+    @Test
+    public void bitStream_roundTrip() {
+        BitWriter w = new BitWriter(1);
+        Random r = new Random(1);
+        long[] values = new long[1000];
+        int[] widths = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            widths[i] = r.nextInt(65);
+            values[i] = widths[i] == 0 ? 0 : r.nextLong() & (-1L >>> (64 - widths[i]));
+            w.writeBits(values[i], widths[i]);
+        }
+        byte[] data = w.toByteArray();
+        BitReader in = new BitReader();
+        in.reset(data, 0, data.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], in.readBits(widths[i]));
+        }
+        assertFalse(in.isOverrun());
+        assertTrue(in.remaining() < 8);
+        in.readBits(8);
+        assertTrue(in.isOverrun());
+    }
+
+    @Test
+    public void encodeDecode_isExact() {
+        Random r = new Random(2);
+        GorillaEncoder enc = new GorillaEncoder();
+        enc.reset(SensorType.ACCELEROMETER, 2, 3);
+        long[] ts = new long[500];
+        float[][] values = new float[ts.length][3];
+        long t = Long.MAX_VALUE / 2;
+        for (int i = 0; i < ts.length; i++) {
+            //steady rate with jitter and the occasional gap or reordering
+            t += 20000000L + r.nextInt(100000) - 50000;
+            if (i % 97 == 0) {
+                t += r.nextInt(Integer.MAX_VALUE);
+            }
+            if (i % 131 == 0) {
+                t -= 1000000000000L;
+            }
+            ts[i] = t;
+            values[i][0] = (float) r.nextGaussian();
+            values[i][1] = i % 50 == 0 ? Float.NaN : 9.81f;
+            values[i][2] = i % 2 == 0 ? Float.MAX_VALUE : -0.0f;
+            enc.add(ts[i], values[i]);
+        }
+        byte[] data = enc.toByteArray();
+
+        GorillaDecoder dec = new GorillaDecoder();
+        assertTrue(dec.reset(data));
+        assertEquals(SensorType.ACCELEROMETER, dec.getSensorType());
+        assertEquals(2, dec.getDeviceIndex());
+        assertEquals(ts.length, dec.getCount());
+        assertEquals(3, dec.getChannelCount());
+        SensorSample s = new SensorSample();
+        for (int i = 0; i < ts.length; i++) {
+            assertTrue(dec.next(s));
+            assertEquals(ts[i], s.getTimestamp());
+            for (int c = 0; c < 3; c++) {
+                assertEquals(Float.floatToRawIntBits(values[i][c]), Float.floatToRawIntBits(s.getValue(c)));
+            }
+        }
+        assertFalse(dec.next(s));
+    }
+
+    @Test
+    public void slowSignal_shrinksTenfold() {
+        GorillaEncoder enc = new GorillaEncoder();
+        enc.reset(SensorType.TEMPERATURE, 0, 1);
+        float[] value = new float[1];
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            //a thermometer with a resolution of 0.1 degrees, read once a second
+            value[0] = Math.round(215 + 10 * Math.sin(i / 200.0)) / 10f;
+            enc.add(1000000000L * i, value);
+        }
+        int length = enc.finish();
+        int plain = n * SensorSample.encodedSize(1);
+        assertTrue("compressed to " + length + " of " + plain + " bytes", length * 10 < plain);
+    }
+
+    @Test
+    public void truncatedBlock_isDetected() {
+        GorillaEncoder enc = new GorillaEncoder();
+        enc.reset(SensorType.HEART_RATE, 0, 1);
+        for (int i = 0; i < 100; i++) {
+            enc.add(i * 1000L, new float[]{(float) Math.sqrt(i)});
+        }
+        byte[] data = enc.toByteArray();
+        GorillaDecoder dec = new GorillaDecoder();
+        assertTrue(dec.reset(data, 0, data.length / 2));
+        float[] v = new float[1];
+        int read = 0;
+        while (dec.next(v)) {
+            read++;
+        }
+        assertTrue(read < 100);
+        assertFalse(dec.reset(data, 0, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_checksChannels() {
+        GorillaEncoder enc = new GorillaEncoder();
+        enc.reset(SensorType.ACCELEROMETER, 0, 3);
+        enc.add(0L, new float[2]);
+    }
+}
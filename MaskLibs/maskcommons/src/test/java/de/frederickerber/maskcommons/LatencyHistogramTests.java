@@ -0,0 +1,49 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void bucketOf_isPowerOfTwo() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(2));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(11, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        for (long l = 1; l < 1 << 20; l = l * 3 + 1) {
+            assertTrue(l < LatencyHistogram.upperBound(LatencyHistogram.bucketOf(l)));
+        }
+    }
+
+    @Test
+    public void percentile_isBucketBound() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentile(0.5));
+        for (int i = 0; i < 99; i++) {
+            h.record(1000);
+        }
+        h.record(1000000);
+        assertEquals(100, h.getTotal());
+        assertEquals(1024, h.percentile(0.5));
+        assertEquals(1024, h.percentile(0.99));
+        assertEquals(1L << 20, h.percentile(1.0));
+    }
+
+    @Test
+    public void copy_keepsCounts() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(5);
+        h.record(70);
+        LatencyHistogram copy = new LatencyHistogram(h.getCounts());
+        assertEquals(2, copy.getTotal());
+        assertEquals(1, copy.getCount(LatencyHistogram.bucketOf(70)));
+        h.clear();
+        assertEquals(0, h.getTotal());
+        assertEquals(2, copy.getTotal());
+    }
+}
@@ -0,0 +1,153 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MadgwickFilterTests {
+
+    private static final long PERIOD = 10000000L;
+    private static final double G = 9.81;
+    //horizontal and downward part of the magnetic field in microtesla
+    private static final double[] FIELD = {0, 20, -40};
+
+    /**
+     * @return The quaternion {x, y, z, w} of a rotation by {@code angle} about a unit axis.
+     */
+    private static double[] axisAngle(double ax, double ay, double az, double angle) {
+        double s = Math.sin(angle / 2);
+        return new double[]{ax * s, ay * s, az * s, Math.cos(angle / 2)};
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        return new double[]{
+                a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+                a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+                a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+                a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2]};
+    }
+
+    /**
+     * @return The world vector v in device coordinates, for the device orientation q.
+     */
+    private static double[] toDevice(double[] q, double[] v) {
+        double[] conj = {-q[0], -q[1], -q[2], q[3]};
+        double[] r = multiply(multiply(conj, new double[]{v[0], v[1], v[2], 0}), q);
+        return new double[]{r[0], r[1], r[2]};
+    }
+
+    /**
+     * Fill a frame as a device with orientation q would measure it.
+     */
+    private static void measure(double[] q, double[] omegaDevice, float[] frame) {
+        double[] g = toDevice(q, new double[]{0, 0, G});
+        double[] m = toDevice(q, FIELD);
+        for (int i = 0; i < 3; i++) {
+            frame[i] = (float) omegaDevice[i];
+            frame[3 + i] = (float) g[i];
+            if (frame.length > 6) {
+                frame[6 + i] = (float) m[i];
+            }
+        }
+    }
+
+    /**
+     * @return The angle between the filter's orientation and q in radians.
+     */
+    private static double error(MadgwickFilter f, double[] q) {
+        float[] o = f.getOutput();
+        double dot = Math.abs(o[0] * q[0] + o[1] * q[1] + o[2] * q[2] + o[3] * q[3]);
+        return 2 * Math.acos(Math.min(1, dot));
+    }
+
+    @Test
+    public void flatPointingNorth_isIdentity() {
+        MadgwickFilter f = new MadgwickFilter();
+        float[] frame = new float[9];
+        measure(new double[]{0, 0, 0, 1}, new double[3], frame);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(f.offer(i * PERIOD, frame, 0, 9));
+        }
+        float[] o = f.getOutput();
+        assertEquals(0f, o[0], 1e-5f);
+        assertEquals(0f, o[1], 1e-5f);
+        assertEquals(0f, o[2], 1e-5f);
+        assertEquals(1f, o[3], 1e-5f);
+    }
+
+    @Test
+    public void staticOrientation_isFoundFromTheFirstFrame() {
+        //facing west, tilted forward and to the side
+        double[] q = multiply(axisAngle(0, 0, 1, Math.PI / 2), multiply(axisAngle(1, 0, 0, 0.4), axisAngle(0, 1, 0, -0.7)));
+        MadgwickFilter f = new MadgwickFilter();
+        float[] frame = new float[9];
+        measure(q, new double[3], frame);
+        f.offer(0, frame, 0, 9);
+        assertEquals(0, error(f, q), 1e-3);
+        for (int i = 1; i < 500; i++) {
+            f.offer(i * PERIOD, frame, 0, 9);
+        }
+        assertEquals(0, error(f, q), 1e-3);
+    }
+
+    @Test
+    public void rotation_followsGyroscope() {
+        MadgwickFilter f = new MadgwickFilter();
+        double[] tilt = axisAngle(1, 0, 0, 0.3);
+        double rate = 1;
+        float[] frame = new float[9];
+        double maxError = 0;
+        //turn about the vertical for 10 seconds
+        for (int i = 0; i < 1000; i++) {
+            double[] q = multiply(axisAngle(0, 0, 1, rate * i * PERIOD * 1e-9), tilt);
+            measure(q, toDevice(q, new double[]{0, 0, rate}), frame);
+            f.offer(i * PERIOD, frame, 0, 9);
+            maxError = Math.max(maxError, error(f, q));
+        }
+        assertTrue("max error " + maxError, maxError < 0.02);
+    }
+
+    @Test
+    public void wrongHeading_isCorrectedByMagneticField() {
+        MadgwickFilter f = new MadgwickFilter();
+        double[] q = axisAngle(0, 0, 1, 1.0);
+        float[] frame = new float[9];
+        //the first frame has no magnetic field, so the filter starts with some heading
+        measure(q, new double[3], frame);
+        float[] imu = new float[6];
+        System.arraycopy(frame, 0, imu, 0, 6);
+        f.offer(0, imu, 0, 6);
+        double initial = error(f, q);
+        for (int i = 1; i < 2000; i++) {
+            f.offer(i * PERIOD, frame, 0, 9);
+        }
+        assertTrue(initial > 0.1);
+        assertEquals(0, error(f, q), 1e-2);
+    }
+
+    @Test
+    public void imu_tracksTilt() {
+        MadgwickFilter f = new MadgwickFilter();
+        float[] frame = new float[6];
+        double rate = 0.5;
+        //roll about the device's x axis for 2 seconds
+        for (int i = 0; i < 200; i++) {
+            double[] q = axisAngle(1, 0, 0, rate * i * PERIOD * 1e-9);
+            measure(q, new double[]{rate, 0, 0}, frame);
+            f.offer(i * PERIOD, frame, 0, 6);
+        }
+        //without a magnetic field only the direction of up is known
+        float[] o = f.getOutput();
+        double[] up = toDevice(new double[]{o[0], o[1], o[2], o[3]}, new double[]{0, 0, 1});
+        double[] expected = toDevice(axisAngle(1, 0, 0, rate * 199 * PERIOD * 1e-9), new double[]{0, 0, 1});
+        for (int k = 0; k < 3; k++) {
+            assertEquals(expected[k], up[k], 1e-2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongChannels_throws() {
+        new MadgwickFilter().offer(0, new float[3], 0, 3);
+    }
+}
@@ -0,0 +1,122 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SensorHistoryTests {
+
+    private static void fill(SensorHistory h, int n, long step) {
+        float[] v = new float[3];
+        for (int i = 0; i < n; i++) {
+            v[0] = i;
+            v[1] = -i;
+            v[2] = i * 0.5f;
+            assertTrue(h.add(i * step, v, 0, 3));
+        }
+    }
+
+    @Test
+    public void window_matchesLinearScan() {
+        Random r = new Random(3);
+        for (int capacity : new int[]{1, 7, 64}) {
+            SensorHistory h = new SensorHistory(capacity, 3);
+            int n = 3 * capacity + 5;
+            fill(h, n, 10);
+            assertEquals(capacity, h.size());
+            long oldest = (n - capacity) * 10L;
+            assertEquals(oldest, h.getOldestTimestamp());
+            assertEquals((n - 1) * 10L, h.getLatestTimestamp());
+            SensorHistory.Window w = new SensorHistory.Window();
+            long[] ts = new long[capacity];
+            float[] values = new float[3 * capacity];
+            for (int q = 0; q < 200; q++) {
+                long from = oldest - 20 + r.nextInt(capacity * 10 + 40);
+                long to = from + r.nextInt(capacity * 10 + 20) - 5;
+                //linear scan over the readings still in the history
+                int expectedFirst = -1;
+                int expected = 0;
+                for (int i = n - capacity; i < n; i++) {
+                    if (i * 10L >= from && i * 10L < to) {
+                        if (expectedFirst < 0) {
+                            expectedFirst = i;
+                        }
+                        expected++;
+                    }
+                }
+                assertEquals(expected, h.count(from, to));
+                assertEquals(expected, h.window(from, to, w));
+                assertEquals(expected, w.size());
+                for (int i = 0; i < expected; i++) {
+                    assertEquals((expectedFirst + i) * 10L, w.getTimestamp(i));
+                    assertEquals(-(expectedFirst + i), w.getValue(i, 1), 0f);
+                }
+                //the segments cover the window
+                int first = w.getFirstLength();
+                assertTrue(first <= expected);
+                for (int i = 0; i < first; i++) {
+                    assertEquals(w.getTimestamp(i), w.getTimestamps()[w.getFirstOffset() + i]);
+                }
+                for (int i = first; i < expected; i++) {
+                    assertEquals(w.getTimestamp(i), w.getTimestamps()[i - first]);
+                }
+                assertEquals(expected, h.copyWindow(from, to, ts, values, capacity));
+                for (int i = 0; i < expected; i++) {
+                    assertEquals((expectedFirst + i) * 10L, ts[i]);
+                    assertEquals((expectedFirst + i) * 0.5f, values[3 * i + 2], 0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void copyWindow_keepsLatestIfTooSmall() {
+        SensorHistory h = new SensorHistory(16, 3);
+        fill(h, 20, 1);
+        long[] ts = new long[3];
+        assertEquals(3, h.copyWindow(0, 100, ts, null, 3));
+        assertArrayEquals(new long[]{17, 18, 19}, ts);
+    }
+
+    @Test
+    public void add_dropsOutOfOrderAndPads() {
+        SensorHistory h = new SensorHistory(4, 2);
+        assertTrue(h.add(10, 1f));
+        assertFalse(h.add(5, 2f));
+        assertTrue(h.add(10, new float[]{3f, 4f, 5f}, 0, 3));
+        assertEquals(1, h.getDropped());
+        SensorHistory.Window w = new SensorHistory.Window();
+        assertEquals(2, h.window(10, 11, w));
+        assertTrue(Float.isNaN(w.getValue(0, 1)));
+        assertEquals(4f, w.getValue(1, 1), 0f);
+        assertEquals(4 * 8 + 4 * 2 * 4, h.getMemoryBytes());
+        h.clear();
+        assertEquals(0, h.window(0, 100, w));
+    }
+
+    @Test
+    public void add_doesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        SensorHistory h = new SensorHistory(1000, 3);
+        SensorHistory.Window w = new SensorHistory.Window();
+        float[] v = new float[]{1f, 2f, 3f};
+        int n = 1000000;
+        for (int i = 0; i < 20000; i++) {
+            h.add(i, v, 0, 3);
+            h.window(i - 500, i, w);
+        }
+        long before = sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 20000; i < 20000 + n; i++) {
+            h.add(i, v, 0, 3);
+            h.window(i - 500, i, w);
+        }
+        long allocated = sun.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("bytes allocated: " + allocated, allocated < n / 10);
+    }
+}
@@ -0,0 +1,94 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorSampleTests {
+
+    @Test
+    public void encodeDecode_isCorrect() {
+        float[] values = new float[]{0.5f, -9.81f, Float.MAX_VALUE, Float.MIN_VALUE, Float.NaN};
+        long timestamp = System.nanoTime() | (1L << 62);
+        byte[] data = SensorSample.encode(SensorType.ACCELEROMETER, 3, timestamp, values);
+        assertEquals(SensorSample.encodedSize(values.length), data.length);
+
+        SensorSample s = new SensorSample();
+        assertTrue(s.readFrom(data));
+        assertEquals(SensorType.ACCELEROMETER, s.getSensorType());
+        assertEquals(3, s.getDeviceIndex());
+        assertEquals(timestamp, s.getTimestamp());
+        assertArrayEquals(values, s.copyValues(), 0.0f);
+        assertArrayEquals(data, s.toByteArray());
+    }
+
+    @Test
+    public void encodeDecode_withoutValues() {
+        byte[] data = SensorSample.encode(SensorType.STEP_DETECTOR, 0, -1L, null);
+        assertEquals(SensorSample.HEADER_SIZE, data.length);
+        SensorSample s = new SensorSample(SensorType.ACCELEROMETER, 1, 2L, new float[]{1f, 2f, 3f});
+        assertTrue(s.readFrom(data));
+        assertEquals(SensorType.STEP_DETECTOR, s.getSensorType());
+        assertEquals(-1L, s.getTimestamp());
+        assertEquals(0, s.getValueCount());
+    }
+
+    @Test
+    public void writeTo_respectsOffset() {
+        SensorSample s = new SensorSample(SensorType.GYROSCOPE, 2, 42L, new float[]{1f, 2f, 3f});
+        byte[] buf = new byte[7 + SensorSample.encodedSize(3)];
+        assertEquals(buf.length, s.writeTo(buf, 7));
+        SensorSample d = new SensorSample();
+        assertTrue(d.readFrom(buf, 7, buf.length - 7));
+        assertEquals(42L, d.getTimestamp());
+        assertEquals(3f, d.getValue(2), 0.0f);
+    }
+
+    @Test
+    public void readFrom_rejectsMalformed() {
+        byte[] data = SensorSample.encode(SensorType.GYROSCOPE, 0, 1L, new float[]{1f, 2f, 3f});
+        SensorSample s = new SensorSample(SensorType.LIGHT, 5, 7L, new float[]{4f});
+        assertFalse(s.readFrom(null));
+        assertFalse(s.readFrom(new byte[SensorSample.HEADER_SIZE - 1]));
+        //truncated values
+        assertFalse(s.readFrom(data, 0, data.length - 1));
+        //negative value count
+        data[16] = (byte) 0x80;
+        assertFalse(s.readFrom(data));
+        //the sample was left untouched
+        assertEquals(SensorType.LIGHT, s.getSensorType());
+        assertEquals(5, s.getDeviceIndex());
+        assertEquals(4f, s.getValue(0), 0.0f);
+    }
+
+    @Test
+    public void encodeDecode_quantized() {
+        float[] values = new float[]{1013.25f, 987.6f, 1100f};
+        ValueEncoding e = ValueEncoding.forSensor(SensorType.PRESSURE);
+        byte[] data = SensorSample.encode(SensorType.PRESSURE, 1, 99L, values, e);
+        assertEquals(SensorSample.encodedSize(values.length, e), data.length);
+        assertEquals(SensorSample.HEADER_SIZE + 6, data.length);
+
+        SensorSample s = new SensorSample();
+        //scale and offset are not sent
+        assertFalse(s.readFrom(data, 0, data.length));
+        assertFalse(s.readFrom(data, 0, data.length, ValueEncoding.HALF));
+        assertTrue(s.readFrom(data, 0, data.length, e));
+        assertEquals(99L, s.getTimestamp());
+        assertEquals(3, s.getValueCount());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], s.getValue(i), e.getMaxError(values[i]));
+        }
+
+        //half-precision floats decode without knowing the subscription
+        data = SensorSample.encode(SensorType.LIGHT, 0, 5L, new float[]{321.7f}, ValueEncoding.HALF);
+        assertTrue(s.readFrom(data, 0, data.length));
+        assertEquals(321.7f, s.getValue(0), ValueEncoding.HALF.getMaxError(321.7f));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getValue_rejectsIndexOutOfRange() {
+        SensorSample s = new SensorSample(SensorType.LIGHT, 0, 0L, new float[]{1f});
+        s.getValue(1);
+    }
+}
@@ -0,0 +1,134 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class SharedRingBufferTests {
+
+    @Test
+    public void writeRead_isCorrect() {
+        ByteBuffer buf = ByteBuffer.allocate(SharedRingBuffer.requiredCapacity(8, 3));
+        SharedRingBuffer w = SharedRingBuffer.create(buf, 8, 3);
+        SharedRingBuffer r = SharedRingBuffer.attach(buf.duplicate());
+        assertTrue(r.getMaxValues() >= 3);
+        SensorSample s = new SensorSample();
+        assertFalse(r.read(s));
+
+        assertTrue(w.write(SensorType.ACCELEROMETER, 1, 100L, new float[]{1f, 2f, 3f}));
+        assertTrue(w.write(SensorType.STEP_DETECTOR, 1, 200L, null));
+        assertEquals(2, r.available());
+
+        assertTrue(r.read(s));
+        assertEquals(SensorType.ACCELEROMETER, s.getSensorType());
+        assertEquals(1, s.getDeviceIndex());
+        assertEquals(100L, s.getTimestamp());
+        assertArrayEquals(new float[]{1f, 2f, 3f}, s.copyValues(), 0f);
+        assertTrue(r.read(s));
+        assertEquals(SensorType.STEP_DETECTOR, s.getSensorType());
+        assertEquals(0, s.getValueCount());
+        assertFalse(r.read(s));
+        assertEquals(0, r.getLostSamples());
+    }
+
+    @Test
+    public void write_rejectsTooManyValues() {
+        ByteBuffer buf = ByteBuffer.allocate(SharedRingBuffer.requiredCapacity(4, 1));
+        SharedRingBuffer w = SharedRingBuffer.create(buf, 4, 1);
+        //slots are padded, so the limit may be a little higher than requested
+        float[] values = new float[w.getMaxValues() + 1];
+        assertFalse(w.write(SensorType.ECG, 0, 1L, values));
+        assertEquals(0, w.getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void attach_rejectsUnformattedBuffer() {
+        SharedRingBuffer.attach(ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void slowReader_detectsOverrun() {
+        ByteBuffer buf = ByteBuffer.allocate(SharedRingBuffer.requiredCapacity(4, 1));
+        SharedRingBuffer w = SharedRingBuffer.create(buf, 4, 1);
+        SharedRingBuffer r = SharedRingBuffer.attach(buf.duplicate());
+        for (int i = 0; i < 10; i++) {
+            w.write(SensorType.LIGHT, 0, i, new float[]{i});
+        }
+        SensorSample s = new SensorSample();
+        assertTrue(r.read(s));
+        //the 6 oldest samples were overwritten
+        assertEquals(6, r.getLostSamples());
+        assertEquals(6L, s.getTimestamp());
+        for (int i = 7; i < 10; i++) {
+            assertTrue(r.read(s));
+            assertEquals(i, s.getTimestamp());
+        }
+        assertFalse(r.read(s));
+    }
+
+    @Test
+    public void attach_startsWithOldestAvailable() {
+        ByteBuffer buf = ByteBuffer.allocate(SharedRingBuffer.requiredCapacity(4, 0));
+        SharedRingBuffer w = SharedRingBuffer.create(buf, 4, 0);
+        for (int i = 0; i < 6; i++) {
+            w.write(SensorType.STEP_DETECTOR, 0, i, null);
+        }
+        SharedRingBuffer r = SharedRingBuffer.attach(buf.duplicate());
+        SensorSample s = new SensorSample();
+        assertTrue(r.read(s));
+        assertEquals(2L, s.getTimestamp());
+        assertEquals(0, r.getLostSamples());
+    }
+
+    @Test
+    public void concurrentReader_neverSeesTornSamples() throws Exception {
+        File f = File.createTempFile("ring", ".bin");
+        f.deleteOnExit();
+        int slots = 16;
+        final int n = 200000;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileChannel ch = raf.getChannel()) {
+            int size = SharedRingBuffer.requiredCapacity(slots, 3);
+            MappedByteBuffer writeMap = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            final SharedRingBuffer w = SharedRingBuffer.create(writeMap, slots, 3);
+            SharedRingBuffer r = SharedRingBuffer.attach(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] v = new float[3];
+                    for (int i = 0; i < n; i++) {
+                        v[0] = i;
+                        v[1] = 2 * i;
+                        v[2] = -i;
+                        w.write(SensorType.GYROSCOPE, 0, i, v);
+                    }
+                }
+            });
+            writer.start();
+            SensorSample s = new SensorSample();
+            long last = -1;
+            long read = 0;
+            while (writer.isAlive() || r.available() > 0) {
+                if (!r.read(s)) {
+                    continue;
+                }
+                long ts = s.getTimestamp();
+                assertTrue(ts > last);
+                assertEquals(ts, s.getValue(0), 0f);
+                assertEquals(2 * ts, s.getValue(1), 0f);
+                assertEquals(-ts, s.getValue(2), 0f);
+                last = ts;
+                read++;
+            }
+            writer.join();
+            assertEquals(n - 1, last);
+            assertEquals(n, read + r.getLostSamples());
+        }
+    }
+}
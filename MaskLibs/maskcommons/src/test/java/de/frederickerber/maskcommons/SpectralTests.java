@@ -0,0 +1,141 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpectralTests {
+
+    /**
+     * @return The amplitude of a bin computed directly from the last {@code size} readings.
+     */
+    private static double directAmplitude(float[] x, int end, int size, int bin) {
+        double re = 0;
+        double im = 0;
+        for (int m = 0; m < size; m++) {
+            double w = -2 * Math.PI * bin * m / size;
+            re += x[end - size + m] * Math.cos(w);
+            im += x[end - size + m] * Math.sin(w);
+        }
+        return Math.hypot(re, im) * (bin == 0 || 2 * bin == size ? 1.0 / size : 2.0 / size);
+    }
+
+    @Test
+    public void slidingDft_matchesDirectDft() {
+        int size = 64;
+        Random r = new Random(3);
+        int n = 100000;
+        float[] x = new float[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = (float) (r.nextGaussian() + 3 * Math.sin(i * 0.4) + 100);
+        }
+        SlidingDft dft = new SlidingDft(size, 16, 0, 10);
+        float[] frame = new float[1];
+        int outputs = 0;
+        for (int i = 0; i < n; i++) {
+            frame[0] = x[i];
+            boolean out = dft.offer(i, frame, 0, 1);
+            assertEquals(i + 1 >= size && (i + 1 - size) % 16 == 0, out);
+            //check at the start, in between the recomputations and at the very end
+            if (out && (i < 500 || i % 9973 < 16 || i > n - 20)) {
+                for (int b = 0; b <= 10; b++) {
+                    assertEquals("bin " + b + " at " + i, directAmplitude(x, i + 1, size, b), dft.getOutput()[b], 1e-3);
+                }
+                outputs++;
+            }
+        }
+        assertTrue(outputs > 20);
+    }
+
+    @Test
+    public void slidingDft_findsSineAmplitudePerChannel() {
+        int size = 100;
+        SlidingDft dft = new SlidingDft(size, size, 1, 20);
+        float[] frame = new float[2];
+        boolean out = false;
+        for (int i = 0; i < size; i++) {
+            //bin 5 on channel 0, bin 12 on channel 1
+            frame[0] = (float) (2 * Math.sin(2 * Math.PI * 5 * i / size));
+            frame[1] = (float) (0.5 * Math.cos(2 * Math.PI * 12 * i / size));
+            out = dft.offer(i, frame, 0, 2);
+        }
+        assertTrue(out);
+        assertEquals(20, dft.getBinCount());
+        float[] amplitudes = dft.getOutput();
+        assertEquals(40, amplitudes.length);
+        for (int b = 0; b < 20; b++) {
+            assertEquals(b + 1 == 5 ? 2 : 0, amplitudes[b], 1e-4);
+            assertEquals(b + 1 == 12 ? 0.5 : 0, amplitudes[20 + b], 1e-4);
+        }
+        assertEquals(size - 1, dft.getOutputTimestamp());
+    }
+
+    @Test
+    public void goertzel_detectsTones() {
+        double fs = 200;
+        int size = 200;
+        Goertzel g = new Goertzel(fs, size, 3, 7, 50);
+        float[] frame = new float[1];
+        int outputs = 0;
+        for (int i = 0; i < 3 * size; i++) {
+            frame[0] = (float) (1.5 * Math.sin(2 * Math.PI * 7 * i / fs) + 0.25 * Math.sin(2 * Math.PI * 50 * i / fs) + 10);
+            if (g.offer(i, frame, 0, 1)) {
+                outputs++;
+                float[] a = g.getOutput();
+                assertEquals(0, a[0], 1e-3);
+                assertEquals(1.5, a[1], 1e-3);
+                assertEquals(0.25, a[2], 1e-3);
+            }
+        }
+        assertEquals(3, outputs);
+    }
+
+    @Test
+    public void goertzel_matchesSlidingDftOnBins() {
+        int size = 128;
+        Goertzel g = new Goertzel(size, size, 4, 9);
+        SlidingDft dft = new SlidingDft(size, size, 4, 9);
+        Random r = new Random(5);
+        float[] frame = new float[3];
+        for (int i = 0; i < 4 * size; i++) {
+            for (int c = 0; c < 3; c++) {
+                frame[c] = (float) r.nextGaussian();
+            }
+            boolean a = g.offer(i, frame, 0, 3);
+            boolean b = dft.offer(i, frame, 0, 3);
+            assertEquals(a, b);
+            if (a) {
+                for (int c = 0; c < 3; c++) {
+                    assertEquals(dft.getOutput()[c * 6], g.getOutput()[c * 2], 1e-4);
+                    assertEquals(dft.getOutput()[c * 6 + 5], g.getOutput()[c * 2 + 1], 1e-4);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chain_createsOperators() {
+        FilterChain chain = FilterChain.parse("highpass(0.9);goertzel(100,50,5,10)");
+        assertTrue(chain.isDerived());
+        assertFalse(new FilterChain().lowPass(0.2f).isDerived());
+        assertTrue(chain.createOperator(1) instanceof Goertzel);
+        assertEquals(2, ((Goertzel) chain.createOperator(1)).getFrequencyCount());
+        assertEquals(new FilterChain().slidingDft(64, 8, 1, 5), FilterChain.parse("sdft(64,8,1,5)"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binAboveNyquist_throws() {
+        FilterChain.parse("sdft(64,8,1,40)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionChange_throws() {
+        Goertzel g = new Goertzel(100, 10, 5);
+        g.offer(0, new float[2], 0, 2);
+        g.offer(1, new float[1], 0, 1);
+    }
+}
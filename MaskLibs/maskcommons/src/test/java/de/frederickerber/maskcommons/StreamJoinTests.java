@@ -0,0 +1,104 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamJoinTests {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void nearest_picksClosestReading() {
+        StreamJoin join = new StreamJoin(StreamJoin.NEAREST, 100 * MS, 16, 1, 1);
+        join.offer(1, 0, new float[]{10}, 0);
+        join.offer(1, 10 * MS, new float[]{20}, 0);
+        join.offer(0, 4 * MS, new float[]{1}, 0);
+        join.offer(0, 6 * MS, new float[]{2}, 0);
+        assertTrue(join.poll());
+        assertEquals(4 * MS, join.getOutputTimestamp());
+        assertArrayEquals(new float[]{1, 10}, join.getOutput(), 0f);
+        assertTrue(join.poll());
+        assertArrayEquals(new float[]{2, 20}, join.getOutput(), 0f);
+        assertFalse(join.poll());
+    }
+
+    @Test
+    public void interpolate_isLinearPerChannel() {
+        StreamJoin join = new StreamJoin(StreamJoin.INTERPOLATE, 100 * MS, 16, 1, 2, 1);
+        join.offer(0, 5 * MS, new float[]{7}, 0);
+        join.offer(1, 0, new float[]{0, 100}, 0);
+        join.offer(2, 5 * MS, new float[]{3}, 0);
+        //input 1 has nothing at or after 5 ms yet
+        assertFalse(join.poll());
+        join.offer(1, 20 * MS, new float[]{8, 20}, 0);
+        assertTrue(join.poll());
+        assertArrayEquals(new float[]{7, 2, 80, 3}, join.getOutput(), 1e-5f);
+    }
+
+    @Test
+    public void lateInput_isHeldAfterMaxDelay() {
+        StreamJoin join = new StreamJoin(StreamJoin.INTERPOLATE, 30 * MS, 16, 1, 1);
+        join.offer(1, 0, new float[]{5}, 0);
+        int frames = 0;
+        for (int i = 1; i <= 10; i++) {
+            join.offer(0, i * 10 * MS, new float[]{i}, 0);
+            while (join.poll()) {
+                frames++;
+                //waited for 30 ms, then used the latest reading as it is
+                assertEquals(i * 10 * MS - 30 * MS, join.getOutputTimestamp());
+                assertEquals(5f, join.getOutput()[1], 0f);
+            }
+        }
+        assertEquals(7, frames);
+    }
+
+    @Test
+    public void missingInput_dropsFrames() {
+        StreamJoin join = new StreamJoin(StreamJoin.NEAREST, 0, 4, 1, 1);
+        join.offer(0, 0, new float[]{1}, 0);
+        assertFalse(join.poll());
+        assertEquals(1, join.getDropped());
+    }
+
+    @Test
+    public void buffersStayBounded() {
+        StreamJoin join = new StreamJoin(StreamJoin.NEAREST, Long.MAX_VALUE, 8, 3, 3, 3);
+        //3 floats and a timestamp per reading and input, plus the frame
+        assertEquals(3 * (8 * 8 + 8 * 3 * 4) + 9 * 4, join.getMemoryBytes());
+        float[] v = new float[3];
+        int frames = 0;
+        //the magnetic field never arrives, the reference buffer fills up and releases frames without it
+        join.offer(2, 0, v, 0);
+        for (int i = 1; i <= 1000; i++) {
+            v[0] = i;
+            join.offer(0, i * MS, v, 0);
+            join.offer(1, i * MS, v, 0);
+            while (join.poll()) {
+                frames++;
+                assertEquals(join.getOutput()[0], join.getOutput()[3], 0f);
+            }
+        }
+        assertEquals(1000 - 7, frames);
+        assertEquals(0, join.getDropped());
+    }
+
+    @Test
+    public void outOfOrderReadings_areDropped() {
+        StreamJoin join = new StreamJoin(StreamJoin.NEAREST, 0, 4, 1, 1);
+        join.offer(1, 10, new float[]{1}, 0);
+        join.offer(1, 5, new float[]{2}, 0);
+        assertEquals(1, join.getDropped());
+        join.offer(0, 10, new float[]{3}, 0);
+        assertTrue(join.poll());
+        assertArrayEquals(new float[]{3, 1}, join.getOutput(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void singleInput_isRejected() {
+        new StreamJoin(StreamJoin.NEAREST, 0, 4, 3);
+    }
+}
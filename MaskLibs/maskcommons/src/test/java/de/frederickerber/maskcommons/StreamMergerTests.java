@@ -0,0 +1,113 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamMergerTests {
+
+    @Test
+    public void interleavedSources_mergeInTimestampOrder() {
+        Random r = new Random(5);
+        int sources = 3;
+        StreamMerger m = new StreamMerger(sources, 1000000000L, 256);
+        long[] next = new long[sources];
+        int offered = 0;
+        int taken = 0;
+        long last = Long.MIN_VALUE;
+        //sources nothing was heard of are not waited for, so every source starts at 0
+        for (int s = 0; s < sources; s++) {
+            m.offer(s, 0, 0, SensorType.ACCELEROMETER, s, new float[]{s, 0});
+            offered++;
+        }
+        for (int i = 0; i < 3000; i++) {
+            //sources deliver in bursts at their own pace, each in order
+            int s = r.nextInt(sources);
+            next[s] += 1 + r.nextInt(20);
+            assertTrue(m.offer(s, next[s], 0, SensorType.ACCELEROMETER, s, new float[]{s, next[s]}));
+            offered++;
+            while (m.poll(0)) {
+                assertTrue(m.getTimestamp() >= last);
+                last = m.getTimestamp();
+                assertEquals(m.getSource(), m.getDeviceIndex());
+                assertEquals(m.getTimestamp(), (long) m.getValues()[1]);
+                taken++;
+            }
+        }
+        while (m.pollNow()) {
+            assertTrue(m.getTimestamp() >= last);
+            last = m.getTimestamp();
+            taken++;
+        }
+        assertEquals(offered, taken);
+        assertEquals(0, m.getLate());
+    }
+
+    @Test
+    public void poll_waitsForSlowSourceWithinWindow() {
+        StreamMerger m = new StreamMerger(2, 100, 16);
+        assertTrue(m.offer(0, 10, 0, SensorType.HEART_RATE, 0, 60f));
+        assertTrue(m.offer(1, 5, 0, SensorType.HEART_RATE, 1, 70f));
+        assertTrue(m.poll(0));
+        assertEquals(5, m.getTimestamp());
+        assertNull(m.getValues());
+        assertEquals(70f, m.getValue(), 0);
+        //source 1 has not reached 10 yet
+        assertFalse(m.poll(0));
+        assertTrue(m.offer(1, 12, 0, SensorType.HEART_RATE, 1, 71f));
+        assertTrue(m.poll(0));
+        assertEquals(10, m.getTimestamp());
+        assertEquals(0, m.getSource());
+        assertFalse(m.poll(0));
+    }
+
+    @Test
+    public void window_boundsTheWait() {
+        StreamMerger m = new StreamMerger(2, 100, 16);
+        m.offer(0, 0, 0, SensorType.LIGHT, 0, 1f);
+        m.offer(1, 0, 0, SensorType.LIGHT, 1, 1f);
+        assertTrue(m.poll(0));
+        assertTrue(m.poll(0));
+        //source 1 falls silent
+        m.offer(0, 50, 1000, SensorType.LIGHT, 0, 2f);
+        assertFalse(m.poll(1050));
+        assertEquals(1100, m.getNextDeadline());
+        //released by the clock
+        assertTrue(m.poll(1100));
+        assertEquals(50, m.getTimestamp());
+        //released by a newer reading
+        m.offer(0, 60, 1200, SensorType.LIGHT, 0, 3f);
+        assertFalse(m.poll(1200));
+        m.offer(0, 160, 1210, SensorType.LIGHT, 0, 4f);
+        assertTrue(m.poll(1210));
+        assertEquals(60, m.getTimestamp());
+        assertFalse(m.poll(1210));
+        //source 1 is late now
+        assertFalse(m.offer(1, 55, 1220, SensorType.LIGHT, 1, 5f));
+        assertEquals(1, m.getLate());
+        //stop waiting for it
+        m.removeSource(1);
+        assertTrue(m.poll(1400));
+        assertEquals(160, m.getTimestamp());
+    }
+
+    @Test
+    public void full_releasesOldest() {
+        StreamMerger m = new StreamMerger(2, Long.MAX_VALUE / 2, 4);
+        m.offer(1, 0, 0, SensorType.LIGHT, 1, 0f);
+        for (int i = 1; i <= 3; i++) {
+            m.offer(0, i * 10, 0, SensorType.LIGHT, 0, i);
+        }
+        assertTrue(m.isFull());
+        assertTrue(m.poll(0));
+        assertEquals(0, m.getTimestamp());
+        //source 1 stays at 0, so the rest waits
+        assertFalse(m.poll(0));
+        m.offer(0, 40, 0, SensorType.LIGHT, 0, 4f);
+        assertTrue(m.poll(0));
+        assertEquals(10, m.getTimestamp());
+        assertEquals(3, m.size());
+    }
+}
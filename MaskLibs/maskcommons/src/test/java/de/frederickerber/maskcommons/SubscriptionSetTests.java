@@ -0,0 +1,67 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionSetTests {
+
+    @Test
+    public void wireForm_roundTrips() {
+        FilterChain chain = FilterChain.parse("lowpass(0.2);decimate(5)");
+        ValueEncoding encoding = ValueEncoding.forSensor(SensorType.TEMPERATURE);
+        SubscriptionSet set = new SubscriptionSet()
+                .add(0, SensorType.ACCELEROMETER, 50)
+                .add(1, SensorType.TEMPERATURE, 1, RateMode.AVERAGE, 20, 2000, null, encoding)
+                .add(0, SensorType.GYROSCOPE, 100, RateMode.NEAREST, 1, 0, chain, ValueEncoding.FLOAT);
+        SubscriptionSet read = SubscriptionSet.fromArrays(set.toArray(), set.getSpecs());
+        assertEquals(3, read.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(set.getDeviceIndex(i), read.getDeviceIndex(i));
+            assertEquals(set.getSensorType(i), read.getSensorType(i));
+            assertEquals(set.getFrequency(i), read.getFrequency(i));
+            assertEquals(set.getRateMode(i), read.getRateMode(i));
+            assertEquals(set.getMaxBatchSize(i), read.getMaxBatchSize(i));
+            assertEquals(set.getMaxBatchLatencyMillis(i), read.getMaxBatchLatencyMillis(i));
+            assertEquals(set.getFilterChain(i), read.getFilterChain(i));
+            assertEquals(set.getEncoding(i), read.getEncoding(i));
+        }
+        assertEquals(encoding, read.getEncoding(1));
+        assertEquals(chain, read.getFilterChain(2));
+        //floats are the default
+        assertNull(read.getEncoding(2));
+    }
+
+    @Test
+    public void add_replacesSameSensor() {
+        SubscriptionSet set = new SubscriptionSet()
+                .add(0, SensorType.LIGHT, 5)
+                .add(1, SensorType.LIGHT, 5)
+                .add(0, SensorType.LIGHT, 10);
+        assertEquals(2, set.size());
+        assertEquals(0, set.indexOf(0, SensorType.LIGHT));
+        assertEquals(10, set.getFrequency(0));
+        assertEquals(-1, set.indexOf(2, SensorType.LIGHT));
+        for (int i = 0; i < 10; i++) {
+            set.add(2, i, i);
+        }
+        assertEquals(12, set.size());
+        assertEquals(7, set.getFrequency(set.indexOf(2, 7)));
+    }
+
+    @Test
+    public void fromArrays_rejectsMalformedSets() {
+        int[] ints = new SubscriptionSet().add(0, SensorType.LIGHT, 5).toArray();
+        try {
+            SubscriptionSet.fromArrays(new int[]{1, 2, 3}, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SubscriptionSet.fromArrays(ints, new String[]{null, "f8"});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, SubscriptionSet.fromArrays(ints, null).size());
+    }
+}
@@ -0,0 +1,99 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ValueEncodingTests {
+
+    private static final int[] SENSORS = new int[]{SensorType.SKIN_TEMPERATURE, SensorType.TEMPERATURE,
+            SensorType.RELATIVE_HUMIDITY, SensorType.UV_INDEX_LEVEL, SensorType.PRESSURE, SensorType.LIGHT};
+    //the range each sensor reports and the accuracy promised by ValueEncoding.forSensor
+    private static final float[][] RANGES = new float[][]{{-40f, 120f}, {-40f, 85f}, {0f, 100f}, {0f, 15f},
+            {300f, 1100f}, {0f, 65000f}};
+    private static final float[] ACCURACY = new float[]{0.005f, 0.005f, 0.005f, 0.0005f, 0.025f, 0f};
+
+    @Test
+    public void half_matchesKnownValues() {
+        assertEquals(0x3c00, ValueEncoding.toHalf(1f) & 0xffff);
+        assertEquals(0xc000, ValueEncoding.toHalf(-2f) & 0xffff);
+        assertEquals(0x7bff, ValueEncoding.toHalf(65504f) & 0xffff);
+        assertEquals(0x7bff, ValueEncoding.toHalf(1e6f) & 0xffff);
+        assertEquals(0x7c00, ValueEncoding.toHalf(Float.POSITIVE_INFINITY) & 0xffff);
+        assertEquals(0x0001, ValueEncoding.toHalf(5.9604645E-8f) & 0xffff);
+        assertEquals(0x0400, ValueEncoding.toHalf(6.1035156E-5f) & 0xffff);
+        //ties to even: 1 + 2^-11 lies between 1 and 1 + 2^-10
+        assertEquals(0x3c00, ValueEncoding.toHalf(1f + 0x1p-11f) & 0xffff);
+        assertEquals(0x3c02, ValueEncoding.toHalf(1f + 3 * 0x1p-11f) & 0xffff);
+        assertTrue(Float.isNaN(ValueEncoding.fromHalf(ValueEncoding.toHalf(Float.NaN))));
+    }
+
+    @Test
+    public void half_roundTripsAllValues() {
+        for (int h = 0; h < 0x10000; h++) {
+            float f = ValueEncoding.fromHalf((short) h);
+            if (Float.isNaN(f)) {
+                continue;
+            }
+            //-0 and 0 have different bits
+            assertEquals("half " + Integer.toHexString(h), h, ValueEncoding.toHalf(f) & 0xffff);
+        }
+    }
+
+    @Test
+    public void defaults_stayWithinDeclaredBounds() {
+        Random r = new Random(7);
+        for (int s = 0; s < SENSORS.length; s++) {
+            ValueEncoding e = ValueEncoding.forSensor(SENSORS[s]);
+            assertTrue(e.isQuantized());
+            float lo = RANGES[s][0];
+            float hi = RANGES[s][1];
+            assertTrue(e.getMin() <= lo && e.getMax() >= hi);
+            for (int i = 0; i <= 100000; i++) {
+                float v = i < 2 ? RANGES[s][i] : lo + r.nextFloat() * (hi - lo);
+                float error = Math.abs(e.decode(e.encode(v)) - v);
+                assertTrue(e + " decoded " + v + " off by " + error, error <= e.getMaxError(v));
+                if (ACCURACY[s] > 0) {
+                    assertTrue(e + " is not accurate to " + ACCURACY[s] + " at " + v, e.getMaxError(v) <= ACCURACY[s] + Math.ulp(v));
+                } else {
+                    assertTrue(e.getMaxError(v) <= Math.max(Math.abs(v) * 0.0005f, 1e-7f));
+                }
+            }
+        }
+        assertFalse(ValueEncoding.forSensor(SensorType.ACCELEROMETER).isQuantized());
+    }
+
+    @Test
+    public void scaled_clampsToRange() {
+        ValueEncoding e = ValueEncoding.scaled(0.5f, 10f);
+        assertEquals(e.getMax(), e.decode(e.encode(1e9f)), 0f);
+        assertEquals(e.getMin(), e.decode(e.encode(-1e9f)), 0f);
+        assertEquals(10f, e.decode(e.encode(10.2f)), 0f);
+        assertEquals(0, e.encode(Float.NaN));
+    }
+
+    @Test
+    public void spec_roundTrips() {
+        ValueEncoding[] encodings = new ValueEncoding[]{ValueEncoding.FLOAT, ValueEncoding.HALF,
+                ValueEncoding.scaled(0.01f, -5f), ValueEncoding.forSensor(SensorType.PRESSURE)};
+        for (ValueEncoding e : encodings) {
+            assertEquals(e, ValueEncoding.parse(e.toString()));
+        }
+        assertEquals(ValueEncoding.scaled(0.25f, 3f), ValueEncoding.parse(" I16(0.25, 3) "));
+    }
+
+    @Test
+    public void parse_rejectsMalformed() {
+        String[] specs = new String[]{null, "", "f64", "i16(1)", "i16(0,0)", "i16(-1,0)", "i16(a,b)", "i16(1,2"};
+        for (String spec : specs) {
+            try {
+                ValueEncoding.parse(spec);
+                fail("accepted " + spec);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
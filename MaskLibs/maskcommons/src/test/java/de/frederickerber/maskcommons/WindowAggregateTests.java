@@ -0,0 +1,146 @@
+package de.frederickerber.maskcommons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowAggregateTests {
+
+    private static final int CHANNELS = 2;
+
+    /**
+     * Feed jittered readings and compare every derived reading with the statistics computed directly from the readings
+     * in its window.
+     *
+     * @return The number of derived readings.
+     */
+    private static int compareWithDirect(long window, long hop, long seed) {
+        Random r = new Random(seed);
+        int n = 20000;
+        long[] ts = new long[n];
+        float[] x = new float[n * CHANNELS];
+        long t = 0;
+        for (int i = 0; i < n; i++) {
+            //irregular intervals, with a pause now and then
+            t += 1 + r.nextInt(20) + (r.nextInt(500) == 0 ? 3 * window : 0);
+            ts[i] = t;
+            x[i * CHANNELS] = (float) (r.nextGaussian() * 5 + 1000);
+            x[i * CHANNELS + 1] = (float) (Math.sin(i * 0.01) * 3);
+        }
+        WindowAggregate agg = new WindowAggregate(window, hop);
+        int outputs = 0;
+        for (int i = 0; i < n; i++) {
+            if (!agg.offer(ts[i], x, i * CHANNELS, CHANNELS)) {
+                continue;
+            }
+            outputs++;
+            long end = agg.getOutputTimestamp();
+            assertTrue(end <= ts[i]);
+            assertEquals(0, (end - ts[0] - window) % hop);
+            for (int c = 0; c < CHANNELS; c++) {
+                double sum = 0;
+                double squares = 0;
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                int count = 0;
+                for (int j = 0; j < i; j++) {
+                    if (ts[j] >= end - window && ts[j] < end) {
+                        float v = x[j * CHANNELS + c];
+                        sum += v;
+                        squares += (double) v * v;
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                        count++;
+                    }
+                }
+                assertTrue(count > 0);
+                double mean = sum / count;
+                double var = 0;
+                for (int j = 0; j < i; j++) {
+                    if (ts[j] >= end - window && ts[j] < end) {
+                        double d = x[j * CHANNELS + c] - mean;
+                        var += d * d;
+                    }
+                }
+                var /= count;
+                float[] out = agg.getOutput();
+                int o = c * WindowAggregate.STATISTICS;
+                assertEquals(mean, out[o + WindowAggregate.MEAN], 1e-3);
+                assertEquals(var, out[o + WindowAggregate.VARIANCE], 1e-3 * Math.max(1, var));
+                assertEquals(Math.sqrt(squares / count), out[o + WindowAggregate.RMS], 1e-3);
+                assertEquals(min, out[o + WindowAggregate.MIN], 0f);
+                assertEquals(max, out[o + WindowAggregate.MAX], 0f);
+            }
+        }
+        return outputs;
+    }
+
+    @Test
+    public void tumbling_matchesDirect() {
+        assertFalse(new WindowAggregate(1000, 1000).isSliding());
+        assertTrue(compareWithDirect(1000, 1000, 1) > 100);
+    }
+
+    @Test
+    public void sliding_matchesDirect() {
+        assertTrue(new WindowAggregate(1000, 100).isSliding());
+        assertTrue(compareWithDirect(1000, 100, 2) > 1000);
+        assertTrue(compareWithDirect(5000, 37, 3) > 1000);
+    }
+
+    @Test
+    public void sliding_staysAccurateForLargeOffsets() {
+        //readings far from zero would lose the variance in naive sums of squares
+        WindowAggregate agg = new WindowAggregate(100, 10);
+        float[] frame = new float[1];
+        for (int i = 0; i < 1000000; i++) {
+            frame[0] = 10000 + (i % 2 == 0 ? 1 : -1);
+            agg.offer(i, frame, 0, 1);
+        }
+        assertEquals(10000f, agg.getOutput()[WindowAggregate.MEAN], 1e-3f);
+        assertEquals(1f, agg.getOutput()[WindowAggregate.VARIANCE], 1e-3f);
+        assertEquals(9999f, agg.getOutput()[WindowAggregate.MIN], 0f);
+        assertEquals(10001f, agg.getOutput()[WindowAggregate.MAX], 0f);
+    }
+
+    @Test
+    public void emitsAtWindowRate() {
+        WindowAggregate agg = new WindowAggregate(1000000000L, 250000000L);
+        float[] frame = new float[3];
+        int outputs = 0;
+        //10 seconds at 100 Hz
+        for (int i = 0; i < 1000; i++) {
+            if (agg.offer(i * 10000000L, frame, 0, 3)) {
+                outputs++;
+            }
+        }
+        //the first window ends after a second, then one every 250 ms
+        assertEquals(36, outputs);
+        assertEquals(3 * WindowAggregate.STATISTICS, agg.getOutput().length);
+    }
+
+    @Test
+    public void chain_createsAggregate() {
+        FilterChain chain = FilterChain.parse("window(1000, 250)");
+        assertTrue(chain.isDerived());
+        assertEquals(new FilterChain().window(1000, 250), chain);
+        assertTrue(((WindowAggregate) chain.createOperator(0)).isSliding());
+        assertFalse(((WindowAggregate) new FilterChain().window(1000).createOperator(0)).isSliding());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chain_rejectsHopLongerThanWindow() {
+        FilterChain.parse("window(100, 200)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionChange_throws() {
+        WindowAggregate agg = new WindowAggregate(10, 5);
+        agg.offer(0, new float[3], 0, 3);
+        agg.offer(1, new float[2], 0, 2);
+    }
+}
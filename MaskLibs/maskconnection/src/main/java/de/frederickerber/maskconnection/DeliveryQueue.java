@@ -0,0 +1,310 @@
+package de.frederickerber.maskconnection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands the readings of a listener to an {@link Executor}, so a slow listener does not hold up the thread readings
+ * arrive on, usually the main thread, and every other sensor with it.
+ * <p>
+ * Readings wait in a bounded queue. When it is full, the policy decides what happens:
+ * {@link #BLOCK} waits for the listener to catch up, {@link #DROP_OLDEST} discards the oldest pending reading,
+ * {@link #DROP_NEWEST} discards the new one. {@link #LATEST} keeps at most one pending reading per sensor and device,
+ * replacing it with every newer one, and discards the oldest pending reading if the queue is full of other sensors.
+ * Discarded readings are counted, see {@link #getDropped()}.
+ * <p>
+ * The listener is called on the executor one reading at a time, in the order the readings were queued, even if the
+ * executor has several threads. Register the queue for one or more sensors with
+ * {@link MaskConnection#setVectorListener(int, VectorSensorListener)} or
+ * {@link MaskConnection#setScalarListener(int, ScalarSensorListener)}. Scalar readings reach a vector listener as
+ * arrays of one value, vector readings reach a scalar listener as their first value.
+ */
+public final class DeliveryQueue implements VectorSensorListener, ScalarSensorListener {
+
+    /**
+     * Wait until the listener took a reading. Only use this with an executor running on another thread than the one
+     * readings arrive on, usually the main thread: waiting there would keep the executor from ever taking one.
+     * A full queue throws an {@link IllegalStateException} instead of waiting if the reading arrives on the thread
+     * that takes the readings: the thread of a {@link MaskConnection#handlerExecutor(android.os.Handler)}, or the
+     * listener's own thread while it handles a reading. Other threads of the executor are not checked.
+     */
+    public static final int BLOCK = 0;
+    /**
+     * Discard the oldest pending reading.
+     */
+    public static final int DROP_OLDEST = 1;
+    /**
+     * Discard the new reading.
+     */
+    public static final int DROP_NEWEST = 2;
+    /**
+     * Keep only the latest reading per sensor and device.
+     */
+    public static final int LATEST = 3;
+
+    private final VectorSensorListener vectorListener;
+    private final ScalarSensorListener scalarListener;
+    private final Executor executor;
+    private final int policy;
+
+    //ring of pending readings, a reading has either a vector or a scalar value
+    private final long[] timestamps;
+    private final String[] serviceNames;
+    private final int[] deviceIndices;
+    private final int[] sensorTypes;
+    private final float[][] vectors;
+    private final float[] scalars;
+    private int head;
+    private int size;
+    private boolean scheduled;
+    //the thread passing readings to the listener, null between drains
+    private Thread drainThread;
+
+    private long delivered;
+    private long dropped;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param listener The listener, called on the executor.
+     * @param executor The executor calling the listener.
+     * @param capacity The number of readings that may wait, at least 1.
+     * @param policy   {@link #BLOCK}, {@link #DROP_OLDEST}, {@link #DROP_NEWEST} or {@link #LATEST}.
+     */
+    public DeliveryQueue(VectorSensorListener listener, Executor executor, int capacity, int policy) {
+        this(listener, null, executor, capacity, policy);
+    }
+
+    /**
+     * @see #DeliveryQueue(VectorSensorListener, Executor, int, int)
+     */
+    public DeliveryQueue(ScalarSensorListener listener, Executor executor, int capacity, int policy) {
+        this(null, listener, executor, capacity, policy);
+    }
+
+    private DeliveryQueue(VectorSensorListener vectorListener, ScalarSensorListener scalarListener, Executor executor,
+                          int capacity, int policy) {
+        if (vectorListener == null && scalarListener == null) {
+            throw new IllegalArgumentException("listener may not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor may not be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (policy < BLOCK || policy > LATEST) {
+            throw new IllegalArgumentException("unknown policy: " + policy);
+        }
+        this.vectorListener = vectorListener;
+        this.scalarListener = scalarListener;
+        this.executor = executor;
+        this.policy = policy;
+        timestamps = new long[capacity];
+        serviceNames = new String[capacity];
+        deviceIndices = new int[capacity];
+        sensorTypes = new int[capacity];
+        vectors = new float[capacity][];
+        scalars = new float[capacity];
+    }
+
+    /**
+     * Queue a reading with several values. The array is handed over, the caller may not change it afterwards.
+     */
+    @Override
+    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+        enqueue(timestamp, serviceName, deviceIndex, sensorType, values, 0);
+    }
+
+    /**
+     * Queue a reading with a single value.
+     */
+    @Override
+    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+        enqueue(timestamp, serviceName, deviceIndex, sensorType, null, value);
+    }
+
+    private void enqueue(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] vector, float scalar) {
+        boolean schedule;
+        synchronized (this) {
+            int capacity = timestamps.length;
+            int slot = -1;
+            if (policy == LATEST) {
+                for (int i = 0; i < size; i++) {
+                    int s = (head + i) % capacity;
+                    if (sensorTypes[s] == sensorType && deviceIndices[s] == deviceIndex) {
+                        slot = s;
+                        dropped++;
+                        break;
+                    }
+                }
+            }
+            if (slot < 0) {
+                if (size == capacity) {
+                    switch (policy) {
+                        case DROP_NEWEST:
+                            dropped++;
+                            return;
+                        case BLOCK:
+                            if (isDrainThread()) {
+                                throw new IllegalStateException("BLOCK would wait on the thread that takes the readings");
+                            }
+                            boolean interrupted = false;
+                            while (size == capacity) {
+                                try {
+                                    wait();
+                                } catch (InterruptedException e) {
+                                    interrupted = true;
+                                }
+                            }
+                            if (interrupted) {
+                                Thread.currentThread().interrupt();
+                            }
+                            break;
+                        default:
+                            //DROP_OLDEST, and LATEST full of other sensors
+                            dropOldest();
+                            break;
+                    }
+                }
+                slot = (head + size) % capacity;
+                size++;
+            }
+            timestamps[slot] = timestamp;
+            serviceNames[slot] = serviceName;
+            deviceIndices[slot] = deviceIndex;
+            sensorTypes[slot] = sensorType;
+            vectors[slot] = vector;
+            scalars[slot] = scalar;
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return {@code true} if the calling thread is known to take the readings, so it must never wait for room.
+     */
+    private boolean isDrainThread() {
+        return Thread.currentThread() == drainThread
+                || executor instanceof HandlerExecutor && ((HandlerExecutor) executor).isCurrentThread();
+    }
+
+    /**
+     * Discard the oldest pending reading to make room. The caller holds the lock.
+     */
+    private void dropOldest() {
+        vectors[head] = null;
+        serviceNames[head] = null;
+        head = (head + 1) % timestamps.length;
+        size--;
+        dropped++;
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            //the executor was shut down, nobody will take the readings
+            synchronized (this) {
+                dropped += size;
+                clear();
+                scheduled = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Pass all pending readings to the listener. Runs on the executor.
+     */
+    private void drain() {
+        while (true) {
+            long timestamp;
+            String serviceName;
+            int deviceIndex;
+            int sensorType;
+            float[] vector;
+            float scalar;
+            synchronized (this) {
+                if (size == 0) {
+                    scheduled = false;
+                    drainThread = null;
+                    return;
+                }
+                drainThread = Thread.currentThread();
+                int s = head;
+                timestamp = timestamps[s];
+                serviceName = serviceNames[s];
+                deviceIndex = deviceIndices[s];
+                sensorType = sensorTypes[s];
+                vector = vectors[s];
+                scalar = scalars[s];
+                vectors[s] = null;
+                serviceNames[s] = null;
+                head = (head + 1) % timestamps.length;
+                size--;
+                delivered++;
+                notifyAll();
+            }
+            if (vectorListener != null) {
+                vectorListener.onReading(timestamp, serviceName, deviceIndex, sensorType, vector != null ? vector : new float[]{scalar});
+            } else {
+                scalarListener.onReading(timestamp, serviceName, deviceIndex, sensorType, vector != null ? vector[0] : scalar);
+            }
+        }
+    }
+
+    private void clear() {
+        for (int i = 0; i < size; i++) {
+            int s = (head + i) % timestamps.length;
+            vectors[s] = null;
+            serviceNames[s] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return The listener readings are passed to, a {@link VectorSensorListener} or a {@link ScalarSensorListener}.
+     */
+    public Object getListener() {
+        return vectorListener != null ? vectorListener : scalarListener;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * @return The number of readings waiting for the listener.
+     */
+    public synchronized int getPending() {
+        return size;
+    }
+
+    /**
+     * @return The number of readings passed to the listener.
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return The number of readings the policy discarded, or that were pending when the executor rejected the queue.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
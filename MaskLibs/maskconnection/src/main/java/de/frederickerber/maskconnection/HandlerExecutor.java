@@ -0,0 +1,36 @@
+package de.frederickerber.maskconnection;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Posts tasks to a {@link Handler}, see {@link MaskConnection#handlerExecutor(Handler)}.
+ */
+final class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    HandlerExecutor(Handler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler may not be null");
+        }
+        this.handler = handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!handler.post(command)) {
+            throw new RejectedExecutionException("the handler's looper is quitting");
+        }
+    }
+
+    /**
+     * @return {@code true} if the calling thread is the one running the tasks, so it must never wait for them.
+     */
+    boolean isCurrentThread() {
+        return handler.getLooper() == Looper.myLooper();
+    }
+}
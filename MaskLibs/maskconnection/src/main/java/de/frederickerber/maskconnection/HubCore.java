@@ -0,0 +1,190 @@
+package de.frederickerber.maskconnection;
+
+import java.util.ArrayList;
+
+import de.frederickerber.maskcommons.StreamMerger;
+
+/**
+ * The routing of a {@link MaskConnectionHub}: it finds sources by the name of their service and passes their
+ * readings to the {@link HubSink}, as they arrive or merged in timestamp order by a {@link StreamMerger}.
+ * Everything Android does is left to the sink, so the core can run on a plain JVM. Not thread safe.
+ *
+ * @param <S> The type of the sources, a connection to one service.
+ */
+final class HubCore<S> {
+
+    private final HubSink<S> sink;
+    private final ArrayList<S> sources = new ArrayList<>();
+
+    //null unless readings are merged, see enableMerge()
+    private StreamMerger merger;
+    private long mergeWindow;
+    private int mergeCapacity;
+    private long nextFlush = Long.MAX_VALUE;
+
+    HubCore(HubSink<S> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Add a source. The merger has a fixed number of sources, so it is replaced by a larger one after passing on
+     * the readings still waiting.
+     *
+     * @return The index of the source.
+     */
+    int addSource(S source) {
+        sources.add(source);
+        if (merger != null) {
+            flush();
+            merger = new StreamMerger(sources.size(), mergeWindow, mergeCapacity);
+        }
+        return sources.size() - 1;
+    }
+
+    int size() {
+        return sources.size();
+    }
+
+    S getSource(int index) {
+        return sources.get(index);
+    }
+
+    /**
+     * @return The source connected to the service, or {@code null} if no source has that name (yet).
+     */
+    S find(String serviceName) {
+        if (serviceName == null) {
+            return null;
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            S source = sources.get(i);
+            if (serviceName.equals(sink.getServiceName(source))) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The names of all services known so far.
+     */
+    ArrayList<String> getServiceNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            String name = sink.getServiceName(sources.get(i));
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Merge the readings of all sources, see {@link MaskConnectionHub#enableMerge(long, int)}.
+     */
+    void enableMerge(long reorderWindowNanos, int capacity) {
+        flush();
+        mergeWindow = reorderWindowNanos;
+        mergeCapacity = capacity;
+        merger = new StreamMerger(Math.max(sources.size(), 1), reorderWindowNanos, capacity);
+    }
+
+    /**
+     * Pass readings on as they arrive again, after the readings still waiting.
+     */
+    void disableMerge() {
+        flush();
+        merger = null;
+    }
+
+    boolean isMerging() {
+        return merger != null;
+    }
+
+    /**
+     * @return The number of readings the merge dropped as late.
+     */
+    long getLate() {
+        return merger != null ? merger.getLate() : 0;
+    }
+
+    /**
+     * Pass a reading of a source on, or add it to the merge.
+     *
+     * @param source The index of the source.
+     * @param values The values of the reading, {@code null} if it has a single value.
+     * @param value  The value of a reading with a single value.
+     */
+    void offer(int source, long timestamp, int deviceIndex, int sensorType, float[] values, float value) {
+        if (merger == null) {
+            sink.deliver(timestamp, sink.getServiceName(sources.get(source)), deviceIndex, sensorType, values, value);
+            return;
+        }
+        long now = sink.now();
+        if (values != null) {
+            merger.offer(source, timestamp, now, sensorType, deviceIndex, values);
+        } else {
+            merger.offer(source, timestamp, now, sensorType, deviceIndex, value);
+        }
+        drain();
+    }
+
+    /**
+     * Stop waiting for the readings of a source, e.g. after its service disconnected.
+     */
+    void removeSource(int source) {
+        if (merger != null) {
+            merger.removeSource(source);
+            drain();
+        }
+    }
+
+    /**
+     * Pass on the merged readings that may be released and schedule the next check if readings are left.
+     */
+    void drain() {
+        if (merger == null) {
+            return;
+        }
+        long now = sink.now();
+        while (merger.poll(now)) {
+            deliverMerged();
+        }
+        if (merger.size() > 0) {
+            long deadline = merger.getNextDeadline();
+            if (deadline < nextFlush) {
+                nextFlush = deadline;
+                sink.scheduleFlush(deadline);
+            }
+        }
+    }
+
+    /**
+     * Called at the time requested by {@link HubSink#scheduleFlush(long)}.
+     */
+    void flushDue() {
+        nextFlush = Long.MAX_VALUE;
+        drain();
+    }
+
+    /**
+     * Pass on all merged readings still waiting, regardless of the window.
+     */
+    void flush() {
+        if (merger == null) {
+            return;
+        }
+        while (merger.pollNow()) {
+            deliverMerged();
+        }
+        if (nextFlush != Long.MAX_VALUE) {
+            nextFlush = Long.MAX_VALUE;
+            sink.cancelFlush();
+        }
+    }
+
+    private void deliverMerged() {
+        sink.deliver(merger.getTimestamp(), sink.getServiceName(sources.get(merger.getSource())), merger.getDeviceIndex(),
+                merger.getSensorType(), merger.getValues(), merger.getValue());
+    }
+}
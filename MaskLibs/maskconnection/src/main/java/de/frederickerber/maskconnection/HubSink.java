@@ -0,0 +1,41 @@
+package de.frederickerber.maskconnection;
+
+/**
+ * Connects a {@link HubCore} to the outside world: it names the sources, passes readings on and schedules the
+ * flushes of the merge. {@link MaskConnectionHub} implements it with its connections and a {@code Handler}, tests
+ * with plain Java. All methods are called on the thread the hub is used on.
+ *
+ * @param <S> The type of the sources, a connection to one service.
+ */
+interface HubSink<S> {
+
+    /**
+     * @return The current time in nanoseconds. Arrival times only need to be consistent within the hub.
+     */
+    long now();
+
+    /**
+     * @return The name of the service the source is connected to, {@code null} if it is not known yet.
+     */
+    String getServiceName(S source);
+
+    /**
+     * Pass a reading on.
+     *
+     * @param values The values of the reading, {@code null} if it has a single value.
+     * @param value  The value of a reading with a single value.
+     */
+    void deliver(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values, float value);
+
+    /**
+     * Make sure {@link HubCore#flushDue()} runs at the given time. Replaces any earlier request.
+     *
+     * @param deadline The time in nanoseconds, see {@link #now()}.
+     */
+    void scheduleFlush(long deadline);
+
+    /**
+     * Drop the request of {@link #scheduleFlush(long)}, nothing is waiting any more.
+     */
+    void cancelFlush();
+}
@@ -10,15 +10,34 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import de.frederickerber.maskcommons.BundleKeys;
+import de.frederickerber.maskcommons.DispatchStats;
+import de.frederickerber.maskcommons.ErrorCode;
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SensorHistory;
+import de.frederickerber.maskcommons.SensorSample;
 import de.frederickerber.maskcommons.SensorType;
 import de.frederickerber.maskcommons.ServiceMsg;
+import de.frederickerber.maskcommons.SharedRingBuffer;
+import de.frederickerber.maskcommons.StreamJoin;
+import de.frederickerber.maskcommons.SubscriptionSet;
+import de.frederickerber.maskcommons.ValueEncoding;
 
 import static de.frederickerber.maskcommons.BundleKeys.DEVICE_INDEX;
 
@@ -36,6 +55,70 @@ public abstract class MaskConnection {
 
     private Context mBindingContext;
 
+    //the service name is sent with device and sensor list messages, samples only carry the device index
+    private String mServiceName;
+    private final SensorSample mSample = new SensorSample();
+
+    //shared memory transport, see openSharedMemoryTransport()
+    private static final int SHARED_POLL_INTERVAL_MS = 10;
+    //readings per poll, so a full buffer does not block the handler for long
+    private static final int MAX_SHARED_READS_PER_POLL = 1024;
+    private ParcelFileDescriptor mSharedDescriptor;
+    private SharedRingBuffer mSharedRing;
+    private long mLostSamples;
+    //device and sensor of subscriptions with a derived stream, see streamKey()
+    private final Set<Long> mDerivedStreams = new HashSet<>();
+    //quantized encodings of subscriptions, see streamKey()
+    private final Map<Long, ValueEncoding> mEncodings = new HashMap<>();
+    //joins fed by incoming readings, see addSensorJoin()
+    private final ArrayList<SensorJoin> mJoins = new ArrayList<>();
+    //recent readings kept per device and sensor, see enableHistory()
+    private final ArrayList<HistorySlot> mHistories = new ArrayList<>();
+    //the typed listener of each sensor type, see setVectorListener() and setScalarListener()
+    private final SensorListenerTable mListeners = new SensorListenerTable();
+    private final Runnable mSharedPoller = new Runnable() {
+        @Override
+        public void run() {
+            pollSharedMemory();
+        }
+    };
+
+    {
+        for (int type = 0; type < SensorType.NUM_SENSORS; type++) {
+            setBuiltInListener(type);
+        }
+    }
+
+
+    /**
+     * A join and the sensors of a device it aligns.
+     */
+    private static class SensorJoin {
+        final int deviceIndex;
+        final int[] sensorTypes;
+        final StreamJoin join;
+
+        SensorJoin(int deviceIndex, int[] sensorTypes, StreamJoin join){
+            this.deviceIndex = deviceIndex;
+            this.sensorTypes = sensorTypes;
+            this.join = join;
+        }
+    }
+
+    /**
+     * The history of a sensor of a device.
+     */
+    private static class HistorySlot {
+        final int deviceIndex;
+        final int sensorType;
+        final SensorHistory history;
+
+        HistorySlot(int deviceIndex, int sensorType, SensorHistory history){
+            this.deviceIndex = deviceIndex;
+            this.sensorType = sensorType;
+            this.history = history;
+        }
+    }
 
     private static class IncomingHandler extends Handler {
 
@@ -59,6 +142,7 @@ public abstract class MaskConnection {
                         Log.d(TAG,"device connected msg received");
                         Bundle data = msg.getData();
                         if(data != null && data.containsKey(BundleKeys.SERVICE_NAME) && data.containsKey(DEVICE_INDEX)){
+                            c.mServiceName = data.getString(BundleKeys.SERVICE_NAME);
                             c.onDeviceConnected(data.getString(BundleKeys.SERVICE_NAME), data.getInt(DEVICE_INDEX));
                             break;
                         }
@@ -76,6 +160,9 @@ public abstract class MaskConnection {
                         data = msg.getData();
                         if (data != null && data.containsKey(BundleKeys.SUPPORTED_SENSORS)) {
                             String serviceName  = data.getString(BundleKeys.SERVICE_NAME);
+                            if (serviceName != null) {
+                                c.mServiceName = serviceName;
+                            }
                             ArrayList<Integer> sensors = data.getIntegerArrayList(BundleKeys.SUPPORTED_SENSORS);
                             if(sensors != null){
                                 c.onSensorList(sensors);
@@ -95,6 +182,41 @@ public abstract class MaskConnection {
                             Log.e(TAG, "no sensor data in service message");
                             break;
                         }
+                    case ServiceMsg.SENSOR_SAMPLE:
+                        data = msg.getData();
+                        if (data == null || !c.handleSample(data.getByteArray(BundleKeys.SENSOR_SAMPLE))) {
+                            Log.e(TAG, "malformed sample in service message");
+                        }
+                        break;
+                    case ServiceMsg.SHARED_TRANSPORT_OPENED:
+                        data = msg.getData();
+                        ParcelFileDescriptor pfd = data == null ? null : (ParcelFileDescriptor) data.getParcelable(BundleKeys.SHARED_MEMORY);
+                        if (pfd != null) {
+                            c.attachSharedMemory(pfd, data.getInt(BundleKeys.SHARED_MEMORY_SIZE));
+                        } else {
+                            Log.e(TAG, "no shared memory in service message");
+                        }
+                        break;
+                    case ServiceMsg.STATS:
+                        data = msg.getData();
+                        if (data != null) {
+                            data.setClassLoader(DispatchStats.class.getClassLoader());
+                            DispatchStats stats = data.getParcelable(BundleKeys.STATS);
+                            if (stats != null) {
+                                c.onStats(stats);
+                                break;
+                            }
+                        }
+                        Log.e(TAG, "no statistics in service message");
+                        break;
+                    case ServiceMsg.SENSOR_DATA_BATCH:
+                        data = msg.getData();
+                        if(data != null && data.containsKey(BundleKeys.TIMESTAMPS_NANO) && data.containsKey(DEVICE_INDEX)){
+                            c.handleDeviceDataBatch(msg.arg1, data.getInt(BundleKeys.DEVICE_INDEX), data);
+                        }else {
+                            Log.e(TAG, "no sensor data in batch message");
+                        }
+                        break;
 
                     case ServiceMsg.ERROR:
                         try {
@@ -112,7 +234,8 @@ public abstract class MaskConnection {
         }
     }
 
-    final private Messenger mMessenger = new Messenger(new IncomingHandler(this));
+    final private Handler mHandler = new IncomingHandler(this);
+    final private Messenger mMessenger = new Messenger(mHandler);
 
     private final ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -131,6 +254,7 @@ public abstract class MaskConnection {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mService = null;
+            closeSharedMemory();
             Log.d(TAG, "service disconnected");
         }
     };
@@ -174,6 +298,7 @@ public abstract class MaskConnection {
             }
             context.unbindService(mConnection);
             mIsBound = false;
+            closeSharedMemory();
             Log.v(TAG, "unbinding from service");
             onServiceDisconnected(null);
         }else{
@@ -191,14 +316,99 @@ public abstract class MaskConnection {
      * @param frequency The desired frequency at which you would like to receive sensor readings, in Hz.
      */
     public void subscribeToSensor(int deviceIndex, int sensorType, int frequency){
+        subscribeToSensor(deviceIndex, sensorType, frequency, 1, 0);
+    }
+
+    /**
+     * Subscribe to a sensor like {@link #subscribeToSensor(int, int, int)}, but let the plugin collect readings and
+     * send them in batches. This saves one message per reading for high-rate sensors.
+     * The readings of a batch are still passed to the usual methods such as {@link #onAccelerometerData(long, String, int, float[])}, one by one.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType The sensor type to subscribe to.
+     * @param frequency The desired frequency at which you would like to receive sensor readings, in Hz.
+     * @param maxBatchSize The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time in milliseconds the plugin may hold back a reading. If not positive, the plugin chooses a default.
+     */
+    public void subscribeToSensor(int deviceIndex, int sensorType, int frequency, int maxBatchSize, int maxBatchLatencyMillis){
+        subscribeToSensor(deviceIndex, sensorType, frequency, RateMode.NEAREST, maxBatchSize, maxBatchLatencyMillis);
+    }
+
+    /**
+     * Subscribe to a sensor like {@link #subscribeToSensor(int, int, int, int, int)} and choose how the plugin reduces
+     * the sensor's rate to the desired frequency.
+     * With {@link RateMode#NEAREST} you receive the reading closest to each point in time, with {@link RateMode#AVERAGE}
+     * the mean of all readings between two points in time. An unknown rate mode is reported with
+     * {@link ErrorCode#INVALID_RATE_MODE} and the subscription is rejected.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType The sensor type to subscribe to.
+     * @param frequency The desired frequency at which you would like to receive sensor readings, in Hz.
+     * @param rateMode One of the {@link RateMode} constants.
+     * @param maxBatchSize The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time in milliseconds the plugin may hold back a reading. If not positive, the plugin chooses a default.
+     */
+    public void subscribeToSensor(int deviceIndex, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis){
+        subscribeToSensor(deviceIndex, sensorType, frequency, rateMode, maxBatchSize, maxBatchLatencyMillis, null);
+    }
+
+    /**
+     * Subscribe to a sensor like {@link #subscribeToSensor(int, int, int, int, int, int)} and let the plugin filter
+     * the readings before sending them, e.g. {@code new FilterChain().lowPass(0.2f).decimate(25)}.
+     * The plugin runs each distinct chain once per sensor for all clients asking for it, and only sends its output,
+     * so a decimating chain also saves messages. The frequency applies to the output of the chain.
+     * An invalid chain is reported with {@link ErrorCode#INVALID_FILTER_CHAIN}.
+     * If the chain derives a new stream (see {@link FilterChain#isDerived()}), e.g. spectra, its readings are passed to
+     * {@link #onDerivedData(long, String, int, int, float[])} instead of the method of the sensor type.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType The sensor type to subscribe to.
+     * @param frequency The desired frequency at which you would like to receive sensor readings, in Hz.
+     * @param rateMode One of the {@link RateMode} constants.
+     * @param maxBatchSize The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time in milliseconds the plugin may hold back a reading. If not positive, the plugin chooses a default.
+     * @param chain The filters to apply, {@code null} or empty for raw readings.
+     */
+    public void subscribeToSensor(int deviceIndex, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis, FilterChain chain){
+        subscribeToSensor(deviceIndex, sensorType, frequency, rateMode, maxBatchSize, maxBatchLatencyMillis, chain, null);
+    }
+
+    /**
+     * Subscribe to a sensor like {@link #subscribeToSensor(int, int, int, int, int, int, FilterChain)} and let the
+     * plugin send the values quantized to 16 bits, which halves the size of messages and batches. The values are
+     * decoded before they are passed on, so the callbacks are the same, but each value may be off by up to
+     * {@link ValueEncoding#getMaxError(float)}. {@link ValueEncoding#forSensor(int)} suggests an encoding within the
+     * sensor's own accuracy. Readings from shared memory are not quantized.
+     * An invalid encoding is reported with {@link ErrorCode#INVALID_VALUE_ENCODING}.
+     *
+     * @param encoding How the plugin sends the values, {@code null} for floats.
+     */
+    public void subscribeToSensor(int deviceIndex, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis, FilterChain chain, ValueEncoding encoding){
         if(mIsBound){
             if(mService != null){
                 try{
 
                     Message msg = Message.obtain(null, ServiceMsg.SUBSCRIBE_TO_SENSOR, sensorType,frequency);
                     msg.getData().putInt(DEVICE_INDEX, deviceIndex);
+                    msg.getData().putInt(BundleKeys.RATE_MODE, rateMode);
+                    msg.getData().putInt(BundleKeys.MAX_BATCH_SIZE, maxBatchSize);
+                    msg.getData().putInt(BundleKeys.MAX_BATCH_LATENCY_MS, maxBatchLatencyMillis);
+                    if(chain != null && !chain.isEmpty()){
+                        msg.getData().putString(BundleKeys.FILTER_CHAIN, chain.toString());
+                    }
+                    if(encoding != null && encoding.isQuantized()){
+                        msg.getData().putString(BundleKeys.VALUE_ENCODING, encoding.toString());
+                        mEncodings.put(streamKey(deviceIndex, sensorType), encoding);
+                    } else {
+                        mEncodings.remove(streamKey(deviceIndex, sensorType));
+                    }
                     msg.replyTo = mMessenger;
                     mService.send(msg);
+                    if(chain != null && chain.isDerived()){
+                        mDerivedStreams.add(streamKey(deviceIndex, sensorType));
+                    } else {
+                        mDerivedStreams.remove(streamKey(deviceIndex, sensorType));
+                    }
                     Log.d(TAG, "message subscribe to sensor send");
                 } catch (RemoteException e){
                     onServiceDisconnected(e);
@@ -207,6 +417,44 @@ public abstract class MaskConnection {
         }
     }
 
+    /**
+     * Replace all subscriptions with a set in a single message, e.g. to start a recording session. The plugin applies
+     * the set as one diff: subscriptions missing from it end, new ones start, changed ones are updated and unchanged
+     * ones carry on. Each sensor is reconfigured at most once, instead of once per {@link #subscribeToSensor(int, int, int)}.
+     * Subscriptions the plugin cannot serve are reported like those of single subscribe messages, a malformed set with
+     * {@link ErrorCode#INVALID_SUBSCRIPTION_SET}. An empty set ends all subscriptions.
+     *
+     * @param subscriptions The subscriptions to have.
+     */
+    public void setSubscriptions(SubscriptionSet subscriptions){
+        if(mIsBound){
+            if(mService != null){
+                try{
+                    Message msg = Message.obtain(null, ServiceMsg.SET_SUBSCRIPTIONS);
+                    msg.getData().putIntArray(BundleKeys.SUBSCRIPTIONS, subscriptions.toArray());
+                    msg.getData().putStringArray(BundleKeys.SUBSCRIPTION_SPECS, subscriptions.getSpecs());
+                    msg.replyTo = mMessenger;
+                    mService.send(msg);
+                    mDerivedStreams.clear();
+                    mEncodings.clear();
+                    for (int i = 0; i < subscriptions.size(); i++) {
+                        long key = streamKey(subscriptions.getDeviceIndex(i), subscriptions.getSensorType(i));
+                        FilterChain chain = subscriptions.getFilterChain(i);
+                        if (chain != null && chain.isDerived()) {
+                            mDerivedStreams.add(key);
+                        }
+                        if (subscriptions.getEncoding(i) != null) {
+                            mEncodings.put(key, subscriptions.getEncoding(i));
+                        }
+                    }
+                    Log.d(TAG, "message set subscriptions send");
+                } catch (RemoteException e){
+                    onServiceDisconnected(e);
+                }
+            }
+        }
+    }
+
     /**
      * Send a message to the plugin asking to unsubscribe from the specified sensor.
      * You should call this as soon as data from that sensor is no longer needed to reduce system and battery load.
@@ -222,6 +470,8 @@ public abstract class MaskConnection {
                     msg.getData().putInt(DEVICE_INDEX, deviceIndex);
                     msg.replyTo = mMessenger;
                     mService.send(msg);
+                    mDerivedStreams.remove(streamKey(deviceIndex, sensorType));
+                    mEncodings.remove(streamKey(deviceIndex, sensorType));
                 } catch (RemoteException e){
                     onServiceDisconnected(e);
                 }
@@ -229,6 +479,192 @@ public abstract class MaskConnection {
         }
     }
 
+    /**
+     * Align the readings of several sensors of a device in time, e.g. accelerometer, gyroscope and magnetic field for
+     * orientation estimation. Every frame the join completes is passed to
+     * {@link #onJoinedData(long, String, int, StreamJoin, float[])}, the readings are still passed to their usual
+     * methods as well. Subscribe to the sensors as usual. Call this on the thread readings are delivered on.
+     * If the plugin offers the fused frames as a sensor of its own, subscribing to that saves the messages.
+     *
+     * @param deviceIndex The index of the device.
+     * @param join The join, with one input per sensor type. Its memory is fixed, see {@link StreamJoin#getMemoryBytes()}.
+     * @param sensorTypes The sensor types of the inputs, the reference first.
+     */
+    public void addSensorJoin(int deviceIndex, StreamJoin join, int... sensorTypes){
+        if (sensorTypes.length != join.getInputCount()) {
+            throw new IllegalArgumentException("the join takes " + join.getInputCount() + " inputs, got " + sensorTypes.length);
+        }
+        mJoins.add(new SensorJoin(deviceIndex, sensorTypes.clone(), join));
+    }
+
+    /**
+     * Keep the recent readings of a sensor, e.g. to analyze the last seconds of it without copying every reading in
+     * the callbacks. Readings are recorded before they are passed on, also those of derived streams. The history is
+     * allocated up front and never grows; query it with {@link SensorHistory#window(long, long, SensorHistory.Window)}
+     * or {@link SensorHistory#copyWindow(long, long, long[], float[], int)} on the thread readings are delivered on.
+     * An existing history of the sensor is replaced.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType The sensor type.
+     * @param capacity The number of readings kept, e.g. 5 seconds at 50 Hz are 250 readings.
+     * @param channels The number of values kept per reading, e.g. 3 for the accelerometer.
+     * @return The history.
+     */
+    public SensorHistory enableHistory(int deviceIndex, int sensorType, int capacity, int channels){
+        SensorHistory history = new SensorHistory(capacity, channels);
+        disableHistory(deviceIndex, sensorType);
+        mHistories.add(new HistorySlot(deviceIndex, sensorType, history));
+        return history;
+    }
+
+    /**
+     * @return The history of a sensor, see {@link #enableHistory(int, int, int, int)}, or {@code null} if it has none.
+     */
+    public SensorHistory getHistory(int deviceIndex, int sensorType){
+        for (int i = 0; i < mHistories.size(); i++) {
+            HistorySlot h = mHistories.get(i);
+            if (h.deviceIndex == deviceIndex && h.sensorType == sensorType) {
+                return h.history;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop keeping the readings of a sensor and release its history.
+     */
+    public void disableHistory(int deviceIndex, int sensorType){
+        for (int i = mHistories.size() - 1; i >= 0; i--) {
+            HistorySlot h = mHistories.get(i);
+            if (h.deviceIndex == deviceIndex && h.sensorType == sensorType) {
+                mHistories.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Stop feeding a join added with {@link #addSensorJoin(int, StreamJoin, int...)}.
+     *
+     * @param join The join.
+     */
+    public void removeSensorJoin(StreamJoin join){
+        for (int i = mJoins.size() - 1; i >= 0; i--) {
+            if (mJoins.get(i).join == join) {
+                mJoins.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Ask the plugin to deliver readings through shared memory instead of one message per reading.
+     * This pays off for sensors with high rates, e.g. ECG or IMU streams above 250 Hz.
+     * The readings are passed to the usual methods such as {@link #onAccelerometerData(long, String, int, float[])},
+     * about every 10 milliseconds. If this client falls behind by more than
+     * {@code slotCount} readings, the oldest ones are lost and {@link #onSamplesLost(long)} is called.
+     *
+     * @param slotCount The number of readings the shared memory holds. If not positive, the plugin chooses a default.
+     * @param maxValues The maximum number of values per reading. Larger readings are still sent as messages.
+     *                  If not positive, the plugin chooses a default.
+     */
+    public void openSharedMemoryTransport(int slotCount, int maxValues){
+        if(mIsBound && mService != null){
+            try{
+                Message msg = Message.obtain(null, ServiceMsg.OPEN_SHARED_TRANSPORT, slotCount, maxValues);
+                msg.replyTo = mMessenger;
+                mService.send(msg);
+            } catch (RemoteException e){
+                onServiceDisconnected(e);
+            }
+        }
+    }
+
+    /**
+     * Ask the plugin to send readings as messages again, see {@link #openSharedMemoryTransport(int, int)}.
+     */
+    public void closeSharedMemoryTransport(){
+        if(mIsBound && mService != null){
+            try{
+                Message msg = Message.obtain(null, ServiceMsg.CLOSE_SHARED_TRANSPORT);
+                msg.replyTo = mMessenger;
+                mService.send(msg);
+            } catch (RemoteException e){
+                onServiceDisconnected(e);
+            }
+        }
+        //readings already in the shared memory are dropped
+        closeSharedMemory();
+    }
+
+    private void attachSharedMemory(ParcelFileDescriptor pfd, int size) {
+        closeSharedMemory();
+        try {
+            FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            mSharedRing = SharedRingBuffer.attach(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            mSharedDescriptor = pfd;
+            mLostSamples = 0;
+            mHandler.post(mSharedPoller);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "could not attach shared memory: " + e.getMessage());
+            mSharedRing = null;
+            try {
+                pfd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void closeSharedMemory() {
+        mHandler.removeCallbacks(mSharedPoller);
+        mSharedRing = null;
+        if (mSharedDescriptor != null) {
+            try {
+                mSharedDescriptor.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing shared memory: " + e.getMessage());
+            }
+            mSharedDescriptor = null;
+        }
+    }
+
+    private void pollSharedMemory() {
+        SharedRingBuffer ring = mSharedRing;
+        if (ring == null) {
+            return;
+        }
+        SensorSample s = mSample;
+        for (int i = 0; i < MAX_SHARED_READS_PER_POLL && ring.read(s); i++) {
+            dispatchSample(s);
+            if (mSharedRing != ring) {
+                //a callback closed the transport
+                return;
+            }
+        }
+        long lost = ring.getLostSamples();
+        if (lost > mLostSamples) {
+            long n = lost - mLostSamples;
+            mLostSamples = lost;
+            onSamplesLost(n);
+        }
+        if (mSharedRing == ring) {
+            mHandler.postDelayed(mSharedPoller, ring.available() > 0 ? 0 : SHARED_POLL_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Ask the plugin for a snapshot of its dispatch counters. {@link #onStats(DispatchStats)} will be called when the plugin responds.
+     */
+    public void requestStats(){
+        if(mIsBound && mService != null){
+            try{
+                Message msg = Message.obtain(null, ServiceMsg.GET_STATS);
+                msg.replyTo = mMessenger;
+                mService.send(msg);
+            } catch (RemoteException e){
+                onServiceDisconnected(e);
+            }
+        }
+    }
+
     /**
      * Send a message to the plugin indicating whether automatic device reconnectes should be attempted (if supported).
      * @param shouldReconnect true, iff automatic reconnects should be tried (if supported).
@@ -251,6 +687,20 @@ public abstract class MaskConnection {
         }
     }
 
+    /**
+     * @return The name of the service, or {@code null} until it sent its sensor list or a device connected.
+     */
+    public String getServiceName(){
+        return mServiceName;
+    }
+
+    /**
+     * @return Whether the listener of a sensor takes several values, {@code false} for single values or no listener.
+     */
+    boolean hasVectorListener(int sensorType){
+        return mListeners.getVector(sensorType) != null;
+    }
+
     /**
      * Send a message to the plugin asking for a list of supported sensors.
      *
@@ -280,254 +730,545 @@ public abstract class MaskConnection {
     //TODO ServiceName mitgeben oder auch deviceIndex aus Bundle nehmen?
     private void handleDeviceData(int sensorType, int deviceIndex, Bundle values) {
         long ts = values.getLong(BundleKeys.TIMESTAMP_NANO, -1);
-        float [] readings = null;
-
         String serviceName = values.getString(BundleKeys.SERVICE_NAME);
-
-        if(values.containsKey(BundleKeys.SENSOR_READINGS_FLOAT_ARRAY)){
-            readings = values.getFloatArray(BundleKeys.SENSOR_READINGS_FLOAT_ARRAY);
-        }
+        //null if missing, no need to look it up twice
+        float[] readings = values.getFloatArray(BundleKeys.SENSOR_READINGS_FLOAT_ARRAY);
         float reading = -1;
         boolean hasReading = false;
         if(values.containsKey(BundleKeys.SENSOR_READINGS_SINGLE_FLOAT)){
             hasReading = true;
             reading = values.getFloat(BundleKeys.SENSOR_READINGS_SINGLE_FLOAT,-1);
         }
-        switch (sensorType) {
-            case SensorType.ACCELEROMETER: {
-                if (readings == null) {
-                    Log.e(TAG, "no accelerometer readings in service message");
-                    break;
-                }
-                onAccelerometerData(ts, serviceName, deviceIndex, readings);
-                break;
+        dispatchReading(sensorType, serviceName, deviceIndex, ts, readings, hasReading, reading, values);
+    }
+
+    /**
+     * Decodes a {@link SensorSample} sent by the plugin and passes the reading to the appropriate method.
+     *
+     * @param encoded The sample in its binary form.
+     * @return {@code false} if the sample could not be decoded.
+     */
+    private boolean handleSample(byte[] encoded) {
+        SensorSample s = mSample;
+        ValueEncoding encoding = mEncodings.isEmpty() ? null
+                : mEncodings.get(streamKey(SensorSample.peekDeviceIndex(encoded), SensorSample.peekSensorType(encoded)));
+        if (encoded == null || !s.readFrom(encoded, 0, encoded.length, encoding)) {
+            return false;
+        }
+        dispatchSample(s);
+        return true;
+    }
+
+    private void dispatchSample(SensorSample s) {
+        int n = s.getValueCount();
+        float[] readings = n > 0 ? s.copyValues() : null;
+        dispatchReading(s.getSensorType(), mServiceName, s.getDeviceIndex(), s.getTimestamp(), readings, n > 0, n > 0 ? readings[0] : -1, null);
+    }
+
+    /**
+     * Unpacks a batch of readings sent by the plugin and passes each reading to the appropriate method,
+     * just as if it had arrived in a message of its own.
+     *
+     * @param sensorType The sensor type the readings come from
+     * @param deviceIndex The index of the device.
+     * @param batch A {@link Bundle} with the timestamps and the interleaved values of all readings, as floats or
+     *              quantized.
+     */
+    private void handleDeviceDataBatch(int sensorType, int deviceIndex, Bundle batch) {
+        String serviceName = batch.getString(BundleKeys.SERVICE_NAME);
+        long[] timestamps = batch.getLongArray(BundleKeys.TIMESTAMPS_NANO);
+        float[] values = batch.getFloatArray(BundleKeys.SENSOR_READINGS_BATCH);
+        short[] quantized = batch.getShortArray(BundleKeys.SENSOR_READINGS_BATCH_QUANTIZED);
+        if (quantized != null) {
+            //batches carry their encoding, it may differ from the subscription's while it changes
+            ValueEncoding encoding;
+            try {
+                encoding = ValueEncoding.parse(batch.getString(BundleKeys.VALUE_ENCODING));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "malformed batch encoding for sensor " + sensorType + ": " + e.getMessage());
+                return;
+            }
+            values = new float[quantized.length];
+            for (int i = 0; i < quantized.length; i++) {
+                values[i] = encoding.decode(quantized[i]);
+            }
+        }
+        int n = batch.getInt(BundleKeys.VALUES_PER_SAMPLE, 0);
+        if (timestamps == null || (n > 0 && (values == null || values.length < timestamps.length * n))) {
+            Log.e(TAG, "malformed batch for sensor " + sensorType);
+            return;
+        }
+        for (int i = 0; i < timestamps.length; i++) {
+            float[] readings = null;
+            float reading = -1;
+            if (n > 0) {
+                readings = new float[n];
+                System.arraycopy(values, i * n, readings, 0, n);
+                reading = readings[0];
+            }
+            dispatchReading(sensorType, serviceName, deviceIndex, timestamps[i], readings, n > 0, reading, null);
+        }
+    }
+
+    private static long streamKey(int deviceIndex, int sensorType) {
+        return ((long) deviceIndex << 32) | (sensorType & 0xffffffffL);
+    }
+
+    /**
+     * Hands a reading to the joins it is an input of and passes the frames they complete on.
+     */
+    private void feedJoins(int sensorType, String serviceName, int deviceIndex, long ts, float[] readings) {
+        for (int j = 0; j < mJoins.size(); j++) {
+            SensorJoin s = mJoins.get(j);
+            if (s.deviceIndex != deviceIndex) {
+                continue;
             }
-            case SensorType.GYROSCOPE: {
-                if (readings == null) {
-                    Log.e(TAG, "no gyroscope readings in service message");
-                    break;
+            for (int input = 0; input < s.sensorTypes.length; input++) {
+                if (s.sensorTypes[input] == sensorType && readings.length >= s.join.getChannels(input)) {
+                    s.join.offer(input, ts, readings, 0);
+                    while (s.join.poll()) {
+                        onJoinedData(s.join.getOutputTimestamp(), serviceName, deviceIndex, s.join, s.join.getOutput());
+                    }
                 }
-                onGyroscopeData(ts,serviceName, deviceIndex, readings);
-                break;
             }
-            case SensorType.LIGHT: {
-                if(!hasReading){
-                    Log.e(TAG, "no light level reading in service message");
-                    break;
+        }
+    }
+
+    /**
+     * Passes a reading to the listener of its {@link SensorType}, see {@link #setVectorListener(int, VectorSensorListener)}.
+     *
+     * @param sensorType The sensor type the reading comes from
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param ts The timestamp of the reading in nanoseconds.
+     * @param readings The values of a multi-dimensional reading or {@code null}.
+     * @param hasReading Whether {@code reading} holds a value.
+     * @param reading The value of a single float reading.
+     * @param values The message bundle for {@link #onSensorData(int, String, int, Bundle)}, built from the reading if {@code null}.
+     */
+    private void dispatchReading(int sensorType, String serviceName, int deviceIndex, long ts, float[] readings, boolean hasReading, float reading, Bundle values) {
+        for (int i = 0; i < mHistories.size(); i++) {
+            HistorySlot h = mHistories.get(i);
+            if (h.deviceIndex == deviceIndex && h.sensorType == sensorType) {
+                if (readings != null) {
+                    h.history.add(ts, readings, 0, readings.length);
+                } else if (hasReading) {
+                    h.history.add(ts, reading);
+                } else {
+                    h.history.add(ts, null, 0, 0);
                 }
-                onAmbientLightLevel(ts,serviceName, deviceIndex, reading);
-                break;
             }
-            case SensorType.GRAVITY:
-                if(readings == null){
-                    Log.e(TAG, "no gravity readings in service message");
-                    break;
+        }
+        if (!mDerivedStreams.isEmpty() && mDerivedStreams.contains(streamKey(deviceIndex, sensorType))) {
+            if (readings == null && hasReading) {
+                readings = new float[]{reading};
+            }
+            onDerivedData(ts, serviceName, deviceIndex, sensorType, readings != null ? readings : new float[0]);
+            return;
+        }
+        if (!mJoins.isEmpty() && (readings != null || hasReading)) {
+            feedJoins(sensorType, serviceName, deviceIndex, ts, readings != null ? readings : new float[]{reading});
+        }
+        int result = mListeners.dispatch(sensorType, serviceName, deviceIndex, ts, readings, hasReading, reading);
+        if (result == SensorListenerTable.MISSING_VALUES) {
+            Log.e(TAG, "missing data for sensor " + sensorType);
+        } else if (result == SensorListenerTable.NO_LISTENER) {
+            if (values == null) {
+                values = new Bundle();
+                values.putLong(BundleKeys.TIMESTAMP_NANO, ts);
+                values.putString(BundleKeys.SERVICE_NAME, serviceName);
+                values.putInt(DEVICE_INDEX, deviceIndex);
+                if (readings != null) {
+                    values.putFloatArray(BundleKeys.SENSOR_READINGS_FLOAT_ARRAY, readings);
                 }
-                onGravityData(ts, serviceName, deviceIndex, readings);
-                break;
-            case SensorType.HEART_RATE:
-                if(!hasReading){
-                    Log.e(TAG, "no heart rate reading in service message");
-                    break;
+                if (hasReading) {
+                    values.putFloat(BundleKeys.SENSOR_READINGS_SINGLE_FLOAT, reading);
                 }
-                onHeartRateData(ts,serviceName, deviceIndex,reading);
+            }
+            onSensorData(sensorType,serviceName, deviceIndex, values);
+        }
+    }
+
+    /**
+     * Register the listener of a sensor with several values. It replaces the method of the sensor type, e.g.
+     * {@link #onAccelerometerData(long, String, int, float[])}, and {@link #onSensorData(int, String, int, Bundle)}
+     * for custom sensors. Readings are passed on with a single array lookup, so registering listeners only for the
+     * sensors you need is the cheapest way to receive readings. Call this on the thread readings are delivered on.
+     *
+     * @param sensorType The sensor type, custom types included.
+     * @param listener The listener, {@code null} to go back to the method of the sensor type.
+     */
+    public void setVectorListener(int sensorType, VectorSensorListener listener){
+        if (listener == null) {
+            setBuiltInListener(sensorType);
+        } else {
+            mListeners.set(sensorType, listener);
+        }
+    }
+
+    /**
+     * Register the listener of a sensor with a single value, see {@link #setVectorListener(int, VectorSensorListener)}.
+     *
+     * @param sensorType The sensor type, custom types included.
+     * @param listener The listener, {@code null} to go back to the method of the sensor type.
+     */
+    public void setScalarListener(int sensorType, ScalarSensorListener listener){
+        if (listener == null) {
+            setBuiltInListener(sensorType);
+        } else {
+            mListeners.setScalar(sensorType, listener);
+        }
+    }
+
+    /**
+     * Register the listener of a sensor like {@link #setVectorListener(int, VectorSensorListener)}, but call it on an
+     * executor, so a slow listener does not hold up the readings of other sensors.
+     * To share one queue between several sensors, create a {@link DeliveryQueue} and register it for each of them.
+     *
+     * @param sensorType The sensor type, custom types included.
+     * @param listener The listener.
+     * @param executor The executor calling the listener, e.g. {@link #handlerExecutor(Handler)} of a background thread.
+     *                 With {@link DeliveryQueue#BLOCK}, it must not run on the thread readings arrive on, see there.
+     * @param capacity The number of readings that may wait for the listener.
+     * @param policy What to do when the queue is full, one of the {@link DeliveryQueue} policies.
+     * @return The queue, with counters of the readings it delivered and discarded.
+     */
+    public DeliveryQueue setVectorListener(int sensorType, VectorSensorListener listener, Executor executor, int capacity, int policy){
+        DeliveryQueue queue = new DeliveryQueue(listener, executor, capacity, policy);
+        mListeners.set(sensorType, queue);
+        return queue;
+    }
+
+    /**
+     * Register the listener of a sensor with a single value and call it on an executor, see
+     * {@link #setVectorListener(int, VectorSensorListener, Executor, int, int)}.
+     */
+    public DeliveryQueue setScalarListener(int sensorType, ScalarSensorListener listener, Executor executor, int capacity, int policy){
+        DeliveryQueue queue = new DeliveryQueue(listener, executor, capacity, policy);
+        mListeners.setScalar(sensorType, queue);
+        return queue;
+    }
+
+    /**
+     * Call the current listener of a sensor on an executor, e.g. to move a slow {@link #onAccelerometerData(long, String, int, float[])}
+     * off the main thread. The methods of the other sensors are still called on the main thread.
+     *
+     * @param sensorType The sensor type.
+     * @param executor The executor, {@code null} to call the listener directly again. With {@link DeliveryQueue#BLOCK},
+     *                 it must not run on the thread readings arrive on, see there.
+     * @param capacity The number of readings that may wait for the listener.
+     * @param policy What to do when the queue is full, one of the {@link DeliveryQueue} policies.
+     * @return The queue, or {@code null} if the sensor has no listener or the executor is {@code null}.
+     */
+    public DeliveryQueue setSensorExecutor(int sensorType, Executor executor, int capacity, int policy){
+        VectorSensorListener vector = mListeners.getVector(sensorType);
+        Object current = vector != null ? vector : mListeners.getScalar(sensorType);
+        if (current instanceof DeliveryQueue) {
+            current = ((DeliveryQueue) current).getListener();
+        }
+        if (current == null) {
+            return null;
+        }
+        DeliveryQueue queue = null;
+        //keep the kind of listener the sensor had, a queue converts the readings if needed
+        if (vector != null && current instanceof VectorSensorListener || !(current instanceof ScalarSensorListener)) {
+            VectorSensorListener listener = (VectorSensorListener) current;
+            if (executor != null) {
+                queue = new DeliveryQueue(listener, executor, capacity, policy);
+                listener = queue;
+            }
+            mListeners.set(sensorType, listener);
+        } else {
+            ScalarSensorListener listener = (ScalarSensorListener) current;
+            if (executor != null) {
+                queue = new DeliveryQueue(listener, executor, capacity, policy);
+                listener = queue;
+            }
+            mListeners.setScalar(sensorType, listener);
+        }
+        return queue;
+    }
+
+    /**
+     * @param handler A handler, e.g. of a {@code HandlerThread}.
+     * @return An executor posting to the handler, for {@link #setSensorExecutor(int, Executor, int, int)}.
+     */
+    public static Executor handlerExecutor(Handler handler){
+        return new HandlerExecutor(handler);
+    }
+
+    /**
+     * Route a sensor's readings to its method again, or to {@link #onSensorData(int, String, int, Bundle)} if it has none.
+     */
+    private void setBuiltInListener(int sensorType) {
+        switch (sensorType) {
+            case SensorType.ACCELEROMETER:
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onAccelerometerData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
                 break;
-            case SensorType.HEART_RATE_VARIABILITY:
-                if(!hasReading){
-                    Log.e(TAG, "no heart rate reading in service message");
-                    break;
-                }
-                onHeartRateVariabilityData(ts,serviceName, deviceIndex,reading);
+            case SensorType.GYROSCOPE:
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onGyroscopeData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
+                break;
+            case SensorType.GRAVITY:
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onGravityData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
                 break;
-
             case SensorType.LINEAR_ACCELERATION:
-                if(readings == null){
-                    Log.e(TAG,"no linear acceleration readings in service message");
-                    break;
-                }
-                onLinearAccelerationData(ts,serviceName, deviceIndex,readings);
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onLinearAccelerationData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
                 break;
             case SensorType.MAGNETIC_FIELD:
-                if(readings == null){
-                    Log.e(TAG,"no magnetic field readings in service message");
-                    break;
-                }
-                onMagneticFieldData(ts,serviceName, deviceIndex,readings);
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onMagneticFieldData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
+                break;
+            case SensorType.ROTATION_VECTOR:
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onRotationData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
+                break;
+            case SensorType.LIGHT:
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onAmbientLightLevel(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
+                break;
+            case SensorType.HEART_RATE:
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onHeartRateData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
+                break;
+            case SensorType.HEART_RATE_VARIABILITY:
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onHeartRateVariabilityData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.PRESSURE:
-                if(!hasReading){
-                    Log.e(TAG, "no pressure reading in service message");
-                    break;
-                }
-                onPressureData(ts,serviceName, deviceIndex,reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onPressureData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.PROXIMITY:
-                if(!hasReading){
-                    Log.e(TAG, "no proximity reading in service message");
-                    break;
-                }
-                onProximityData(ts,serviceName, deviceIndex,reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onProximityData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.RELATIVE_HUMIDITY:
-                if(!hasReading){
-                    Log.e(TAG, "no humidity reading in service message");
-                    break;
-                }
-                onRelativeHumidityData(ts,serviceName, deviceIndex,reading);
-                break;
-            case SensorType.ROTATION_VECTOR:
-                if(readings == null){
-                    Log.e(TAG,"no rotation vector in service message");
-                    break;
-                }
-                onRotationData(ts,serviceName, deviceIndex,readings);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onRelativeHumidityData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEP_COUNTER:
-                if(!hasReading){
-                    Log.e(TAG, "no step count in service message");
-                    break;
-                }
-                onStepCounterData(ts,serviceName, deviceIndex,reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onStepCounterData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEP_DETECTOR:
-                onStepDetected(ts, serviceName, deviceIndex);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onStepDetected(timestamp, serviceName, deviceIndex);
+                    }
+                });
                 break;
             case SensorType.TEMPERATURE:
-                if(!hasReading){
-                    Log.e(TAG, "no temperature reading in service message");
-                    break;
-                }
-                onTemperatureData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onTemperatureData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.SKIN_TEMPERATURE:
-                if(!hasReading){
-                    Log.e(TAG, "no skin temperature reading in service message");
-                    break;
-                }
-                onSkinTemperature(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onSkinTemperature(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.UV_INDEX_LEVEL:
-                if(!hasReading){
-                    Log.e(TAG,"no uv reading in service message");
-                    break;
-                }
-                onUVLevel(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onUVLevel(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.SKIN_RESISTANCE:
-                if(!hasReading){
-                    Log.e(TAG,"no skin resistance in service message");
-                    break;
-                }
-                onSkinResistanceData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onSkinResistanceData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.CALORIES:
-                if(!hasReading){
-                    Log.e(TAG,"no calories in service message");
-                    break;
-                }
-                onCaloryData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onCaloryData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.FLOORS_ASCENDED:
-                if(!hasReading){
-                    Log.e(TAG, "no floor count in service message");
-                    break;
-                }
-                onFloorsAscendedData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onFloorsAscendedData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.FLOORS_DESCENDED:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onFloorsDescendedData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onFloorsDescendedData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.ASCENT_RATE:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onAscentRateData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onAscentRateData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.ELEVATION_GAIN:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onElevationGainData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onElevationGainData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.ELEVATION_LOSS:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onElevationLossData(ts,serviceName, deviceIndex,reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onElevationLossData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEPS_ASCENDED:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onStepsAscendedData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onStepsAscendedData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEPS_DESCENDED:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onStepsDescendedData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onStepsDescendedData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEPPING_ELEVATION_GAIN:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onSteppingElevationGainData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onSteppingElevationGainData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.STEPPING_ELEVATION_LOSS:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onSteppingElevationLossData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onSteppingElevationLossData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.PACE:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onPaceData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onPaceData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.SPEED:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onSpeedData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onSpeedData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.DISTANCE:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onDistanceData(ts, serviceName, deviceIndex, reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onDistanceData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
                 break;
             case SensorType.COMPASS:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensor "+sensorType);
-                    break;
-                }
-                onCompassData(ts,serviceName, deviceIndex,  reading);
+                mListeners.setScalar(sensorType, new ScalarSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                        onCompassData(timestamp, serviceName, deviceIndex, value);
+                    }
+                });
+                break;
+            case SensorType.ECG:
+                mListeners.set(sensorType, new VectorSensorListener() {
+                    @Override
+                    public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                        onECGData(timestamp, serviceName, deviceIndex, values);
+                    }
+                });
                 break;
-            case  SensorType.ECG:
-                if(!hasReading){
-                    Log.e(TAG, "missing data for sensort" + sensorType);
-                    break;
-                }
-                onECGData(ts, serviceName, deviceIndex, reading);
             default:
-                onSensorData(sensorType,serviceName, deviceIndex, values);
+                mListeners.setScalar(sensorType, null);
         }
-
     }
 
 
@@ -545,11 +1286,9 @@ public abstract class MaskConnection {
      * @param timestamp The timestamp of when the measurement was taken; in nanoseconds
      * @param serviceName The name of the service.
      * @param deviceIndex The index of the device.
-     * //TODO: ecg data readings
-     * @param reading The values of the ecg data.
+     * @param values The values of the ecg data, as broadcast by the plugin.
      */
-    private void onECGData(long timestamp, String serviceName, int deviceIndex, float reading) {
-    }
+    protected void onECGData(long timestamp, String serviceName, int deviceIndex, float[] values){}
     /**
      * Invoked when the connected device sent an accelerometer reading
      * @param timestamp The timestamp of when the measurement was taken; in nanoseconds
@@ -852,6 +1591,41 @@ public abstract class MaskConnection {
      */
     protected void onSensorData(int sensorType, String serviceName, int deviceIndex, Bundle values){}
 
+    /**
+     * Invoked for every reading of a derived stream, see {@link #subscribeToSensor(int, int, int, int, int, int, FilterChain)}.
+     * @param timestamp The timestamp of the derived reading in nanoseconds.
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param sensorType The sensor the stream is derived from.
+     * @param values The derived values, laid out as described by the last stage of the chain, e.g. {@link de.frederickerber.maskcommons.SlidingDft}.
+     */
+    protected void onDerivedData(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values){}
+
+    /**
+     * Invoked for every frame of a join, see {@link #addSensorJoin(int, StreamJoin, int...)}.
+     * @param timestamp The timestamp of the frame in nanoseconds, that of the join's reference input.
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param join The join that completed the frame.
+     * @param frame The values of all inputs at that time, in input order. Reused for the next frame, copy it to keep it.
+     */
+    protected void onJoinedData(long timestamp, String serviceName, int deviceIndex, StreamJoin join, float[] frame){}
+
+    /**
+     * Invoked when the plugin sent a snapshot of its dispatch counters, see {@link #requestStats()}.
+     * @param stats The counters of the plugin.
+     */
+    protected void onStats(DispatchStats stats){}
+
+    /**
+     * Invoked when readings from shared memory were lost because this client did not keep up with the plugin.
+     * See {@link #openSharedMemoryTransport(int, int)}.
+     * @param count The number of readings lost since the last call.
+     */
+    protected void onSamplesLost(long count){
+        Log.w(TAG, count + " readings lost in shared memory");
+    }
+
     /**
      * Invoked when the (bluetooth) device connected.
      * @param serviceName The name of the service.
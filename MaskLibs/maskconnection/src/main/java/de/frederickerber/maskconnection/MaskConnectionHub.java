@@ -0,0 +1,331 @@
+package de.frederickerber.maskconnection;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.SensorType;
+import de.frederickerber.maskcommons.StreamMerger;
+import de.frederickerber.maskcommons.SubscriptionSet;
+import de.frederickerber.maskcommons.ValueEncoding;
+
+/**
+ * Connects to several sensor services at once, e.g. the phone plugin and a wristband plugin, and passes the readings
+ * of all of them to {@link #onReading(long, String, int, int, float[])} and {@link #onReading(long, String, int, int, float)}.
+ * Subscriptions are routed to a service by its name, which is known once it sent its sensor list or a device
+ * connected, see {@link #onSensorList(String, ArrayList)}.
+ * <p>
+ * Every service delivers its readings in its own messages, so the readings of different services arrive interleaved
+ * in no particular order. {@link #enableMerge(long, int)} puts them in timestamp order with a {@link StreamMerger}:
+ * readings wait at most the reorder window for older readings of the other services. This only makes sense if all
+ * services take their timestamps from the same clock, e.g. {@code SystemClock.elapsedRealtimeNanos()} of the phone.
+ * <p>
+ * Like {@link MaskConnection}, a hub is used on the thread it was created on, usually the main thread.
+ */
+public abstract class MaskConnectionHub {
+
+    private final static String TAG = "MaskConnectionHub";
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    //the connections by index, their routing and the merge
+    private final HubCore<PluginConnection> mCore = new HubCore<>(new ConnectionSink());
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mCore.flushDue();
+        }
+    };
+
+    /**
+     * The connection to one service. It passes every reading on to the hub.
+     */
+    private final class PluginConnection extends MaskConnection implements VectorSensorListener, ScalarSensorListener {
+
+        final int index;
+
+        PluginConnection(int index){
+            this.index = index;
+            for (int type = 0; type < SensorType.NUM_SENSORS; type++) {
+                if (hasVectorListener(type)) {
+                    setVectorListener(type, this);
+                } else {
+                    setScalarListener(type, this);
+                }
+            }
+        }
+
+        @Override
+        public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+            mCore.offer(index, timestamp, deviceIndex, sensorType, values, Float.NaN);
+        }
+
+        @Override
+        public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+            mCore.offer(index, timestamp, deviceIndex, sensorType, null, value);
+        }
+
+        @Override
+        protected void onSensorData(int sensorType, String serviceName, int deviceIndex, Bundle values) {
+            MaskConnectionHub.this.onSensorData(sensorType, serviceName, deviceIndex, values);
+        }
+
+        @Override
+        protected void onSensorList(ArrayList<Integer> supportedSensors) {
+            MaskConnectionHub.this.onSensorList(getServiceName(), supportedSensors);
+        }
+
+        @Override
+        protected void onDeviceConnected(String serviceName, int deviceIndex) {
+            MaskConnectionHub.this.onDeviceConnected(serviceName, deviceIndex);
+        }
+
+        @Override
+        protected void onDeviceDisconnected(String serviceName, int deviceIndex) {
+            MaskConnectionHub.this.onDeviceDisconnected(serviceName, deviceIndex);
+        }
+
+        @Override
+        protected void onServiceDisconnected(Exception e) {
+            //do not wait for readings that will not come
+            mCore.removeSource(index);
+            MaskConnectionHub.this.onServiceDisconnected(getServiceName(), e);
+        }
+    }
+
+    /**
+     * Passes the readings of the core on to the reading methods of the hub and flushes the merge on the handler.
+     */
+    private final class ConnectionSink implements HubSink<PluginConnection> {
+
+        @Override
+        public long now() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public String getServiceName(PluginConnection source) {
+            return source.getServiceName();
+        }
+
+        @Override
+        public void deliver(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values, float value) {
+            if (values != null) {
+                onReading(timestamp, serviceName, deviceIndex, sensorType, values);
+            } else {
+                onReading(timestamp, serviceName, deviceIndex, sensorType, value);
+            }
+        }
+
+        @Override
+        public void scheduleFlush(long deadline) {
+            mHandler.removeCallbacks(mFlushTask);
+            long delayMillis = (deadline - now() + 999999) / 1000000;
+            mHandler.postDelayed(mFlushTask, Math.max(1, delayMillis));
+        }
+
+        @Override
+        public void cancelFlush() {
+            mHandler.removeCallbacks(mFlushTask);
+        }
+    }
+
+    /**
+     * @param context The context the services are bound to, see {@link MaskConnection#connectToSensorService(Context, String, String, String)}.
+     */
+    public MaskConnectionHub(Context context){
+        mContext = context;
+    }
+
+    /**
+     * Connect to a sensor service, see {@link MaskConnection#connectToSensorService(Context, String, String, String)}.
+     * The service sends its sensors once the client is registered, {@link #onSensorList(String, ArrayList)} is then
+     * called with its name.
+     *
+     * @return The connection, e.g. to use features of a single service.
+     */
+    public MaskConnection addPlugin(String sensorServiceAction, String packageName, String className){
+        PluginConnection plugin = new PluginConnection(mCore.size());
+        mCore.addSource(plugin);
+        plugin.connectToSensorService(mContext, sensorServiceAction, packageName, className);
+        return plugin;
+    }
+
+    /**
+     * Ask every service for its sensors, see {@link #onSensorList(String, ArrayList)}.
+     */
+    public void getSupportedSensors(){
+        for (int i = 0; i < mCore.size(); i++) {
+            mCore.getSource(i).getSupportedSensors();
+        }
+    }
+
+    /**
+     * Disconnect from all services. {@link #onServiceDisconnected(String, Exception)} is called for each of them.
+     * Merged readings still waiting are passed on first.
+     */
+    public void disconnectAll(){
+        mCore.flush();
+        for (int i = 0; i < mCore.size(); i++) {
+            mCore.getSource(i).disconnectFromSensorService(mContext);
+        }
+    }
+
+    /**
+     * @param serviceName The name of a service.
+     * @return The connection to the service, or {@code null} if no connected service has that name (yet).
+     */
+    public MaskConnection getConnection(String serviceName){
+        return mCore.find(serviceName);
+    }
+
+    /**
+     * @return The names of all services known so far.
+     */
+    public ArrayList<String> getServiceNames(){
+        return mCore.getServiceNames();
+    }
+
+    /**
+     * Subscribe to a sensor of a service, see {@link MaskConnection#subscribeToSensor(int, int, int)}.
+     *
+     * @param serviceName The name of the service.
+     * @return {@code false} if no service has that name.
+     */
+    public boolean subscribeToSensor(String serviceName, int deviceIndex, int sensorType, int frequency){
+        MaskConnection c = getConnection(serviceName);
+        if (c == null) {
+            Log.e(TAG, "no service named " + serviceName);
+            return false;
+        }
+        c.subscribeToSensor(deviceIndex, sensorType, frequency);
+        return true;
+    }
+
+    /**
+     * Subscribe to a sensor of a service, see
+     * {@link MaskConnection#subscribeToSensor(int, int, int, int, int, int, FilterChain, ValueEncoding)}.
+     *
+     * @param serviceName The name of the service.
+     * @return {@code false} if no service has that name.
+     */
+    public boolean subscribeToSensor(String serviceName, int deviceIndex, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis, FilterChain chain, ValueEncoding encoding){
+        MaskConnection c = getConnection(serviceName);
+        if (c == null) {
+            Log.e(TAG, "no service named " + serviceName);
+            return false;
+        }
+        c.subscribeToSensor(deviceIndex, sensorType, frequency, rateMode, maxBatchSize, maxBatchLatencyMillis, chain, encoding);
+        return true;
+    }
+
+    /**
+     * Replace all subscriptions with a service in one message, see {@link MaskConnection#setSubscriptions(SubscriptionSet)}.
+     *
+     * @param serviceName The name of the service.
+     * @return {@code false} if no service has that name.
+     */
+    public boolean setSubscriptions(String serviceName, SubscriptionSet subscriptions){
+        MaskConnection c = getConnection(serviceName);
+        if (c == null) {
+            Log.e(TAG, "no service named " + serviceName);
+            return false;
+        }
+        c.setSubscriptions(subscriptions);
+        return true;
+    }
+
+    /**
+     * Unsubscribe from a sensor of a service, see {@link MaskConnection#unsubscribeFromSensor(int, int)}.
+     *
+     * @param serviceName The name of the service.
+     * @return {@code false} if no service has that name.
+     */
+    public boolean unsubscribeFromSensor(String serviceName, int deviceIndex, int sensorType){
+        MaskConnection c = getConnection(serviceName);
+        if (c == null) {
+            Log.e(TAG, "no service named " + serviceName);
+            return false;
+        }
+        c.unsubscribeFromSensor(deviceIndex, sensorType);
+        return true;
+    }
+
+    /**
+     * Pass the readings of all services on in timestamp order, see the class description.
+     * The timestamps of the services must come from the same clock.
+     *
+     * @param reorderWindowNanos How long a reading may wait for older readings of other services, in nanoseconds.
+     *                           This adds up to as much latency.
+     * @param capacity The maximum number of waiting readings. If it is reached, the oldest reading is passed on early.
+     */
+    public void enableMerge(long reorderWindowNanos, int capacity){
+        mCore.enableMerge(reorderWindowNanos, capacity);
+    }
+
+    /**
+     * Pass readings on as they arrive again. Readings still waiting are passed on first.
+     */
+    public void disableMerge(){
+        mCore.disableMerge();
+    }
+
+    /**
+     * @return The number of readings dropped by the merge because they arrived after newer readings had been passed on.
+     * Raise the reorder window if this grows.
+     */
+    public long getLateReadings(){
+        return mCore.getLate();
+    }
+
+    /**
+     * Invoked for every reading of a sensor with several values, of any service.
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param sensorType The {@link SensorType} of the reading.
+     * @param values The values of the reading.
+     */
+    protected void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values){}
+
+    /**
+     * Invoked for every reading of a sensor with a single value, of any service.
+     * @param value The value of the reading, {@code NaN} for readings without a value such as detected steps.
+     * @see #onReading(long, String, int, int, float[])
+     */
+    protected void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value){}
+
+    /**
+     * Invoked for readings of custom sensors, see {@link MaskConnection#onSensorData(int, String, int, Bundle)}.
+     * They are never merged.
+     */
+    protected void onSensorData(int sensorType, String serviceName, int deviceIndex, Bundle values){}
+
+    /**
+     * Invoked when a service sent its supported sensors.
+     * @param serviceName The name of the service, use it to subscribe to its sensors.
+     * @param supportedSensors The supported sensors.
+     */
+    protected abstract void onSensorList(String serviceName, ArrayList<Integer> supportedSensors);
+
+    /**
+     * Invoked when a device of a service connected.
+     */
+    protected abstract void onDeviceConnected(String serviceName, int deviceIndex);
+
+    /**
+     * Invoked when a device of a service disconnected.
+     */
+    protected abstract void onDeviceDisconnected(String serviceName, int deviceIndex);
+
+    /**
+     * Invoked when a service disconnected.
+     * @param serviceName The name of the service, {@code null} if it disconnected before sending it.
+     * @param e The exception that caused the disconnect, if any.
+     */
+    protected abstract void onServiceDisconnected(String serviceName, Exception e);
+}
@@ -0,0 +1,19 @@
+package de.frederickerber.maskconnection;
+
+/**
+ * Receives the readings of sensors with a single value, e.g. the heart rate.
+ * Register it for the sensors you need with {@link MaskConnection#setScalarListener(int, ScalarSensorListener)}.
+ */
+public interface ScalarSensorListener {
+
+    /**
+     * Invoked for every reading of a sensor the listener is registered for.
+     *
+     * @param timestamp   The timestamp of when the measurement was taken; in nanoseconds
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param sensorType  The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param value       The value of the reading, {@code NaN} for readings without a value like those of the step detector.
+     */
+    void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value);
+}
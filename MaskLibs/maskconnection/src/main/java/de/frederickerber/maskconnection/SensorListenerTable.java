@@ -0,0 +1,117 @@
+package de.frederickerber.maskconnection;
+
+import java.util.Arrays;
+
+import de.frederickerber.maskcommons.SensorType;
+
+/**
+ * The typed listeners of a {@link MaskConnection}, in arrays indexed by sensor type. A sensor type has at most one
+ * listener, either for vectors or for scalars, so finding it takes one array load per kind and delivering a reading
+ * one interface call. The arrays grow for custom sensor types.
+ */
+final class SensorListenerTable {
+
+    /**
+     * The reading was passed to the listener of its sensor.
+     */
+    static final int DELIVERED = 0;
+    /**
+     * The sensor has no listener.
+     */
+    static final int NO_LISTENER = 1;
+    /**
+     * The sensor has a listener, but the reading lacks the values it takes, e.g. a scalar reading for a vector listener.
+     */
+    static final int MISSING_VALUES = 2;
+
+    private VectorSensorListener[] vectors = new VectorSensorListener[SensorType.NUM_SENSORS];
+    private ScalarSensorListener[] scalars = new ScalarSensorListener[SensorType.NUM_SENSORS];
+
+    /**
+     * Register the listener of a sensor, replacing any listener it had.
+     *
+     * @param sensorType The sensor type, not negative.
+     * @param listener   The listener, {@code null} to remove it.
+     */
+    void set(int sensorType, VectorSensorListener listener) {
+        ensureCapacity(sensorType);
+        vectors[sensorType] = listener;
+        scalars[sensorType] = null;
+    }
+
+    /**
+     * Register the scalar listener of a sensor, see {@link #set(int, VectorSensorListener)}.
+     */
+    void setScalar(int sensorType, ScalarSensorListener listener) {
+        ensureCapacity(sensorType);
+        scalars[sensorType] = listener;
+        vectors[sensorType] = null;
+    }
+
+    /**
+     * @return The vector listener of a sensor, or {@code null}.
+     */
+    VectorSensorListener getVector(int sensorType) {
+        return sensorType >= 0 && sensorType < vectors.length ? vectors[sensorType] : null;
+    }
+
+    /**
+     * @return The scalar listener of a sensor, or {@code null}.
+     */
+    ScalarSensorListener getScalar(int sensorType) {
+        return sensorType >= 0 && sensorType < scalars.length ? scalars[sensorType] : null;
+    }
+
+    /**
+     * @return {@code true} if the sensor has a listener.
+     */
+    boolean has(int sensorType) {
+        return sensorType >= 0 && sensorType < vectors.length && (vectors[sensorType] != null || scalars[sensorType] != null);
+    }
+
+    /**
+     * Pass a reading to the listener of its sensor. Readings with several values go to vector listeners, readings with
+     * one value to either kind, readings without values to scalar listeners as {@code NaN}.
+     *
+     * @param readings   The values of the reading or {@code null}.
+     * @param hasReading Whether {@code reading} holds a value.
+     * @param reading    The value of a single float reading.
+     * @return {@link #DELIVERED}, {@link #NO_LISTENER} or {@link #MISSING_VALUES}.
+     */
+    int dispatch(int sensorType, String serviceName, int deviceIndex, long ts, float[] readings, boolean hasReading, float reading) {
+        if (sensorType < 0 || sensorType >= vectors.length) {
+            return NO_LISTENER;
+        }
+        VectorSensorListener v = vectors[sensorType];
+        if (v != null) {
+            if (readings == null) {
+                return MISSING_VALUES;
+            }
+            v.onReading(ts, serviceName, deviceIndex, sensorType, readings);
+            return DELIVERED;
+        }
+        ScalarSensorListener s = scalars[sensorType];
+        if (s == null) {
+            return NO_LISTENER;
+        }
+        if (!hasReading) {
+            if (readings != null) {
+                return MISSING_VALUES;
+            }
+            reading = Float.NaN;
+        }
+        s.onReading(ts, serviceName, deviceIndex, sensorType, reading);
+        return DELIVERED;
+    }
+
+    private void ensureCapacity(int sensorType) {
+        if (sensorType < 0) {
+            throw new IllegalArgumentException("invalid sensor type: " + sensorType);
+        }
+        if (sensorType >= vectors.length) {
+            int n = Math.max(sensorType + 1, vectors.length * 2);
+            vectors = Arrays.copyOf(vectors, n);
+            scalars = Arrays.copyOf(scalars, n);
+        }
+    }
+}
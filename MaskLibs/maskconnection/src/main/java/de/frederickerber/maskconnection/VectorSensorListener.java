@@ -0,0 +1,19 @@
+package de.frederickerber.maskconnection;
+
+/**
+ * Receives the readings of sensors with several values, e.g. the accelerometer.
+ * Register it for the sensors you need with {@link MaskConnection#setVectorListener(int, VectorSensorListener)}.
+ */
+public interface VectorSensorListener {
+
+    /**
+     * Invoked for every reading of a sensor the listener is registered for.
+     *
+     * @param timestamp   The timestamp of when the measurement was taken; in nanoseconds
+     * @param serviceName The name of the service.
+     * @param deviceIndex The index of the device.
+     * @param sensorType  The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param values      The values of the reading.
+     */
+    void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values);
+}
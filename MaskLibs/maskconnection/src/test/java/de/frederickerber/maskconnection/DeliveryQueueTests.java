@@ -0,0 +1,271 @@
+package de.frederickerber.maskconnection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.frederickerber.maskcommons.SensorType;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryQueueTests {
+
+    /**
+     * Runs the queued tasks when the test says so, or rejects them.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+        boolean rejecting;
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException("shut down");
+            }
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Records the readings it gets, the timestamp is the first value of every reading.
+     */
+    private static class Recorder implements VectorSensorListener {
+
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> sensorTypes = new ArrayList<>();
+        final List<Integer> deviceIndices = new ArrayList<>();
+
+        @Override
+        public synchronized void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+            assertEquals(timestamp, (long) values[0]);
+            timestamps.add(timestamp);
+            sensorTypes.add(sensorType);
+            deviceIndices.add(deviceIndex);
+        }
+
+        synchronized long[] getTimestamps() {
+            long[] res = new long[timestamps.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = timestamps.get(i);
+            }
+            return res;
+        }
+    }
+
+    private static void offer(DeliveryQueue queue, int sensorType, int deviceIndex, long timestamp) {
+        queue.onReading(timestamp, "service", deviceIndex, sensorType, new float[]{timestamp, 0, 0});
+    }
+
+    @Test
+    public void block_waitsForTheListenerAndKeepsOrder() throws InterruptedException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onReading(timestamp, serviceName, deviceIndex, sensorType, values);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final DeliveryQueue queue = new DeliveryQueue(recorder, executor, 2, DeliveryQueue.BLOCK);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    offer(queue, SensorType.ACCELEROMETER, 0, i);
+                }
+            }
+        });
+        producer.start();
+        //the listener holds the first reading, two more wait, the fourth has to wait for room
+        long deadline = System.currentTimeMillis() + 10000;
+        while (producer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, producer.getState());
+        assertEquals(2, queue.getPending());
+        assertEquals(1, queue.getDelivered());
+        gate.countDown();
+        producer.join(10000);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{0, 1, 2, 3, 4, 5}, recorder.getTimestamps());
+        assertEquals(6, queue.getDelivered());
+        assertEquals(0, queue.getDropped());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void block_failsOnTheThreadThatTakesTheReadings() {
+        ManualExecutor executor = new ManualExecutor();
+        final List<RuntimeException> errors = new ArrayList<>();
+        final DeliveryQueue[] queue = new DeliveryQueue[1];
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values) {
+                super.onReading(timestamp, serviceName, deviceIndex, sensorType, values);
+                if (timestamp == 0) {
+                    //the listener feeds its own queue until it is full
+                    offer(queue[0], SensorType.ACCELEROMETER, 0, 1);
+                    try {
+                        offer(queue[0], SensorType.ACCELEROMETER, 0, 2);
+                    } catch (IllegalStateException e) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        queue[0] = new DeliveryQueue(recorder, executor, 1, DeliveryQueue.BLOCK);
+        offer(queue[0], SensorType.ACCELEROMETER, 0, 0);
+        executor.runAll();
+        assertEquals(1, errors.size());
+        assertArrayEquals(new long[]{0, 1}, recorder.getTimestamps());
+        assertEquals(0, queue[0].getDropped());
+        //other threads wait as before
+        offer(queue[0], SensorType.ACCELEROMETER, 0, 3);
+        executor.runAll();
+        assertArrayEquals(new long[]{0, 1, 3}, recorder.getTimestamps());
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewestReadings() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        DeliveryQueue queue = new DeliveryQueue(recorder, executor, 3, DeliveryQueue.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, SensorType.ACCELEROMETER, 0, i);
+        }
+        assertEquals(3, queue.getPending());
+        assertEquals(2, queue.getDropped());
+        assertEquals(0, queue.getDelivered());
+        //one drain task for the whole backlog
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertArrayEquals(new long[]{2, 3, 4}, recorder.getTimestamps());
+        assertEquals(3, queue.getDelivered());
+        assertEquals(2, queue.getDropped());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void dropNewest_keepsTheOldestReadings() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        DeliveryQueue queue = new DeliveryQueue(recorder, executor, 3, DeliveryQueue.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, SensorType.ACCELEROMETER, 0, i);
+        }
+        assertEquals(3, queue.getPending());
+        assertEquals(2, queue.getDropped());
+        executor.runAll();
+        assertArrayEquals(new long[]{0, 1, 2}, recorder.getTimestamps());
+        assertEquals(3, queue.getDelivered());
+        assertEquals(2, queue.getDropped());
+        //room again after the drain
+        offer(queue, SensorType.ACCELEROMETER, 0, 5);
+        executor.runAll();
+        assertArrayEquals(new long[]{0, 1, 2, 5}, recorder.getTimestamps());
+        assertEquals(4, queue.getDelivered());
+    }
+
+    @Test
+    public void latest_replacesPerSensorAndDevice() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        DeliveryQueue queue = new DeliveryQueue(recorder, executor, 3, DeliveryQueue.LATEST);
+        offer(queue, SensorType.ACCELEROMETER, 0, 1);
+        offer(queue, SensorType.GYROSCOPE, 0, 2);
+        offer(queue, SensorType.ACCELEROMETER, 1, 3);
+        //replaces the first reading in its place
+        offer(queue, SensorType.ACCELEROMETER, 0, 4);
+        offer(queue, SensorType.GYROSCOPE, 0, 5);
+        assertEquals(3, queue.getPending());
+        assertEquals(2, queue.getDropped());
+        executor.runAll();
+        assertArrayEquals(new long[]{4, 5, 3}, recorder.getTimestamps());
+        assertEquals(SensorType.ACCELEROMETER, (int) recorder.sensorTypes.get(2));
+        assertEquals(1, (int) recorder.deviceIndices.get(2));
+        assertEquals(3, queue.getDelivered());
+        assertEquals(2, queue.getDropped());
+
+        //full of other sensors, the oldest pending reading goes
+        offer(queue, SensorType.ACCELEROMETER, 0, 6);
+        offer(queue, SensorType.GYROSCOPE, 0, 7);
+        offer(queue, SensorType.ACCELEROMETER, 1, 8);
+        offer(queue, SensorType.MAGNETIC_FIELD, 0, 9);
+        assertEquals(3, queue.getPending());
+        assertEquals(3, queue.getDropped());
+        executor.runAll();
+        assertArrayEquals(new long[]{4, 5, 3, 7, 8, 9}, recorder.getTimestamps());
+        assertEquals(6, queue.getDelivered());
+    }
+
+    @Test
+    public void scalarListener_getsTheFirstValue() {
+        ManualExecutor executor = new ManualExecutor();
+        final List<Float> values = new ArrayList<>();
+        DeliveryQueue queue = new DeliveryQueue(new ScalarSensorListener() {
+            @Override
+            public void onReading(long timestamp, String serviceName, int deviceIndex, int sensorType, float value) {
+                values.add(value);
+            }
+        }, executor, 4, DeliveryQueue.BLOCK);
+        queue.onReading(1, "service", 0, SensorType.HEART_RATE, 72f);
+        queue.onReading(2, "service", 0, SensorType.ACCELEROMETER, new float[]{9.81f, 0, 0});
+        executor.runAll();
+        assertEquals(2, values.size());
+        assertEquals(72f, values.get(0), 0);
+        assertEquals(9.81f, values.get(1), 0);
+        assertEquals(2, queue.getDelivered());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void rejectedExecution_dropsThePendingReadings() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        DeliveryQueue queue = new DeliveryQueue(recorder, executor, 4, DeliveryQueue.BLOCK);
+        offer(queue, SensorType.ACCELEROMETER, 0, 0);
+        offer(queue, SensorType.ACCELEROMETER, 0, 1);
+        executor.runAll();
+        assertEquals(2, queue.getDelivered());
+        executor.rejecting = true;
+        offer(queue, SensorType.ACCELEROMETER, 0, 2);
+        assertEquals(0, queue.getPending());
+        assertEquals(1, queue.getDropped());
+        //every reading tries to schedule again and is dropped
+        for (int i = 3; i < 10; i++) {
+            offer(queue, SensorType.ACCELEROMETER, 0, i);
+        }
+        assertEquals(0, queue.getPending());
+        assertEquals(8, queue.getDropped());
+        assertEquals(2, queue.getDelivered());
+        assertArrayEquals(new long[]{0, 1}, recorder.getTimestamps());
+        //the executor takes tasks again
+        executor.rejecting = false;
+        offer(queue, SensorType.ACCELEROMETER, 0, 10);
+        executor.runAll();
+        assertArrayEquals(new long[]{0, 1, 10}, recorder.getTimestamps());
+        assertEquals(3, queue.getDelivered());
+    }
+}
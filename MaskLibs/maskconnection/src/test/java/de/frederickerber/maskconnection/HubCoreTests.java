@@ -0,0 +1,209 @@
+package de.frederickerber.maskconnection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.frederickerber.maskcommons.SensorType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HubCoreTests {
+
+    /**
+     * A connection whose service name is known once the test sets it.
+     */
+    private static class Source {
+        String name;
+
+        Source(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Records what the core passes on, one line per reading, and the flushes it asks for.
+     */
+    private static class RecordingSink implements HubSink<Source> {
+
+        final List<String> readings = new ArrayList<>();
+        long time;
+        long flushDeadline = Long.MAX_VALUE;
+        int flushRequests;
+        int flushCancels;
+
+        @Override
+        public long now() {
+            return time;
+        }
+
+        @Override
+        public String getServiceName(Source source) {
+            return source.name;
+        }
+
+        @Override
+        public void deliver(long timestamp, String serviceName, int deviceIndex, int sensorType, float[] values, float value) {
+            readings.add(serviceName + " " + timestamp + " " + deviceIndex + " " + sensorType + " "
+                    + (values != null ? Arrays.toString(values) : "scalar " + value));
+        }
+
+        @Override
+        public void scheduleFlush(long deadline) {
+            flushDeadline = deadline;
+            flushRequests++;
+        }
+
+        @Override
+        public void cancelFlush() {
+            flushDeadline = Long.MAX_VALUE;
+            flushCancels++;
+        }
+    }
+
+    private static HubCore<Source> core(RecordingSink sink, String... names) {
+        HubCore<Source> core = new HubCore<>(sink);
+        for (String name : names) {
+            core.addSource(new Source(name));
+        }
+        return core;
+    }
+
+    @Test
+    public void find_routesByServiceName() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", null, "band");
+        assertSame(core.getSource(0), core.find("phone"));
+        assertSame(core.getSource(2), core.find("band"));
+        assertNull(core.find("watch"));
+        assertNull(core.find(null));
+        assertEquals(Arrays.asList("phone", "band"), core.getServiceNames());
+        //the name arrives with the sensor list
+        core.getSource(1).name = "watch";
+        assertSame(core.getSource(1), core.find("watch"));
+        assertEquals(3, core.getServiceNames().size());
+    }
+
+    @Test
+    public void unmerged_passesReadingsOnAsTheyArrive() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", "band");
+        assertFalse(core.isMerging());
+        core.offer(1, 20, 0, SensorType.HEART_RATE, null, 72f);
+        core.offer(0, 10, 1, SensorType.ACCELEROMETER, new float[]{1, 2, 3}, Float.NaN);
+        assertEquals(Arrays.asList(
+                "band 20 0 " + SensorType.HEART_RATE + " scalar 72.0",
+                "phone 10 1 " + SensorType.ACCELEROMETER + " [1.0, 2.0, 3.0]"), sink.readings);
+        assertEquals(0, sink.flushRequests);
+        assertEquals(0, core.getLate());
+    }
+
+    @Test
+    public void merged_passesVectorAndScalarReadingsOnInOrder() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", "band");
+        core.enableMerge(1000, 16);
+        assertTrue(core.isMerging());
+        core.offer(0, 0, 0, SensorType.ACCELEROMETER, new float[]{0, 0, 0}, Float.NaN);
+        core.offer(1, 0, 0, SensorType.HEART_RATE, null, 70f);
+        sink.readings.clear();
+        //the phone runs ahead, its readings wait for the band
+        core.offer(0, 30, 0, SensorType.ACCELEROMETER, new float[]{3, 0, 0}, Float.NaN);
+        core.offer(0, 40, 0, SensorType.ACCELEROMETER, new float[]{4, 0, 0}, Float.NaN);
+        assertTrue(sink.readings.isEmpty());
+        core.offer(1, 35, 0, SensorType.HEART_RATE, null, 71f);
+        assertEquals(Arrays.asList(
+                "phone 30 0 " + SensorType.ACCELEROMETER + " [3.0, 0.0, 0.0]",
+                "band 35 0 " + SensorType.HEART_RATE + " scalar 71.0"), sink.readings);
+        //a scalar reading without a value
+        core.offer(1, 45, 0, SensorType.STEP_DETECTOR, null, Float.NaN);
+        assertEquals("phone 40 0 " + SensorType.ACCELEROMETER + " [4.0, 0.0, 0.0]", sink.readings.get(2));
+        //a reading older than one passed on is late
+        core.offer(0, 20, 0, SensorType.ACCELEROMETER, new float[]{2, 0, 0}, Float.NaN);
+        assertEquals(1, core.getLate());
+        core.disableMerge();
+        assertEquals("band 45 0 " + SensorType.STEP_DETECTOR + " scalar NaN", sink.readings.get(3));
+        assertEquals(4, sink.readings.size());
+        assertFalse(core.isMerging());
+    }
+
+    @Test
+    public void addSource_rebuildsTheMerger() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", "band");
+        core.enableMerge(1000, 16);
+        core.offer(0, 0, 0, SensorType.LIGHT, null, 1f);
+        core.offer(1, 0, 0, SensorType.LIGHT, null, 2f);
+        core.offer(0, 10, 0, SensorType.LIGHT, null, 3f);
+        assertEquals(2, sink.readings.size());
+        //the waiting reading is passed on before the merger is replaced
+        assertEquals(2, core.addSource(new Source("watch")));
+        assertEquals(3, sink.readings.size());
+        assertEquals(1, sink.flushCancels);
+        //the new source takes part in the merge, the phone and the band wait for it
+        for (int i = 0; i < 3; i++) {
+            core.offer(i, 20, 0, SensorType.LIGHT, null, 4f);
+        }
+        assertEquals(6, sink.readings.size());
+        core.offer(0, 40, 0, SensorType.LIGHT, null, 5f);
+        core.offer(1, 40, 0, SensorType.LIGHT, null, 6f);
+        assertEquals(6, sink.readings.size());
+        core.offer(2, 30, 0, SensorType.LIGHT, null, 7f);
+        assertEquals(7, sink.readings.size());
+        assertEquals("watch 30 0 " + SensorType.LIGHT + " scalar 7.0", sink.readings.get(6));
+    }
+
+    @Test
+    public void removeSource_stopsWaitingForIt() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", "band");
+        core.enableMerge(1000, 16);
+        core.offer(0, 0, 0, SensorType.LIGHT, null, 1f);
+        core.offer(1, 0, 0, SensorType.LIGHT, null, 2f);
+        core.offer(0, 10, 0, SensorType.LIGHT, null, 3f);
+        assertEquals(2, sink.readings.size());
+        //the band disconnected
+        core.removeSource(1);
+        assertEquals(3, sink.readings.size());
+        assertEquals("phone 10 0 " + SensorType.LIGHT + " scalar 3.0", sink.readings.get(2));
+    }
+
+    @Test
+    public void flushDue_releasesReadingsAfterTheWindow() {
+        RecordingSink sink = new RecordingSink();
+        HubCore<Source> core = core(sink, "phone", "band");
+        core.enableMerge(1000, 16);
+        core.offer(0, 0, 0, SensorType.LIGHT, null, 1f);
+        core.offer(1, 0, 0, SensorType.LIGHT, null, 2f);
+        //the band falls silent
+        sink.time = 100;
+        core.offer(0, 10, 0, SensorType.LIGHT, null, 3f);
+        assertEquals(1100, sink.flushDeadline);
+        assertEquals(1, sink.flushRequests);
+        sink.time = 200;
+        core.offer(0, 20, 0, SensorType.LIGHT, null, 4f);
+        //the earlier request still stands
+        assertEquals(1, sink.flushRequests);
+        assertEquals(2, sink.readings.size());
+        sink.time = 1100;
+        core.flushDue();
+        assertEquals(3, sink.readings.size());
+        assertEquals("phone 10 0 " + SensorType.LIGHT + " scalar 3.0", sink.readings.get(2));
+        //the next reading is due later
+        assertEquals(2, sink.flushRequests);
+        assertEquals(1200, sink.flushDeadline);
+        sink.time = 1200;
+        core.flushDue();
+        assertEquals(4, sink.readings.size());
+        assertEquals(2, sink.flushRequests);
+        //nothing waits, nothing to cancel
+        core.disableMerge();
+        assertEquals(0, sink.flushCancels);
+    }
+}
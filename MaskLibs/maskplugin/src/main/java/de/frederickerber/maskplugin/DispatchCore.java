@@ -0,0 +1,794 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.DispatchStats;
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.LatencyHistogram;
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SharedRingBuffer;
+import de.frederickerber.maskcommons.StreamJoin;
+import de.frederickerber.maskcommons.StreamOperator;
+import de.frederickerber.maskcommons.SubscriptionSet;
+import de.frederickerber.maskcommons.ValueEncoding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Android independent part of a plugin: subscriptions, rate limiting, batching and the fan-out of readings.
+ * <p>
+ * Producers hand readings over with {@code offer} from any thread, one thread per device at a time. Everything
+ * else runs on a single dispatch thread, which the {@link DispatchSink} schedules {@link #drain()} and
+ * {@link #flushDueBatches()} on. Readings are delivered through the sink, so the core can run on a plain JVM.
+ *
+ * @param <C> The type identifying a client.
+ * @param <D> The type of custom data readings, see {@link #dispatch(int, int, Object, long, float[], boolean, long)}.
+ */
+class DispatchCore<C, D> {
+
+    //readings are handed from the producers to the dispatch thread through one queue per device
+    static final int RING_CAPACITY = 1024;
+    //readings per device and pass, so other work on the dispatch thread does not wait for a long backlog
+    static final int MAX_DRAIN_PER_PASS = 256;
+    static final long DEFAULT_MAX_BATCH_LATENCY_NANOS = 1000000000L;
+    private static final float[] NO_VALUES = new float[0];
+
+    private final SubscriptionTable<C> table;
+    private final DispatchSink<C, D> sink;
+
+    private final Object ringLock = new Object();
+    private volatile SampleRing[] rings = new SampleRing[0];
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    //value arrays of the dispatch thread, indexed by the number of values
+    private float[][] scratchValues = new float[8][];
+
+    private long nextBatchFlush = Long.MAX_VALUE;
+    //identifies the reading being dispatched, see DispatchSink.sendSample()
+    private long readingCounter;
+    //time from handing a reading over to the completion of sending it
+    private final LatencyHistogram latency = new LatencyHistogram();
+    //joins fed by the readings of their inputs, see addJoin()
+    private final List<JoinSlot> joins = new ArrayList<>();
+
+    /**
+     * A join, the sensors of a device it aligns and the operator its frames run through, if any.
+     */
+    private static final class JoinSlot {
+        final int deviceIndex;
+        final int outputType;
+        final int[] inputTypes;
+        final StreamJoin join;
+        final StreamOperator operator;
+
+        JoinSlot(int deviceIndex, int outputType, int[] inputTypes, StreamJoin join, StreamOperator operator) {
+            this.deviceIndex = deviceIndex;
+            this.outputType = outputType;
+            this.inputTypes = inputTypes;
+            this.join = join;
+            this.operator = operator;
+        }
+
+        int inputOf(int sensorType) {
+            for (int i = 0; i < inputTypes.length; i++) {
+                if (inputTypes[i] == sensorType) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @param numSensors The number of sensor types, including custom sensors.
+     * @param sink       Where readings are delivered.
+     */
+    DispatchCore(int numSensors, DispatchSink<C, D> sink) {
+        this.table = new SubscriptionTable<>(numSensors);
+        this.sink = sink;
+    }
+
+    /**
+     * @return The index of all subscriptions. Dispatch thread only.
+     */
+    SubscriptionTable<C> getSubscriptions() {
+        return table;
+    }
+
+    /**
+     * Queue a reading for the dispatch thread. Producer only.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType  The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param timestamp   The timestamp of the reading in nanoseconds.
+     * @param values      The values of the reading, copied into the queue. May be {@code null}.
+     * @return {@code false} if the queue of the device was full and the reading was dropped.
+     */
+    boolean offer(int deviceIndex, int sensorType, long timestamp, float[] values) {
+        boolean queued = ring(deviceIndex).offer(sensorType, timestamp, sink.now(), values);
+        scheduleDrain();
+        return queued;
+    }
+
+    /**
+     * Queue a reading with a single value for the dispatch thread. Producer only.
+     *
+     * @see #offer(int, int, long, float[])
+     */
+    boolean offer(int deviceIndex, int sensorType, long timestamp, float value) {
+        boolean queued = ring(deviceIndex).offer(sensorType, timestamp, sink.now(), value);
+        scheduleDrain();
+        return queued;
+    }
+
+    /**
+     * @return The queue of readings of a device, created on first use.
+     */
+    private SampleRing ring(int deviceIndex) {
+        SampleRing[] rings = this.rings;
+        if (deviceIndex < rings.length && rings[deviceIndex] != null) {
+            return rings[deviceIndex];
+        }
+        synchronized (ringLock) {
+            rings = this.rings;
+            if (deviceIndex >= rings.length || rings[deviceIndex] == null) {
+                rings = Arrays.copyOf(rings, Math.max(rings.length, deviceIndex + 1));
+                rings[deviceIndex] = new SampleRing(RING_CAPACITY);
+                this.rings = rings;
+            }
+            return rings[deviceIndex];
+        }
+    }
+
+    /**
+     * Make sure the dispatch thread drains the queues soon. At most one drain is pending at a time.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            sink.scheduleDrain();
+        }
+    }
+
+    /**
+     * Send queued readings of all devices to their subscribers and schedule another pass if readings are left.
+     */
+    void drain() {
+        //clear the flag first, readings queued from now on schedule another pass
+        drainScheduled.set(false);
+        SampleRing[] rings = this.rings;
+        boolean more = false;
+        for (int d = 0; d < rings.length; d++) {
+            SampleRing ring = rings[d];
+            if (ring == null) {
+                continue;
+            }
+            for (int k = 0; k < MAX_DRAIN_PER_PASS && !ring.isEmpty(); k++) {
+                int sensorType = ring.peekSensorType();
+                long timestamp = ring.peekTimestamp();
+                long enqueued = ring.peekEnqueueTime();
+                int n = ring.peekValueCount();
+                float[] values = null;
+                if (n >= 0) {
+                    values = scratchValues(n);
+                    ring.peekValues(values);
+                }
+                ring.poll();
+                dispatch(d, sensorType, null, timestamp, values, true, enqueued);
+            }
+            more |= !ring.isEmpty();
+        }
+        if (more) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * @return An array of exactly {@code n} values, reused for every reading of that size.
+     */
+    private float[] scratchValues(int n) {
+        if (n == 0) {
+            return NO_VALUES;
+        }
+        if (n >= scratchValues.length) {
+            scratchValues = Arrays.copyOf(scratchValues, n + 1);
+        }
+        float[] values = scratchValues[n];
+        if (values == null) {
+            values = new float[n];
+            scratchValues[n] = values;
+        }
+        return values;
+    }
+
+    /**
+     * @return The number of readings dropped because the dispatch thread could not keep up.
+     */
+    long getDroppedReadings() {
+        long dropped = 0;
+        for (SampleRing ring : rings) {
+            if (ring != null) {
+                dropped += ring.getDropped();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Send a reading to the subscribers of a sensor. Subscribers that asked for batched delivery
+     * get the reading appended to their batch, subscribers with shared memory get it written there.
+     * Subscribers with a filter chain get the output of their chain instead, which runs once per reading and chain.
+     * Readings the chain holds back are counted as rate limited. Custom data and readings without values skip the chain.
+     *
+     * @param deviceIndex The index of the device.
+     * @param sensorType  The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param data        Custom data of the reading. Only used if the reading is not {@code batchable}.
+     * @param timestamp   The timestamp of the reading in nanoseconds.
+     * @param values      The raw values of the reading, may be {@code null} for readings without values.
+     * @param batchable   Whether {@code values} fully describe the reading so it may be batched or sent as a sample.
+     * @param enqueued    The time the reading was handed over, see {@link DispatchSink#now()}.
+     */
+    void dispatch(int deviceIndex, int sensorType, D data, long timestamp, float[] values, boolean batchable, long enqueued) {
+        if (!joins.isEmpty() && batchable && values != null) {
+            feedJoins(deviceIndex, sensorType, timestamp, values, enqueued);
+        }
+        int channel = table.channel(deviceIndex, sensorType);
+        if (channel < 0) {
+            return;
+        }
+        int count = table.subscriberCount(channel);
+        if (count == 0) {
+            if (!isJoinInputInUse(deviceIndex, sensorType)) {
+                sink.allSubscriptionsEnded(deviceIndex, sensorType);
+            }
+            return;
+        }
+        table.countProduced(channel);
+        int[] subscribers = table.subscribers(channel);
+        long reading = readingCounter++;
+        //looping backwards so we can remove subscriptions while iterating
+        for (int i = count - 1; i >= 0; i--) {
+            int sub = subscribers[i];
+            long id = reading;
+            long ts = timestamp;
+            float[] v = values;
+            FilterPipeline pipeline = batchable && values != null && values.length > 0 ? table.getPipeline(sub) : null;
+            if (pipeline != null) {
+                //subscribers sharing the pipeline share its output
+                if (pipeline.getLastReading() != reading) {
+                    pipeline.process(reading, readingCounter++, timestamp, values);
+                }
+                if (!pipeline.hasOutput()) {
+                    table.countRateLimited(sub);
+                    continue;
+                }
+                id = pipeline.getOutputReading();
+                ts = pipeline.getTimestamp();
+                v = pipeline.getOutput();
+            }
+            //check client's preferred frequency
+            if (!table.shouldSend(sub, ts, v)) {
+                table.countRateLimited(sub);
+                continue;
+            }
+            RateLimiter limiter = table.getRateLimiter(sub);
+            if (limiter != null && limiter.hasAverage()) {
+                id = -1;
+                ts = limiter.getAverageTimestamp();
+                v = limiter.getAverage();
+            }
+            SharedRingBuffer shared = batchable ? table.getSharedRing(sub) : null;
+            if (shared != null && shared.write(sensorType, deviceIndex, ts, v)) {
+                //the client polls its shared memory, no message needed
+                table.countDelivered(sub);
+                latency.record(sink.now() - enqueued);
+                continue;
+            }
+            C c = table.subscriber(sub);
+            SampleBatch batch = batchable ? table.getBatch(sub) : null;
+            boolean sent;
+            if (batch != null) {
+                sent = addToBatch(c, batch, ts, v, enqueued);
+            } else {
+                if (batchable) {
+                    sent = sink.sendSample(c, id, sensorType, deviceIndex, ts, v, table.getEncoding(sub));
+                } else {
+                    sent = sink.sendData(c, sensorType, deviceIndex, data);
+                }
+                if (sent) {
+                    latency.record(sink.now() - enqueued);
+                }
+            }
+            if (sent) {
+                table.countDelivered(sub);
+            } else {
+                //the sink removes the client's other subscriptions, they are on other channels
+                fail(sub);
+            }
+        }
+    }
+
+    /**
+     * Hand a reading to the joins it is an input of and dispatch the frames they complete.
+     * Joins whose output is not in use are kept empty.
+     */
+    private void feedJoins(int deviceIndex, int sensorType, long timestamp, float[] values, long enqueued) {
+        for (int j = 0; j < joins.size(); j++) {
+            JoinSlot slot = joins.get(j);
+            int input = slot.deviceIndex == deviceIndex ? slot.inputOf(sensorType) : -1;
+            if (input < 0) {
+                continue;
+            }
+            StreamJoin join = slot.join;
+            StreamOperator operator = slot.operator;
+            if (!isInUse(deviceIndex, slot.outputType)) {
+                join.reset();
+                if (operator != null) {
+                    operator.reset();
+                }
+                continue;
+            }
+            if (values.length < join.getChannels(input)) {
+                continue;
+            }
+            join.offer(input, timestamp, values, 0);
+            while (join.poll()) {
+                if (operator == null) {
+                    dispatch(deviceIndex, slot.outputType, null, join.getOutputTimestamp(), join.getOutput(), true, enqueued);
+                } else if (operator.offer(join.getOutputTimestamp(), join.getOutput(), 0, join.getOutputChannels())) {
+                    dispatch(deviceIndex, slot.outputType, null, operator.getOutputTimestamp(), operator.getOutput(), true, enqueued);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish the readings of several sensors of a device, aligned by a join, as a sensor of its own. The readings of
+     * the inputs are fed to the join while the output is in use, whether or not the inputs have subscribers.
+     * The output may feed another join, but joins may not form a cycle.
+     *
+     * @param deviceIndex The index of the device.
+     * @param outputType  The sensor type of the fused frames, usually a custom sensor.
+     * @param join        The join, with one input per sensor type.
+     * @param inputTypes  The sensor types of the inputs, the reference first.
+     */
+    void addJoin(int deviceIndex, int outputType, StreamJoin join, int... inputTypes) {
+        addJoin(deviceIndex, outputType, join, null, inputTypes);
+    }
+
+    /**
+     * Publish the frames of a join like {@link #addJoin(int, int, StreamJoin, int...)}, run through an operator first,
+     * e.g. orientation fusion.
+     *
+     * @param operator The operator, {@code null} for the frames themselves.
+     */
+    void addJoin(int deviceIndex, int outputType, StreamJoin join, StreamOperator operator, int... inputTypes) {
+        if (inputTypes.length != join.getInputCount()) {
+            throw new IllegalArgumentException("the join takes " + join.getInputCount() + " inputs, got " + inputTypes.length);
+        }
+        for (int type : inputTypes) {
+            if (type == outputType) {
+                throw new IllegalArgumentException("a join may not feed itself: " + type);
+            }
+        }
+        joins.add(new JoinSlot(deviceIndex, outputType, inputTypes.clone(), join, operator));
+    }
+
+    /**
+     * @return The input sensor types if the sensor is the output of a join, {@code null} otherwise.
+     */
+    int[] getJoinInputs(int deviceIndex, int sensorType) {
+        for (JoinSlot slot : joins) {
+            if (slot.deviceIndex == deviceIndex && slot.outputType == sensorType) {
+                return slot.inputTypes.clone();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code true} if the sensor is an input of a join whose output has subscribers, so the sensor has to keep
+     * running even without subscribers of its own.
+     */
+    boolean isJoinInputInUse(int deviceIndex, int sensorType) {
+        for (JoinSlot slot : joins) {
+            if (slot.deviceIndex == deviceIndex && slot.inputOf(sensorType) >= 0 && isInUse(deviceIndex, slot.outputType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the sensor has subscribers or feeds a join in use.
+     */
+    private boolean isInUse(int deviceIndex, int sensorType) {
+        int channel = table.channel(deviceIndex, sensorType);
+        return channel >= 0 && table.subscriberCount(channel) > 0 || isJoinInputInUse(deviceIndex, sensorType);
+    }
+
+    /**
+     * End a subscription whose client could not be reached and tell the sink.
+     */
+    private void fail(int sub) {
+        C c = table.subscriber(sub);
+        table.countFailed(sub);
+        table.setBatch(sub, null);
+        table.unsubscribe(sub);
+        sink.clientUnreachable(c);
+    }
+
+    /**
+     * Add a client to the subscribers of a channel or update its preferences if it is already subscribed.
+     *
+     * @param client                The client.
+     * @param channel               The channel, see {@link SubscriptionTable#channel(int, int)}.
+     * @param frequency             The frequency the client would like to receive readings at, in Hertz. 0 for every reading.
+     * @param rateMode              One of the {@link RateMode} constants.
+     * @param maxBatchSize          The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyNanos  The maximum time a reading may be held back, the default is used if not positive.
+     * @param shared                The client's shared memory, may be {@code null}.
+     * @return {@code true} if the client was not subscribed before.
+     */
+    boolean subscribe(C client, int channel, int frequency, int rateMode, int maxBatchSize, long maxBatchLatencyNanos, SharedRingBuffer shared) {
+        return subscribe(client, channel, frequency, rateMode, maxBatchSize, maxBatchLatencyNanos, shared, null);
+    }
+
+    /**
+     * Subscribe like {@link #subscribe(Object, int, int, int, int, long, SharedRingBuffer)} and run the readings
+     * through a filter chain before they are rate limited, batched and sent.
+     *
+     * @param chain The filter chain, {@code null} or empty for raw readings.
+     * @return {@code true} if the client was not subscribed before.
+     */
+    boolean subscribe(C client, int channel, int frequency, int rateMode, int maxBatchSize, long maxBatchLatencyNanos,
+                      SharedRingBuffer shared, FilterChain chain) {
+        return subscribe(client, channel, frequency, rateMode, maxBatchSize, maxBatchLatencyNanos, shared, chain, null);
+    }
+
+    /**
+     * Subscribe like {@link #subscribe(Object, int, int, int, int, long, SharedRingBuffer, FilterChain)} and send the
+     * values quantized. Shared memory still carries floats.
+     *
+     * @param encoding The encoding of the values, {@code null} for floats.
+     * @return {@code true} if the client was not subscribed before.
+     */
+    boolean subscribe(C client, int channel, int frequency, int rateMode, int maxBatchSize, long maxBatchLatencyNanos,
+                      SharedRingBuffer shared, FilterChain chain, ValueEncoding encoding) {
+        boolean isNew = table.find(client, channel) < 0;
+        int sub = table.subscribe(client, channel);
+        if (frequency > 0) {
+            table.setFrequency(sub, frequency, rateMode);
+            table.updateMaxFrequency(channel, frequency);
+        }
+        table.setEncoding(sub, encoding);
+        setBatching(sub, maxBatchSize, maxBatchLatencyNanos);
+        table.setSharedRing(sub, shared);
+        table.setFilterChain(sub, chain);
+        return isNew;
+    }
+
+    /**
+     * Enable, change or disable batched delivery for a subscription.
+     * Readings still pending in a previous batch are delivered first.
+     *
+     * @param sub                  The subscription slot.
+     * @param maxBatchSize         The maximum number of readings per batch. 1 or less disables batching.
+     * @param maxBatchLatencyNanos The maximum time a reading may be held back, the default is used if not positive.
+     */
+    void setBatching(int sub, int maxBatchSize, long maxBatchLatencyNanos) {
+        SampleBatch old = table.getBatch(sub);
+        if (old != null) {
+            flushBatch(table.subscriber(sub), old);
+        }
+        if (maxBatchSize <= 1) {
+            table.setBatch(sub, null);
+            return;
+        }
+        long latency = maxBatchLatencyNanos > 0 ? maxBatchLatencyNanos : DEFAULT_MAX_BATCH_LATENCY_NANOS;
+        int channel = table.channelOf(sub);
+        table.setBatch(sub, new SampleBatch(table.sensorOf(channel), table.deviceOf(channel), maxBatchSize, latency,
+                table.getEncoding(sub)));
+    }
+
+    /**
+     * Remove a client from the subscribers of a channel. Readings pending in its batch are delivered first.
+     *
+     * @param client  The client.
+     * @param channel The channel, see {@link SubscriptionTable#channel(int, int)}.
+     * @return {@code true} if the client was the last subscriber of the channel.
+     */
+    boolean unsubscribe(C client, int channel) {
+        int sub = table.find(client, channel);
+        if (sub < 0) {
+            return false;
+        }
+        SampleBatch batch = table.getBatch(sub);
+        if (batch != null) {
+            flushBatch(client, batch);
+        }
+        return table.unsubscribe(sub);
+    }
+
+    /**
+     * Replace all subscriptions of a client with a set in one pass: subscriptions missing from the set end, new ones
+     * start and changed ones are updated. Subscriptions whose options did not change are left alone, so their batches,
+     * rate limiters and filter states carry on.
+     * <p>
+     * Instead of telling the plugin about every subscription, the diff lists each sensor whose use changed once,
+     * comparing the state before and after the whole set. Outputs of joins count as the sensors they read, whose
+     * highest wanted frequency includes that of the join's output.
+     *
+     * @param client The client.
+     * @param set    The subscriptions the client wants. Every device and sensor must have a channel.
+     * @param shared The client's shared memory, may be {@code null}.
+     * @return The counts of the subscriptions and the sensors to reconfigure.
+     * @throws IllegalArgumentException If a device or sensor of the set is out of range. Nothing is changed then.
+     */
+    SubscriptionDiff setSubscriptions(C client, SubscriptionSet set, SharedRingBuffer shared) {
+        for (int i = 0; i < set.size(); i++) {
+            if (table.channel(set.getDeviceIndex(i), set.getSensorType(i)) < 0) {
+                throw new IllegalArgumentException("no channel for sensor " + set.getSensorType(i) + " of device " + set.getDeviceIndex(i));
+            }
+        }
+        SubscriptionDiff diff = new SubscriptionDiff();
+        int[] old = table.subscriptionsOf(client);
+        List<Long> sensors = new ArrayList<>();
+        for (int sub : old) {
+            int channel = table.channelOf(sub);
+            collectSensors(table.deviceOf(channel), table.sensorOf(channel), sensors);
+        }
+        for (int i = 0; i < set.size(); i++) {
+            collectSensors(set.getDeviceIndex(i), set.getSensorType(i), sensors);
+        }
+        int n = sensors.size();
+        boolean[] wasInUse = new boolean[n];
+        int[] oldDemand = new int[n];
+        for (int i = 0; i < n; i++) {
+            long key = sensors.get(i);
+            wasInUse[i] = isInUse((int) (key >> 32), (int) key);
+            oldDemand[i] = demand((int) (key >> 32), (int) key);
+        }
+
+        List<Integer> touched = new ArrayList<>();
+        for (int sub : old) {
+            int channel = table.channelOf(sub);
+            if (set.indexOf(table.deviceOf(channel), table.sensorOf(channel)) < 0) {
+                unsubscribe(client, channel);
+                touched.add(channel);
+                diff.removed++;
+            }
+        }
+        for (int i = 0; i < set.size(); i++) {
+            int channel = table.channel(set.getDeviceIndex(i), set.getSensorType(i));
+            int frequency = set.getFrequency(i);
+            long latency = set.getMaxBatchLatencyMillis(i) * 1000000L;
+            int sub = table.find(client, channel);
+            if (sub >= 0 && matches(sub, frequency, set.getRateMode(i), set.getMaxBatchSize(i), latency, shared,
+                    set.getFilterChain(i), set.getEncoding(i))) {
+                diff.unchanged++;
+                continue;
+            }
+            if (subscribe(client, channel, frequency, set.getRateMode(i), set.getMaxBatchSize(i), latency, shared,
+                    set.getFilterChain(i), set.getEncoding(i))) {
+                diff.added++;
+            } else {
+                diff.updated++;
+            }
+            if (frequency <= 0) {
+                //subscribe() keeps the old rate, but the set is complete
+                table.clearFrequency(table.find(client, channel));
+            }
+            touched.add(channel);
+        }
+        for (int channel : touched) {
+            table.recalculateMaxFrequency(channel);
+        }
+
+        for (int i = 0; i < n; i++) {
+            long key = sensors.get(i);
+            int deviceIndex = (int) (key >> 32);
+            int sensorType = (int) key;
+            boolean inUse = isInUse(deviceIndex, sensorType);
+            int demand = inUse ? demand(deviceIndex, sensorType) : 0;
+            if (inUse && !wasInUse[i]) {
+                diff.add(deviceIndex, sensorType, SubscriptionDiff.STARTED, demand);
+            } else if (!inUse && wasInUse[i]) {
+                diff.add(deviceIndex, sensorType, SubscriptionDiff.STOPPED, 0);
+            } else if (inUse && demand > oldDemand[i]) {
+                diff.add(deviceIndex, sensorType, SubscriptionDiff.RATE_RAISED, demand);
+            } else if (inUse && demand < oldDemand[i]) {
+                diff.add(deviceIndex, sensorType, SubscriptionDiff.RATE_LOWERED, demand);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Add a sensor to a list once, or the sensors it reads if it is the output of a join.
+     */
+    private void collectSensors(int deviceIndex, int sensorType, List<Long> sensors) {
+        int[] inputs = getJoinInputs(deviceIndex, sensorType);
+        if (inputs == null) {
+            long key = ((long) deviceIndex << 32) | (sensorType & 0xffffffffL);
+            if (!sensors.contains(key)) {
+                sensors.add(key);
+            }
+            return;
+        }
+        for (int input : inputs) {
+            collectSensors(deviceIndex, input, sensors);
+        }
+    }
+
+    /**
+     * @return The highest frequency wanted from a sensor by its subscribers and the joins in use it feeds.
+     */
+    private int demand(int deviceIndex, int sensorType) {
+        int max = table.getMaxFrequency(table.channel(deviceIndex, sensorType));
+        for (JoinSlot slot : joins) {
+            if (slot.deviceIndex == deviceIndex && slot.inputOf(sensorType) >= 0 && isInUse(deviceIndex, slot.outputType)) {
+                max = Math.max(max, demand(deviceIndex, slot.outputType));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return {@code true} if the subscription already has these options, see {@link #setSubscriptions}.
+     */
+    private boolean matches(int sub, int frequency, int rateMode, int maxBatchSize, long maxBatchLatencyNanos,
+                            SharedRingBuffer shared, FilterChain chain, ValueEncoding encoding) {
+        if (table.getFrequency(sub) != Math.max(frequency, 0)) {
+            return false;
+        }
+        RateLimiter limiter = table.getRateLimiter(sub);
+        if (limiter != null && limiter.getMode() != rateMode) {
+            return false;
+        }
+        SampleBatch batch = table.getBatch(sub);
+        if (batch == null ? maxBatchSize > 1 : batch.maxSize != maxBatchSize
+                || batch.maxLatencyNanos != (maxBatchLatencyNanos > 0 ? maxBatchLatencyNanos : DEFAULT_MAX_BATCH_LATENCY_NANOS)) {
+            return false;
+        }
+        if (table.getSharedRing(sub) != shared) {
+            return false;
+        }
+        FilterPipeline pipeline = table.getPipeline(sub);
+        if (pipeline == null ? chain != null && !chain.isEmpty() : !pipeline.getChain().equals(chain)) {
+            return false;
+        }
+        ValueEncoding current = table.getEncoding(sub);
+        return current == null ? encoding == null || !encoding.isQuantized() : current.equals(encoding);
+    }
+
+    /**
+     * Append a reading to a client's batch, flushing the batch before or after if necessary.
+     *
+     * @return {@code false} if a flush failed.
+     */
+    private boolean addToBatch(C client, SampleBatch batch, long timestamp, float[] values, long enqueued) {
+        if (!batch.accepts(values == null ? 0 : values.length) && !flushBatch(client, batch)) {
+            return false;
+        }
+        boolean wasEmpty = batch.isEmpty();
+        if (batch.add(timestamp, values, enqueued)) {
+            return flushBatch(client, batch);
+        } else if (wasEmpty) {
+            scheduleBatchFlush(batch.deadline());
+        }
+        return true;
+    }
+
+    /**
+     * Send all readings of a batch to the client and empty the batch.
+     *
+     * @param client The client owning the batch.
+     * @param batch  The batch to send. Nothing is sent if it is empty.
+     * @return {@code false} if the client could not be reached. The readings are dropped.
+     */
+    boolean flushBatch(C client, SampleBatch batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        long firstArrival = batch.deadline() - batch.maxLatencyNanos;
+        boolean sent = sink.sendBatch(client, batch);
+        batch.clear();
+        if (sent) {
+            latency.record(sink.now() - firstArrival);
+        }
+        return sent;
+    }
+
+    /**
+     * Make sure {@link #flushDueBatches()} runs no later than the given time.
+     */
+    private void scheduleBatchFlush(long deadline) {
+        if (deadline < nextBatchFlush) {
+            nextBatchFlush = deadline;
+            sink.scheduleFlush(deadline);
+        }
+    }
+
+    /**
+     * Send all batches whose oldest reading exceeded the latency bound and schedule the next check.
+     */
+    void flushDueBatches() {
+        nextBatchFlush = Long.MAX_VALUE;
+        long now = sink.now();
+        long next = Long.MAX_VALUE;
+        List<Integer> failed = new ArrayList<>();
+        for (int sub = 0; sub < table.capacity(); sub++) {
+            SampleBatch batch = table.getBatch(sub);
+            if (batch == null || batch.isEmpty()) {
+                continue;
+            }
+            if (batch.isDue(now)) {
+                if (!flushBatch(table.subscriber(sub), batch)) {
+                    failed.add(sub);
+                }
+            } else {
+                next = Math.min(next, batch.deadline());
+            }
+        }
+        for (int sub : failed) {
+            //ended already if an earlier failure removed its client
+            if (table.channelOf(sub) >= 0) {
+                fail(sub);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleBatchFlush(next);
+        }
+    }
+
+    /**
+     * Take a snapshot of the dispatch counters.
+     *
+     * @param client The client asking for the snapshot, may be {@code null}.
+     * @return The snapshot.
+     */
+    DispatchStats getStats(C client) {
+        int numChannels = 0;
+        for (int ch = 0; ch < table.channelCount(); ch++) {
+            if (table.getProduced(ch) > 0 || table.subscriberCount(ch) > 0) {
+                numChannels++;
+            }
+        }
+        long[] delivered = new long[table.clientCapacity()];
+        long[] rateLimited = new long[delivered.length];
+        long[] failed = new long[delivered.length];
+        int numClients = 0;
+        for (int c = 0; c < delivered.length; c++) {
+            if (table.client(c) != null) {
+                numClients++;
+            }
+        }
+        for (int sub = 0; sub < table.capacity(); sub++) {
+            if (table.channelOf(sub) >= 0) {
+                int c = table.clientSlotOf(sub);
+                delivered[c] += table.getSubDelivered(sub);
+                rateLimited[c] += table.getSubRateLimited(sub);
+                failed[c] += table.getSubFailed(sub);
+            }
+        }
+        SampleRing[] rings = this.rings;
+        DispatchStats stats = new DispatchStats(sink.now(), numChannels, numClients, rings.length);
+        for (int ch = 0, i = 0; ch < table.channelCount(); ch++) {
+            if (table.getProduced(ch) > 0 || table.subscriberCount(ch) > 0) {
+                stats.setChannel(i++, table.deviceOf(ch), table.sensorOf(ch), table.getProduced(ch),
+                        table.getRateLimited(ch), table.getDelivered(ch), table.getFailed(ch));
+            }
+        }
+        for (int c = 0, i = 0; c < delivered.length; c++) {
+            if (table.client(c) != null) {
+                stats.setClient(i++, c, delivered[c], rateLimited[c], failed[c]);
+            }
+        }
+        for (int d = 0; d < rings.length; d++) {
+            stats.setQueueDropped(d, rings[d] == null ? 0 : rings[d].getDropped());
+        }
+        stats.setOwnClientId(client == null ? -1 : table.clientSlot(client));
+        stats.setLatency(latency);
+        return stats;
+    }
+}
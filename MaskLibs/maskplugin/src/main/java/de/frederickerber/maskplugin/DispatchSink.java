@@ -0,0 +1,79 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.ValueEncoding;
+
+/**
+ * Connects a {@link DispatchCore} to the outside world: it delivers readings to clients, provides the clock
+ * and schedules work on the dispatch thread. {@link SensorService} implements it with {@code Messenger}s and a
+ * {@code Handler}, tests and benchmarks with plain Java.
+ * <p>
+ * {@link #now()} and {@link #scheduleDrain()} are also called on producer threads, all other methods only on the dispatch thread.
+ *
+ * @param <C> The type identifying a client.
+ * @param <D> The type of custom data readings.
+ */
+interface DispatchSink<C, D> {
+
+    /**
+     * @return The current time in nanoseconds, in the time base of the enqueue times passed to the core.
+     */
+    long now();
+
+    /**
+     * Deliver a reading to one subscriber.
+     *
+     * @param client      The subscriber.
+     * @param reading     A number identifying the reading. Consecutive calls with the same number carry the same
+     *                    reading, so its encoded form may be reused. -1 if the values are specific to this
+     *                    subscriber, e.g. an average.
+     * @param sensorType  The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param deviceIndex The index of the device.
+     * @param timestamp   The timestamp of the reading in nanoseconds.
+     * @param values      The values of the reading, may be {@code null}. Only valid during the call.
+     * @param encoding    How the values are sent to the client, {@code null} for floats.
+     * @return {@code false} if the client could not be reached.
+     */
+    boolean sendSample(C client, long reading, int sensorType, int deviceIndex, long timestamp, float[] values,
+                       ValueEncoding encoding);
+
+    /**
+     * Deliver a custom data reading to one subscriber.
+     *
+     * @return {@code false} if the client could not be reached.
+     * @see #sendSample(Object, long, int, int, long, float[], ValueEncoding)
+     */
+    boolean sendData(C client, int sensorType, int deviceIndex, D data);
+
+    /**
+     * Deliver all readings of a batch to its subscriber. The core clears the batch afterwards.
+     *
+     * @return {@code false} if the client could not be reached.
+     */
+    boolean sendBatch(C client, SampleBatch batch);
+
+    /**
+     * Called after a delivery to a client failed. The core already ended the subscription the delivery belonged to,
+     * the sink should end the client's other subscriptions. Called while the core dispatches a reading.
+     *
+     * @param client The client that could not be reached.
+     */
+    void clientUnreachable(C client);
+
+    /**
+     * Called when a reading arrives for a sensor without subscribers, or the last subscriber was removed.
+     */
+    void allSubscriptionsEnded(int deviceIndex, int sensorType);
+
+    /**
+     * Make sure {@link DispatchCore#drain()} runs on the dispatch thread soon. Called on producer threads.
+     */
+    void scheduleDrain();
+
+    /**
+     * Make sure {@link DispatchCore#flushDueBatches()} runs on the dispatch thread at the given time.
+     * Replaces any earlier request.
+     *
+     * @param deadline The time in nanoseconds, see {@link #now()}.
+     */
+    void scheduleFlush(long deadline);
+}
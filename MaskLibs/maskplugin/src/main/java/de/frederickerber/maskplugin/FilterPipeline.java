@@ -0,0 +1,127 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.Filter;
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.StreamOperator;
+
+/**
+ * Runs a {@link FilterChain} over the readings of one channel. All subscriptions of the channel asking for the same
+ * chain share one pipeline, so it runs once per reading no matter how many clients receive its output.
+ * <p>
+ * The filters work in place on one array, so a pipeline does not allocate once it has seen the first reading.
+ * {@link StreamOperator} stages replace the reading with their derived readings, which later stages work on.
+ * If the number of values of the sensor changes, all stages start over.
+ */
+class FilterPipeline {
+
+    private final FilterChain chain;
+    //each stage is a filter, a decimator or an operator
+    private final Filter[] filters;
+    private final RateLimiter[] decimators;
+    private final StreamOperator[] operators;
+
+    private float[] input = new float[0];
+    private float[] output;
+    private long lastReading = -1;
+    private long outputReading = -1;
+    private long timestamp;
+    private boolean hasOutput;
+
+    FilterPipeline(FilterChain chain) {
+        this.chain = chain;
+        int n = chain.getStageCount();
+        filters = new Filter[n];
+        decimators = new RateLimiter[n];
+        operators = new StreamOperator[n];
+        reset();
+    }
+
+    FilterChain getChain() {
+        return chain;
+    }
+
+    /**
+     * @return The reading passed to the last call of {@link #process(long, long, long, float[])}, -1 if there was none.
+     */
+    long getLastReading() {
+        return lastReading;
+    }
+
+    /**
+     * Run a reading through the chain.
+     *
+     * @param reading       The number identifying the reading, see {@link DispatchSink#sendSample}.
+     * @param outputReading The number identifying the output, if there is one.
+     * @param timestamp     The timestamp of the reading in nanoseconds.
+     * @param values        The values of the reading, not modified.
+     * @return {@code true} if the chain produced an output, see {@link #getOutput()}.
+     */
+    boolean process(long reading, long outputReading, long timestamp, float[] values) {
+        lastReading = reading;
+        hasOutput = false;
+        if (values.length != input.length) {
+            input = new float[values.length];
+            reset();
+        }
+        float[] v = input;
+        System.arraycopy(values, 0, v, 0, values.length);
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                filters[i].apply(v, 0, v, 0, v.length);
+            } else if (decimators[i] != null) {
+                if (!decimators[i].offer(timestamp, v)) {
+                    return false;
+                }
+            } else {
+                if (!operators[i].offer(timestamp, v, 0, v.length)) {
+                    return false;
+                }
+                v = operators[i].getOutput();
+                timestamp = operators[i].getOutputTimestamp();
+            }
+        }
+        output = v;
+        this.outputReading = outputReading;
+        this.timestamp = timestamp;
+        hasOutput = true;
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the last reading produced an output.
+     */
+    boolean hasOutput() {
+        return hasOutput;
+    }
+
+    /**
+     * @return The number identifying the last output.
+     */
+    long getOutputReading() {
+        return outputReading;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The values of the last output. The array is reused for every reading, its length changes with
+     * operators in the chain.
+     */
+    float[] getOutput() {
+        return output;
+    }
+
+    private void reset() {
+        for (int i = 0; i < filters.length; i++) {
+            if (chain.getStageType(i) == FilterChain.DECIMATE) {
+                decimators[i] = new RateLimiter((int) chain.getStageParams(i)[0], RateMode.NEAREST);
+            } else {
+                filters[i] = chain.createFilter(i);
+                operators[i] = chain.createOperator(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.RateMode;
+
+/**
+ * Reduces a stream of timestamped readings to a requested frequency for one subscriber.
+ * <p>
+ * The limiter keeps a time grid with the requested period, based on the nanosecond timestamps of the readings.
+ * In {@link RateMode#NEAREST} mode, the first reading that is closer to the next grid point than the reading after it
+ * is expected to be is passed on. The spacing of readings is estimated from the stream itself.
+ * In {@link RateMode#AVERAGE} mode, all readings within one grid interval are averaged. The average is available once
+ * the first reading of the next interval arrives.
+ * Gaps in the stream restart the grid, so the limiter never tries to catch up with a burst of readings.
+ * <p>
+ * A limiter does not allocate after it has seen the first reading.
+ */
+class RateLimiter {
+
+    private final long period;
+    private final int mode;
+
+    private long next;
+    private long lastTimestamp;
+    private long interval;
+    private boolean started;
+
+    //averaging state
+    private float[] sum;
+    private float[] average;
+    private int count;
+    private long timestampBase;
+    private long timestampOffsetSum;
+    private long averageTimestamp;
+    private boolean averaged;
+
+    /**
+     * @param frequency The requested frequency in Hertz, must be positive.
+     * @param mode      One of {@link RateMode#NEAREST} or {@link RateMode#AVERAGE}.
+     */
+    RateLimiter(int frequency, int mode) {
+        if (frequency <= 0) {
+            throw new IllegalArgumentException("frequency must be positive");
+        }
+        if (mode != RateMode.NEAREST && mode != RateMode.AVERAGE) {
+            throw new IllegalArgumentException("unknown rate mode: " + mode);
+        }
+        this.period = 1000000000L / frequency;
+        this.mode = mode;
+    }
+
+    int getMode() {
+        return mode;
+    }
+
+    long getPeriodNanos() {
+        return period;
+    }
+
+    /**
+     * Offer the next reading of the stream. Timestamps are expected to increase.
+     *
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param values    The values of the reading. May be {@code null}, in which case readings cannot be averaged
+     *                  and {@link RateMode#AVERAGE} passes on the first reading of each interval instead.
+     * @return {@code true} if a reading should be sent now. In {@link RateMode#AVERAGE} mode, send
+     * {@link #getAverage()} with {@link #getAverageTimestamp()} if {@link #hasAverage()} is {@code true}.
+     */
+    boolean offer(long timestamp, float[] values) {
+        if (started && timestamp > lastTimestamp) {
+            long dt = timestamp - lastTimestamp;
+            if (interval == 0) {
+                interval = dt;
+            } else {
+                //limit the influence of gaps, the estimate still follows a slower source after a few readings
+                interval += (Math.min(dt, 2 * interval) - interval) / 8;
+            }
+        }
+        lastTimestamp = timestamp;
+        averaged = false;
+        if (mode == RateMode.AVERAGE && values != null) {
+            return offerAverage(timestamp, values);
+        }
+        if (!started) {
+            started = true;
+            next = timestamp + period;
+            return true;
+        }
+        //a reading is closest to the grid point if the next one is expected after it
+        long tolerance = Math.min(interval / 2, period / 2);
+        if (timestamp < next - tolerance) {
+            return false;
+        }
+        next += period;
+        if (timestamp >= next - tolerance) {
+            //we fell behind, e.g. because of a gap in the stream
+            next = timestamp + period;
+        }
+        return true;
+    }
+
+    private boolean offerAverage(long timestamp, float[] values) {
+        if (!started) {
+            started = true;
+            next = timestamp + period;
+        } else if (timestamp >= next) {
+            if (count > 0) {
+                if (average == null || average.length != sum.length) {
+                    average = new float[sum.length];
+                }
+                for (int i = 0; i < sum.length; i++) {
+                    average[i] = sum[i] / count;
+                }
+                averageTimestamp = timestampBase + timestampOffsetSum / count;
+                averaged = true;
+            }
+            count = 0;
+            next += period;
+            if (timestamp >= next) {
+                //gap in the stream, restart the grid
+                next = timestamp + period;
+            }
+        }
+        if (sum == null || sum.length != values.length) {
+            //the dimension changed, start over
+            sum = new float[values.length];
+            count = 0;
+        }
+        if (count == 0) {
+            timestampBase = timestamp;
+            timestampOffsetSum = 0;
+            System.arraycopy(values, 0, sum, 0, values.length);
+        } else {
+            timestampOffsetSum += timestamp - timestampBase;
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += values[i];
+            }
+        }
+        count++;
+        return averaged;
+    }
+
+    /**
+     * @return {@code true} if the last call to {@link #offer(long, float[])} produced an average
+     * instead of passing on the reading.
+     */
+    boolean hasAverage() {
+        return averaged;
+    }
+
+    /**
+     * @return The average of the last completed interval. The array is reused by the limiter.
+     */
+    float[] getAverage() {
+        return average;
+    }
+
+    /**
+     * @return The mean timestamp of the readings in the last completed interval, in nanoseconds.
+     */
+    long getAverageTimestamp() {
+        return averageTimestamp;
+    }
+}
@@ -0,0 +1,153 @@
+package de.frederickerber.maskplugin;
+
+import de.frederickerber.maskcommons.ValueEncoding;
+
+/**
+ * Collects the readings of one sensor for one subscriber until the batch is full or too old.
+ * Timestamps are stored in a {@code long[]}, the measured values interleaved in a {@code float[]}.
+ * All samples of a batch must have the same number of values.
+ */
+class SampleBatch {
+
+    final int sensorType;
+    final int deviceIndex;
+    final int maxSize;
+    final long maxLatencyNanos;
+    //null for floats
+    final ValueEncoding encoding;
+
+    private final long[] timestamps;
+    private float[] values;
+    private int valuesPerSample = -1;
+    private int count;
+    private long firstArrival;
+
+    /**
+     * @param sensorType      The {@link de.frederickerber.maskcommons.SensorType} of the batched readings.
+     * @param deviceIndex     The index of the device.
+     * @param maxSize         The maximum number of samples in the batch, at least 1.
+     * @param maxLatencyNanos The maximum time in nanoseconds a sample may wait in the batch.
+     */
+    SampleBatch(int sensorType, int deviceIndex, int maxSize, long maxLatencyNanos) {
+        this(sensorType, deviceIndex, maxSize, maxLatencyNanos, null);
+    }
+
+    /**
+     * @param encoding How the values are sent, {@code null} for floats.
+     * @see #SampleBatch(int, int, int, long)
+     */
+    SampleBatch(int sensorType, int deviceIndex, int maxSize, long maxLatencyNanos, ValueEncoding encoding) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("batch size must be at least 1");
+        }
+        this.sensorType = sensorType;
+        this.deviceIndex = deviceIndex;
+        this.maxSize = maxSize;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.encoding = encoding;
+        this.timestamps = new long[maxSize];
+    }
+
+    /**
+     * Whether a sample with the given number of values fits into this batch.
+     * A batch only holds samples of one dimension, so a change requires a flush first.
+     *
+     * @param numValues The number of values of the next sample.
+     * @return {@code true} if the sample can be added.
+     */
+    boolean accepts(int numValues) {
+        return count == 0 || (count < maxSize && numValues == valuesPerSample);
+    }
+
+    /**
+     * Append a sample to the batch. Check {@link #accepts(int)} first.
+     *
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param data      The measured values, may be {@code null} for readings without values.
+     * @param arrival   The time the sample arrived at the service in nanoseconds, used for the latency bound.
+     * @return {@code true} if the batch should be flushed now.
+     */
+    boolean add(long timestamp, float[] data, long arrival) {
+        int n = data == null ? 0 : data.length;
+        if (count == 0) {
+            firstArrival = arrival;
+            if (n != valuesPerSample) {
+                valuesPerSample = n;
+                values = new float[maxSize * n];
+            }
+        }
+        timestamps[count] = timestamp;
+        if (n > 0) {
+            System.arraycopy(data, 0, values, count * n, n);
+        }
+        count++;
+        return isDue(arrival);
+    }
+
+    /**
+     * @param now The current time in nanoseconds, in the same time base as the arrival times.
+     * @return {@code true} if the batch is full or its oldest sample waited for too long.
+     */
+    boolean isDue(long now) {
+        return count >= maxSize || (count > 0 && now - firstArrival >= maxLatencyNanos);
+    }
+
+    /**
+     * @return The time in nanoseconds at which the oldest sample exceeds the latency bound.
+     */
+    long deadline() {
+        return firstArrival + maxLatencyNanos;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getValuesPerSample() {
+        return Math.max(valuesPerSample, 0);
+    }
+
+    /**
+     * @return A copy of the timestamps of the samples currently in the batch.
+     */
+    long[] copyTimestamps() {
+        long[] res = new long[count];
+        System.arraycopy(timestamps, 0, res, 0, count);
+        return res;
+    }
+
+    /**
+     * @return A copy of the interleaved values of the samples currently in the batch.
+     */
+    float[] copyValues() {
+        int n = count * getValuesPerSample();
+        float[] res = new float[n];
+        if (n > 0) {
+            System.arraycopy(values, 0, res, 0, n);
+        }
+        return res;
+    }
+
+    /**
+     * @return The values of all samples encoded with the batch's encoding, like {@link #copyValues()}.
+     */
+    short[] copyQuantized() {
+        int n = count * getValuesPerSample();
+        short[] res = new short[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = encoding.encode(values[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Discard all samples. The buffers are kept for the next batch.
+     */
+    void clear() {
+        count = 0;
+    }
+}
@@ -0,0 +1,185 @@
+package de.frederickerber.maskplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer/single-consumer queue of sensor readings.
+ * <p>
+ * Readings are copied into preallocated slots, so neither side allocates once every slot has seen a reading
+ * with the largest number of values. The producer and the consumer only synchronize through two sequence
+ * counters, no locks are taken. If the queue is full, the new reading is dropped and counted.
+ * <p>
+ * Only one thread at a time may call the producer methods ({@code offer}) and only one thread at a time
+ * may call the consumer methods ({@code isEmpty}, {@code peek*}, {@code poll}).
+ */
+class SampleRing {
+
+    private final int mask;
+    private final int[] sensorTypes;
+    private final long[] timestamps;
+    //when the producer offered the reading, for latency measurements
+    private final long[] enqueueTimes;
+    //number of values per slot, -1 for readings without values
+    private final int[] valueCounts;
+    private final float[][] values;
+
+    //next slot the producer writes, published to the consumer
+    private final AtomicLong tail = new AtomicLong();
+    //next slot the consumer reads, published to the producer
+    private final AtomicLong head = new AtomicLong();
+    //producer's copy of head, avoids reading the consumer's counter for every reading
+    private long cachedHead;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of readings in the queue, rounded up to a power of two.
+     */
+    SampleRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sensorTypes = new int[size];
+        timestamps = new long[size];
+        enqueueTimes = new long[size];
+        valueCounts = new int[size];
+        values = new float[size][];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Append a reading. Producer only.
+     *
+     * @param sensorType The {@link de.frederickerber.maskcommons.SensorType} of the reading.
+     * @param timestamp  The timestamp of the reading in nanoseconds.
+     * @param enqueued   The time the reading is offered in nanoseconds, in the time base of the consumer's clock.
+     * @param data       The values of the reading, copied into the queue. May be {@code null}.
+     * @return {@code false} if the queue was full and the reading was dropped.
+     */
+    boolean offer(int sensorType, long timestamp, long enqueued, float[] data) {
+        long t = tail.get();
+        if (!hasRoom(t)) {
+            return false;
+        }
+        int i = (int) t & mask;
+        sensorTypes[i] = sensorType;
+        timestamps[i] = timestamp;
+        enqueueTimes[i] = enqueued;
+        if (data == null) {
+            valueCounts[i] = -1;
+        } else {
+            float[] slot = slot(i, data.length);
+            System.arraycopy(data, 0, slot, 0, data.length);
+            valueCounts[i] = data.length;
+        }
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Append a reading with a single value. Producer only.
+     *
+     * @see #offer(int, long, long, float[])
+     */
+    boolean offer(int sensorType, long timestamp, long enqueued, float value) {
+        long t = tail.get();
+        if (!hasRoom(t)) {
+            return false;
+        }
+        int i = (int) t & mask;
+        sensorTypes[i] = sensorType;
+        timestamps[i] = timestamp;
+        enqueueTimes[i] = enqueued;
+        slot(i, 1)[0] = value;
+        valueCounts[i] = 1;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    private boolean hasRoom(long t) {
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float[] slot(int i, int n) {
+        float[] slot = values[i];
+        if (slot == null || slot.length < n) {
+            slot = new float[Math.max(n, 4)];
+            values[i] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * @return {@code true} if there is no reading to consume. Consumer only.
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return The number of readings in the queue. The value is only a snapshot if called by the producer.
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return The number of readings dropped because the queue was full.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    int peekSensorType() {
+        return sensorTypes[(int) head.get() & mask];
+    }
+
+    long peekTimestamp() {
+        return timestamps[(int) head.get() & mask];
+    }
+
+    long peekEnqueueTime() {
+        return enqueueTimes[(int) head.get() & mask];
+    }
+
+    /**
+     * @return The number of values of the oldest reading, -1 if it has none.
+     */
+    int peekValueCount() {
+        return valueCounts[(int) head.get() & mask];
+    }
+
+    /**
+     * Copy the values of the oldest reading.
+     *
+     * @param dst The destination, with room for at least {@link #peekValueCount()} values.
+     */
+    void peekValues(float[] dst) {
+        int i = (int) head.get() & mask;
+        int n = valueCounts[i];
+        if (n > 0) {
+            System.arraycopy(values[i], 0, dst, 0, n);
+        }
+    }
+
+    /**
+     * Remove the oldest reading, freeing its slot for the producer. Check {@link #isEmpty()} first. Consumer only.
+     */
+    void poll() {
+        head.lazySet(head.get() + 1);
+    }
+}
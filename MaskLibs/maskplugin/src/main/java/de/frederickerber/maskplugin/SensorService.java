@@ -2,47 +2,109 @@ package de.frederickerber.maskplugin;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.util.SparseArray;
 
 import de.frederickerber.maskcommons.BundleKeys;
+import de.frederickerber.maskcommons.DispatchStats;
 import de.frederickerber.maskcommons.ErrorCode;
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.MadgwickFilter;
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SensorSample;
 import de.frederickerber.maskcommons.SensorType;
 import de.frederickerber.maskcommons.ServiceMsg;
+import de.frederickerber.maskcommons.StreamJoin;
+import de.frederickerber.maskcommons.StreamOperator;
+import de.frederickerber.maskcommons.SubscriptionSet;
+import de.frederickerber.maskcommons.ValueEncoding;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Base class of MASK plugins.
+ * <p>
+ * Client messages and the fan-out of readings to subscribers run on a dedicated dispatch thread, so neither competes
+ * with the main thread of the host app. The {@code broadcast*} methods may be called from any thread: they only
+ * copy the reading into a bounded queue of the device and wake the dispatch thread. Readings of one device must
+ * not be broadcast from several threads at the same time. The abstract callbacks such as
+ * {@link #newSensorSubscription(int, int, Messenger, int)} are called on the dispatch thread.
+ * <p>
+ * {@link #mConnectedDevices} may be changed on any thread, it is a {@link CopyOnWriteArrayList} and each of its
+ * methods is atomic. Device indices are positions in the list, so removing a device changes the index of every
+ * device after it. Readings are queued under the index of their device, add a device before broadcasting its readings.
+ * <p>
+ * Subscriptions, rate limiting, batching and the fan-out itself are done by a {@link DispatchCore}, which does not
+ * depend on Android. This class connects it to clients through {@link Messenger}s.
+ * <p>
+ * Devices with an accelerometer and a gyroscope but no {@link SensorType#ROTATION_VECTOR} sensor offer a virtual one,
+ * computed by a {@link MadgwickFilter} on the dispatch thread while clients subscribe to it.
+ */
 public abstract class SensorService extends Service {
 
     private static final String TAG = SensorService.class.getName();
     protected String serviceName;
 
-    final Messenger mMessenger = new Messenger(new IncomingHandler(this));
+    //client messages, the fan-out of readings and batch timers all run on this thread, see runOnDispatchThread()
+    private final HandlerThread mDispatchThread = startDispatchThread();
+    private final Handler mDispatchHandler = new Handler(mDispatchThread.getLooper());
+    final Messenger mMessenger = new Messenger(new IncomingHandler(this, mDispatchThread.getLooper()));
     protected ArrayList<Messenger> mClients = new ArrayList<>();
-    protected Map<String, SparseArray<List<Messenger>>> mSubscribers = new HashMap<>();
     protected Map<Messenger, Boolean> mShouldReconnects = new HashMap<>();
-    protected Map<Messenger, Map<String, int[]>> mFrequencies = new HashMap<>();
-    protected Map<String, int[]> mMaxFrequencies = new HashMap<>();
-    //contains timestamps of last sensor reading sent to client
-    protected Map<Messenger, Map<String, long[]>> mLastReadingSent = new HashMap<>();
-    //contains client's desired delay in nanoseconds
-    protected Map<Messenger, Map<String, long[]>> mDelay = new HashMap<>();
-    protected List<String> mConnectedDevices = new ArrayList<>();
+    //changed by subclasses on any thread, read by producers and the dispatch thread, so every access is atomic
+    protected final List<String> mConnectedDevices = new CopyOnWriteArrayList<>();
+    //subscriptions, rate limiting and the fan-out of readings, see getDispatchCore()
+    private volatile DispatchCore<Messenger, Bundle> mCore;
+    private final MessengerSink mSink = new MessengerSink();
+    private final Runnable mDrainer = new Runnable() {
+        @Override
+        public void run() {
+            getDispatchCore().drain();
+        }
+    };
+    private final Runnable mBatchFlusher = new Runnable() {
+        @Override
+        public void run() {
+            getDispatchCore().flushDueBatches();
+        }
+    };
+
+    //shared memory per client, see openSharedTransport()
+    private static final int DEFAULT_SHARED_SLOTS = 4096;
+    private static final int MAX_SHARED_SLOTS = 1 << 16;
+    private static final int DEFAULT_SHARED_MAX_VALUES = 16;
+    private static final int MAX_SHARED_MAX_VALUES = 256;
+    private final Map<Messenger, SharedTransport> mSharedTransports = new HashMap<>();
+
+    //how long the virtual rotation vector waits for late readings, and how many it buffers per sensor
+    private static final long VIRTUAL_ROTATION_MAX_DELAY_NANOS = 20000000L;
+    private static final int VIRTUAL_ROTATION_CAPACITY = 64;
 
     private Bundle sensorList;
 
+    private static HandlerThread startDispatchThread() {
+        HandlerThread t = new HandlerThread("SensorServiceDispatch", Process.THREAD_PRIORITY_FOREGROUND);
+        t.start();
+        return t;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mMessenger.getBinder();
@@ -74,6 +136,10 @@ public abstract class SensorService extends Service {
             ArrayList<Integer> suppSens = getSupportedSensors(mConnectedDevices.get(deviceIndex));
 
             if (suppSens != null) {
+                if (hasVirtualRotation(suppSens)) {
+                    suppSens = new ArrayList<>(suppSens);
+                    suppSens.add(SensorType.ROTATION_VECTOR);
+                }
                 sensorList = new Bundle();
                 sensorList.putString(BundleKeys.SERVICE_NAME, serviceName);
                 sensorList.putIntegerArrayList(BundleKeys.SUPPORTED_SENSORS, suppSens);
@@ -97,77 +163,57 @@ public abstract class SensorService extends Service {
      *
      * @param deviceIdentifier The identifier of the device.
      * @param sensorType       The {@link SensorType} of the reading.
-     * @param data             The sensor data to broadcast in a key-value bundle.
+     * @param data             The sensor data to broadcast in a key-value bundle. It is handed over and sent later on
+     *                         the dispatch thread, so do not change or reuse it after this call.
      *                         If possible, use <code>BundleKeys.TIMESTAMP_NANO</code> for the timestamp key and
      *                         <code>BundleKeys.SENSOR_READINGS</code> for the measured values.
      */
 
-    public void sendDataToSubscribers(String deviceIdentifier, int sensorType, Bundle data, long timestamp) {
+    public void sendDataToSubscribers(String deviceIdentifier, final int sensorType, final Bundle data, final long timestamp) {
+        //resolved now, the device list may change before the task runs
+        final int deviceIndex = mConnectedDevices.indexOf(deviceIdentifier);
+        runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                getDispatchCore().dispatch(deviceIndex, sensorType, data, timestamp, null, false, mSink.now());
+            }
+        });
+    }
 
-        if (mSubscribers.get(deviceIdentifier) == null) {
-            return;
+    /**
+     * Encode a reading for a {@link ServiceMsg#SENSOR_SAMPLE} message.
+     *
+     * @param encoding How the values are sent, {@code null} for floats.
+     * @return A bundle holding only the encoded {@link SensorSample}.
+     */
+    private static Bundle sampleData(int sensorType, int deviceIndex, long timestamp, @Nullable float[] values,
+                                     @Nullable ValueEncoding encoding) {
+        Bundle data = new Bundle();
+        data.putByteArray(BundleKeys.SENSOR_SAMPLE, SensorSample.encode(sensorType, deviceIndex, timestamp, values, encoding));
+        return data;
+    }
+
+    /**
+     * Run a task on the dispatch thread. Subscriptions and clients may only be accessed from there.
+     * The task runs right away if this is called on the dispatch thread.
+     *
+     * @param task The task to run.
+     */
+    protected void runOnDispatchThread(Runnable task) {
+        if (Looper.myLooper() == mDispatchThread.getLooper()) {
+            task.run();
         } else {
-            List<Messenger> subscribers = mSubscribers.get(deviceIdentifier).get(sensorType);
-            Log.d(TAG, "sendDataToSubscribers: subscribers: " + Arrays.toString(subscribers.toArray()));
-            if (subscribers == null || subscribers.isEmpty()) {
-                Log.v(TAG, "tried to broadcast sensor data without subscribers for sensor " + sensorType);
-                allSubscriptionsEnded(mConnectedDevices.indexOf(deviceIdentifier), sensorType);
-                return;
-            }
-            Log.v(TAG, "broadcasting sensor data for sensor " + sensorType);
-            //looping backwards so we can remove elements while iterating
-            for (int i = subscribers.size() - 1; i >= 0; i--) {
-                Messenger c = subscribers.get(i);
-                boolean send = true;
-                //check client's preferred frequency
-                if (mFrequencies.get(c) != null && mFrequencies.get(c).get(deviceIdentifier) != null && mFrequencies.get(c).get(deviceIdentifier)[sensorType] > 0) {
-                    if (mLastReadingSent.get(c) != null && mLastReadingSent.get(c).get(deviceIdentifier) != null && mLastReadingSent.get(c).get(deviceIdentifier)[sensorType] > 0) {
-                        long desiredDelay = mDelay.get(c).get(deviceIdentifier)[sensorType] / 1000000;
-                        Log.v(TAG, String.format("desired delay for sensor %d is %d ms", sensorType, desiredDelay));
-                        long lastSent = mLastReadingSent.get(c).get(deviceIdentifier)[sensorType];
-                        long delay = (timestamp - lastSent) / 1000000;
-                        boolean multiple = false;
-                        if (delay != 0) {
-                            multiple = desiredDelay % delay == 0;
-                        }
-                        if (multiple && delay < desiredDelay) {
-                            send = false;
-                            Log.v(TAG, String.format("dropping data because delay is only %d ms", delay));
-                        }
-                    }
-                }
-                if (send) {
-                    Message msg = Message.obtain(null, ServiceMsg.SENSOR_DATA, sensorType, -1);
-                    if (data != null) {
-                        msg.setData(data);
-                    }
-                    try {
-                        c.send(msg);
-                        if (mLastReadingSent.get(c) == null) {
-                            mLastReadingSent.put(c, new HashMap<String, long[]>());
-                        }
-                        if (mLastReadingSent.get(c).get(deviceIdentifier) != null) {
-                            Log.v(TAG, String.format("sending data for sensor %d with delay %d ms", sensorType, (timestamp - mLastReadingSent.get(c).get(deviceIdentifier)[sensorType]) / 1000000));
-                            mLastReadingSent.get(c).get(deviceIdentifier)[sensorType] = timestamp;
-                        } else {
-                            mLastReadingSent.get(c).put(deviceIdentifier, new long[SensorType.NUM_SENSORS + getNumCustomSensors()]);
-                            mLastReadingSent.get(c).get(deviceIdentifier)[sensorType] = timestamp;
-                        }
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Error in sendDataToSubscribers: " + e.getMessage());
-                        mClients.remove(c);
-                        subscribers.remove(i);
-                        //we don't remove the client from other subscriber lists here
-                        //it will happen through this method eventually or by the last client being removed
-                    }
-                }
-            }
-        }
-        if (mClients.isEmpty()) {
-            lastClientDisconnected();
+            mDispatchHandler.post(task);
         }
     }
 
+    /**
+     * @return The number of readings dropped because the dispatch thread could not keep up.
+     */
+    public long getDroppedReadings() {
+        return getDispatchCore().getDroppedReadings();
+    }
+
     /**
      * Broadcast a single float measurement to subscribers of {@code sensorType}
      *
@@ -178,22 +224,12 @@ public abstract class SensorService extends Service {
      * @param value       The value measured
      */
     public void broadcastSingleFloat(long timestamp, int sensorType, String serviceName, int deviceIndex, float value) {
-        Log.d(TAG, "mSubscriber " + mSubscribers);
-        Log.d(TAG, "sensortype " + sensorType);
-
         if (mConnectedDevices.get(deviceIndex) == null) {
             return;
         }
-        Bundle data = new Bundle();
-        data.putLong(BundleKeys.TIMESTAMP_NANO, timestamp);
-        data.putFloat(BundleKeys.SENSOR_READINGS_SINGLE_FLOAT, value);
-        data.putString(BundleKeys.SERVICE_NAME, serviceName);
-        data.putInt(BundleKeys.DEVICE_INDEX, deviceIndex);
-
-        sendDataToSubscribers(mConnectedDevices.get(deviceIndex), sensorType, data, timestamp);
+        getDispatchCore().offer(deviceIndex, sensorType, timestamp, value);
     }
 
-
     /**
      * Broadcast a float array representing a multi-dimensional measurement to subscribers of {@code sensorType}
      *
@@ -204,20 +240,10 @@ public abstract class SensorService extends Service {
      * @param values      The values measured
      */
     public void broadcastFloatArray(long timestamp, int sensorType, String serviceName, int deviceIndex, float[] values) {
-        Log.d(TAG, "mSubscribers = :" + mSubscribers);
-        Log.d(TAG, "deviceIndex = :" + deviceIndex);
-
         if (mConnectedDevices.get(deviceIndex) == null) {
             return;
         }
-        Log.d(TAG, "broadcastFloatArray:");
-        Bundle data = new Bundle();
-        data.putLong(BundleKeys.TIMESTAMP_NANO, timestamp);
-        data.putFloatArray(BundleKeys.SENSOR_READINGS_FLOAT_ARRAY, values);
-        data.putString(BundleKeys.SERVICE_NAME, serviceName);
-        data.putInt(BundleKeys.DEVICE_INDEX, deviceIndex);
-
-        sendDataToSubscribers(mConnectedDevices.get(deviceIndex), sensorType, data, timestamp);
+        getDispatchCore().offer(deviceIndex, sensorType, timestamp, values);
     }
 
     /**
@@ -235,7 +261,6 @@ public abstract class SensorService extends Service {
         broadcastFloatArray(timestamp, SensorType.ECG, serviceName, deviceIndex, values);
     }
 
-
     /**
      * Broadcast a skin temperature measurement to subscribers
      *
@@ -453,14 +478,9 @@ public abstract class SensorService extends Service {
         if (mConnectedDevices.get(deviceIndex) == null) {
             return;
         }
-        Bundle data = new Bundle();
-        data.putLong(BundleKeys.TIMESTAMP_NANO, timestamp);
-        data.putString(BundleKeys.SERVICE_NAME, serviceName);
-        data.putInt(BundleKeys.DEVICE_INDEX, deviceIndex);
-        sendDataToSubscribers(mConnectedDevices.get(deviceIndex), SensorType.STEP_DETECTOR, data, timestamp);
+        getDispatchCore().offer(deviceIndex, SensorType.STEP_DETECTOR, timestamp, null);
     }
 
-
     /**
      * Broadcast the heart rate in beats per minute to subscribers.
      *
@@ -474,7 +494,6 @@ public abstract class SensorService extends Service {
         broadcastSingleFloat(timestamp, SensorType.HEART_RATE, serviceName, deviceIndex, heart_rate);
     }
 
-
     public void broadcastHeartRateVariabilityReading(long timestamp, String serviceName, int deviceIndex, float rr_value) {
         broadcastSingleFloat(timestamp, SensorType.HEART_RATE_VARIABILITY, serviceName, deviceIndex, rr_value);
     }
@@ -502,18 +521,16 @@ public abstract class SensorService extends Service {
 
         if (mClients != null && client != null) {
             mClients.remove(client);
-            mFrequencies.remove(client);
-            mDelay.remove(client);
             mShouldReconnects.remove(client);
-
-            for (String connectedDevice : mConnectedDevices) {
-                ArrayList<Integer> supportedSensors = getSupportedSensors(connectedDevice);
-                if (supportedSensors != null) {
-                    for (int sensorType : supportedSensors) {
-                        Log.d(TAG, "removeClient: " + "Device: " + connectedDevice + "sensorType: " + sensorType);
-                        unsubscribeFromSensor(connectedDevice, sensorType, client);
-                    }
-                }
+            closeSharedTransport(client);
+
+            SubscriptionTable<Messenger> table = getSubscriptions();
+            for (int sub : table.subscriptionsOf(client)) {
+                //readings still waiting in a batch are dropped, the client is gone
+                table.setBatch(sub, null);
+                int channel = table.channelOf(sub);
+                Log.d(TAG, "removeClient: " + "Device: " + table.deviceOf(channel) + "sensorType: " + table.sensorOf(channel));
+                unsubscribeFromSensor(mConnectedDevices.get(table.deviceOf(channel)), table.sensorOf(channel), client);
             }
             if (mClients.isEmpty()) {
                 lastClientDisconnected();
@@ -550,12 +567,7 @@ public abstract class SensorService extends Service {
      * @return {@code true} if there are any clients subscribed to the sensor, {@code false} otherwise.
      */
     public boolean hasSubscribers(int sensorType) {
-        for (SparseArray s : mSubscribers.values()) {
-            if (s.get(sensorType) != null) {
-                return true;
-            }
-        }
-        return false;
+        return getSubscriptions().hasSubscribers(sensorType);
     }
 
     /**
@@ -565,7 +577,16 @@ public abstract class SensorService extends Service {
      * @param serviceName The name of the service.
      * @param deviceIndex The index of the device.
      */
-    public void broadcastDeviceDisconnected(String serviceName, int deviceIndex) {
+    public void broadcastDeviceDisconnected(final String serviceName, final int deviceIndex) {
+        if (Looper.myLooper() != mDispatchThread.getLooper()) {
+            runOnDispatchThread(new Runnable() {
+                @Override
+                public void run() {
+                    broadcastDeviceDisconnected(serviceName, deviceIndex);
+                }
+            });
+            return;
+        }
         Log.d(TAG, "broadcastdeviceDisconnected mConnectedDevices: " + mConnectedDevices.get(deviceIndex));
 
         for (int i = mClients.size() - 1; i >= 0; i--) {
@@ -590,12 +611,20 @@ public abstract class SensorService extends Service {
      * @param deviceIndex The index of the device.
      */
 
-    public void broadcastDeviceConnected(String serviceName, int deviceIndex) {
+    public void broadcastDeviceConnected(final String serviceName, final int deviceIndex) {
+        if (Looper.myLooper() != mDispatchThread.getLooper()) {
+            runOnDispatchThread(new Runnable() {
+                @Override
+                public void run() {
+                    broadcastDeviceConnected(serviceName, deviceIndex);
+                }
+            });
+            return;
+        }
 
-        mMaxFrequencies.put(mConnectedDevices.get(deviceIndex), new int[SensorType.NUM_SENSORS + getNumCustomSensors()]);
+        getSubscriptions().resetMaxFrequencies(deviceIndex);
         Log.d(TAG, "broadcastdeviceconnected mConnectedDevices: " + mConnectedDevices.get(deviceIndex));
 
-
         for (int i = mClients.size() - 1; i >= 0; i--) {
             try {
                 Message msg = Message.obtain(null, ServiceMsg.DEVICE_CONNECTED);
@@ -631,7 +660,7 @@ public abstract class SensorService extends Service {
 
     /**
      * Called when the last client disconnected.
-     * This might happen shortly before onDestroy if the client also unbinds afterwards.
+     * This might happen shortly before {@link #onPluginDestroy()} if the client also unbinds afterwards.
      */
     protected abstract void lastClientDisconnected();
 
@@ -666,6 +695,8 @@ public abstract class SensorService extends Service {
     /**
      * Called when the first client subscribes to the sensor.
      * You probably want to activate/subscribe to the hardware sensor here.
+     * When a client sets all its subscriptions at once, it is also called for a running sensor if it has to run faster,
+     * see {@link #setSubscriptions(SubscriptionSet, Messenger)}.
      *
      * @param deviceIndex The index of the device we want to subscribed.
      * @param sensorType  The type of the sensor the client subscribed to.
@@ -696,6 +727,60 @@ public abstract class SensorService extends Service {
      * @param client           The client that wants to subscribe
      */
     void subscribeToSensor(String deviceIdentifier, int sensorType, int frequency, Messenger client) {
+        subscribeToSensor(deviceIdentifier, sensorType, frequency, RateMode.NEAREST, 1, 0, client);
+    }
+
+    /**
+     * Add a client to the list of subscribers for the specified sensor, see {@link #subscribeToSensor(String, int, int, Messenger)}.
+     * If the client wants a lower rate than the sensor delivers, {@code rateMode} selects whether the reading closest
+     * to each point in time or the average of the readings in between is sent.
+     * If {@code maxBatchSize} is greater than 1, readings are collected and delivered in one
+     * {@link ServiceMsg#SENSOR_DATA_BATCH} message once the batch is full or its oldest reading waited
+     * for {@code maxBatchLatencyMillis}.
+     *
+     * @param deviceIdentifier      The identifier of the device we want to subscribed.
+     * @param sensorType            The sensor the client wants to subscribe to
+     * @param frequency             The frequency the client would like to receive events at, in Hertz.
+     * @param rateMode              One of the {@link RateMode} constants, any other value rejects the subscription.
+     * @param maxBatchSize          The maximum number of readings per message. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time a reading may be held back, in milliseconds. Defaults to one second if not positive.
+     * @param client                The client that wants to subscribe
+     */
+    void subscribeToSensor(String deviceIdentifier, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis, Messenger client) {
+        subscribeToSensor(deviceIdentifier, sensorType, frequency, rateMode, maxBatchSize, maxBatchLatencyMillis, null, client);
+    }
+
+    /**
+     * Add a client to the list of subscribers for the specified sensor, see
+     * {@link #subscribeToSensor(String, int, int, int, int, int, Messenger)}, and run its readings through a filter
+     * chain first. Clients asking for the same chain for a sensor share one instance of the chain, so it runs once
+     * per reading. The frequency still applies to the readings the chain puts out.
+     * Chains may also derive new streams, e.g. spectra (see {@link FilterChain#isDerived()}), so the raw readings
+     * never have to leave the plugin.
+     *
+     * @param deviceIdentifier      The identifier of the device we want to subscribed.
+     * @param sensorType            The sensor the client wants to subscribe to
+     * @param frequency             The frequency the client would like to receive events at, in Hertz.
+     * @param rateMode              One of the {@link RateMode} constants.
+     * @param maxBatchSize          The maximum number of readings per message. 1 or less disables batching.
+     * @param maxBatchLatencyMillis The maximum time a reading may be held back, in milliseconds. Defaults to one second if not positive.
+     * @param chain                 The filter chain, {@code null} or empty for raw readings.
+     * @param client                The client that wants to subscribe
+     */
+    void subscribeToSensor(String deviceIdentifier, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis,
+                           FilterChain chain, Messenger client) {
+        subscribeToSensor(deviceIdentifier, sensorType, frequency, rateMode, maxBatchSize, maxBatchLatencyMillis, chain, null, client);
+    }
+
+    /**
+     * Add a client to the list of subscribers for the specified sensor, see
+     * {@link #subscribeToSensor(String, int, int, int, int, int, FilterChain, Messenger)}, and send its values quantized
+     * to 16 bits in messages and batches.
+     *
+     * @param encoding The encoding of the values, {@code null} for floats.
+     */
+    void subscribeToSensor(String deviceIdentifier, int sensorType, int frequency, int rateMode, int maxBatchSize, int maxBatchLatencyMillis,
+                           FilterChain chain, ValueEncoding encoding, Messenger client) {
         if (getSupportedSensors(deviceIdentifier) == null) {
             sendErrorMessage(client, ErrorCode.SERVICE_NOT_READY, "Plugin failed to provide a list of supported sensors");
             return;
@@ -703,35 +788,35 @@ public abstract class SensorService extends Service {
         if (client == null) {
             throw new IllegalArgumentException("client may not be null");
         }
-        if (getSupportedSensors(deviceIdentifier).contains(sensorType)) {
-            if (frequency > 0) {
-                setFrequency(deviceIdentifier, sensorType, frequency, client);
-                setDesiredDelay(deviceIdentifier, sensorType, frequency, client);
-                if (sensorType < mMaxFrequencies.get(deviceIdentifier).length) {
-                    mMaxFrequencies.get(deviceIdentifier)[sensorType] = Math.max(frequency, mMaxFrequencies.get(deviceIdentifier)[sensorType]);
-                }
-                if (mLastReadingSent.get(client) == null) {
-                    mLastReadingSent.put(client, new HashMap<String, long[]>());
-                    if (mLastReadingSent.get(client).get(deviceIdentifier) == null) {
-                        mLastReadingSent.get(client).put(deviceIdentifier, new long[SensorType.NUM_SENSORS + getNumCustomSensors()]);
-                    }
-                }
+        ArrayList<Integer> supported = getSupportedSensors(deviceIdentifier);
+        boolean virtualRotation = sensorType == SensorType.ROTATION_VECTOR && hasVirtualRotation(supported);
+        if (supported.contains(sensorType) || virtualRotation) {
+            SubscriptionTable<Messenger> table = getSubscriptions();
+            int deviceIndex = mConnectedDevices.indexOf(deviceIdentifier);
+            int channel = table.channel(deviceIndex, sensorType);
+            if (channel < 0) {
+                sendErrorMessage(client, ErrorCode.DEVICE_NOT_FOUND, "unknown device: " + deviceIdentifier);
+                return;
             }
-            if (mSubscribers.get(deviceIdentifier) == null) {
-                mSubscribers.put(deviceIdentifier, new SparseArray<List<Messenger>>());
-                Log.d(TAG, "put deviceIdentifier and new Sparsearray = " + mSubscribers);
-
+            if (rateMode != RateMode.NEAREST && rateMode != RateMode.AVERAGE) {
+                sendErrorMessage(client, ErrorCode.INVALID_RATE_MODE, "unknown rate mode: " + rateMode);
+                return;
             }
-            if (mSubscribers.get(deviceIdentifier).get(sensorType) == null) {
-                mSubscribers.get(deviceIdentifier).put(sensorType, new ArrayList<Messenger>());
-                mSubscribers.get(deviceIdentifier).get(sensorType).add(client);
-                Log.d(TAG, "mSubscriber = " + mSubscribers);
-                newSensorSubscription(mConnectedDevices.indexOf(deviceIdentifier), sensorType, client, frequency);
-            } else {
-                if (!mSubscribers.get(deviceIdentifier).get(sensorType).contains(client)) {
-                    mSubscribers.get(deviceIdentifier).get(sensorType).add(client);
-                    newSensorSubscription(mConnectedDevices.indexOf(deviceIdentifier), sensorType, client, frequency);
+            if (virtualRotation) {
+                addVirtualRotation(deviceIndex, supported);
+            }
+            SharedTransport transport = mSharedTransports.get(client);
+            DispatchCore<Messenger, Bundle> core = getDispatchCore();
+            boolean isNew = core.subscribe(client, channel, frequency, rateMode, maxBatchSize,
+                    maxBatchLatencyMillis * 1000000L, transport == null ? null : transport.getRing(), chain, encoding);
+            int[] inputs = core.getJoinInputs(deviceIndex, sensorType);
+            if (isNew && inputs != null) {
+                //the plugin only knows the sensors the join reads
+                for (int input : inputs) {
+                    newSensorSubscription(deviceIndex, input, client, frequency);
                 }
+            } else if (isNew) {
+                newSensorSubscription(deviceIndex, sensorType, client, frequency);
             }
         } else {
             sendErrorMessage(client, ErrorCode.SENSOR_NOT_SUPPORTED, "unsupported sensor: " + sensorType);
@@ -739,50 +824,27 @@ public abstract class SensorService extends Service {
     }
 
     /**
-     * Sets a client's desired delay between events in nanoseconds
-     *
-     * @param deviceIdentifier The identifier for the device.
-     * @param sensorType       The sensor to set the delay for
-     * @param frequency        The frequency the client wants to receive events at, in Hertz
-     * @param client           The client subscribing to the sensor
+     * @return The dispatch core holding all subscriptions. It is created on first use because its size depends on {@link #getNumCustomSensors()}.
      */
-    void setDesiredDelay(String deviceIdentifier, int sensorType, int frequency, Messenger client) {
-        if (frequency > 0) {
-            long desiredDelay = 1000000000 / frequency;
-            if (mDelay.get(client) == null) {
-                mDelay.put(client, new HashMap<String, long[]>());
-            }
-            if (mDelay.get(client).get(deviceIdentifier) == null) {
-                long[] clientDelayArray = new long[SensorType.NUM_SENSORS + getNumCustomSensors()];
-                clientDelayArray[sensorType] = desiredDelay;
-                mDelay.get(client).put(deviceIdentifier, clientDelayArray);
-            } else {
-                mDelay.get(client).get(deviceIdentifier)[sensorType] = desiredDelay;
+    DispatchCore<Messenger, Bundle> getDispatchCore() {
+        DispatchCore<Messenger, Bundle> core = mCore;
+        if (core == null) {
+            synchronized (this) {
+                core = mCore;
+                if (core == null) {
+                    core = new DispatchCore<>(SensorType.NUM_SENSORS + getNumCustomSensors(), mSink);
+                    mCore = core;
+                }
             }
         }
+        return core;
     }
 
     /**
-     * Set the preferred event frequency for a sensor and client
-     *
-     * @param deviceIdentifier The identifier of device.
-     * @param sensorType       The type of sensor
-     * @param frequency        The frequency to receive events at, in Hertz
-     * @param client           The client subscribing to the sensor
+     * @return The index of all subscriptions, see {@link #getDispatchCore()}.
      */
-    void setFrequency(String deviceIdentifier, int sensorType, int frequency, Messenger client) {
-        if (frequency > 0) {
-            if (mFrequencies.get(client) == null) {
-                mFrequencies.put(client, new HashMap<String, int[]>());
-            }
-            if (mFrequencies.get(client).get(deviceIdentifier) == null) {
-                int[] clientFrequencyArray = new int[SensorType.NUM_SENSORS + getNumCustomSensors()];
-                clientFrequencyArray[sensorType] = frequency;
-                mFrequencies.get(client).put(deviceIdentifier, clientFrequencyArray);
-            } else {
-                mFrequencies.get(client).get(deviceIdentifier)[sensorType] = frequency;
-            }
-        }
+    SubscriptionTable<Messenger> getSubscriptions() {
+        return getDispatchCore().getSubscriptions();
     }
 
     /**
@@ -803,10 +865,8 @@ public abstract class SensorService extends Service {
      * @return The maximum frequency in Hertz if there are frequency preferences for the sensor, 0 otherwise
      */
     protected int getMaxFrequency(String deviceIdentifier, int sensorType) {
-        if (sensorType >= 0 && sensorType < mMaxFrequencies.get(deviceIdentifier).length) {
-            return mMaxFrequencies.get(deviceIdentifier)[sensorType];
-        }
-        return 0;
+        SubscriptionTable<Messenger> table = getSubscriptions();
+        return table.getMaxFrequency(table.channel(mConnectedDevices.indexOf(deviceIdentifier), sensorType));
     }
 
     /**
@@ -818,13 +878,9 @@ public abstract class SensorService extends Service {
      * @return The client's preferred frequency in Hertz if specified. A value of 0 indicates no preference.
      */
     protected int getFrequency(Messenger client, String deviceIdentifier, int sensorType) {
-        if (mFrequencies.containsKey(client) && mFrequencies.get(client).containsKey(deviceIdentifier)) {
-            int[] frequencies = mFrequencies.get(client).get(deviceIdentifier);
-            if (frequencies != null && sensorType >= 0 && sensorType < frequencies.length) {
-                return frequencies[sensorType];
-            }
-        }
-        return 0;
+        SubscriptionTable<Messenger> table = getSubscriptions();
+        int sub = table.find(client, table.channel(mConnectedDevices.indexOf(deviceIdentifier), sensorType));
+        return sub < 0 ? 0 : table.getFrequency(sub);
     }
 
     /**
@@ -835,18 +891,13 @@ public abstract class SensorService extends Service {
      * @param sensorType       The sensor to recalculate the maximum frequency for.
      */
     void recalculateMaxFrequencies(String deviceIdentifier, int sensorType) {
-        if (sensorType < 0 || sensorType > mMaxFrequencies.get(deviceIdentifier).length) {
+        SubscriptionTable<Messenger> table = getSubscriptions();
+        int channel = table.channel(mConnectedDevices.indexOf(deviceIdentifier), sensorType);
+        if (channel < 0) {
             return;
         }
-        int old = mMaxFrequencies.get(deviceIdentifier)[sensorType];
-        int max = 0;
-        for (Messenger c : mFrequencies.keySet()) {
-            if (mFrequencies.get(c).get(deviceIdentifier) != null) {
-                max = Math.max(max, mFrequencies.get(c).get(deviceIdentifier)[sensorType]);
-            }
-        }
-        mMaxFrequencies.get(deviceIdentifier)[sensorType] = max;
-        if (old > max) {
+        int old = table.recalculateMaxFrequency(channel);
+        if (old > table.getMaxFrequency(channel)) {
             sensorRateDecreased(deviceIdentifier, sensorType);
         }
     }
@@ -860,30 +911,176 @@ public abstract class SensorService extends Service {
      * @param client           The subscriber.
      */
     void unsubscribeFromSensor(String deviceIdentifier, int sensorType, Messenger client) {
-        if (mSubscribers.get(deviceIdentifier) != null && mSubscribers.get(deviceIdentifier).get(sensorType) != null && !mSubscribers.get(deviceIdentifier).get(sensorType).isEmpty()) {
-            if (mSubscribers.get(deviceIdentifier).get(sensorType).contains(client)) {
-                mSubscribers.get(deviceIdentifier).get(sensorType).remove(client);
-                if (mFrequencies.get(client) != null && mFrequencies.get(client).get(deviceIdentifier) != null) {
-                    mFrequencies.get(client).get(deviceIdentifier)[sensorType] = -1;
-                    recalculateMaxFrequencies(deviceIdentifier, sensorType);
-                }
-                if (mDelay.get(client) != null && mDelay.get(client).get(deviceIdentifier) != null) {
-                    mDelay.get(client).get(deviceIdentifier)[sensorType] = -1;
-                }
-                if (mSubscribers.get(deviceIdentifier).get(sensorType).isEmpty()) {
+        SubscriptionTable<Messenger> table = getSubscriptions();
+        int deviceIndex = mConnectedDevices.indexOf(deviceIdentifier);
+        int channel = table.channel(deviceIndex, sensorType);
+        if (table.find(client, channel) < 0) {
+            return;
+        }
+        DispatchCore<Messenger, Bundle> core = getDispatchCore();
+        boolean last = core.unsubscribe(client, channel);
+        recalculateMaxFrequencies(deviceIdentifier, sensorType);
+        if (last) {
+            sensorUnused(core, deviceIndex, sensorType);
+        }
+    }
 
-                    allSubscriptionsEnded(mConnectedDevices.indexOf(deviceIdentifier), sensorType);
-                }
+    /**
+     * Replace all subscriptions of a client with a set, see {@link SubscriptionSet}. The set is applied as one diff:
+     * every sensor whose use changed is reconfigured once, however many subscriptions of the set concern it.
+     * {@link #newSensorSubscription(int, int, Messenger, int)} is called for sensors that start and for sensors that
+     * have to run faster, with the highest frequency now wanted, {@link #allSubscriptionsEnded(int, int)} for sensors
+     * no longer needed and {@link #sensorRateDecreased(String, int)} for sensors that may run slower.
+     * Subscriptions to unknown devices or unsupported sensors, or with an unknown rate mode, are reported and left
+     * out of the set.
+     *
+     * @param set    The subscriptions the client wants.
+     * @param client The client.
+     */
+    void setSubscriptions(SubscriptionSet set, Messenger client) {
+        if (client == null) {
+            throw new IllegalArgumentException("client may not be null");
+        }
+        SubscriptionSet accepted = new SubscriptionSet();
+        for (int i = 0; i < set.size(); i++) {
+            int deviceIndex = set.getDeviceIndex(i);
+            int sensorType = set.getSensorType(i);
+            if (deviceIndex < 0 || deviceIndex >= mConnectedDevices.size()) {
+                sendErrorMessage(client, ErrorCode.DEVICE_NOT_FOUND, "unknown device: " + deviceIndex);
+                continue;
+            }
+            ArrayList<Integer> supported = getSupportedSensors(mConnectedDevices.get(deviceIndex));
+            if (supported == null) {
+                sendErrorMessage(client, ErrorCode.SERVICE_NOT_READY, "Plugin failed to provide a list of supported sensors");
+                return;
+            }
+            boolean virtualRotation = sensorType == SensorType.ROTATION_VECTOR && hasVirtualRotation(supported);
+            if (!supported.contains(sensorType) && !virtualRotation) {
+                sendErrorMessage(client, ErrorCode.SENSOR_NOT_SUPPORTED, "unsupported sensor: " + sensorType);
+                continue;
+            }
+            if (getSubscriptions().channel(deviceIndex, sensorType) < 0) {
+                sendErrorMessage(client, ErrorCode.DEVICE_NOT_FOUND, "unknown device: " + deviceIndex);
+                continue;
+            }
+            int rateMode = set.getRateMode(i);
+            if (rateMode != RateMode.NEAREST && rateMode != RateMode.AVERAGE) {
+                sendErrorMessage(client, ErrorCode.INVALID_RATE_MODE, "unknown rate mode: " + rateMode);
+                continue;
+            }
+            if (virtualRotation) {
+                addVirtualRotation(deviceIndex, supported);
+            }
+            accepted.add(deviceIndex, sensorType, set.getFrequency(i), rateMode, set.getMaxBatchSize(i),
+                    set.getMaxBatchLatencyMillis(i), set.getFilterChain(i), set.getEncoding(i));
+        }
+        SharedTransport transport = mSharedTransports.get(client);
+        SubscriptionDiff diff = getDispatchCore().setSubscriptions(client, accepted, transport == null ? null : transport.getRing());
+        Log.d(TAG, "subscriptions set: " + diff.added + " added, " + diff.removed + " removed, " + diff.updated
+                + " updated, " + diff.unchanged + " unchanged, " + diff.size() + " sensors to reconfigure");
+        for (int i = 0; i < diff.size(); i++) {
+            int deviceIndex = diff.getDeviceIndex(i);
+            int sensorType = diff.getSensorType(i);
+            switch (diff.getKind(i)) {
+                case SubscriptionDiff.STARTED:
+                case SubscriptionDiff.RATE_RAISED:
+                    newSensorSubscription(deviceIndex, sensorType, client, diff.getFrequency(i));
+                    break;
+                case SubscriptionDiff.STOPPED:
+                    allSubscriptionsEnded(deviceIndex, sensorType);
+                    break;
+                default:
+                    sensorRateDecreased(mConnectedDevices.get(deviceIndex), sensorType);
+            }
+        }
+    }
+
+    /**
+     * Calls allSubscriptionsEnded for a sensor without subscribers unless a join still needs it.
+     * For the output of a join, this is done for the sensors the join reads.
+     */
+    private void sensorUnused(DispatchCore<Messenger, Bundle> core, int deviceIndex, int sensorType) {
+        if (core.isJoinInputInUse(deviceIndex, sensorType)) {
+            return;
+        }
+        int[] inputs = core.getJoinInputs(deviceIndex, sensorType);
+        if (inputs == null) {
+            allSubscriptionsEnded(deviceIndex, sensorType);
+            return;
+        }
+        SubscriptionTable<Messenger> table = core.getSubscriptions();
+        for (int input : inputs) {
+            if (table.subscriberCount(table.channel(deviceIndex, input)) == 0) {
+                sensorUnused(core, deviceIndex, input);
             }
         }
     }
 
+    /**
+     * @return {@code true} if the device lacks a rotation vector sensor but has the sensors to compute one.
+     */
+    private static boolean hasVirtualRotation(ArrayList<Integer> supported) {
+        return !supported.contains(SensorType.ROTATION_VECTOR)
+                && supported.contains(SensorType.ACCELEROMETER) && supported.contains(SensorType.GYROSCOPE);
+    }
+
+    /**
+     * Compute {@link SensorType#ROTATION_VECTOR} for a device from its gyroscope, accelerometer and, if there is one,
+     * magnetic field with a {@link MadgwickFilter}. Runs once per device, however many clients subscribe.
+     */
+    private void addVirtualRotation(int deviceIndex, ArrayList<Integer> supported) {
+        DispatchCore<Messenger, Bundle> core = getDispatchCore();
+        if (core.getJoinInputs(deviceIndex, SensorType.ROTATION_VECTOR) != null) {
+            return;
+        }
+        if (supported.contains(SensorType.MAGNETIC_FIELD)) {
+            core.addJoin(deviceIndex, SensorType.ROTATION_VECTOR,
+                    new StreamJoin(StreamJoin.INTERPOLATE, VIRTUAL_ROTATION_MAX_DELAY_NANOS, VIRTUAL_ROTATION_CAPACITY, 3, 3, 3),
+                    new MadgwickFilter(), SensorType.GYROSCOPE, SensorType.ACCELEROMETER, SensorType.MAGNETIC_FIELD);
+        } else {
+            core.addJoin(deviceIndex, SensorType.ROTATION_VECTOR,
+                    new StreamJoin(StreamJoin.INTERPOLATE, VIRTUAL_ROTATION_MAX_DELAY_NANOS, VIRTUAL_ROTATION_CAPACITY, 3, 3),
+                    new MadgwickFilter(), SensorType.GYROSCOPE, SensorType.ACCELEROMETER);
+        }
+    }
+
+    /**
+     * Publish the readings of several sensors, aligned in time by a {@link StreamJoin}, as a sensor of its own, e.g.
+     * accelerometer, gyroscope and magnetic field as one motion frame. List the output type in
+     * {@link #getSupportedSensors(String)}. When a client subscribes to it, {@link #newSensorSubscription(int, int, Messenger, int)}
+     * is called for the inputs instead, and {@link #allSubscriptionsEnded(int, int)} once neither the join nor anyone
+     * else needs them. The memory of the join is fixed, see {@link StreamJoin#getMemoryBytes()}.
+     *
+     * @param deviceIdentifier The identifier of the device.
+     * @param outputType       The sensor type of the fused frames, usually a custom sensor.
+     * @param join             The join, with one input per sensor type.
+     * @param inputTypes       The sensor types of the inputs, the reference first.
+     */
+    protected void addSensorJoin(String deviceIdentifier, int outputType, StreamJoin join, int... inputTypes) {
+        addSensorJoin(deviceIdentifier, outputType, join, null, inputTypes);
+    }
+
+    /**
+     * Publish the frames of a join like {@link #addSensorJoin(String, int, StreamJoin, int...)}, run through an
+     * operator first, e.g. a {@link MadgwickFilter}.
+     *
+     * @param operator The operator, {@code null} for the frames themselves.
+     */
+    protected void addSensorJoin(final String deviceIdentifier, final int outputType, final StreamJoin join,
+                                 final StreamOperator operator, final int... inputTypes) {
+        runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                getDispatchCore().addJoin(mConnectedDevices.indexOf(deviceIdentifier), outputType, join, operator, inputTypes);
+            }
+        });
+    }
+
     void updateAutomaticReconnectAttempt(Messenger client, int shouldReconnect) {
         Log.d(TAG, "Automatic Reconnect Attempt updated");
         mShouldReconnects.put(client, shouldReconnect != 0);
     }
 
-
     /**
      * This method is called when the rate desired by a sensors subscribers decreased because
      * a subscription stopped. Try to reduce the sensor rate here to reduce power consumption.
@@ -912,15 +1109,220 @@ public abstract class SensorService extends Service {
 
     /**
      * {@inheritDoc}
+     * Calls {@link #onPluginDestroy()}, then stops the dispatch thread once the work already queued is done.
      */
     @Override
-    public abstract void onDestroy();
+    public final void onDestroy() {
+        onPluginDestroy();
+        //the transports belong to the dispatch thread, close them there after the work already queued
+        mDispatchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (SharedTransport t : mSharedTransports.values()) {
+                    t.close();
+                }
+                mSharedTransports.clear();
+            }
+        });
+        if (Build.VERSION.SDK_INT >= 18) {
+            mDispatchThread.quitSafely();
+        } else {
+            //quit() drops pending messages, so queue it behind them
+            mDispatchHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDispatchThread.quit();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called when the service is destroyed, release the sensor devices here. Readings broadcast afterwards are dropped
+     * with the dispatch thread.
+     */
+    protected abstract void onPluginDestroy();
+
+    /**
+     * Deliver the readings of all current and future subscriptions of a client through shared memory instead of messages.
+     * The client receives a read-only descriptor of the memory in a {@link ServiceMsg#SHARED_TRANSPORT_OPENED} message
+     * and polls it. Readings with more values than fit into a slot and custom data bundles are still sent as messages.
+     * If the client already has shared memory, the descriptor is sent again.
+     *
+     * @param client    The client.
+     * @param slotCount The number of readings the memory holds, the default is used if not positive.
+     * @param maxValues The maximum number of values per reading, the default is used if not positive.
+     */
+    void openSharedTransport(Messenger client, int slotCount, int maxValues) {
+        SharedTransport transport = mSharedTransports.get(client);
+        if (transport == null) {
+            slotCount = slotCount > 0 ? Math.min(slotCount, MAX_SHARED_SLOTS) : DEFAULT_SHARED_SLOTS;
+            maxValues = maxValues > 0 ? Math.min(maxValues, MAX_SHARED_MAX_VALUES) : DEFAULT_SHARED_MAX_VALUES;
+            try {
+                transport = SharedTransport.create(getCacheDir(), slotCount, maxValues);
+            } catch (IOException e) {
+                Log.e(TAG, "Error in openSharedTransport: " + e.getMessage());
+                sendErrorMessage(client, ErrorCode.SERVICE_NOT_READY, "could not create shared memory: " + e.getMessage());
+                return;
+            }
+            mSharedTransports.put(client, transport);
+            SubscriptionTable<Messenger> table = getSubscriptions();
+            for (int sub : table.subscriptionsOf(client)) {
+                table.setSharedRing(sub, transport.getRing());
+            }
+        }
+        Message msg = Message.obtain(null, ServiceMsg.SHARED_TRANSPORT_OPENED);
+        msg.getData().putParcelable(BundleKeys.SHARED_MEMORY, transport.getDescriptor());
+        msg.getData().putInt(BundleKeys.SHARED_MEMORY_SIZE, transport.getSize());
+        try {
+            client.send(msg);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error in openSharedTransport: " + e.getMessage());
+            removeClient(client);
+        }
+    }
+
+    /**
+     * Take a snapshot of the dispatch counters. Must be called on the dispatch thread.
+     *
+     * @param client The client asking for the snapshot, may be {@code null}.
+     * @return The snapshot.
+     */
+    protected DispatchStats getDispatchStats(@Nullable Messenger client) {
+        return getDispatchCore().getStats(client);
+    }
+
+    /**
+     * Send a snapshot of the dispatch counters to a client in a {@link ServiceMsg#STATS} message.
+     *
+     * @param client The client asking for the snapshot.
+     */
+    void sendStats(Messenger client) {
+        Message msg = Message.obtain(null, ServiceMsg.STATS);
+        msg.getData().putParcelable(BundleKeys.STATS, getDispatchStats(client));
+        try {
+            client.send(msg);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error in sendStats: " + e.getMessage());
+            removeClient(client);
+        }
+    }
+
+    /**
+     * Go back to sending the client's readings as messages and release its shared memory.
+     *
+     * @param client The client.
+     */
+    void closeSharedTransport(Messenger client) {
+        SharedTransport transport = mSharedTransports.remove(client);
+        if (transport == null) {
+            return;
+        }
+        SubscriptionTable<Messenger> table = getSubscriptions();
+        for (int sub : table.subscriptionsOf(client)) {
+            table.setSharedRing(sub, null);
+        }
+        transport.close();
+    }
+
+    /**
+     * Delivers the readings of the {@link DispatchCore} in messages and schedules its work on the dispatch thread.
+     */
+    private class MessengerSink implements DispatchSink<Messenger, Bundle> {
+
+        //the encoded form of the reading sent last, shared by all its subscribers with the same encoding
+        private long mSampleReading = -1;
+        private ValueEncoding mSampleEncoding;
+        private Bundle mSampleData;
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public boolean sendSample(Messenger client, long reading, int sensorType, int deviceIndex, long timestamp, float[] values,
+                                  ValueEncoding encoding) {
+            Bundle data;
+            if (reading >= 0 && reading == mSampleReading && encoding == mSampleEncoding) {
+                data = mSampleData;
+            } else {
+                data = sampleData(sensorType, deviceIndex, timestamp, values, encoding);
+                if (reading >= 0) {
+                    mSampleReading = reading;
+                    mSampleEncoding = encoding;
+                    mSampleData = data;
+                }
+            }
+            Message msg = Message.obtain(null, ServiceMsg.SENSOR_SAMPLE, sensorType, deviceIndex);
+            msg.setData(data);
+            return send(client, msg);
+        }
+
+        @Override
+        public boolean sendData(Messenger client, int sensorType, int deviceIndex, Bundle data) {
+            Message msg = Message.obtain(null, ServiceMsg.SENSOR_DATA, sensorType, deviceIndex);
+            if (data != null) {
+                msg.setData(data);
+            }
+            return send(client, msg);
+        }
+
+        @Override
+        public boolean sendBatch(Messenger client, SampleBatch batch) {
+            Message msg = Message.obtain(null, ServiceMsg.SENSOR_DATA_BATCH, batch.sensorType, -1);
+            Bundle data = msg.getData();
+            data.putString(BundleKeys.SERVICE_NAME, serviceName);
+            data.putInt(BundleKeys.DEVICE_INDEX, batch.deviceIndex);
+            data.putInt(BundleKeys.VALUES_PER_SAMPLE, batch.getValuesPerSample());
+            data.putLongArray(BundleKeys.TIMESTAMPS_NANO, batch.copyTimestamps());
+            if (batch.encoding != null) {
+                data.putString(BundleKeys.VALUE_ENCODING, batch.encoding.toString());
+                data.putShortArray(BundleKeys.SENSOR_READINGS_BATCH_QUANTIZED, batch.copyQuantized());
+            } else {
+                data.putFloatArray(BundleKeys.SENSOR_READINGS_BATCH, batch.copyValues());
+            }
+            return send(client, msg);
+        }
+
+        private boolean send(Messenger client, Message msg) {
+            try {
+                client.send(msg);
+                return true;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error sending sensor data: " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public void clientUnreachable(Messenger client) {
+            removeClient(client);
+        }
+
+        @Override
+        public void allSubscriptionsEnded(int deviceIndex, int sensorType) {
+            SensorService.this.allSubscriptionsEnded(deviceIndex, sensorType);
+        }
+
+        @Override
+        public void scheduleDrain() {
+            mDispatchHandler.post(mDrainer);
+        }
+
+        @Override
+        public void scheduleFlush(long deadline) {
+            mDispatchHandler.removeCallbacks(mBatchFlusher);
+            mDispatchHandler.postDelayed(mBatchFlusher, Math.max(0, (deadline - now()) / 1000000));
+        }
+    }
 
     private static class IncomingHandler extends Handler {
 
         private final WeakReference<SensorService> mService;
 
-        IncomingHandler(SensorService instance) {
+        IncomingHandler(SensorService instance, Looper looper) {
+            super(looper);
             mService = new WeakReference<>(instance);
         }
 
@@ -950,12 +1352,60 @@ public abstract class SensorService extends Service {
                                 break;
                             case ServiceMsg.SUBSCRIBE_TO_SENSOR:
                                 Log.d(TAG, "sensor sub msg received");
-                                s.subscribeToSensor(s.mConnectedDevices.get(msg.getData().getInt(BundleKeys.DEVICE_INDEX)), msg.arg1, msg.arg2, msg.replyTo);
+                                Bundle data = msg.getData();
+                                FilterChain chain = null;
+                                String spec = data.getString(BundleKeys.FILTER_CHAIN);
+                                if (spec != null) {
+                                    try {
+                                        chain = FilterChain.parse(spec);
+                                    } catch (IllegalArgumentException e) {
+                                        s.sendErrorMessage(msg.replyTo, ErrorCode.INVALID_FILTER_CHAIN, e.getMessage());
+                                        break;
+                                    }
+                                }
+                                ValueEncoding encoding = null;
+                                String encodingSpec = data.getString(BundleKeys.VALUE_ENCODING);
+                                if (encodingSpec != null) {
+                                    try {
+                                        encoding = ValueEncoding.parse(encodingSpec);
+                                    } catch (IllegalArgumentException e) {
+                                        s.sendErrorMessage(msg.replyTo, ErrorCode.INVALID_VALUE_ENCODING, e.getMessage());
+                                        break;
+                                    }
+                                }
+                                s.subscribeToSensor(s.mConnectedDevices.get(data.getInt(BundleKeys.DEVICE_INDEX)), msg.arg1, msg.arg2,
+                                        data.getInt(BundleKeys.RATE_MODE, RateMode.NEAREST),
+                                        data.getInt(BundleKeys.MAX_BATCH_SIZE, 1), data.getInt(BundleKeys.MAX_BATCH_LATENCY_MS, 0), chain,
+                                        encoding, msg.replyTo);
+                                break;
+                            case ServiceMsg.SET_SUBSCRIPTIONS: {
+                                Log.d(TAG, "set subscriptions msg received");
+                                SubscriptionSet set;
+                                try {
+                                    set = SubscriptionSet.fromArrays(msg.getData().getIntArray(BundleKeys.SUBSCRIPTIONS),
+                                            msg.getData().getStringArray(BundleKeys.SUBSCRIPTION_SPECS));
+                                } catch (IllegalArgumentException e) {
+                                    s.sendErrorMessage(msg.replyTo, ErrorCode.INVALID_SUBSCRIPTION_SET, e.getMessage());
+                                    break;
+                                }
+                                s.setSubscriptions(set, msg.replyTo);
                                 break;
+                            }
                             case ServiceMsg.UNSUBSCRIBE_FROM_SENSOR:
                                 Log.d(TAG, "sensor unsub msg received");
                                 s.unsubscribeFromSensor(s.mConnectedDevices.get(msg.getData().getInt(BundleKeys.DEVICE_INDEX)), msg.arg1, msg.replyTo);
                                 break;
+                            case ServiceMsg.OPEN_SHARED_TRANSPORT:
+                                Log.d(TAG, "open shared transport msg received");
+                                s.openSharedTransport(msg.replyTo, msg.arg1, msg.arg2);
+                                break;
+                            case ServiceMsg.CLOSE_SHARED_TRANSPORT:
+                                Log.d(TAG, "close shared transport msg received");
+                                s.closeSharedTransport(msg.replyTo);
+                                break;
+                            case ServiceMsg.GET_STATS:
+                                s.sendStats(msg.replyTo);
+                                break;
                             case ServiceMsg.ATTEMPT_AUTOMATIC_RECONNECT:
                                 Log.d(TAG, "automatic reconnect msg received");
                                 s.updateAutomaticReconnectAttempt(msg.replyTo, msg.arg1);
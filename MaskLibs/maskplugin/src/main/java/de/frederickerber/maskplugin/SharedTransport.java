@@ -0,0 +1,98 @@
+package de.frederickerber.maskplugin;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.frederickerber.maskcommons.SharedRingBuffer;
+
+/**
+ * The shared memory of one client: a memory-mapped file holding a {@link SharedRingBuffer}.
+ * The file is deleted right after it was created, so it only lives as long as the service and the client keep
+ * their mappings or descriptors open.
+ */
+class SharedTransport {
+
+    private static final String TAG = SharedTransport.class.getName();
+
+    private final RandomAccessFile file;
+    private final ParcelFileDescriptor descriptor;
+    private final SharedRingBuffer ring;
+    private final int size;
+
+    private SharedTransport(RandomAccessFile file, ParcelFileDescriptor descriptor, SharedRingBuffer ring, int size) {
+        this.file = file;
+        this.descriptor = descriptor;
+        this.ring = ring;
+        this.size = size;
+    }
+
+    /**
+     * @param dir       The directory for the backing file, e.g. the service's cache directory.
+     * @param slotCount The number of samples the ring buffer holds.
+     * @param maxValues The maximum number of values per sample.
+     * @return The transport, ready to be written.
+     * @throws IOException If the backing file could not be created or mapped.
+     */
+    static SharedTransport create(File dir, int slotCount, int maxValues) throws IOException {
+        File f = File.createTempFile("samples", ".ring", dir);
+        RandomAccessFile raf = null;
+        ParcelFileDescriptor pfd = null;
+        try {
+            int size = SharedRingBuffer.requiredCapacity(slotCount, maxValues);
+            raf = new RandomAccessFile(f, "rw");
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            SharedRingBuffer ring = SharedRingBuffer.create(map, slotCount, maxValues);
+            pfd = ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY);
+            return new SharedTransport(raf, pfd, ring, size);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(raf, pfd);
+            throw e;
+        } finally {
+            if (!f.delete()) {
+                Log.w(TAG, "could not delete " + f);
+            }
+        }
+    }
+
+    SharedRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * @return A read-only descriptor of the backing file for the client.
+     */
+    ParcelFileDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return The size of the mapping in bytes.
+     */
+    int getSize() {
+        return size;
+    }
+
+    void close() {
+        closeQuietly(file, descriptor);
+    }
+
+    private static void closeQuietly(RandomAccessFile raf, ParcelFileDescriptor pfd) {
+        try {
+            if (pfd != null) {
+                pfd.close();
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing shared transport: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.frederickerber.maskplugin;
+
+import java.util.Arrays;
+
+/**
+ * What replacing the subscriptions of a client changed, see {@link DispatchCore#setSubscriptions}: how many
+ * subscriptions were added, removed, updated or left alone, and one change per sensor the plugin has to reconfigure.
+ * Outputs of joins are resolved to the sensors they read, so every change concerns a sensor of the plugin itself.
+ */
+final class SubscriptionDiff {
+
+    /**
+     * The sensor had no subscribers and has some now.
+     */
+    static final int STARTED = 0;
+    /**
+     * The sensor is no longer needed.
+     */
+    static final int STOPPED = 1;
+    /**
+     * The highest frequency wanted from the sensor rose.
+     */
+    static final int RATE_RAISED = 2;
+    /**
+     * The highest frequency wanted from the sensor fell.
+     */
+    static final int RATE_LOWERED = 3;
+
+    int added;
+    int removed;
+    int updated;
+    int unchanged;
+
+    //device, sensor, kind and frequency per change
+    private int[] changes = new int[16];
+    private int size;
+
+    void add(int deviceIndex, int sensorType, int kind, int frequency) {
+        if (4 * size == changes.length) {
+            changes = Arrays.copyOf(changes, 2 * changes.length);
+        }
+        changes[4 * size] = deviceIndex;
+        changes[4 * size + 1] = sensorType;
+        changes[4 * size + 2] = kind;
+        changes[4 * size + 3] = frequency;
+        size++;
+    }
+
+    /**
+     * @return The number of sensors to reconfigure.
+     */
+    int size() {
+        return size;
+    }
+
+    int getDeviceIndex(int i) {
+        return changes[4 * i];
+    }
+
+    int getSensorType(int i) {
+        return changes[4 * i + 1];
+    }
+
+    /**
+     * @return {@link #STARTED}, {@link #STOPPED}, {@link #RATE_RAISED} or {@link #RATE_LOWERED}.
+     */
+    int getKind(int i) {
+        return changes[4 * i + 2];
+    }
+
+    /**
+     * @return The highest frequency now wanted from the sensor, 0 if there is no preference.
+     */
+    int getFrequency(int i) {
+        return changes[4 * i + 3];
+    }
+}
@@ -0,0 +1,563 @@
+package de.frederickerber.maskplugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.SharedRingBuffer;
+import de.frederickerber.maskcommons.ValueEncoding;
+
+/**
+ * An index of all sensor subscriptions of a service, stored in flat primitive arrays.
+ * <p>
+ * Clients are mapped to integer slots once, when they subscribe. Devices and sensors are addressed by
+ * their device index and {@link de.frederickerber.maskcommons.SensorType}, which together form a channel.
+ * Every subscription gets a slot of its own that holds its rate preferences and dispatch state,
+ * so deciding whether a reading goes to a subscriber only takes a few array reads and, if the subscriber
+ * asked for a lower rate, one call to its {@link RateLimiter}. Subscriptions of a channel asking for the same
+ * {@link FilterChain} share one {@link FilterPipeline}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <C> The type identifying a client, e.g. a {@link android.os.Messenger}.
+ */
+class SubscriptionTable<C> {
+
+    private final int numSensors;
+
+    //client slots
+    private final Map<C, Integer> clientSlots = new HashMap<>();
+    private Object[] clients = new Object[4];
+    private int[] clientSubscriptions = new int[4];
+    private int[] freeClients = new int[4];
+    private int numFreeClients;
+    private int clientCapacity;
+
+    //per channel (device * numSensors + sensor)
+    private int[][] channelSubscribers = new int[0][];
+    private int[] channelSize = new int[0];
+    private int[] maxFrequency = new int[0];
+    private long[] channelProduced = new long[0];
+    private long[] channelRateLimited = new long[0];
+    private long[] channelDelivered = new long[0];
+    private long[] channelFailed = new long[0];
+
+    //per subscription slot
+    private int[] subClient = new int[8];
+    private int[] subChannel = new int[8];
+    private int[] frequency = new int[8];
+    private RateLimiter[] limiter = new RateLimiter[8];
+    private SampleBatch[] batch = new SampleBatch[8];
+    private SharedRingBuffer[] sharedRing = new SharedRingBuffer[8];
+    private FilterPipeline[] pipeline = new FilterPipeline[8];
+    private ValueEncoding[] encoding = new ValueEncoding[8];
+    private long[] subRateLimited = new long[8];
+    private long[] subDelivered = new long[8];
+    private long[] subFailed = new long[8];
+    private int[] freeSubs = new int[8];
+    private int numFreeSubs;
+    private int subCapacity;
+
+    /**
+     * @param numSensors The number of sensor types per device, including custom sensors.
+     */
+    SubscriptionTable(int numSensors) {
+        this.numSensors = numSensors;
+    }
+
+    int getNumSensors() {
+        return numSensors;
+    }
+
+    /**
+     * @param deviceIndex The index of the device.
+     * @param sensorType  The type of sensor.
+     * @return The channel of the sensor or -1 if the sensor or device is out of range.
+     */
+    int channel(int deviceIndex, int sensorType) {
+        if (deviceIndex < 0 || sensorType < 0 || sensorType >= numSensors) {
+            return -1;
+        }
+        return deviceIndex * numSensors + sensorType;
+    }
+
+    int deviceOf(int channel) {
+        return channel / numSensors;
+    }
+
+    int sensorOf(int channel) {
+        return channel % numSensors;
+    }
+
+    /**
+     * @return The slot of the client or -1 if it has no subscriptions.
+     */
+    int clientSlot(C client) {
+        Integer slot = clientSlots.get(client);
+        return slot == null ? -1 : slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    C client(int clientSlot) {
+        return (C) clients[clientSlot];
+    }
+
+    /**
+     * @return The client owning the subscription.
+     */
+    C subscriber(int sub) {
+        return client(subClient[sub]);
+    }
+
+    /**
+     * @return The number of subscribers of the channel.
+     */
+    int subscriberCount(int channel) {
+        return channel >= 0 && channel < channelSize.length ? channelSize[channel] : 0;
+    }
+
+    /**
+     * The subscription slots of a channel. Only the first {@link #subscriberCount(int)} entries are valid.
+     * The array may change when subscriptions are added.
+     */
+    int[] subscribers(int channel) {
+        return channelSubscribers[channel];
+    }
+
+    /**
+     * @return The subscription slot of the client for the channel or -1 if there is none.
+     */
+    int find(C client, int channel) {
+        int c = clientSlot(client);
+        if (c < 0 || subscriberCount(channel) == 0) {
+            return -1;
+        }
+        int[] subs = channelSubscribers[channel];
+        for (int i = 0; i < channelSize[channel]; i++) {
+            if (subClient[subs[i]] == c) {
+                return subs[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a subscription for the client to the channel, or return the existing one.
+     *
+     * @return The subscription slot.
+     */
+    int subscribe(C client, int channel) {
+        int existing = find(client, channel);
+        if (existing >= 0) {
+            return existing;
+        }
+        int c = clientSlot(client);
+        if (c < 0) {
+            c = addClient(client);
+        }
+        ensureChannel(channel);
+        int s = allocSubscription();
+        subClient[s] = c;
+        subChannel[s] = channel;
+        frequency[s] = 0;
+        limiter[s] = null;
+        batch[s] = null;
+        sharedRing[s] = null;
+        pipeline[s] = null;
+        encoding[s] = null;
+        subRateLimited[s] = 0;
+        subDelivered[s] = 0;
+        subFailed[s] = 0;
+        clientSubscriptions[c]++;
+        if (channelSubscribers[channel].length == channelSize[channel]) {
+            channelSubscribers[channel] = Arrays.copyOf(channelSubscribers[channel], channelSize[channel] * 2);
+        }
+        channelSubscribers[channel][channelSize[channel]++] = s;
+        return s;
+    }
+
+    /**
+     * Remove a subscription. The last subscriber of the channel takes the place of the removed one,
+     * so iterating a channel backwards stays valid while removing the current subscription.
+     *
+     * @return {@code true} if the channel has no subscribers left.
+     */
+    boolean unsubscribe(int sub) {
+        int channel = subChannel[sub];
+        int[] subs = channelSubscribers[channel];
+        int n = channelSize[channel];
+        for (int i = 0; i < n; i++) {
+            if (subs[i] == sub) {
+                subs[i] = subs[n - 1];
+                channelSize[channel] = --n;
+                break;
+            }
+        }
+        int c = subClient[sub];
+        if (--clientSubscriptions[c] == 0) {
+            releaseClient(c);
+        }
+        batch[sub] = null;
+        sharedRing[sub] = null;
+        pipeline[sub] = null;
+        encoding[sub] = null;
+        limiter[sub] = null;
+        subChannel[sub] = -1;
+        freeSubs[numFreeSubs++] = sub;
+        return n == 0;
+    }
+
+    /**
+     * @return The number of subscription slots in use or freed so far. Freed slots have no batch.
+     */
+    int capacity() {
+        return subCapacity;
+    }
+
+    int channelOf(int sub) {
+        return subChannel[sub];
+    }
+
+    int getFrequency(int sub) {
+        return frequency[sub];
+    }
+
+    /**
+     * Set the desired event rate of a subscription.
+     *
+     * @param frequency The frequency in Hertz. A value of 0 or less means no preference.
+     * @param rateMode  How the rate is reduced, see {@link de.frederickerber.maskcommons.RateMode}.
+     */
+    void setFrequency(int sub, int frequency, int rateMode) {
+        if (frequency > 0) {
+            RateLimiter old = limiter[sub];
+            if (old == null || this.frequency[sub] != frequency || old.getMode() != rateMode) {
+                limiter[sub] = new RateLimiter(frequency, rateMode);
+            }
+            this.frequency[sub] = frequency;
+        }
+    }
+
+    /**
+     * Drop the rate preference of a subscription, so it receives every reading.
+     */
+    void clearFrequency(int sub) {
+        frequency[sub] = 0;
+        limiter[sub] = null;
+    }
+
+    /**
+     * @return The rate limiter of the subscription or {@code null} if the subscriber wants every reading.
+     */
+    RateLimiter getRateLimiter(int sub) {
+        return limiter[sub];
+    }
+
+    /**
+     * Decide whether a reading should be sent to a subscriber considering its desired rate.
+     * If the subscriber averages readings, check {@link RateLimiter#hasAverage()} afterwards.
+     *
+     * @param sub       The subscription slot.
+     * @param timestamp The timestamp of the reading in nanoseconds.
+     * @param values    The values of the reading, may be {@code null}.
+     * @return {@code true} if a reading should be sent.
+     */
+    boolean shouldSend(int sub, long timestamp, float[] values) {
+        RateLimiter l = limiter[sub];
+        return l == null || l.offer(timestamp, values);
+    }
+
+    SampleBatch getBatch(int sub) {
+        return batch[sub];
+    }
+
+    void setBatch(int sub, SampleBatch batch) {
+        this.batch[sub] = batch;
+    }
+
+    /**
+     * @return The shared memory the subscription's readings are written to, or {@code null} if they are sent as messages.
+     */
+    SharedRingBuffer getSharedRing(int sub) {
+        return sharedRing[sub];
+    }
+
+    void setSharedRing(int sub, SharedRingBuffer ring) {
+        sharedRing[sub] = ring;
+    }
+
+    /**
+     * @return The filters the subscription's readings run through, or {@code null} if it receives raw readings.
+     */
+    FilterPipeline getPipeline(int sub) {
+        return pipeline[sub];
+    }
+
+    /**
+     * Attach a filter chain to a subscription. If another subscription of the channel runs the same chain,
+     * its pipeline is shared, otherwise a new one is created.
+     *
+     * @param chain The chain, {@code null} or empty for raw readings.
+     */
+    void setFilterChain(int sub, FilterChain chain) {
+        if (chain == null || chain.isEmpty()) {
+            pipeline[sub] = null;
+            return;
+        }
+        if (pipeline[sub] != null && pipeline[sub].getChain().equals(chain)) {
+            return;
+        }
+        int channel = subChannel[sub];
+        int[] subs = channelSubscribers[channel];
+        for (int i = 0; i < channelSize[channel]; i++) {
+            FilterPipeline p = pipeline[subs[i]];
+            if (subs[i] != sub && p != null && p.getChain().equals(chain)) {
+                pipeline[sub] = p;
+                return;
+            }
+        }
+        pipeline[sub] = new FilterPipeline(chain);
+    }
+
+    /**
+     * @return How the subscription's values are sent, {@code null} for floats.
+     */
+    ValueEncoding getEncoding(int sub) {
+        return encoding[sub];
+    }
+
+    /**
+     * @param enc The encoding of the subscription's values, {@code null} or {@link ValueEncoding#FLOAT} for floats.
+     */
+    void setEncoding(int sub, ValueEncoding enc) {
+        encoding[sub] = enc != null && enc.isQuantized() ? enc : null;
+    }
+
+    /**
+     * @return The highest frequency subscribers of the channel currently want, 0 if there is no preference.
+     */
+    int getMaxFrequency(int channel) {
+        return channel >= 0 && channel < maxFrequency.length ? maxFrequency[channel] : 0;
+    }
+
+    /**
+     * Raise the channel's maximum frequency if the given frequency is higher.
+     */
+    void updateMaxFrequency(int channel, int frequency) {
+        ensureChannel(channel);
+        maxFrequency[channel] = Math.max(maxFrequency[channel], frequency);
+    }
+
+    /**
+     * Recalculate the maximum frequency from the channel's current subscribers.
+     *
+     * @return The previous maximum.
+     */
+    int recalculateMaxFrequency(int channel) {
+        if (channel < 0 || channel >= maxFrequency.length) {
+            return 0;
+        }
+        int old = maxFrequency[channel];
+        int max = 0;
+        int[] subs = channelSubscribers[channel];
+        for (int i = 0; i < channelSize[channel]; i++) {
+            max = Math.max(max, frequency[subs[i]]);
+        }
+        maxFrequency[channel] = max;
+        return old;
+    }
+
+    /**
+     * Reset the maximum frequencies of all sensors of a device, e.g. when it (re)connects.
+     */
+    void resetMaxFrequencies(int deviceIndex) {
+        int first = channel(deviceIndex, 0);
+        if (first < 0) {
+            return;
+        }
+        ensureChannel(first + numSensors - 1);
+        Arrays.fill(maxFrequency, first, first + numSensors, 0);
+    }
+
+    /**
+     * @return {@code true} if any device has subscribers for the sensor.
+     */
+    boolean hasSubscribers(int sensorType) {
+        if (sensorType < 0 || sensorType >= numSensors) {
+            return false;
+        }
+        for (int ch = sensorType; ch < channelSize.length; ch += numSensors) {
+            if (channelSize[ch] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of channels with storage, an upper bound for all channel indices in use.
+     */
+    int channelCount() {
+        return channelSize.length;
+    }
+
+    /**
+     * @return The number of client slots in use or freed so far.
+     */
+    int clientCapacity() {
+        return clientCapacity;
+    }
+
+    /**
+     * @return The client slot owning the subscription.
+     */
+    int clientSlotOf(int sub) {
+        return subClient[sub];
+    }
+
+    /**
+     * Count a reading of a channel, before it is offered to the subscribers.
+     */
+    void countProduced(int channel) {
+        channelProduced[channel]++;
+    }
+
+    /**
+     * Count a reading the subscription's rate limiter held back.
+     */
+    void countRateLimited(int sub) {
+        subRateLimited[sub]++;
+        channelRateLimited[subChannel[sub]]++;
+    }
+
+    /**
+     * Count a reading handed to the subscriber's transport.
+     */
+    void countDelivered(int sub) {
+        subDelivered[sub]++;
+        channelDelivered[subChannel[sub]]++;
+    }
+
+    /**
+     * Count a reading that could not be sent. Call this before removing the subscription.
+     */
+    void countFailed(int sub) {
+        subFailed[sub]++;
+        channelFailed[subChannel[sub]]++;
+    }
+
+    long getProduced(int channel) {
+        return channelProduced[channel];
+    }
+
+    long getRateLimited(int channel) {
+        return channelRateLimited[channel];
+    }
+
+    long getDelivered(int channel) {
+        return channelDelivered[channel];
+    }
+
+    long getFailed(int channel) {
+        return channelFailed[channel];
+    }
+
+    long getSubRateLimited(int sub) {
+        return subRateLimited[sub];
+    }
+
+    long getSubDelivered(int sub) {
+        return subDelivered[sub];
+    }
+
+    long getSubFailed(int sub) {
+        return subFailed[sub];
+    }
+
+    /**
+     * Collect all subscription slots of a client. Meant for control paths such as removing a client.
+     *
+     * @return The subscription slots of the client, empty if it has none.
+     */
+    int[] subscriptionsOf(C client) {
+        int c = clientSlot(client);
+        if (c < 0) {
+            return new int[0];
+        }
+        int[] res = new int[clientSubscriptions[c]];
+        int k = 0;
+        for (int s = 0; s < subCapacity && k < res.length; s++) {
+            if (subChannel[s] >= 0 && subClient[s] == c) {
+                res[k++] = s;
+            }
+        }
+        return res;
+    }
+
+    private int addClient(C client) {
+        int c;
+        if (numFreeClients > 0) {
+            c = freeClients[--numFreeClients];
+        } else {
+            if (clientCapacity == clients.length) {
+                int n = clientCapacity * 2;
+                clients = Arrays.copyOf(clients, n);
+                clientSubscriptions = Arrays.copyOf(clientSubscriptions, n);
+                freeClients = Arrays.copyOf(freeClients, n);
+            }
+            c = clientCapacity++;
+        }
+        clients[c] = client;
+        clientSubscriptions[c] = 0;
+        clientSlots.put(client, c);
+        return c;
+    }
+
+    private void releaseClient(int c) {
+        clientSlots.remove(clients[c]);
+        clients[c] = null;
+        freeClients[numFreeClients++] = c;
+    }
+
+    private int allocSubscription() {
+        if (numFreeSubs > 0) {
+            return freeSubs[--numFreeSubs];
+        }
+        if (subCapacity == subClient.length) {
+            int n = subCapacity * 2;
+            subClient = Arrays.copyOf(subClient, n);
+            subChannel = Arrays.copyOf(subChannel, n);
+            frequency = Arrays.copyOf(frequency, n);
+            limiter = Arrays.copyOf(limiter, n);
+            batch = Arrays.copyOf(batch, n);
+            sharedRing = Arrays.copyOf(sharedRing, n);
+            pipeline = Arrays.copyOf(pipeline, n);
+            encoding = Arrays.copyOf(encoding, n);
+            subRateLimited = Arrays.copyOf(subRateLimited, n);
+            subDelivered = Arrays.copyOf(subDelivered, n);
+            subFailed = Arrays.copyOf(subFailed, n);
+            freeSubs = Arrays.copyOf(freeSubs, n);
+        }
+        return subCapacity++;
+    }
+
+    private void ensureChannel(int channel) {
+        if (channel < channelSize.length) {
+            return;
+        }
+        int n = Math.max(channel + 1, channelSize.length * 2);
+        n = ((n + numSensors - 1) / numSensors) * numSensors;
+        int old = channelSize.length;
+        channelSubscribers = Arrays.copyOf(channelSubscribers, n);
+        for (int i = old; i < n; i++) {
+            channelSubscribers[i] = new int[2];
+        }
+        channelSize = Arrays.copyOf(channelSize, n);
+        maxFrequency = Arrays.copyOf(maxFrequency, n);
+        channelProduced = Arrays.copyOf(channelProduced, n);
+        channelRateLimited = Arrays.copyOf(channelRateLimited, n);
+        channelDelivered = Arrays.copyOf(channelDelivered, n);
+        channelFailed = Arrays.copyOf(channelFailed, n);
+    }
+}
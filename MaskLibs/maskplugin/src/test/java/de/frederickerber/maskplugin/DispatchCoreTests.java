@@ -0,0 +1,531 @@
+package de.frederickerber.maskplugin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.frederickerber.maskcommons.DispatchStats;
+import de.frederickerber.maskcommons.FilterChain;
+import de.frederickerber.maskcommons.MadgwickFilter;
+import de.frederickerber.maskcommons.RateMode;
+import de.frederickerber.maskcommons.SensorType;
+import de.frederickerber.maskcommons.StreamJoin;
+import de.frederickerber.maskcommons.SubscriptionSet;
+import de.frederickerber.maskcommons.ValueEncoding;
+import de.frederickerber.maskcommons.WindowAggregate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchCoreTests {
+
+    /**
+     * Counts what would be sent to each client. Clients are the indices 0 to n-1.
+     */
+    private static class CountingSink implements DispatchSink<Integer, Object> {
+
+        final long[] samples;
+        final long[] batchedSamples;
+        final AtomicBoolean drainRequested = new AtomicBoolean();
+        final List<Integer> unreachable = new ArrayList<>();
+        final List<Integer> ended = new ArrayList<>();
+        final AtomicLong time = new AtomicLong();
+        int encodings;
+        long lastReading = -1;
+        float[] lastValues;
+        ValueEncoding lastEncoding;
+        short[] lastQuantized;
+        long flushDeadline = Long.MAX_VALUE;
+        int down = -1;
+
+        CountingSink(int numClients) {
+            samples = new long[numClients];
+            batchedSamples = new long[numClients];
+        }
+
+        @Override
+        public long now() {
+            return time.get();
+        }
+
+        @Override
+        public boolean sendSample(Integer client, long reading, int sensorType, int deviceIndex, long timestamp, float[] values,
+                                  ValueEncoding encoding) {
+            if (client == down) {
+                return false;
+            }
+            if (reading < 0 || reading != lastReading) {
+                encodings++;
+                lastReading = reading;
+            }
+            samples[client]++;
+            if (values != null) {
+                lastValues = values.clone();
+            }
+            lastEncoding = encoding;
+            return true;
+        }
+
+        @Override
+        public boolean sendData(Integer client, int sensorType, int deviceIndex, Object data) {
+            return sendSample(client, -1, sensorType, deviceIndex, 0, null, null);
+        }
+
+        @Override
+        public boolean sendBatch(Integer client, SampleBatch batch) {
+            if (client == down) {
+                return false;
+            }
+            batchedSamples[client] += batch.size();
+            if (batch.encoding != null) {
+                lastQuantized = batch.copyQuantized();
+            }
+            return true;
+        }
+
+        @Override
+        public void clientUnreachable(Integer client) {
+            unreachable.add(client);
+        }
+
+        @Override
+        public void allSubscriptionsEnded(int deviceIndex, int sensorType) {
+            ended.add(sensorType);
+        }
+
+        @Override
+        public void scheduleDrain() {
+            drainRequested.set(true);
+        }
+
+        @Override
+        public void scheduleFlush(long deadline) {
+            flushDeadline = deadline;
+        }
+    }
+
+    private static final Integer[] CLIENTS = new Integer[1000];
+
+    static {
+        for (int i = 0; i < CLIENTS.length; i++) {
+            CLIENTS[i] = i;
+        }
+    }
+
+    @Test
+    public void reading_isEncodedOncePerReading() {
+        CountingSink sink = new CountingSink(10);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.ACCELEROMETER);
+        for (int c = 0; c < 10; c++) {
+            assertTrue(core.subscribe(CLIENTS[c], channel, 0, RateMode.NEAREST, 1, 0, null));
+        }
+        assertFalse(core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null));
+        for (int i = 0; i < 5; i++) {
+            core.offer(0, SensorType.ACCELEROMETER, i * 1000L, new float[]{1f, 2f, 3f});
+        }
+        assertTrue(sink.drainRequested.get());
+        core.drain();
+        assertEquals(5, sink.encodings);
+        for (int c = 0; c < 10; c++) {
+            assertEquals(5, sink.samples[c]);
+        }
+    }
+
+    @Test
+    public void filterChain_runsOncePerChain() {
+        CountingSink sink = new CountingSink(4);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        SubscriptionTable<Integer> table = core.getSubscriptions();
+        int channel = table.channel(0, SensorType.ACCELEROMETER);
+        //clients 0 to 2 ask for the same chain, built in different ways, client 3 for raw readings
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null, new FilterChain().lowPass(0.5f).decimate(25));
+        core.subscribe(CLIENTS[1], channel, 0, RateMode.NEAREST, 1, 0, null, FilterChain.parse("lowpass(0.5); decimate(25)"));
+        core.subscribe(CLIENTS[2], channel, 0, RateMode.NEAREST, 1, 0, null, FilterChain.parse("lowpass(0.5);decimate(25)"));
+        core.subscribe(CLIENTS[3], channel, 0, RateMode.NEAREST, 1, 0, null);
+        assertTrue(table.getPipeline(table.find(CLIENTS[0], channel)) == table.getPipeline(table.find(CLIENTS[2], channel)));
+        assertTrue(table.getPipeline(table.find(CLIENTS[3], channel)) == null);
+
+        //100 Hz for one second, a step from 0 to 1 after the first reading
+        for (int i = 0; i < 100; i++) {
+            core.dispatch(0, SensorType.ACCELEROMETER, null, i * 10000000L, new float[]{i == 0 ? 0 : 1, 0, 0}, true, 0);
+        }
+        assertEquals(100, sink.samples[3]);
+        for (int c = 0; c < 3; c++) {
+            assertEquals(25, sink.samples[c]);
+        }
+        //one encoding per raw reading plus one per output of the shared chain
+        assertEquals(125, sink.encodings);
+        //the low-pass converged to the step
+        assertEquals(1f, sink.lastValues[0], 1e-6f);
+        DispatchStats stats = core.getStats(null);
+        assertEquals(100 + 3 * 25, stats.getDelivered(0));
+        assertEquals(3 * 75, stats.getRateLimited(0));
+
+        //leaving the chain for raw readings
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null);
+        assertTrue(table.getPipeline(table.find(CLIENTS[0], channel)) == null);
+    }
+
+    @Test
+    public void derivedChain_sendsSpectra() {
+        CountingSink sink = new CountingSink(2);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.GYROSCOPE);
+        FilterChain chain = new FilterChain().goertzel(100, 50, 4, 10);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null, chain);
+        core.subscribe(CLIENTS[1], channel, 0, RateMode.NEAREST, 1, 0, null, chain);
+        for (int i = 0; i < 500; i++) {
+            float v = (float) Math.sin(2 * Math.PI * 10 * i / 100.0);
+            core.dispatch(0, SensorType.GYROSCOPE, null, i * 10000000L, new float[]{v, 0, v}, true, 0);
+        }
+        //one block of 50 readings per output, encoded once for both clients
+        assertEquals(10, sink.samples[0]);
+        assertEquals(10, sink.samples[1]);
+        assertEquals(10, sink.encodings);
+        //4 and 10 Hz for each of the 3 axes
+        assertEquals(6, sink.lastValues.length);
+        assertEquals(0f, sink.lastValues[0], 1e-4f);
+        assertEquals(1f, sink.lastValues[1], 1e-4f);
+        assertEquals(0f, sink.lastValues[3], 1e-4f);
+        assertEquals(1f, sink.lastValues[5], 1e-4f);
+    }
+
+    @Test
+    public void windowChain_sendsAtWindowRate() {
+        CountingSink sink = new CountingSink(1);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.ACCELEROMETER);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null, new FilterChain().window(1000));
+        //5 seconds at 100 Hz
+        for (int i = 0; i < 500; i++) {
+            core.dispatch(0, SensorType.ACCELEROMETER, null, i * 10000000L, new float[]{i % 2, 0, 9.81f}, true, 0);
+        }
+        assertEquals(4, sink.samples[0]);
+        assertEquals(3 * WindowAggregate.STATISTICS, sink.lastValues.length);
+        assertEquals(0.5f, sink.lastValues[WindowAggregate.MEAN], 1e-6f);
+        assertEquals(0.25f, sink.lastValues[WindowAggregate.VARIANCE], 1e-6f);
+        assertEquals(1f, sink.lastValues[WindowAggregate.MAX], 0f);
+        assertEquals(9.81f, sink.lastValues[2 * WindowAggregate.STATISTICS + WindowAggregate.RMS], 1e-5f);
+    }
+
+    @Test
+    public void join_sendsFusedFramesAndKeepsInputsAlive() {
+        CountingSink sink = new CountingSink(2);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS + 1, sink);
+        int fused = SensorType.NUM_SENSORS;
+        core.addJoin(0, fused, new StreamJoin(StreamJoin.NEAREST, 50000000L, 64, 3, 3),
+                SensorType.GYROSCOPE, SensorType.ACCELEROMETER);
+        int channel = core.getSubscriptions().channel(0, fused);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null);
+        assertTrue(core.isJoinInputInUse(0, SensorType.GYROSCOPE));
+        for (int i = 0; i < 100; i++) {
+            long t = i * 10000000L;
+            core.dispatch(0, SensorType.GYROSCOPE, null, t, new float[]{i, 0, 0}, true, 0);
+            //the accelerometer is a bit late, so the next gyroscope reading is closer to it
+            core.dispatch(0, SensorType.ACCELEROMETER, null, t + 3000000L, new float[]{0, 0, i}, true, 0);
+        }
+        //every gyroscope reading has an accelerometer reading after it, so no frame waits for the delay
+        assertEquals(100, sink.samples[0]);
+        assertEquals(6, sink.lastValues.length);
+        assertEquals(99f, sink.lastValues[0], 0f);
+        assertEquals(99f, sink.lastValues[5], 0f);
+        //the inputs have no subscribers, but the join needs them
+        assertTrue(sink.ended.isEmpty());
+
+        core.unsubscribe(CLIENTS[0], channel);
+        assertFalse(core.isJoinInputInUse(0, SensorType.GYROSCOPE));
+        core.dispatch(0, SensorType.GYROSCOPE, null, 0, new float[3], true, 0);
+        assertEquals(1, sink.ended.size());
+        assertEquals(SensorType.GYROSCOPE, (int) sink.ended.get(0));
+        assertEquals(100, sink.samples[0]);
+    }
+
+    @Test
+    public void joinWithOperator_sendsFusedOrientation() {
+        CountingSink sink = new CountingSink(2);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        core.addJoin(0, SensorType.ROTATION_VECTOR, new StreamJoin(StreamJoin.INTERPOLATE, 20000000L, 64, 3, 3),
+                new MadgwickFilter(), SensorType.GYROSCOPE, SensorType.ACCELEROMETER);
+        int channel = core.getSubscriptions().channel(0, SensorType.ROTATION_VECTOR);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null);
+        core.subscribe(CLIENTS[1], channel, 0, RateMode.NEAREST, 1, 0, null);
+        for (int i = 0; i < 50; i++) {
+            core.dispatch(0, SensorType.ACCELEROMETER, null, i * 10000000L, new float[]{0, 0, 9.81f}, true, 0);
+            core.dispatch(0, SensorType.GYROSCOPE, null, i * 10000000L, new float[3], true, 0);
+        }
+        //computed once, sent to both clients
+        assertEquals(50, sink.samples[0]);
+        assertEquals(50, sink.samples[1]);
+        assertEquals(4, sink.lastValues.length);
+        //lying flat without a magnetic field, the device's y axis is taken as north
+        assertEquals(1f, sink.lastValues[3], 1e-5f);
+    }
+
+    @Test
+    public void unreachableClient_losesSubscription() {
+        CountingSink sink = new CountingSink(3);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.LIGHT);
+        for (int c = 0; c < 3; c++) {
+            core.subscribe(CLIENTS[c], channel, 0, RateMode.NEAREST, 1, 0, null);
+        }
+        sink.down = 1;
+        core.offer(0, SensorType.LIGHT, 1L, 5f);
+        core.offer(0, SensorType.LIGHT, 2L, 6f);
+        core.drain();
+        assertEquals(1, sink.unreachable.size());
+        assertEquals(1, (int) sink.unreachable.get(0));
+        assertEquals(2, core.getSubscriptions().subscriberCount(channel));
+        assertEquals(2, sink.samples[0]);
+        assertEquals(0, sink.samples[1]);
+        assertEquals(2, sink.samples[2]);
+        DispatchStats stats = core.getStats(CLIENTS[0]);
+        assertEquals(1, stats.getChannelCount());
+        assertEquals(2, stats.getProduced(0));
+        assertEquals(4, stats.getDelivered(0));
+        assertEquals(1, stats.getFailed(0));
+    }
+
+    @Test
+    public void unreachableClient_removedWithAllItsBatches() {
+        final List<DispatchCore<Integer, Object>> cores = new ArrayList<>();
+        CountingSink sink = new CountingSink(2) {
+            @Override
+            public void clientUnreachable(Integer client) {
+                super.clientUnreachable(client);
+                //what SensorService.removeClient() does
+                SubscriptionTable<Integer> table = cores.get(0).getSubscriptions();
+                for (int sub : table.subscriptionsOf(client)) {
+                    cores.get(0).unsubscribe(client, table.channelOf(sub));
+                }
+            }
+        };
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        cores.add(core);
+        SubscriptionTable<Integer> table = core.getSubscriptions();
+        int[] sensors = {SensorType.ACCELEROMETER, SensorType.GYROSCOPE, SensorType.MAGNETIC_FIELD};
+        for (int sensor : sensors) {
+            core.subscribe(CLIENTS[0], table.channel(0, sensor), 0, RateMode.NEAREST, 8, 1000L, null);
+            core.subscribe(CLIENTS[1], table.channel(0, sensor), 0, RateMode.NEAREST, 8, 1000L, null);
+        }
+        for (int sensor : sensors) {
+            core.offer(0, sensor, 0, new float[]{1, 2, 3});
+        }
+        core.drain();
+        sink.down = 0;
+        sink.time.set(1000L);
+        core.flushDueBatches();
+        assertEquals(1, sink.unreachable.size());
+        assertEquals(0, table.subscriptionsOf(CLIENTS[0]).length);
+        assertEquals(3, sink.batchedSamples[1]);
+        for (int sensor : sensors) {
+            assertEquals(1, table.subscriberCount(table.channel(0, sensor)));
+        }
+    }
+
+    @Test
+    public void batches_flushWhenFullOrDue() {
+        CountingSink sink = new CountingSink(1);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.GYROSCOPE);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 4, 1000L, null);
+        for (int i = 0; i < 6; i++) {
+            core.offer(0, SensorType.GYROSCOPE, i, new float[]{i, i, i});
+        }
+        core.drain();
+        assertEquals(4, sink.batchedSamples[0]);
+        assertEquals(1000L, sink.flushDeadline);
+        sink.time.set(1000L);
+        core.flushDueBatches();
+        assertEquals(6, sink.batchedSamples[0]);
+    }
+
+    @Test
+    public void encoding_travelsWithSamplesAndBatches() {
+        CountingSink sink = new CountingSink(2);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        int channel = core.getSubscriptions().channel(0, SensorType.TEMPERATURE);
+        ValueEncoding e = ValueEncoding.forSensor(SensorType.TEMPERATURE);
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null, null, e);
+        core.subscribe(CLIENTS[1], channel, 0, RateMode.NEAREST, 2, 1000L, null, null, e);
+        core.offer(0, SensorType.TEMPERATURE, 1L, new float[]{21.437f});
+        core.offer(0, SensorType.TEMPERATURE, 2L, new float[]{-3.2f});
+        core.drain();
+        assertEquals(e, sink.lastEncoding);
+        assertEquals(2, sink.batchedSamples[1]);
+        assertArrayEquals(new short[]{2144, -320}, sink.lastQuantized);
+        //plain floats again
+        core.subscribe(CLIENTS[0], channel, 0, RateMode.NEAREST, 1, 0, null, null, null);
+        core.offer(0, SensorType.TEMPERATURE, 3L, new float[]{20f});
+        core.drain();
+        assertNull(sink.lastEncoding);
+    }
+
+    private static void assertChange(SubscriptionDiff diff, int sensorType, int kind, int frequency) {
+        for (int i = 0; i < diff.size(); i++) {
+            if (diff.getSensorType(i) == sensorType) {
+                assertEquals(kind, diff.getKind(i));
+                assertEquals(frequency, diff.getFrequency(i));
+                return;
+            }
+        }
+        throw new AssertionError("no change for sensor " + sensorType);
+    }
+
+    @Test
+    public void setSubscriptions_reconfiguresEachSensorOnce() {
+        CountingSink sink = new CountingSink(2);
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        core.addJoin(0, SensorType.ROTATION_VECTOR, new StreamJoin(StreamJoin.INTERPOLATE, 20000000L, 64, 3, 3),
+                new MadgwickFilter(), SensorType.GYROSCOPE, SensorType.ACCELEROMETER);
+        SubscriptionTable<Integer> table = core.getSubscriptions();
+        SubscriptionSet session = new SubscriptionSet()
+                .add(0, SensorType.ACCELEROMETER, 50)
+                .add(0, SensorType.GYROSCOPE, 100)
+                .add(0, SensorType.ROTATION_VECTOR, 200)
+                .add(0, SensorType.HEART_RATE, 1, RateMode.NEAREST, 10, 500, null, null);
+        SubscriptionDiff diff = core.setSubscriptions(CLIENTS[0], session, null);
+        assertEquals(4, diff.added);
+        //the rotation vector is read from the accelerometer and the gyroscope, so they run at its rate
+        assertEquals(3, diff.size());
+        assertChange(diff, SensorType.ACCELEROMETER, SubscriptionDiff.STARTED, 200);
+        assertChange(diff, SensorType.GYROSCOPE, SubscriptionDiff.STARTED, 200);
+        assertChange(diff, SensorType.HEART_RATE, SubscriptionDiff.STARTED, 1);
+        SampleBatch batch = table.getBatch(table.find(CLIENTS[0], table.channel(0, SensorType.HEART_RATE)));
+        assertEquals(10, batch.maxSize);
+
+        //the same set again changes nothing, the batch carries on
+        diff = core.setSubscriptions(CLIENTS[0], session, null);
+        assertEquals(4, diff.unchanged);
+        assertEquals(0, diff.size());
+        assertTrue(batch == table.getBatch(table.find(CLIENTS[0], table.channel(0, SensorType.HEART_RATE))));
+
+        diff = core.setSubscriptions(CLIENTS[0], new SubscriptionSet()
+                .add(0, SensorType.ACCELEROMETER, 50)
+                .add(0, SensorType.GYROSCOPE, 100), null);
+        assertEquals(2, diff.removed);
+        assertEquals(2, diff.unchanged);
+        assertEquals(3, diff.size());
+        assertChange(diff, SensorType.ACCELEROMETER, SubscriptionDiff.RATE_LOWERED, 50);
+        assertChange(diff, SensorType.GYROSCOPE, SubscriptionDiff.RATE_LOWERED, 100);
+        assertChange(diff, SensorType.HEART_RATE, SubscriptionDiff.STOPPED, 0);
+        assertEquals(0, table.getMaxFrequency(table.channel(0, SensorType.HEART_RATE)));
+
+        //other clients only see their own subscriptions replaced
+        diff = core.setSubscriptions(CLIENTS[1], new SubscriptionSet().add(0, SensorType.ACCELEROMETER, 100), null);
+        assertEquals(1, diff.size());
+        assertChange(diff, SensorType.ACCELEROMETER, SubscriptionDiff.RATE_RAISED, 100);
+        diff = core.setSubscriptions(CLIENTS[0], new SubscriptionSet(), null);
+        assertEquals(2, diff.removed);
+        assertEquals(1, diff.size());
+        assertChange(diff, SensorType.GYROSCOPE, SubscriptionDiff.STOPPED, 0);
+        //no rate means every reading
+        diff = core.setSubscriptions(CLIENTS[1], new SubscriptionSet().add(0, SensorType.ACCELEROMETER, 0), null);
+        assertEquals(1, diff.updated);
+        assertChange(diff, SensorType.ACCELEROMETER, SubscriptionDiff.RATE_LOWERED, 0);
+        assertNull(table.getRateLimiter(table.find(CLIENTS[1], table.channel(0, SensorType.ACCELEROMETER))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setSubscriptions_rejectsUnknownSensors() {
+        DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, new CountingSink(1));
+        core.setSubscriptions(CLIENTS[0], new SubscriptionSet()
+                .add(0, SensorType.LIGHT, 10)
+                .add(0, SensorType.NUM_SENSORS, 10), null);
+    }
+
+    /**
+     * Clients with different rates on several devices, each device fed by its own producer thread.
+     * Every reading must be accounted for as delivered or rate limited for every subscriber.
+     * The throughput of the same mix is measured by DispatchLoadBenchmark in maskbenchmarks.
+     */
+    @Test
+    public void load_manyClients() throws InterruptedException {
+        final int numDevices = 4;
+        final int numClients = 60;
+        final int readingsPerDevice = 2000;
+        final int[] sensors = {SensorType.ACCELEROMETER, SensorType.GYROSCOPE, SensorType.HEART_RATE};
+        final CountingSink sink = new CountingSink(numClients);
+        final DispatchCore<Integer, Object> core = new DispatchCore<>(SensorType.NUM_SENSORS, sink);
+        SubscriptionTable<Integer> table = core.getSubscriptions();
+        int subscriptions = 0;
+        for (int c = 0; c < numClients; c++) {
+            int device = c % numDevices;
+            int sensor = sensors[c % sensors.length];
+            //half of the clients take every reading, the others between 10 and 100 Hz
+            int frequency = c % 2 == 0 ? 0 : 10 * (1 + c % 10);
+            core.subscribe(CLIENTS[c], table.channel(device, sensor), frequency, c % 4 == 1 ? RateMode.AVERAGE : RateMode.NEAREST, 1, 0, null);
+            subscriptions++;
+        }
+        assertEquals(numClients, subscriptions);
+
+        Thread[] producers = new Thread[numDevices];
+        for (int d = 0; d < numDevices; d++) {
+            final int device = d;
+            producers[d] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] values = new float[3];
+                    for (int i = 0; i < readingsPerDevice; i++) {
+                        values[0] = i;
+                        //200 Hz
+                        long timestamp = i * 5000000L;
+                        int sensor = sensors[i % sensors.length];
+                        while (!core.offer(device, sensor, timestamp, sensor == SensorType.HEART_RATE ? new float[]{i} : values)) {
+                            //the test must not lose readings, wait for the dispatch thread
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : producers) {
+            t.start();
+        }
+        while (true) {
+            boolean alive = false;
+            for (Thread t : producers) {
+                alive |= t.isAlive();
+            }
+            if (sink.drainRequested.getAndSet(false)) {
+                core.drain();
+            } else if (!alive) {
+                break;
+            } else {
+                Thread.yield();
+            }
+        }
+
+        long produced = 0;
+        long delivered = 0;
+        long rateLimited = 0;
+        DispatchStats stats = core.getStats(null);
+        for (int ch = 0; ch < stats.getChannelCount(); ch++) {
+            produced += stats.getProduced(ch);
+            delivered += stats.getDelivered(ch);
+            rateLimited += stats.getRateLimited(ch);
+            assertEquals(0, stats.getFailed(ch));
+        }
+        assertEquals(numDevices * readingsPerDevice, produced);
+        long sent = 0;
+        for (long n : sink.samples) {
+            sent += n;
+        }
+        assertEquals(delivered, sent);
+        //every client sees every reading of its channel, either delivered or rate limited
+        long expected = 0;
+        for (int c = 0; c < numClients; c++) {
+            int s = c % sensors.length;
+            expected += (readingsPerDevice - s + sensors.length - 1) / sensors.length;
+        }
+        assertEquals(expected, delivered + rateLimited);
+        assertEquals(numClients, stats.getClientCount());
+    }
+}
@@ -0,0 +1,136 @@
+package de.frederickerber.maskplugin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.frederickerber.maskcommons.RateMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTests {
+
+    //200 Hz source
+    private static final long SOURCE_INTERVAL = 5000000L;
+    private static final long JITTER = 500000L;
+    private static final int NUM_SAMPLES = 2000;
+
+    private static long[] jitteredTimestamps(long seed) {
+        Random r = new Random(seed);
+        long[] res = new long[NUM_SAMPLES];
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            res[i] = 1000000000L + i * SOURCE_INTERVAL + (long) ((r.nextDouble() * 2 - 1) * JITTER);
+        }
+        return res;
+    }
+
+    private static double deliveredRate(int frequency, int mode, long[] timestamps) {
+        RateLimiter l = new RateLimiter(frequency, mode);
+        float[] values = new float[3];
+        long first = -1;
+        long last = -1;
+        int sent = 0;
+        for (long ts : timestamps) {
+            if (l.offer(ts, mode == RateMode.AVERAGE ? values : null)) {
+                long t = l.hasAverage() ? l.getAverageTimestamp() : ts;
+                if (first < 0) {
+                    first = t;
+                }
+                last = t;
+                sent++;
+            }
+        }
+        return (sent - 1) * 1e9 / (last - first);
+    }
+
+    private static void assertRate(int frequency, int mode) {
+        double rate = deliveredRate(frequency, mode, jitteredTimestamps(frequency));
+        assertEquals("rate for " + frequency + " Hz", frequency, rate, frequency * 0.02);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_zero_frequency() {
+        new RateLimiter(0, RateMode.NEAREST);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_unknown_mode() {
+        new RateLimiter(50, 42);
+    }
+
+    @Test
+    public void nearest_delivers_requested_rate() {
+        assertRate(50, RateMode.NEAREST);
+        assertRate(30, RateMode.NEAREST);
+        assertRate(60, RateMode.NEAREST);
+        assertRate(7, RateMode.NEAREST);
+    }
+
+    @Test
+    public void average_delivers_requested_rate() {
+        assertRate(50, RateMode.AVERAGE);
+        assertRate(30, RateMode.AVERAGE);
+        assertRate(60, RateMode.AVERAGE);
+        assertRate(7, RateMode.AVERAGE);
+    }
+
+    @Test
+    public void nearest_passes_everything_if_source_is_slower() {
+        long[] timestamps = jitteredTimestamps(1);
+        for (int frequency : new int[]{200, 400}) {
+            RateLimiter l = new RateLimiter(frequency, RateMode.NEAREST);
+            for (long ts : timestamps) {
+                assertTrue(l.offer(ts, null));
+            }
+        }
+    }
+
+    @Test
+    public void nearest_restarts_after_gap() {
+        RateLimiter l = new RateLimiter(50, RateMode.NEAREST);
+        assertTrue(l.offer(0, null));
+        assertFalse(l.offer(SOURCE_INTERVAL, null));
+        //a gap of one second must not produce a burst of readings
+        long ts = 1000000000L;
+        assertTrue(l.offer(ts, null));
+        assertFalse(l.offer(ts + SOURCE_INTERVAL, null));
+        assertFalse(l.offer(ts + 2 * SOURCE_INTERVAL, null));
+    }
+
+    @Test
+    public void average_computes_mean_of_interval() {
+        RateLimiter l = new RateLimiter(50, RateMode.AVERAGE);
+        float[] values = new float[2];
+        int averages = 0;
+        for (int i = 0; i < 40; i++) {
+            values[0] = i;
+            values[1] = -2 * i;
+            boolean send = l.offer(i * SOURCE_INTERVAL, values);
+            assertEquals(send, l.hasAverage());
+            if (send) {
+                //readings 4k-4 .. 4k-1 form one interval of 20 ms
+                float mean = i - 2.5f;
+                assertEquals(mean, l.getAverage()[0], 1e-6f);
+                assertEquals(-2 * mean, l.getAverage()[1], 1e-6f);
+                assertEquals((long) (mean * SOURCE_INTERVAL), l.getAverageTimestamp());
+                averages++;
+            }
+        }
+        assertEquals(9, averages);
+    }
+
+    @Test
+    public void average_without_values_falls_back_to_nearest() {
+        RateLimiter l = new RateLimiter(50, RateMode.AVERAGE);
+        int sent = 0;
+        for (int i = 0; i < 40; i++) {
+            if (l.offer(i * SOURCE_INTERVAL, null)) {
+                assertFalse(l.hasAverage());
+                sent++;
+            }
+        }
+        assertEquals(10, sent);
+    }
+}
@@ -0,0 +1,108 @@
+package de.frederickerber.maskplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleRingTests {
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() {
+        assertEquals(8, new SampleRing(5).capacity());
+        assertEquals(8, new SampleRing(8).capacity());
+        assertEquals(1, new SampleRing(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_zero_capacity() {
+        new SampleRing(0);
+    }
+
+    @Test
+    public void readings_comeOutInOrder() {
+        SampleRing ring = new SampleRing(4);
+        float[] v = new float[]{1f, 2f, 3f};
+        assertTrue(ring.offer(0, 10L, 11L, v));
+        //the ring keeps a copy
+        v[0] = 7f;
+        assertTrue(ring.offer(2, 20L, 0L, 5f));
+        assertTrue(ring.offer(14, 30L, 0L, null));
+
+        assertEquals(3, ring.size());
+        assertEquals(0, ring.peekSensorType());
+        assertEquals(10L, ring.peekTimestamp());
+        assertEquals(11L, ring.peekEnqueueTime());
+        assertEquals(3, ring.peekValueCount());
+        float[] dst = new float[3];
+        ring.peekValues(dst);
+        assertArrayEquals(new float[]{1f, 2f, 3f}, dst, 0f);
+        ring.poll();
+
+        assertEquals(2, ring.peekSensorType());
+        assertEquals(1, ring.peekValueCount());
+        ring.peekValues(dst);
+        assertEquals(5f, dst[0], 0f);
+        ring.poll();
+
+        assertEquals(14, ring.peekSensorType());
+        assertEquals(-1, ring.peekValueCount());
+        ring.poll();
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void full_ring_dropsNewest() {
+        SampleRing ring = new SampleRing(2);
+        assertTrue(ring.offer(0, 1L, 0L, 1f));
+        assertTrue(ring.offer(0, 2L, 0L, 2f));
+        assertFalse(ring.offer(0, 3L, 0L, 3f));
+        assertEquals(1, ring.getDropped());
+        assertEquals(1L, ring.peekTimestamp());
+        ring.poll();
+        assertTrue(ring.offer(0, 4L, 0L, 4f));
+        assertEquals(2L, ring.peekTimestamp());
+    }
+
+    @Test
+    public void concurrent_handOff_keepsOrderAndValues() throws InterruptedException {
+        final SampleRing ring = new SampleRing(64);
+        final int n = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] v = new float[3];
+                for (int i = 0; i < n; ) {
+                    v[0] = i;
+                    v[1] = -i;
+                    v[2] = i % 7;
+                    if (ring.offer(i % 33, i, 0L, v)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        float[] dst = new float[3];
+        for (int i = 0; i < n; ) {
+            if (ring.isEmpty()) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(i % 33, ring.peekSensorType());
+            assertEquals(i, ring.peekTimestamp());
+            ring.peekValues(dst);
+            assertEquals(i, dst[0], 0f);
+            assertEquals(-i, dst[1], 0f);
+            assertEquals(i % 7, dst[2], 0f);
+            ring.poll();
+            i++;
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
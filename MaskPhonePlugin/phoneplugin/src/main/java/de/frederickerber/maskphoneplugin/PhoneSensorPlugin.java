@@ -7,7 +7,10 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Messenger;
+import android.os.Process;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
@@ -30,10 +33,16 @@ public class PhoneSensorPlugin extends SensorService implements SensorEventListe
     private final Set<Integer> mActiveSensors = new HashSet<>();
     private ArrayList<Integer> mSupportedSensorTypes;
     private final SparseIntArray mSensorFrequencies = new SparseIntArray();
+    //sensor events are delivered here instead of the main thread
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
 
     @Override
     public void onCreate() {
         serviceName = "maskphoneplugin";
+        mSensorThread = new HandlerThread("PhoneSensorEvents", Process.THREAD_PRIORITY_FOREGROUND);
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
         mSupportedSensorTypes = new ArrayList<>();
 
         Log.d(TAG, "build serial: " + Build.SERIAL);
@@ -68,7 +77,7 @@ public class PhoneSensorPlugin extends SensorService implements SensorEventListe
     /**
      *
      * Called when the last client disconnected.
-     * This might happen shortly before onDestroy if the client also unbinds afterwards.
+     * This might happen shortly before onPluginDestroy if the client also unbinds afterwards.
      */
     @Override
     protected void lastClientDisconnected() {
@@ -123,7 +132,7 @@ public class PhoneSensorPlugin extends SensorService implements SensorEventListe
             if (sensor != null) {
                 if (!mActiveSensors.contains(sensorType)) {
                     //sensor is not active, activate at desired rate
-                    mSensorManager.registerListener(this, sensor, sensorRate);
+                    mSensorManager.registerListener(this, sensor, sensorRate, mSensorHandler);
                     Log.d(TAG, "register Sensor " + sensor + "with rate " + sensorRate);
                     mActiveSensors.add(sensorType);
                     mSensorFrequencies.put(sensorType, frequency);
@@ -132,7 +141,7 @@ public class PhoneSensorPlugin extends SensorService implements SensorEventListe
                     if (getMaxFrequency(mConnectedDevices.get(deviceIndex),sensorType) > mSensorFrequencies.get(sensorType)) {
                         //we need to increase the rate
                         mSensorManager.unregisterListener(this, sensor);
-                        mSensorManager.registerListener(this, sensor, sensorRate);
+                        mSensorManager.registerListener(this, sensor, sensorRate, mSensorHandler);
                         mSensorFrequencies.put(sensorType, frequency);
                     }
                 }
@@ -173,15 +182,16 @@ public class PhoneSensorPlugin extends SensorService implements SensorEventListe
             int maxRate = getMaxFrequency(deviceIdentifier,sensorType);
             if (mSensorFrequencies.get(sensorType) > maxRate) {
                 mSensorManager.unregisterListener(this, sensor);
-                mSensorManager.registerListener(this, sensor, maxRate > 0 ? 1000000 / getMaxFrequency(deviceIdentifier,sensorType) : SensorManager.SENSOR_DELAY_NORMAL);
+                mSensorManager.registerListener(this, sensor, maxRate > 0 ? 1000000 / getMaxFrequency(deviceIdentifier,sensorType) : SensorManager.SENSOR_DELAY_NORMAL, mSensorHandler);
             }
         }
     }
 
     @Override
-    public void onDestroy() {
+    protected void onPluginDestroy() {
         //unregister listeners to be sure
         mSensorManager.unregisterListener(this);
+        mSensorThread.quit();
     }
 
     /**